@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * An InMemorySocket is a Socket that reads a canned request from memory and
+ * throws away everything written to it.
+ *
+ * It lets the benchmarks drive {@link httpserver.HttpRequest} and
+ * {@link httpserver.HttpResponse} without touching the network stack, so
+ * the numbers only reflect the server's own parsing and serialization.
+ */
+public class InMemorySocket extends Socket {
+    private final byte[] request;
+    private final CountingOutputStream output = new CountingOutputStream();
+
+    /**
+     * Create a socket whose input is a copy of the passed in request.
+     * @param request The raw bytes the "client" sends.
+     */
+    public InMemorySocket(byte[] request) {
+        this.request = request;
+    }
+
+    /**
+     * Create a socket with nothing to read, only useful for writing
+     * responses to.
+     */
+    public InMemorySocket() {
+        this(new byte[0]);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(request);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) {
+        // nothing to keep alive, and the real implementation would
+        // allocate a file descriptor for us.
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public void close() { }
+
+    /**
+     * Get the number of bytes written to this socket so far.
+     * @return How many bytes the server wrote.
+     */
+    public long getBytesWritten() {
+        return output.count;
+    }
+
+
+    /**
+     * Swallows everything written to it, only keeping track of how much
+     * was written. Closing it does nothing, because HttpResponse closes its
+     * writer after every response.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package benchmarks;
+
+import httpserver.HttpException;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.RateLimiter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures {@link RateLimiter#allow} with every thread hammering one
+ * limiter at once, either with a bucket of its own, or all sharing one, the
+ * worst case for contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(8)
+public class RateLimiterBenchmark {
+
+    public RateLimiter perClient;
+    public RateLimiter shared;
+
+    private final AtomicInteger clients = new AtomicInteger();
+
+    @Setup
+    public void setup() {
+        // fast enough that nothing's turned away
+        perClient = new RateLimiter(1e9, 1000);
+        perClient.setKeyHeader("X-Api-Key");
+
+        shared = new RateLimiter(1e9, 1000);
+        shared.setShared(true);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        public HttpRequest request;
+        public HttpResponse response;
+
+        @Setup
+        public void setup(RateLimiterBenchmark benchmark) throws IOException, HttpException {
+            request = new HttpRequest(null, new InMemorySocket());
+            request.setRequestLine("GET /hello HTTP/1.1");
+            request.getHeaders().add("X-Api-Key", "client-" + benchmark.clients.incrementAndGet());
+            response = new HttpResponse(request);
+        }
+    }
+
+    @Benchmark
+    public boolean perClient(Client client) {
+        return perClient.allow(client.request, client.response);
+    }
+
+    @Benchmark
+    public boolean shared(Client client) {
+        return shared.allow(client.request, client.response);
+    }
+}
@@ -0,0 +1,55 @@
+package benchmarks;
+
+import httpserver.HttpException;
+import httpserver.HttpRequest;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link HttpRequest#parseRequest()} on a few realistic requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestParsingBenchmark {
+
+    @Param({"minimal", "browser", "form"})
+    public String request;
+
+    private byte[] raw;
+
+    @Setup
+    public void setup() {
+        switch (request) {
+        case "minimal":
+            raw = Requests.bytes(Requests.MINIMAL_GET);
+            break;
+        case "browser":
+            raw = Requests.bytes(Requests.BROWSER_GET);
+            break;
+        case "form":
+            raw = Requests.bytes(Requests.FORM_POST);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown request " + request);
+        }
+    }
+
+    @Benchmark
+    public HttpRequest parseRequest() throws IOException, HttpException {
+        HttpRequest httpRequest = new HttpRequest(null, new InMemorySocket(raw));
+        httpRequest.parseRequest();
+
+        return httpRequest;
+    }
+}
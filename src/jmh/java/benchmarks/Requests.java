@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Canned HTTP requests shared by the benchmarks.
+ *
+ * The header sets are copied from what browsers and common HTTP clients
+ * actually send, because parsing cost is dominated by the headers.
+ */
+public class Requests {
+    /** A small request, like one from curl or a health checker. */
+    public static final String MINIMAL_GET =
+        "GET /hello HTTP/1.1\r\n"
+        + "Host: localhost:8000\r\n"
+        + "User-Agent: curl/8.4.0\r\n"
+        + "Accept: */*\r\n"
+        + "\r\n";
+
+    /** A page load from a desktop browser, cookies and all. */
+    public static final String BROWSER_GET =
+        "GET /hello/Don/Kuntz?utm_source=newsletter&utm_medium=email&ref=front%20page HTTP/1.1\r\n"
+        + "Host: www.example.com\r\n"
+        + "Connection: keep-alive\r\n"
+        + "Cache-Control: max-age=0\r\n"
+        + "sec-ch-ua: \"Chromium\";v=\"118\", \"Google Chrome\";v=\"118\", \"Not=A?Brand\";v=\"99\"\r\n"
+        + "sec-ch-ua-mobile: ?0\r\n"
+        + "sec-ch-ua-platform: \"Linux\"\r\n"
+        + "Upgrade-Insecure-Requests: 1\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.7\r\n"
+        + "Sec-Fetch-Site: same-origin\r\n"
+        + "Sec-Fetch-Mode: navigate\r\n"
+        + "Sec-Fetch-User: ?1\r\n"
+        + "Sec-Fetch-Dest: document\r\n"
+        + "Referer: https://www.example.com/\r\n"
+        + "Accept-Encoding: gzip, deflate, br\r\n"
+        + "Accept-Language: en-US,en;q=0.9\r\n"
+        + "Cookie: session=4f1c2d7e9a8b; theme=dark; _ga=GA1.1.1234567890.1697712000; _gid=GA1.1.987654321.1697712000\r\n"
+        + "\r\n";
+
+    /** A form submission, with a url encoded body. */
+    public static final String FORM_POST =
+        "POST /hello HTTP/1.1\r\n"
+        + "Host: www.example.com\r\n"
+        + "Connection: keep-alive\r\n"
+        + "Content-Length: 68\r\n"
+        + "Content-Type: application/x-www-form-urlencoded\r\n"
+        + "Origin: https://www.example.com\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/118.0\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+        + "Referer: https://www.example.com/hello\r\n"
+        + "Accept-Encoding: gzip, deflate, br\r\n"
+        + "Accept-Language: en-US,en;q=0.5\r\n"
+        + "\r\n"
+        + "name=Don+Kuntz&email=don%40kuntz.co&message=Hello%2C+world%21&send=1";
+
+    public static byte[] bytes(String request) {
+        return request.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
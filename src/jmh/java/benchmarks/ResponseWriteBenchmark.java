@@ -0,0 +1,93 @@
+package benchmarks;
+
+import httpserver.HttpException;
+import httpserver.HttpHeaders;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.StaticResponse;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link HttpResponse#respond()} serializing the status line,
+ * headers and body into an in-memory socket, and the same response sent as
+ * a {@link StaticResponse}, serialized ahead of time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseWriteBenchmark {
+
+    @Param({"0", "5"})
+    public int extraHeaders;
+
+    @Param({"12", "16384"})
+    public int bodySize;
+
+    private InMemorySocket socket;
+    private HttpRequest request;
+    private byte[] body;
+    private String[] headerNames;
+    private String[] headerValues;
+    private StaticResponse staticResponse;
+
+    @Setup
+    public void setup() throws IOException, HttpException {
+        socket = new InMemorySocket();
+
+        request = new HttpRequest(null, socket);
+        request.setRequestLine("GET /hello HTTP/1.1");
+
+        body = new byte[bodySize];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + (i % 26));
+        }
+
+        headerNames = new String[extraHeaders];
+        headerValues = new String[extraHeaders];
+        for (int i = 0; i < extraHeaders; i++) {
+            headerNames[i] = "X-Header-" + i;
+            headerValues[i] = "value " + i;
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < extraHeaders; i++) {
+            headers.add(headerNames[i], headerValues[i]);
+        }
+        staticResponse = new StaticResponse(200, "text/html", body, headers);
+    }
+
+    @Benchmark
+    public long respond() throws IOException {
+        HttpResponse response = new HttpResponse(request);
+        response.setMimeType("text/html");
+        response.setBody(body);
+
+        for (int i = 0; i < extraHeaders; i++) {
+            response.setHeader(headerNames[i], headerValues[i]);
+        }
+
+        response.respond();
+
+        return socket.getBytesWritten();
+    }
+
+    @Benchmark
+    public long respondStatic() throws IOException {
+        HttpResponse response = new HttpResponse(request);
+        response.setStaticResponse(staticResponse);
+        response.respond();
+
+        return socket.getBytesWritten();
+    }
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import httpserver.HttpException;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.Route;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link Route#invoke}, which binds the dynamic path segments and
+ * varargs onto the request before calling the route's handle method.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RouteInvokeBenchmark {
+
+    private Route staticRoute;
+    private Route namedRoute;
+    private Route varargsRoute;
+
+    private InMemorySocket socket;
+
+    @Setup
+    public void setup() {
+        socket = new InMemorySocket();
+
+        staticRoute = new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) { }
+        };
+        namedRoute = new Route("/hello/{firstName}/{lastName}") {
+            @Override public void handle(HttpRequest request, HttpResponse response) { }
+        };
+        varargsRoute = new Route("/hello/{*}") {
+            @Override public void handle(HttpRequest request, HttpResponse response) { }
+        };
+    }
+
+    @Benchmark
+    public HttpRequest staticPath() throws IOException, HttpException {
+        return invoke(staticRoute, "/hello");
+    }
+
+    @Benchmark
+    public HttpRequest namedParams() throws IOException, HttpException {
+        return invoke(namedRoute, "/hello/Don/Kuntz");
+    }
+
+    @Benchmark
+    public HttpRequest varargs() throws IOException, HttpException {
+        return invoke(varargsRoute, "/hello/Don/Michael/Mark/Laura");
+    }
+
+    private HttpRequest invoke(Route route, String path) throws IOException, HttpException {
+        HttpRequest request = new HttpRequest(null, socket);
+        request.setRequestLine("GET " + path + " HTTP/1.1");
+
+        route.invoke(request, new HttpResponse(request));
+
+        return request;
+    }
+}
@@ -0,0 +1,80 @@
+package benchmarks;
+
+import httpserver.HttpException;
+import httpserver.HttpHandler;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.Route;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link HttpHandler#handle} picking a route out of a handler with
+ * a growing number of routes.
+ *
+ * Half of the routes are static and half are dynamic, and the requested
+ * path matches the last route added, which is the worst case for the
+ * linear scan the handler does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RoutingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int routes;
+
+    private HttpHandler handler;
+    private String lastPath;
+
+    @Setup
+    public void setup() {
+        handler = new HttpHandler() { };
+
+        for (int i = 0; i < routes; i++) {
+            String path = (i % 2 == 0)
+                ? "/resource" + i + "/items"
+                : "/resource" + i + "/{id}";
+
+            handler.get(new Route(path) {
+                @Override public void handle(HttpRequest request, HttpResponse response) {
+                    response.setBody("ok");
+                }
+            });
+        }
+
+        lastPath = (routes % 2 == 1)
+            ? "/resource" + (routes - 1) + "/items"
+            : "/resource" + (routes - 1) + "/42";
+    }
+
+    @Benchmark
+    public HttpResponse perfectMatch() throws IOException, HttpException {
+        return route(lastPath);
+    }
+
+    @Benchmark
+    public HttpResponse noMatch() throws IOException, HttpException {
+        return route("/missing/route/entirely");
+    }
+
+    private HttpResponse route(String path) throws IOException, HttpException {
+        HttpRequest request = new HttpRequest(null, new InMemorySocket());
+        request.setRequestLine("GET " + path + " HTTP/1.1");
+
+        HttpResponse response = new HttpResponse(request);
+        handler.handle(request, response);
+
+        return response;
+    }
+}
@@ -0,0 +1,115 @@
+package httpserver;
+
+/**
+ * Accept works out which of the types a handler can answer with a client
+ * would like best, from its {@code Accept} header. <p>
+ *
+ * Each type the handler offers gets the quality of the most specific range
+ * in the header that matches it: {@code text/html} over {@code text/*} over
+ * {@code *}{@code /*}. The best quality wins, and ties go to whichever the
+ * handler offered first. A quality of 0 means the client won't take it. A
+ * client that doesn't send the header takes anything.
+ *
+ * @see HttpRequest#negotiate
+ */
+class Accept {
+    // how specific a matching range is
+    private static final int NO_MATCH = -1;
+    private static final int ANY = 0;
+    private static final int ANY_SUBTYPE = 1;
+    private static final int EXACT = 2;
+
+    private Accept() { }
+
+
+    /**
+     * Pick the best type.
+     *
+     * @param header   The Accept header, or null.
+     * @param offered  The types the handler can answer with, best first.
+     * @return The type to answer with, or null if the client won't take any
+     *         of them.
+     */
+    static String negotiate(String header, String... offered) {
+        String best = null;
+        double bestQuality = 0;
+        for (String type : offered) {
+            double quality = quality(header, type);
+            if (quality > bestQuality) {
+                best = type;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Get how much the client would like a type.
+     *
+     * @param header  The Accept header, or null.
+     * @param type    The type, without parameters.
+     * @return The quality, from 0, not at all, to 1.
+     */
+    static double quality(String header, String type) {
+        if (header == null || header.trim().isEmpty()) {
+            return 1;
+        }
+
+        int specificity = NO_MATCH;
+        double quality = 0;
+
+        int start = 0;
+        while (start <= header.length()) {
+            int end = header.indexOf(',', start);
+            if (end == -1) {
+                end = header.length();
+            }
+
+            int paramsStart = header.indexOf(';', start);
+            if (paramsStart == -1 || paramsStart > end) {
+                paramsStart = end;
+            }
+
+            int matched = match(header.substring(start, paramsStart).trim(), type);
+            if (matched > specificity) {
+                specificity = matched;
+                quality = parseQuality(header.substring(paramsStart, end));
+            }
+
+            start = end + 1;
+        }
+
+        return quality;
+    }
+
+    private static int match(String range, String type) {
+        if (range.equals("*/*") || range.equals("*")) {
+            return ANY;
+        }
+
+        int slash = range.indexOf('/');
+        if (slash != -1 && range.endsWith("/*")) {
+            return type.regionMatches(true, 0, range, 0, slash + 1) ? ANY_SUBTYPE : NO_MATCH;
+        }
+
+        return range.equalsIgnoreCase(type) ? EXACT : NO_MATCH;
+    }
+
+    /**
+     * Read the q parameter out of a range's parameters.
+     */
+    private static double parseQuality(String params) {
+        for (String param : params.split(";")) {
+            int equals = param.indexOf('=');
+            if (equals != -1 && param.substring(0, equals).trim().equalsIgnoreCase("q")) {
+                try {
+                    double quality = Double.parseDouble(param.substring(equals + 1).trim());
+                    return Math.max(0, Math.min(1, quality));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,77 @@
+package httpserver;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An AsyncRoute answers its requests later, once a {@link CompletionStage}
+ * completes, rather than when its handler returns:
+ *
+ * <pre>
+ * server.get(new AsyncRoute("/dashboard/{name}") {
+ *     &#64;Override public CompletionStage&lt;?&gt; handleAsync(HttpRequest request,
+ *             final HttpResponse response) {
+ *         return prices.lookup(request.getParam("name")).thenAccept(...);
+ *     }
+ * });
+ * </pre>
+ *
+ * While the stage is running, no thread is held for the request, so a
+ * handler waiting on slow downstream calls doesn't tie up the server's
+ * threads. The response is filled in by the stage, and sent as soon as it
+ * completes. <p>
+ *
+ * A stage that fails is answered through {@link HttpResponse#error}, with a
+ * 500, or with the code of an {@link HttpException}. One that takes longer
+ * than the route's timeout is cancelled, and answered with a 504 (Gateway
+ * Timeout). If the client goes away first, the stage is cancelled too. <p>
+ *
+ * The request and response mustn't be used once the stage has completed,
+ * or been cancelled.
+ */
+public abstract class AsyncRoute extends Route {
+    private long timeout = 30000;
+
+
+    public AsyncRoute(String path) {
+        super(path);
+    }
+
+
+    /**
+     * Start handling a request. The request's route params are set, as
+     * usual.
+     *
+     * @param request  The request.
+     * @param response The response to fill in, before the stage completes.
+     * @return A stage that completes once the response is ready.
+     */
+    public abstract CompletionStage<?> handleAsync(HttpRequest request, HttpResponse response);
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response) {
+        CompletionStage<?> stage = handleAsync(request, response);
+        if (stage != null) {
+            // the request's deadline cuts the timeout short
+            long wait = timeout;
+            long remaining = request.getTimeRemaining();
+            if (remaining != -1 && (wait == 0 || remaining < wait)) {
+                wait = Math.max(1, remaining);
+            }
+
+            response.respondLater(stage, wait);
+        }
+    }
+
+    /**
+     * Set how long a stage may take before it's cancelled, and the client
+     * is sent a 504 (Gateway Timeout). The route's
+     * {@link #setDeadline deadline} cuts it short, if it's sooner.
+     * @param millis The timeout, in milliseconds, or 0 to wait forever.
+     */
+    public void setTimeout(long millis) {
+        this.timeout = millis;
+    }
+    public long getTimeout() {
+        return timeout;
+    }
+}
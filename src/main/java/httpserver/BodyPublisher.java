@@ -0,0 +1,157 @@
+package httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BodyPublisher publishes a request's body as it's read, for
+ * {@link HttpRequest#getBodyPublisher}. <p>
+ *
+ * Nothing's read until the subscriber asks for it, and then only as many
+ * chunks as it's asked for, so a slow subscriber slows down reading from
+ * the client, instead of the body piling up in memory. Reading blocks, so
+ * it's done on an executor, one chunk after another, never on the thread
+ * asking for more. <p>
+ *
+ * A body can only be read once, so there's only ever one subscriber.
+ */
+class BodyPublisher implements Flow.Publisher<ByteBuffer> {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final InputStream in;
+    private final Executor executor;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile boolean abandoned = false;
+
+
+    /**
+     * @param in        The body.
+     * @param executor  Runs the reads.
+     */
+    BodyPublisher(InputStream in, Executor executor) {
+        this.in = in;
+        this.executor = executor;
+    }
+
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("The subscriber can't be null.");
+        }
+
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override public void request(long n) {}
+                @Override public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("The body can only be read once."));
+            return;
+        }
+
+        subscriber.onSubscribe(new BodySubscription(subscriber));
+    }
+
+    /**
+     * Stop reading, because the request's been answered. The subscriber's
+     * told the next time a chunk would've been read.
+     */
+    void abandon() {
+        abandoned = true;
+    }
+
+
+    private class BodySubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        BodySubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (done.get()) {
+                return;
+            }
+
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Only a positive number of chunks can be requested."));
+                return;
+            }
+
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+
+            // Whoever takes the demand from nothing starts reading. Until
+            // it's used up again, the read that's running carries on.
+            if (current == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            done.set(true);
+        }
+
+        /**
+         * Read and publish chunks, for as long as there's demand.
+         */
+        @Override
+        public void run() {
+            do {
+                if (done.get()) {
+                    return;
+                }
+
+                // the connection's moved on, and what's left on it isn't
+                // this body anymore
+                if (abandoned) {
+                    fail(new IllegalStateException("The request was already answered."));
+                    return;
+                }
+
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int read;
+                try {
+                    read = in.read(chunk);
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+
+                if (read == -1) {
+                    if (done.compareAndSet(false, true)) {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+
+                subscriber.onNext(ByteBuffer.wrap(chunk, 0, read));
+            } while (demand.decrementAndGet() > 0);
+        }
+
+        void fail(Throwable error) {
+            if (done.compareAndSet(false, true)) {
+                subscriber.onError(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package httpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A BodySubscriber hands a published response body to the thread sending
+ * it, for {@link HttpResponse#setBodyPublisher}. <p>
+ *
+ * Only a few chunks are asked for up front, and one more once each chunk's
+ * been written, so the publisher goes exactly as fast as the client reads,
+ * and never gets ahead of it by more than a few chunks.
+ */
+class BodySubscriber implements Flow.Subscriber<ByteBuffer> {
+    // how many chunks may be waiting to be sent
+    private static final int PREFETCH = 4;
+
+    private static final Object COMPLETE = new Object();
+
+    private final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+    private final long timeout;
+
+    private volatile Flow.Subscription subscription;
+    private volatile boolean cancelled = false;
+
+
+    /**
+     * @param timeout How long to wait for each chunk, in milliseconds, or 0
+     *                to wait for ever.
+     */
+    BodySubscriber(long timeout) {
+        this.timeout = timeout;
+    }
+
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null || cancelled) {
+            subscription.cancel();
+            return;
+        }
+
+        this.subscription = subscription;
+        subscription.request(PREFETCH);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        signals.add(item);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        signals.add(new Failure(error));
+    }
+
+    @Override
+    public void onComplete() {
+        signals.add(COMPLETE);
+    }
+
+    /**
+     * Wait for the next chunk.
+     *
+     * @return The chunk, backed by an array, or null once the body's over.
+     * @throws IOException  If the publisher failed, or took too long.
+     */
+    ByteBuffer next() throws IOException {
+        Object signal;
+        try {
+            signal = timeout > 0 ? signals.poll(timeout, TimeUnit.MILLISECONDS) : signals.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new IOException("Interrupted waiting for the response body.");
+        }
+
+        if (signal == null) {
+            cancel();
+            throw new IOException("Timed out waiting for the response body.");
+        } else if (signal == COMPLETE) {
+            return null;
+        } else if (signal instanceof Failure) {
+            throw new IOException("The response body failed.", ((Failure) signal).error);
+        }
+
+        ByteBuffer buffer = (ByteBuffer) signal;
+        if (!buffer.hasArray()) {
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.get(copy);
+            buffer = ByteBuffer.wrap(copy);
+        }
+        return buffer;
+    }
+
+    /**
+     * Ask for another chunk, now that one's been written.
+     */
+    void consumed() {
+        Flow.Subscription current = subscription;
+        if (current != null && !cancelled) {
+            current.request(1);
+        }
+    }
+
+    /**
+     * Stop sending, because the client went away. The publisher's cancelled,
+     * and whoever's waiting on the next chunk gives up.
+     */
+    void abort(IOException reason) {
+        cancel();
+        signals.add(new Failure(reason));
+    }
+
+    void cancel() {
+        cancelled = true;
+
+        Flow.Subscription current = subscription;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+
+    private static class Failure {
+        private final Throwable error;
+
+        Failure(Throwable error) {
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package httpserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A BufferPool lends out the buffers connections read and write through, so
+ * a server that's serving steadily hardly makes any garbage. <p>
+ *
+ * Buffers come in size classes, powers of two from {@value #MIN_SIZE} to
+ * {@value #MAX_SIZE} bytes, and a request for any other size gets the next
+ * class up. Anything larger isn't pooled. Each thread keeps a few buffers of
+ * each class to itself, so a worker that's lent the same buffer request after
+ * request never touches anything shared. The rest are kept in a shared pool,
+ * up to a limit per class. <p>
+ *
+ * The buffers are plain arrays, rather than direct buffers, because the
+ * server's sockets are read and written as streams, which would have to copy
+ * a direct buffer's contents into an array anyway. <p>
+ *
+ * A buffer that's never given back is just garbage collected, but it's still
+ * a bug. With leak detection on, which is meant for tests, the pool remembers
+ * where every buffer it lends out was taken, and complains about buffers
+ * given back twice. Buffers lent out before it was turned on aren't
+ * tracked, so they're taken back without complaint.
+ *
+ * @see HttpServer#setBufferPool
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+
+    // how many buffers of each class a thread keeps to itself
+    private static final int THREAD_CACHE_SIZE = 4;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE)
+            - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+    private final int maxPooledBytes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ConcurrentLinkedQueue<byte[]>[] shared = new ConcurrentLinkedQueue[CLASSES];
+    private final AtomicInteger[] sharedCounts = new AtomicInteger[CLASSES];
+
+    private final ThreadLocal<byte[][][]> threadCaches = new ThreadLocal<byte[][][]>() {
+        @Override protected byte[][][] initialValue() {
+            return new byte[CLASSES][THREAD_CACHE_SIZE][];
+        }
+    };
+
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    // where each buffer lent out was taken, when looking for leaks, and the
+    // tracked buffers that were given back, to catch them given back twice
+    private volatile boolean leakDetection = Boolean.getBoolean("httpserver.leakDetection");
+    private final Map<byte[], Throwable> lent = new ConcurrentHashMap<byte[], Throwable>();
+    private final Set<byte[]> returned = ConcurrentHashMap.newKeySet();
+
+    private Logger logger = Logger.getLogger("java-httpserver");
+
+
+    /**
+     * Create a pool that keeps up to 4MB of each size class.
+     */
+    public BufferPool() {
+        this(4 * 1024 * 1024);
+    }
+
+    /**
+     * Create a pool.
+     * @param maxPooledBytes  The most bytes of each size class kept in the
+     *                        shared pool, on top of what threads keep.
+     */
+    public BufferPool(int maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+
+        for (int i = 0; i < CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<byte[]>();
+            sharedCounts[i] = new AtomicInteger();
+        }
+    }
+
+
+    /**
+     * Borrow a buffer. Its contents are whatever its last borrower left.
+     *
+     * @param size  The least the buffer has to hold.
+     * @return A buffer at least size bytes long, to be given back with
+     *         {@link #release}.
+     */
+    byte[] acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass == -1) {
+            return new byte[size];
+        }
+
+        byte[] buffer = null;
+        byte[][] cache = threadCaches.get()[sizeClass];
+        for (int i = cache.length - 1; i >= 0; i--) {
+            if (cache[i] != null) {
+                buffer = cache[i];
+                cache[i] = null;
+                break;
+            }
+        }
+
+        if (buffer == null) {
+            buffer = shared[sizeClass].poll();
+            if (buffer != null) {
+                sharedCounts[sizeClass].decrementAndGet();
+            }
+        }
+
+        if (buffer == null) {
+            buffer = new byte[MIN_SIZE << sizeClass];
+            allocated.incrementAndGet();
+        } else {
+            reused.incrementAndGet();
+        }
+
+        outstanding.incrementAndGet();
+        if (leakDetection) {
+            returned.remove(buffer);
+            lent.put(buffer, new Throwable("Buffer of " + buffer.length + " bytes taken here"));
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer from {@link #acquire}, which mustn't be used again.
+     * Anything else is left to be garbage collected.
+     *
+     * @param buffer  The buffer, or null for nothing.
+     * @throws IllegalStateException If leak detection is on, and the buffer
+     *         was tracked and already given back.
+     */
+    void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass == -1 || buffer.length != MIN_SIZE << sizeClass) {
+            return;
+        }
+
+        if (leakDetection) {
+            if (lent.remove(buffer) != null) {
+                returned.add(buffer);
+            } else if (returned.contains(buffer)) {
+                throw new IllegalStateException("Buffer released twice.");
+            }
+        }
+        outstanding.decrementAndGet();
+
+        byte[][] cache = threadCaches.get()[sizeClass];
+        for (int i = 0; i < cache.length; i++) {
+            if (cache[i] == null) {
+                cache[i] = buffer;
+                return;
+            }
+        }
+
+        if (sharedCounts[sizeClass].incrementAndGet() * (long) buffer.length <= maxPooledBytes) {
+            shared[sizeClass].offer(buffer);
+        } else {
+            sharedCounts[sizeClass].decrementAndGet();
+            returned.remove(buffer);
+        }
+    }
+
+    /**
+     * Get the class a size falls into.
+     * @return The class, or -1 if the size is too large to pool.
+     */
+    private static int sizeClass(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+
+    /**
+     * Turn leak detection on or off. Only buffers taken while it's on are
+     * tracked.
+     *
+     * @param leakDetection Whether to track where buffers were taken.
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        if (!leakDetection) {
+            lent.clear();
+            returned.clear();
+        }
+    }
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Get where each tracked buffer that hasn't been given back was taken,
+     * and log them.
+     *
+     * @return The stack traces of the leaked buffers.
+     */
+    public List<Throwable> reportLeaks() {
+        List<Throwable> leaks = new ArrayList<Throwable>(lent.values());
+        for (Throwable leak : leaks) {
+            logger.log(Level.WARNING, "Buffer was never released.", leak);
+        }
+        return leaks;
+    }
+
+    /**
+     * Get how many buffers had to be created, because none were free.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+    /**
+     * Get how many times a free buffer was lent out again.
+     */
+    public long getReused() {
+        return reused.get();
+    }
+    /**
+     * Get how many buffers are lent out right now.
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+}
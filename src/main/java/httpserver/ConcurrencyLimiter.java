@@ -0,0 +1,217 @@
+package httpserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ConcurrencyLimiter caps how many requests an {@link HttpServer} works on
+ * at once, and adapts the cap to how quickly they're being answered. <p>
+ *
+ * Requests over the limit are shed: answered right away with a 503 (Service
+ * Unavailable) and a Retry-After header, without reading their body or
+ * calling their handler. When whatever the handlers depend on slows down,
+ * the server turns away what it can't keep up with, instead of queueing it
+ * and slowing down everyone. <p>
+ *
+ * The limit is found the way a gradient limiter does it. Every few requests,
+ * the recent average latency is compared with the long term average. While
+ * they're about the same, and the limit's actually being reached, it grows.
+ * Once the recent latency is well above the long term one, requests are
+ * queueing somewhere, and it shrinks in proportion. <p>
+ *
+ * Routes have a {@link Route#setPriority priority}. {@link #CRITICAL}
+ * requests, like health checks, are always let through, and
+ * {@link #SHEDDABLE} ones are shed once the server's half way to its limit,
+ * so there's room left for {@link #NORMAL} ones.
+ *
+ * @see HttpServer#setConcurrencyLimiter
+ */
+public class ConcurrencyLimiter {
+    public static final int CRITICAL = 0;
+    public static final int NORMAL = 1;
+    public static final int SHEDDABLE = 2;
+
+    public static final String OVERLOADED = "The server is too busy, try again shortly";
+
+    // each window of samples is at least this many requests, and this long
+    private static final int WINDOW_SAMPLES = 10;
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // how much of each new limit is taken, so one odd window doesn't swing it
+    private static final double SMOOTHING = 0.2;
+
+    // how much each window moves the long term latency
+    private static final double LONG_TERM_WEIGHT = 0.01;
+
+    private volatile double limit = 20;
+    private int minLimit = 4;
+    private int maxLimit = 1000;
+    private double tolerance = 1.5;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong shed = new AtomicLong();
+
+    // the current window, closed by whoever gets to update the limit
+    private final AtomicLong windowTotal = new AtomicLong();
+    private final AtomicInteger windowCount = new AtomicInteger();
+    private volatile long windowStart = System.nanoTime();
+    private final AtomicBoolean updating = new AtomicBoolean();
+
+    // guarded by updating
+    private double longTerm = -1;
+
+
+    /**
+     * Try to start working on a request.
+     *
+     * @param priority  The request's route's priority.
+     * @return whether the request may go ahead. If it may, it has to be
+     *         {@link #release released} once it's answered.
+     */
+    boolean acquire(int priority) {
+        if (priority == CRITICAL) {
+            inFlight.incrementAndGet();
+            return true;
+        }
+
+        double allowed = priority == SHEDDABLE ? limit / 2 : limit;
+        while (true) {
+            int current = inFlight.get();
+            if (current >= allowed) {
+                shed.incrementAndGet();
+                return false;
+            }
+
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Finish working on a request.
+     *
+     * @param latency  How long its handler took, in nanoseconds, or -1 if
+     *                 it never got that far.
+     */
+    void release(long latency) {
+        int current = inFlight.getAndDecrement();
+        if (latency < 0) {
+            return;
+        }
+
+        windowTotal.addAndGet(latency);
+        int count = windowCount.incrementAndGet();
+
+        long now = System.nanoTime();
+        if (count >= WINDOW_SAMPLES && now - windowStart >= WINDOW_NANOS
+                && updating.compareAndSet(false, true)) {
+            try {
+                // samples that land while this is going on count toward the
+                // next window, which is close enough
+                int samples = windowCount.getAndSet(0);
+                long total = windowTotal.getAndSet(0);
+                windowStart = now;
+
+                if (samples > 0) {
+                    update((double) total / samples, current);
+                }
+            } finally {
+                updating.set(false);
+            }
+        }
+    }
+
+    /**
+     * Work out the next limit, from a window's average latency.
+     */
+    private void update(double shortTerm, int inFlightNow) {
+        if (longTerm < 0) {
+            longTerm = shortTerm;
+        } else {
+            longTerm += (shortTerm - longTerm) * LONG_TERM_WEIGHT;
+        }
+
+        // Coming back from a slow patch, the long term latency is still too
+        // high, so it's let go of quickly.
+        if (longTerm > shortTerm * 2) {
+            longTerm *= 0.95;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longTerm / shortTerm));
+
+        // A little room to grow, so the limit can find out if more requests
+        // would be fine. Unless it isn't even being reached, in which case
+        // there's no telling.
+        double current = limit;
+        double next = current * gradient + Math.sqrt(current);
+        if (inFlightNow < current / 2) {
+            next = Math.min(next, current);
+        }
+
+        next = current * (1 - SMOOTHING) + next * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+
+    /**
+     * Set the limit, which adapts from there.
+     * @param limit How many requests may be worked on at once.
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Set the least the limit can shrink to.
+     * @param limit The smallest limit.
+     */
+    public void setMinLimit(int limit) {
+        this.minLimit = limit;
+    }
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * Set the most the limit can grow to.
+     * @param limit The largest limit.
+     */
+    public void setMaxLimit(int limit) {
+        this.maxLimit = limit;
+    }
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Set how much slower than usual requests can get before the limit
+     * shrinks.
+     * @param tolerance How many times the long term latency, at least 1.
+     */
+    public void setLatencyTolerance(double tolerance) {
+        this.tolerance = Math.max(1, tolerance);
+    }
+    public double getLatencyTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Get how many requests are being worked on.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get how many requests have been shed.
+     */
+    public long getShed() {
+        return shed.get();
+    }
+}
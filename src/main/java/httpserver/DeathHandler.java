@@ -1,8 +1,5 @@
 package httpserver;
 
-import java.util.ArrayList;
-import java.util.Random;
-
 /**
  * A DeathHandler should only be called if something bad occurs.
  *
@@ -14,10 +11,12 @@ import java.util.Random;
  * other handlers available, it'll be used.
  */
 class DeathHandler extends HttpHandler {
-  private int code;
+  // shared by every request that comes in without a router
+  static final DeathHandler SERVER_ERROR = new DeathHandler();
 
+  private final int code;
+  private final ErrorBodies bodies;
 
-  public static ArrayList<String> errorMessages;
 
   /**
    * Creates a new DeathHandler...
@@ -28,9 +27,14 @@ class DeathHandler extends HttpHandler {
 
 
   public DeathHandler(int statusCode) {
+    this(statusCode, ErrorBodies.getInstance(ErrorBodies.TEXT));
+  }
+
+
+  public DeathHandler(int statusCode, ErrorBodies bodies) {
     super();
-    setupErrorMessages();
     code = statusCode;
+    this.bodies = bodies;
   }
 
   /**
@@ -39,35 +43,12 @@ class DeathHandler extends HttpHandler {
    * Regardless of what you *think* we should do, we're just going to send a
    * 500 error to the browser, with a random, generic error message. Including
    * some from our good friend, Han Solo.
- * @throws HttpException
+   *
+   * The messages are serialized ahead of time, so an error storm doesn't
+   * make any garbage.
    */
   @Override
   public void handle(HttpRequest request, HttpResponse resp) {
-    //super.handle(request);
-
-    String message = errorMessages.get(
-            new Random().nextInt(errorMessages.size()));
-
-    resp.message(code, message);
-  }
-
-
-  /**
-   * Setup error messages that could be sent to the client
-   */
-  private static void setupErrorMessages() {
-    errorMessages = new ArrayList<String>();
-
-    errorMessages.add("Well, that went well...");
-    errorMessages.add("That's not a good sound.");
-    errorMessages.add("Oh God, oh God, we're all gonna die.");
-    errorMessages.add("What a crazy random happenstance!");
-    errorMessages.add("Uh, everything's under control. Situation normal.");
-    errorMessages.add("Uh, we had a slight weapons malfunction, but, uh... "
-            + "everything's perfectly all right now. We're fine. We're all "
-            + "fine here now, thank you. How are you?");
-    errorMessages.add("Definitely feeling aggressive tendency, sir!");
-    errorMessages.add("If they move, shoot 'em.");
-
+    bodies.respond(code, resp);
   }
 }
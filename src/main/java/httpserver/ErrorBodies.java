@@ -0,0 +1,140 @@
+package httpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ErrorBodies holds the bodies a {@link DeathHandler} answers with, already
+ * serialized, for every 4xx and 5xx status code. <p>
+ *
+ * Errors tend to come all at once, when the server's already struggling, so
+ * answering one shouldn't cost anything: picking a body doesn't allocate,
+ * and the same bytes are handed to every response. They're never changed
+ * once they're built, so they're safe to share between threads. <p>
+ *
+ * Bodies come in two formats: {@link #TEXT}, just a message, and
+ * {@link #PROBLEM_JSON}, a JSON problem details object (see RFC 9457):
+ *
+ * <pre>
+ * {"type":"about:blank","title":"Not Implemented","status":501,"detail":"..."}
+ * </pre>
+ *
+ * @see HttpRouter#setErrorFormat
+ */
+public class ErrorBodies {
+    public static final int TEXT = 0;
+    public static final int PROBLEM_JSON = 1;
+
+    private static final String[] MESSAGES = {
+        "Well, that went well...",
+        "That's not a good sound.",
+        "Oh God, oh God, we're all gonna die.",
+        "What a crazy random happenstance!",
+        "Uh, everything's under control. Situation normal.",
+        "Uh, we had a slight weapons malfunction, but, uh... "
+            + "everything's perfectly all right now. We're fine. We're all "
+            + "fine here now, thank you. How are you?",
+        "Definitely feeling aggressive tendency, sir!",
+        "If they move, shoot 'em.",
+    };
+
+    // the codes that have bodies built ahead of time
+    private static final int FIRST_CODE = 400;
+    private static final int LAST_CODE = 599;
+
+    private static final ErrorBodies text = new ErrorBodies(TEXT);
+    private static final ErrorBodies problemJson = new ErrorBodies(PROBLEM_JSON);
+
+    private final int format;
+    private final String mimeType;
+
+    // every message, for every code
+    private final byte[][][] bodies;
+
+
+    private ErrorBodies(int format) {
+        this.format = format;
+        mimeType = format == PROBLEM_JSON ? "application/problem+json" : "text/plain";
+
+        bodies = new byte[LAST_CODE - FIRST_CODE + 1][][];
+        for (int code = FIRST_CODE; code <= LAST_CODE; code++) {
+            bodies[code - FIRST_CODE] = build(code);
+        }
+    }
+
+    /**
+     * Get the bodies in a format.
+     * @param format {@link #TEXT} or {@link #PROBLEM_JSON}.
+     * @return The bodies, which are shared.
+     */
+    public static ErrorBodies getInstance(int format) {
+        switch (format) {
+            case TEXT:
+                return text;
+            case PROBLEM_JSON:
+                return problemJson;
+            default:
+                throw new IllegalArgumentException("Unknown error format: " + format);
+        }
+    }
+
+
+    /**
+     * Answer a response with one of a code's bodies, picked at random.
+     *
+     * @param code      The status code.
+     * @param response  The response to fill in.
+     */
+    public void respond(int code, HttpResponse response) {
+        byte[][] choices = code >= FIRST_CODE && code <= LAST_CODE
+            ? bodies[code - FIRST_CODE]
+            : build(code);
+
+        response.setCode(code);
+        response.setBody(choices[ThreadLocalRandom.current().nextInt(choices.length)]);
+        response.setMimeType(mimeType);
+    }
+
+    private byte[][] build(int code) {
+        byte[][] built = new byte[MESSAGES.length][];
+        for (int i = 0; i < MESSAGES.length; i++) {
+            String body = format == PROBLEM_JSON ? problem(code, MESSAGES[i]) : MESSAGES[i];
+            built[i] = body.getBytes(StandardCharsets.UTF_8);
+        }
+        return built;
+    }
+
+    private static String problem(int code, String detail) {
+        String status = HttpResponse.getResponseCodeMessage(code);
+        int space = status.indexOf(' ');
+        String title = space == -1 ? "" : status.substring(space + 1);
+
+        return "{\"type\":\"about:blank\",\"title\":\"" + escape(title)
+            + "\",\"status\":" + code
+            + ",\"detail\":\"" + escape(detail) + "\"}";
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+
+    public int getFormat() {
+        return format;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+}
@@ -0,0 +1,152 @@
+package httpserver;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An EventChannel broadcasts Server-Sent Events to every {@link EventStream}
+ * subscribed to it. <p>
+ *
+ * Each event is given the next id, and formatted once no matter how many
+ * subscribers there are. The channel remembers its most recent events, so a
+ * client that reconnects with a Last-Event-ID is sent whatever it missed
+ * before it starts getting new events:
+ *
+ * <pre>
+ * final EventChannel prices = new EventChannel();
+ *
+ * server.get(new Route("/prices") {
+ *     &#64;Override public void handle(HttpRequest request, HttpResponse response) {
+ *         prices.subscribe(response.startEventStream());
+ *     }
+ * });
+ *
+ * prices.publish("price", "{\"AAPL\": 187.3}");
+ * </pre>
+ */
+public class EventChannel {
+    /** How many events are remembered for reconnecting clients, by default. */
+    public static final int DEFAULT_HISTORY_SIZE = 100;
+
+    private final Set<EventStream> subscribers = ConcurrentHashMap.newKeySet();
+
+    // guarded by this
+    private final ArrayDeque<Event> history = new ArrayDeque<>();
+    private final int historySize;
+    private long nextId = 1;
+
+
+    public EventChannel() {
+        this(DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * @param historySize How many events to remember for clients that
+     *                    reconnect.
+     */
+    public EventChannel(int historySize) {
+        this.historySize = historySize;
+    }
+
+
+    /**
+     * Send events to a stream until it closes. If the stream's client is
+     * reconnecting, it's sent the events it missed first.
+     * @param stream The stream to subscribe.
+     */
+    public void subscribe(final EventStream stream) {
+        synchronized (this) {
+            long lastId = parseId(stream.getLastEventId());
+            if (lastId >= 0) {
+                for (Event event : history) {
+                    if (event.id > lastId) {
+                        stream.send(event.bytes);
+                    }
+                }
+            }
+
+            subscribers.add(stream);
+        }
+
+        stream.onClose(new Runnable() {
+            @Override public void run() {
+                subscribers.remove(stream);
+            }
+        });
+    }
+
+    /**
+     * Send an event to every subscriber.
+     *
+     * @param event The event's type, or null for a plain "message".
+     * @param data  The event's data.
+     * @return The event's id.
+     */
+    public long publish(String event, String data) {
+        synchronized (this) {
+            long id = nextId++;
+            Event formatted = new Event(id, EventStream.format(Long.toString(id), event, data));
+
+            history.add(formatted);
+            while (history.size() > historySize) {
+                history.poll();
+            }
+
+            // Sending only queues the event, so it's quick, and doing it
+            // while locked keeps new subscribers from seeing it twice.
+            for (EventStream stream : subscribers) {
+                stream.send(formatted.bytes);
+            }
+
+            return id;
+        }
+    }
+
+    /**
+     * Send a message event to every subscriber.
+     * @see EventChannel#publish(String, String)
+     */
+    public long publish(String data) {
+        return publish(null, data);
+    }
+
+    /**
+     * Get how many streams are subscribed.
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Close every subscribed stream.
+     */
+    public void close() {
+        for (EventStream stream : subscribers) {
+            stream.close();
+        }
+    }
+
+    private static long parseId(String id) {
+        if (id == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(id.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    private static class Event {
+        final long id;
+        final byte[] bytes;
+
+        Event(long id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+}
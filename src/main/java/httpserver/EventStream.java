@@ -0,0 +1,367 @@
+package httpserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An EventStream pushes Server-Sent Events to a single client, over a
+ * {@code text/event-stream} response. <p>
+ *
+ * A handler starts one with {@link HttpResponse#startEventStream()}, and
+ * can keep it around (usually by subscribing it to an {@link EventChannel})
+ * after it returns. Once the response's headers are sent, the connection is
+ * handed over to the stream, and the thread that ran the handler goes back
+ * to the server. An open stream doesn't have a thread of its own: events are
+ * queued, and written by the server's executor. <p>
+ *
+ * Every so often a comment is sent as a heartbeat, which keeps proxies from
+ * closing the connection, and finds clients that went away. A client that
+ * can't keep up with its events is disconnected once its queue fills up, so
+ * one slow client can't hold up the rest, or run the server out of memory.
+ * It can reconnect, and pick up where it left off with its
+ * {@link #getLastEventId() Last-Event-ID}.
+ *
+ * @see <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html">
+ *      Server-Sent Events</a>
+ */
+public class EventStream {
+    /** How often a heartbeat is sent, by default, in milliseconds. */
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 15000;
+
+    /** How many bytes may be waiting to be sent, by default. */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 256 * 1024;
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpConnection connection;
+    private final String lastEventId;
+
+    private long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private int maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+
+    // set once the connection's handed over
+    private OutputStream out;
+    private Executor executor;
+    private TimerWheel timer;
+    private long writeTimeout;
+
+    // guarded by this
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private int queuedBytes = 0;
+    private boolean started = false;
+    private boolean writing = false;
+    private boolean closed = false;
+    private TimerWheel.Timeout heartbeat;
+    private final List<Runnable> closeListeners = new ArrayList<>(1);
+
+    private final Runnable writeQueued = new Runnable() {
+        @Override public void run() {
+            writeQueued();
+        }
+    };
+
+    private Logger logger = Logger.getLogger("java-httpserver");
+
+
+    EventStream(HttpConnection connection, String lastEventId) {
+        this.connection = connection;
+        this.lastEventId = lastEventId;
+    }
+
+
+    /**
+     * Send an event.
+     *
+     * @param id    The event's id, which the client sends back as its
+     *              Last-Event-ID when it reconnects. May be null.
+     * @param event The event's type, or null for a plain "message".
+     * @param data  The event's data. Each line is sent as its own "data:"
+     *              field, and put back together by the client.
+     * @return false if the stream is closed, or was just closed because the
+     *         client isn't keeping up.
+     */
+    public boolean send(String id, String event, String data) {
+        return send(format(id, event, data));
+    }
+
+    /**
+     * Send a message event, without an id or event type.
+     * @see EventStream#send(String, String, String)
+     */
+    public boolean send(String data) {
+        return send(null, null, data);
+    }
+
+    /**
+     * Tell the client how long to wait before reconnecting, if it loses the
+     * connection.
+     * @param millis The reconnection time, in milliseconds.
+     */
+    public boolean setRetry(long millis) {
+        return send(("retry: " + millis + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queue an already formatted event.
+     * @see EventStream#format
+     */
+    boolean send(byte[] event) {
+        boolean overflow = false;
+        boolean write = false;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+
+            if (queuedBytes + event.length > maxQueuedBytes) {
+                overflow = true;
+            } else {
+                queue.add(event);
+                queuedBytes += event.length;
+
+                write = started && !writing;
+                if (write) {
+                    writing = true;
+                }
+            }
+        }
+
+        if (overflow) {
+            logger.fine("Closing an event stream that isn't keeping up.");
+            close();
+            return false;
+        }
+
+        if (write) {
+            execute();
+        }
+
+        return true;
+    }
+
+    /**
+     * Close the stream, and the connection.
+     */
+    public void close() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            queue.clear();
+            queuedBytes = 0;
+
+            if (heartbeat != null) {
+                heartbeat.cancel();
+                heartbeat = null;
+            }
+
+            listeners = new ArrayList<>(closeListeners);
+            closeListeners.clear();
+        }
+
+        connection.closeDetached();
+
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Event stream close listener failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Run something when the stream closes, whether the server closed it, or
+     * the client went away.
+     * @param listener What to run. If the stream is already closed, it's run
+     *                 right away.
+     */
+    public void onClose(Runnable listener) {
+        synchronized (this) {
+            if (!closed) {
+                closeListeners.add(listener);
+                return;
+            }
+        }
+
+        listener.run();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get the id of the last event the client saw, if it's reconnecting.
+     * @return The Last-Event-ID header, or null.
+     */
+    public String getLastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * Set how often a heartbeat is sent, when the stream starts.
+     * @param millis The interval, in milliseconds, or 0 for no heartbeats.
+     */
+    public void setHeartbeatInterval(long millis) {
+        heartbeatInterval = millis;
+    }
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Set how many bytes of events may wait to be sent before the client is
+     * considered too slow, and disconnected.
+     * @param bytes The most bytes to queue.
+     */
+    public void setMaxQueuedBytes(int bytes) {
+        maxQueuedBytes = bytes;
+    }
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+
+    /**
+     * Format an event for the wire.
+     */
+    static byte[] format(String id, String event, String data) {
+        StringBuilder b = new StringBuilder(data.length() + 32);
+
+        if (id != null) {
+            b.append("id: ").append(stripLineBreaks(id)).append('\n');
+        }
+        if (event != null) {
+            b.append("event: ").append(stripLineBreaks(event)).append('\n');
+        }
+
+        int start = 0;
+        for (int i = 0; i <= data.length(); i++) {
+            if (i == data.length() || data.charAt(i) == '\n' || data.charAt(i) == '\r') {
+                b.append("data: ").append(data, start, i).append('\n');
+
+                if (i + 1 < data.length() && data.charAt(i) == '\r' && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        b.append('\n');
+
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String stripLineBreaks(String field) {
+        return field.replace("\r", "").replace("\n", "");
+    }
+
+
+    /**
+     * Called by the connection once the response's headers are sent and the
+     * connection is handed over.
+     */
+    void start(OutputStream socketOutput, Executor executor, TimerWheel timer, long writeTimeout) {
+        boolean write;
+        synchronized (this) {
+            this.out = new BufferedOutputStream(socketOutput);
+            this.executor = executor;
+            this.timer = timer;
+            this.writeTimeout = writeTimeout;
+
+            if (closed) {
+                write = false;
+            } else {
+                started = true;
+                scheduleHeartbeat();
+
+                write = !queue.isEmpty();
+                writing = write;
+            }
+        }
+
+        if (isClosed()) {
+            connection.closeDetached();
+        } else if (write) {
+            execute();
+        }
+    }
+
+    private void execute() {
+        try {
+            executor.execute(writeQueued);
+        } catch (RuntimeException e) {
+            // the server's executor is shutting down
+            close();
+        }
+    }
+
+    /**
+     * Write everything that's queued, on the server's executor.
+     */
+    private void writeQueued() {
+        TimerWheel.Timeout deadline = null;
+        if (timer != null && writeTimeout > 0) {
+            deadline = timer.schedule(new Runnable() {
+                @Override public void run() {
+                    logger.fine("Closing an event stream that timed out writing.");
+                    close();
+                }
+            }, writeTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            while (true) {
+                byte[][] events;
+                synchronized (this) {
+                    if (closed || queue.isEmpty()) {
+                        writing = false;
+                        break;
+                    }
+
+                    events = queue.toArray(new byte[queue.size()][]);
+                    queue.clear();
+                    queuedBytes = 0;
+                }
+
+                for (byte[] event : events) {
+                    out.write(event);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Event stream client went away.", e);
+            close();
+        } finally {
+            if (deadline != null) {
+                deadline.cancel();
+            }
+        }
+    }
+
+    private synchronized void scheduleHeartbeat() {
+        if (closed || timer == null || heartbeatInterval <= 0) {
+            return;
+        }
+
+        heartbeat = timer.schedule(new Runnable() {
+            @Override public void run() {
+                // Runs on the timer's thread, so just queue it.
+                send(HEARTBEAT);
+                scheduleHeartbeat();
+            }
+        }, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,58 @@
+package httpserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A HandlerTimeout watches a handler running past its request's deadline.
+ * Once it does, the handler's thread is interrupted, so anything it's
+ * waiting on (a lock, a sleep, a slow downstream call) gives up. <p>
+ *
+ * The interrupt only ever lands while the handler's running: it's cleared
+ * again when the handler finishes, so the thread doesn't carry it on to the
+ * next request. A handler that ignores interrupts can't be stopped, but it's
+ * still answered with a 504 once it returns.
+ */
+class HandlerTimeout {
+    private final Thread thread = Thread.currentThread();
+    private TimerWheel.Timeout scheduled;
+
+    private boolean finished = false;
+    private boolean expired = false;
+
+
+    /**
+     * Start watching the handler running on this thread.
+     *
+     * @param timer   The timer to enforce the deadline with.
+     * @param millis  How long the handler has, in milliseconds.
+     */
+    HandlerTimeout(TimerWheel timer, long millis) {
+        scheduled = timer.schedule(new Runnable() {
+            @Override public void run() {
+                expire();
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void expire() {
+        if (!finished) {
+            expired = true;
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Stop watching, once the handler's returned. Called on its thread.
+     *
+     * @return whether the deadline passed first.
+     */
+    synchronized boolean finish() {
+        finished = true;
+        scheduled.cancel();
+
+        if (expired) {
+            Thread.interrupted();
+        }
+        return expired;
+    }
+}
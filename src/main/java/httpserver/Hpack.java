@@ -0,0 +1,386 @@
+package httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The parts of HPACK, HTTP/2's header compression, shared by the
+ * {@link HpackDecoder} and {@link HpackEncoder}: the static table, the
+ * dynamic table, prefixed integers, and the Huffman code.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7541">RFC 7541</a>
+ */
+final class Hpack {
+    /** The dynamic table's size until the other side says otherwise. */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // every entry in the dynamic table costs this much on top of its name
+    // and value
+    static final int ENTRY_OVERHEAD = 32;
+
+    static final String[][] STATIC_TABLE = {
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" },
+    };
+
+    // static table indexes, by name and by name and value
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    // The length of each symbol's Huffman code, from RFC 7541 Appendix B.
+    // The code is canonical, so the codes themselves follow from the
+    // lengths. Symbol 256 is EOS, which is never sent.
+    private static final int[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+    private static final int[] HUFFMAN_CODES = new int[HUFFMAN_LENGTHS.length];
+    private static final int EOS = 256;
+
+    // The Huffman code as a binary tree, for decoding a bit at a time. Node
+    // n's children are at 2n and 2n + 1, and a leaf holds -(symbol + 1).
+    private static final int[] HUFFMAN_TREE = new int[2 * HUFFMAN_LENGTHS.length];
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+
+        // canonical codes: shortest first, and in symbol order within a length
+        int code = 0;
+        for (int length = 1; length <= 30; length++) {
+            for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+                if (HUFFMAN_LENGTHS[symbol] == length) {
+                    HUFFMAN_CODES[symbol] = code++;
+                }
+            }
+            code <<= 1;
+        }
+
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (HUFFMAN_TREE[child] == 0) {
+                    HUFFMAN_TREE[child] = nodes++;
+                }
+                node = HUFFMAN_TREE[child];
+            }
+            HUFFMAN_TREE[2 * node + (HUFFMAN_CODES[symbol] & 1)] = -(symbol + 1);
+        }
+    }
+
+
+    private Hpack() {
+    }
+
+
+    /**
+     * Find a field in the static table.
+     * @return Its index, or 0 if it isn't there.
+     */
+    static int staticIndex(String name, String value) {
+        Integer index = STATIC_FIELDS.get(name + '\0' + value);
+        return index == null ? 0 : index;
+    }
+
+    /**
+     * Find a name in the static table.
+     * @return The index of its first entry, or 0 if it isn't there.
+     */
+    static int staticNameIndex(String name) {
+        Integer index = STATIC_NAMES.get(name);
+        return index == null ? 0 : index;
+    }
+
+    /**
+     * Write an integer with an N-bit prefix.
+     * @param flags The bits above the prefix in the first byte.
+     */
+    static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Get how long some bytes are once Huffman coded.
+     */
+    static int huffmanLength(byte[] bytes) {
+        long bits = 0;
+        for (byte b : bytes) {
+            bits += HUFFMAN_LENGTHS[b & 0xff];
+        }
+        return (int) ((bits + 7) / 8);
+    }
+
+    static void huffmanEncode(ByteArrayOutputStream out, byte[] bytes) {
+        long current = 0;
+        int bits = 0;
+        for (byte b : bytes) {
+            int symbol = b & 0xff;
+            current = (current << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            bits += HUFFMAN_LENGTHS[symbol];
+
+            while (bits >= 8) {
+                bits -= 8;
+                out.write((int) (current >>> bits));
+            }
+        }
+
+        // pad with the start of EOS, which is all 1s
+        if (bits > 0) {
+            out.write((int) ((current << (8 - bits)) | (0xff >>> bits)));
+        }
+    }
+
+    static byte[] huffmanDecode(byte[] bytes, int offset, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 8 / 5);
+
+        int node = 0;
+        int pending = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int b = (bytes[i] >>> bit) & 1;
+                int next = HUFFMAN_TREE[2 * node + b];
+                pending++;
+                allOnes &= b == 1;
+
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) {
+                        throw new IOException("Huffman string contains EOS.");
+                    }
+
+                    out.write(symbol);
+                    node = 0;
+                    pending = 0;
+                    allOnes = true;
+                } else {
+                    node = next;
+                }
+            }
+        }
+
+        // what's left has to be padding: fewer than 8 bits, all 1s
+        if (pending > 7 || !allOnes) {
+            throw new IOException("Bad Huffman padding.");
+        }
+
+        return out.toByteArray();
+    }
+
+
+    /**
+     * The dynamic table, a FIFO of recently used fields. Index 0 is the
+     * newest entry.
+     */
+    static class Table {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int[] sizes = new int[16];
+
+        // the oldest entry is at head, the newest at head + count - 1
+        private int head = 0;
+        private int count = 0;
+
+        private int size = 0;
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int length() {
+            return count;
+        }
+
+        String getName(int index) {
+            return names[slot(index)];
+        }
+
+        String getValue(int index) {
+            return values[slot(index)];
+        }
+
+        /**
+         * Find a field.
+         * @return Its index, or -1 if it isn't there.
+         */
+        int indexOf(String name, String value) {
+            for (int i = 0; i < count; i++) {
+                int slot = slot(i);
+                if (names[slot].equals(name) && values[slot].equals(value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Find a name.
+         * @return The index of its newest entry, or -1 if it isn't there.
+         */
+        int indexOfName(String name) {
+            for (int i = 0; i < count; i++) {
+                if (names[slot(i)].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Add a field, evicting the oldest until it fits. A field larger
+         * than the whole table just empties it.
+         * @param size The field's name and value lengths, in bytes, plus
+         *             {@link Hpack#ENTRY_OVERHEAD}.
+         */
+        void add(String name, String value, int size) {
+            evict(maxSize - size);
+            if (size > maxSize) {
+                return;
+            }
+
+            if (count == names.length) {
+                grow();
+            }
+
+            int slot = (head + count) % names.length;
+            names[slot] = name;
+            values[slot] = value;
+            sizes[slot] = size;
+            count++;
+            this.size += size;
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int target) {
+            while (count > 0 && size > target) {
+                size -= sizes[head];
+                names[head] = null;
+                values[head] = null;
+                head = (head + 1) % names.length;
+                count--;
+            }
+        }
+
+        private int slot(int index) {
+            return (head + count - 1 - index) % names.length;
+        }
+
+        private void grow() {
+            String[] newNames = new String[names.length * 2];
+            String[] newValues = new String[names.length * 2];
+            int[] newSizes = new int[names.length * 2];
+            for (int i = 0; i < count; i++) {
+                int slot = (head + i) % names.length;
+                newNames[i] = names[slot];
+                newValues[i] = values[slot];
+                newSizes[i] = sizes[slot];
+            }
+
+            names = newNames;
+            values = newValues;
+            sizes = newSizes;
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package httpserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * An HpackDecoder turns the header blocks a client sends on an HTTP/2
+ * connection back into header fields. There's one per connection, since
+ * every block can refer back to fields in the blocks before it. <p>
+ *
+ * A decoding error leaves the connection's dynamic table in an unknown
+ * state, so it has to end the whole connection with a COMPRESSION_ERROR.
+ */
+class HpackDecoder {
+    private final Hpack.Table table;
+
+    // the largest the client may make the dynamic table
+    private final int maxTableSize;
+
+    // the block being decoded
+    private byte[] block;
+    private int position;
+    private int end;
+
+
+    HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        this.table = new Hpack.Table(maxTableSize);
+    }
+
+
+    /**
+     * Decode a header block.
+     *
+     * @param block   The block, put together from the HEADERS frame and any
+     *                CONTINUATION frames.
+     * @param length  How much of block is used.
+     * @param fields  Where each field's name and value are added, one after
+     *                the other.
+     * @param maxSize How large the fields may be, counted the way HTTP/2
+     *                counts them. The whole block is still decoded, to keep
+     *                the table right, but fields past the limit are dropped.
+     * @return false if fields were dropped.
+     * @throws IOException  When the block isn't valid HPACK.
+     */
+    boolean decode(byte[] block, int length, List<String> fields, int maxSize) throws IOException {
+        this.block = block;
+        this.position = 0;
+        this.end = length;
+
+        long size = 0;
+        boolean fieldSeen = false;
+        while (position < end) {
+            int first = block[position] & 0xff;
+
+            String name;
+            String value;
+            if ((first & 0x80) != 0) {
+                // indexed field
+                int index = readInt(7);
+                name = getName(index);
+                value = getValue(index);
+            } else if ((first & 0x40) != 0) {
+                // literal, added to the table
+                int index = readInt(6);
+                byte[] nameBytes = index == 0 ? readString() : null;
+                name = nameBytes == null ? getName(index) : ascii(nameBytes);
+                byte[] valueBytes = readString();
+                value = new String(valueBytes, StandardCharsets.UTF_8);
+
+                int nameLength = nameBytes == null ? name.length() : nameBytes.length;
+                table.add(name, value, nameLength + valueBytes.length + Hpack.ENTRY_OVERHEAD);
+            } else if ((first & 0x20) != 0) {
+                // dynamic table size update, only allowed before any field
+                if (fieldSeen) {
+                    throw new IOException("Table size update after a header field.");
+                }
+
+                int newSize = readInt(5);
+                if (newSize > maxTableSize) {
+                    throw new IOException("Table size update over the limit.");
+                }
+                table.setMaxSize(newSize);
+                continue;
+            } else {
+                // literal, not added to the table (0000) or never to be
+                // added (0001), which is the same thing to a server
+                int index = readInt(4);
+                name = index == 0 ? ascii(readString()) : getName(index);
+                value = new String(readString(), StandardCharsets.UTF_8);
+            }
+
+            fieldSeen = true;
+            size += name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+            if (size <= maxSize) {
+                fields.add(name);
+                fields.add(value);
+            }
+        }
+
+        this.block = null;
+        return size <= maxSize;
+    }
+
+
+    private String getName(int index) throws IOException {
+        if (index <= 0) {
+            throw new IOException("Header index 0.");
+        } else if (index <= Hpack.STATIC_TABLE.length) {
+            return Hpack.STATIC_TABLE[index - 1][0];
+        }
+
+        index -= Hpack.STATIC_TABLE.length + 1;
+        if (index >= table.length()) {
+            throw new IOException("Header index past the end of the table.");
+        }
+        return table.getName(index);
+    }
+
+    private String getValue(int index) throws IOException {
+        if (index <= Hpack.STATIC_TABLE.length) {
+            return Hpack.STATIC_TABLE[index - 1][1];
+        }
+
+        return table.getValue(index - Hpack.STATIC_TABLE.length - 1);
+    }
+
+    private int readInt(int prefixBits) throws IOException {
+        int max = (1 << prefixBits) - 1;
+        int value = block[position++] & max;
+        if (value < max) {
+            return value;
+        }
+
+        long total = value;
+        for (int shift = 0; ; shift += 7) {
+            if (position == end || shift > 28) {
+                throw new IOException("Bad integer.");
+            }
+
+            int b = block[position++] & 0xff;
+            total += (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("Integer too large.");
+        }
+        return (int) total;
+    }
+
+    private byte[] readString() throws IOException {
+        if (position == end) {
+            throw new IOException("Block ended before a string.");
+        }
+
+        boolean huffman = (block[position] & 0x80) != 0;
+        int length = readInt(7);
+        if (length > end - position) {
+            throw new IOException("String runs past the end of the block.");
+        }
+
+        int start = position;
+        position += length;
+
+        if (huffman) {
+            return Hpack.huffmanDecode(block, start, length);
+        }
+
+        byte[] bytes = new byte[length];
+        System.arraycopy(block, start, bytes, 0, length);
+        return bytes;
+    }
+
+    private static String ascii(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
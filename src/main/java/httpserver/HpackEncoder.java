@@ -0,0 +1,135 @@
+package httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * An HpackEncoder turns response headers into header blocks, on an HTTP/2
+ * connection. <p>
+ *
+ * Fields in the static table are sent as a single byte. Other fields are
+ * added to the dynamic table, so the next response that sends the same
+ * field (usually Server and Content-Type) sends a single byte too. Fields
+ * that are different for every response aren't added, so they don't push
+ * out the ones that repeat. Strings are Huffman coded when that makes them
+ * shorter. <p>
+ *
+ * Blocks have to be decoded in the order they were encoded, so they have to
+ * be sent in that order too.
+ */
+class HpackEncoder {
+    private final Hpack.Table table = new Hpack.Table(Hpack.DEFAULT_TABLE_SIZE);
+
+    // table size changes the client hasn't been told about yet: the
+    // smallest size since the last block, and the size now
+    private int smallestSize = -1;
+    private int pendingSize = -1;
+
+
+    /**
+     * Called when the client's SETTINGS_HEADER_TABLE_SIZE changes. The
+     * table never grows past the default, it's only for saving bytes.
+     */
+    void setMaxTableSize(int size) {
+        size = Math.min(size, Hpack.DEFAULT_TABLE_SIZE);
+        if (size == table.getMaxSize() && pendingSize == -1) {
+            return;
+        }
+
+        smallestSize = smallestSize == -1 ? size : Math.min(smallestSize, size);
+        pendingSize = size;
+        table.setMaxSize(size);
+    }
+
+    /**
+     * Encode a header block.
+     *
+     * @param fields Each field's name and value, one after the other. Names
+     *               have to be lower case.
+     * @param out    Where the block is written.
+     */
+    void encode(List<String> fields, ByteArrayOutputStream out) {
+        if (pendingSize != -1) {
+            if (smallestSize < pendingSize) {
+                Hpack.writeInt(out, 0x20, 5, smallestSize);
+            }
+            Hpack.writeInt(out, 0x20, 5, pendingSize);
+            smallestSize = -1;
+            pendingSize = -1;
+        }
+
+        for (int i = 0; i < fields.size(); i += 2) {
+            encode(fields.get(i), fields.get(i + 1), out);
+        }
+    }
+
+    private void encode(String name, String value, ByteArrayOutputStream out) {
+        int index = Hpack.staticIndex(name, value);
+        if (index == 0) {
+            int dynamic = table.indexOf(name, value);
+            if (dynamic != -1) {
+                index = dynamic + Hpack.STATIC_TABLE.length + 1;
+            }
+        }
+
+        if (index != 0) {
+            Hpack.writeInt(out, 0x80, 7, index);
+            return;
+        }
+
+        int nameIndex = Hpack.staticNameIndex(name);
+        if (nameIndex == 0) {
+            int dynamic = table.indexOfName(name);
+            if (dynamic != -1) {
+                nameIndex = dynamic + Hpack.STATIC_TABLE.length + 1;
+            }
+        }
+
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        boolean indexed = isWorthIndexing(name);
+        if (indexed) {
+            Hpack.writeInt(out, 0x40, 6, nameIndex);
+        } else {
+            Hpack.writeInt(out, 0x00, 4, nameIndex);
+        }
+
+        if (nameIndex == 0) {
+            writeString(out, name.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        writeString(out, valueBytes);
+
+        if (indexed) {
+            table.add(name, value, name.length() + valueBytes.length + Hpack.ENTRY_OVERHEAD);
+        }
+    }
+
+    /**
+     * Whether a field is likely to be sent again as is.
+     */
+    private static boolean isWorthIndexing(String name) {
+        switch (name) {
+            case ":status":
+            case "content-length":
+            case "date":
+            case "etag":
+            case "last-modified":
+            case "location":
+            case "set-cookie":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, byte[] bytes) {
+        int huffmanLength = Hpack.huffmanLength(bytes);
+        if (huffmanLength < bytes.length) {
+            Hpack.writeInt(out, 0x80, 7, huffmanLength);
+            Hpack.huffmanEncode(out, bytes);
+        } else {
+            Hpack.writeInt(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,975 @@
+package httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An Http2Connection speaks HTTP/2 over a cleartext connection (h2c), or a
+ * TLS one where the client picked "h2" while shaking hands. <p>
+ *
+ * A client can start speaking HTTP/2 right away ("prior knowledge"), or ask
+ * to switch with an {@code Upgrade: h2c} request, which becomes the first
+ * stream. Either way, the {@link HttpConnection} that read the first bytes
+ * hands itself over, and its thread goes on reading frames. <p>
+ *
+ * Every stream is its own {@link HttpRequest} and {@link HttpResponse}, and is
+ * run on the server's executor, so many requests are worked on at once over
+ * one connection, and handlers don't know the difference. Response headers
+ * are compressed with HPACK, and response bodies are sent only as fast as
+ * the client's flow control windows allow. Request bodies are only read as
+ * fast as the handler reads them: a stream's window is opened back up as its
+ * body is read.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7540">RFC 7540</a>
+ */
+class Http2Connection {
+    /** What every HTTP/2 connection starts with. */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // frame types
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    // frame flags
+    static final int END_STREAM = 0x1;
+    static final int ACK = 0x1;
+    static final int END_HEADERS = 0x4;
+    static final int PADDED = 0x8;
+    static final int PRIORITY_FLAG = 0x20;
+
+    // error codes
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    // settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    /** Every flow control window starts at this, on both sides. */
+    static final int DEFAULT_WINDOW = 65535;
+
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE = 16777215;
+
+    private final HttpServer server;
+    private final HttpConnection connection;
+    private final RequestLimits limits;
+    private final Timeouts timeouts;
+    private final TimerWheel timer;
+
+    private DataInputStream in;
+
+    private final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    // the header block being put together, and its stream
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int headerStreamId = 0;
+    private boolean headerEndStream = false;
+
+    // how much of the connection's receive window the client's used up
+    // without it being opened back up
+    private int unackedReceived = 0;
+
+    // guarded by writeLock
+    private final Object writeLock = new Object();
+    private OutputStream out;
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private final byte[] frameHeader = new byte[9];
+
+    // guarded by this
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    private int lastStreamId = 0;
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private boolean goingAway = false;
+    private boolean goAwaySent = false;
+    private boolean closed = false;
+    private TimerWheel.Timeout idle;
+
+    private Logger logger = Logger.getLogger("java-httpserver");
+
+
+    Http2Connection(HttpServer server, HttpConnection connection) {
+        this.server = server;
+        this.connection = connection;
+        this.limits = server.getRequestLimits();
+        this.timeouts = server.getTimeouts();
+        this.timer = server.getTimerWheel();
+    }
+
+
+    /**
+     * Whether a request is the start of the prior knowledge preface, which
+     * reads as a request line and an empty set of headers.
+     */
+    static boolean isPreface(HttpRequest request) {
+        return "PRI".equals(request.getRequestType()) && "*".equals(request.getFullPath())
+                && "HTTP/2.0".equals(request.getRequestProtocol()) && request.getHeaders().isEmpty();
+    }
+
+    /**
+     * Whether a request asks to switch to HTTP/2, and can. Requests with a
+     * body that's still on the connection stay on HTTP/1.1.
+     */
+    static boolean isUpgrade(HttpRequest request) {
+        HttpHeaders headers = request.getHeaders();
+        return "HTTP/1.1".equals(request.getRequestProtocol())
+                && hasToken(headers.get("Upgrade"), "h2c")
+                && hasToken(headers.get("Connection"), "HTTP2-Settings")
+                && headers.getAll("HTTP2-Settings").size() == 1
+                && decodeSettings(headers.get("HTTP2-Settings")) != null
+                && !request.hasStreamedBody();
+    }
+
+    private static boolean hasToken(String header, String token) {
+        if (header == null) {
+            return false;
+        }
+
+        for (String part : header.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] decodeSettings(String header) {
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(header.trim());
+            return settings.length % 6 == 0 ? settings : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Speak HTTP/2 until the connection closes. Runs on the thread that read
+     * the first request, on the server's executor.
+     *
+     * @param socketInput  What's left to read of the connection.
+     * @param socketOutput The connection's output.
+     * @param first        The request that asked to upgrade, which becomes
+     *                     stream 1, or the preface's request line if the
+     *                     client sent it right away. Null if nothing's been
+     *                     read yet.
+     */
+    void run(InputStream socketInput, OutputStream socketOutput, HttpRequest first) {
+        boolean preface = first != null && isPreface(first);
+        HttpRequest upgrade = preface ? null : first;
+
+        in = new DataInputStream(new BufferedInputStream(socketInput, DEFAULT_MAX_FRAME_SIZE));
+        synchronized (writeLock) {
+            out = new BufferedOutputStream(socketOutput, DEFAULT_MAX_FRAME_SIZE + 9);
+        }
+
+        try {
+            if (upgrade != null) {
+                synchronized (writeLock) {
+                    out.write(("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\n"
+                            + "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                }
+
+                byte[] settings = decodeSettings(upgrade.getHeaders().get("HTTP2-Settings"));
+                applySettings(settings, 0, settings.length);
+            }
+
+            writeSettings();
+
+            if (upgrade != null) {
+                synchronized (this) {
+                    lastStreamId = 1;
+                }
+                startStream(new Http2Stream(this, 1, initialSendWindow, upgrade));
+            } else {
+                scheduleIdle();
+            }
+
+            // the HTTP/1.1 parser may have read the preface's request line
+            readPreface(preface ? 18 : 0);
+
+            while (readFrame());
+        } catch (Http2Exception e) {
+            logger.log(Level.FINE, "HTTP/2 connection error.", e);
+            goAway(e.getCode());
+        } catch (IOException e) {
+            if (!isClosed()) {
+                logger.log(Level.FINE, "HTTP/2 client went away.", e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void readPreface(int alreadyRead) throws IOException {
+        byte[] preface = new byte[PREFACE.length - alreadyRead];
+        in.readFully(preface);
+
+        if (!Arrays.equals(preface, Arrays.copyOfRange(PREFACE, alreadyRead, PREFACE.length))) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Bad connection preface.");
+        }
+    }
+
+    /**
+     * Read and act on the next frame.
+     * @return false once the connection should close.
+     */
+    private boolean readFrame() throws IOException {
+        int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & 0x7fffffff;
+
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Frame larger than the maximum.");
+        }
+        if (headerStreamId != 0 && (type != CONTINUATION || streamId != headerStreamId)) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Expected a CONTINUATION frame.");
+        }
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        switch (type) {
+            case DATA:
+                readData(streamId, flags, payload);
+                break;
+            case HEADERS:
+                readHeaders(streamId, flags, payload);
+                break;
+            case CONTINUATION:
+                if (streamId == 0 || streamId != headerStreamId) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION frame.");
+                }
+                appendHeaderBlock(payload, 0, length);
+                if ((flags & END_HEADERS) != 0) {
+                    endHeaders();
+                }
+                break;
+            case PRIORITY:
+                if (streamId == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0.");
+                } else if (length != 5) {
+                    resetStream(streamId, FRAME_SIZE_ERROR);
+                }
+                // priorities are only hints, every stream gets its own thread
+                break;
+            case RST_STREAM:
+                if (streamId == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0.");
+                } else if (length != 4) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "RST_STREAM must be 4 bytes.");
+                }
+                checkNotIdle(streamId);
+
+                Http2Stream reset = removeStream(streamId);
+                if (reset != null) {
+                    reset.reset();
+                }
+                break;
+            case SETTINGS:
+                readSettings(streamId, flags, payload);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, "Clients can't push.");
+            case PING:
+                if (length != 8) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "PING must be 8 bytes.");
+                } else if (streamId != 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "PING on a stream.");
+                }
+
+                if ((flags & ACK) == 0) {
+                    writeFrame(PING, ACK, 0, payload, 0, 8);
+                }
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "GOAWAY on a stream.");
+                }
+
+                // the client won't start any more streams, so the connection
+                // closes once the ones it has are done
+                synchronized (this) {
+                    goingAway = true;
+                    return !streams.isEmpty();
+                }
+            case WINDOW_UPDATE:
+                readWindowUpdate(streamId, payload);
+                break;
+            default:
+                // unknown frames are ignored
+                break;
+        }
+
+        return true;
+    }
+
+    private void readHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0.");
+        }
+
+        int start = 0;
+        int end = payload.length;
+        if ((flags & PADDED) != 0) {
+            if (end == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Padding longer than the frame.");
+            }
+            start = 1;
+            end -= payload[0] & 0xff;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            start += 5;
+        }
+        if (end < start) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Padding longer than the frame.");
+        }
+
+        headerStreamId = streamId;
+        headerEndStream = (flags & END_STREAM) != 0;
+        headerBlock.reset();
+        appendHeaderBlock(payload, start, end - start);
+
+        if ((flags & END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    private void appendHeaderBlock(byte[] fragment, int offset, int length) throws IOException {
+        // Compressed headers are rarely larger than they'd be as text. Past
+        // that, the client's more likely attacking than talking.
+        if (headerBlock.size() + length > 2 * limits.getMaxHeaderSize()) {
+            throw new Http2Exception(ENHANCE_YOUR_CALM, "Header block too large.");
+        }
+
+        headerBlock.write(fragment, offset, length);
+    }
+
+    /**
+     * A header block is complete. Decode it, and start a stream, or end one
+     * that sent trailers.
+     */
+    private void endHeaders() throws IOException {
+        int streamId = headerStreamId;
+        headerStreamId = 0;
+
+        List<String> fields = new ArrayList<>();
+        boolean fits;
+        try {
+            byte[] block = headerBlock.toByteArray();
+            fits = decoder.decode(block, block.length, fields, limits.getMaxHeaderSize());
+        } catch (IOException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        Http2Stream existing;
+        synchronized (this) {
+            existing = streams.get(streamId);
+        }
+
+        if (existing != null) {
+            // trailers, which have to end the stream, and are ignored
+            if (!headerEndStream) {
+                resetStream(streamId, PROTOCOL_ERROR);
+            } else {
+                existing.receiveEnd();
+            }
+            return;
+        }
+
+        boolean refused;
+        synchronized (this) {
+            if (streamId <= lastStreamId || streamId % 2 == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Bad stream id " + streamId + ".");
+            }
+            lastStreamId = streamId;
+
+            refused = goingAway || !server.isRunning()
+                    || streams.size() >= limits.getMaxConcurrentStreams();
+        }
+
+        if (refused) {
+            resetStream(streamId, REFUSED_STREAM);
+            return;
+        }
+
+        Http2Stream stream = new Http2Stream(this, streamId, initialSendWindow, headerEndStream);
+        if (!stream.setHeaders(fields, fits)) {
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+
+        startStream(stream);
+    }
+
+    private void startStream(Http2Stream stream) throws IOException {
+        synchronized (this) {
+            streams.put(stream.getId(), stream);
+            if (idle != null) {
+                idle.cancel();
+                idle = null;
+            }
+        }
+
+        try {
+            server.getExecutor().execute(stream);
+        } catch (RejectedExecutionException e) {
+            // the server's shutting down
+            removeStream(stream.getId());
+            resetStream(stream.getId(), REFUSED_STREAM);
+        }
+    }
+
+    private void readData(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0.");
+        }
+        checkNotIdle(streamId);
+
+        int start = 0;
+        int end = payload.length;
+        if ((flags & PADDED) != 0) {
+            if (end == 0 || (payload[0] & 0xff) >= end) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Padding longer than the frame.");
+            }
+            start = 1;
+            end -= payload[0] & 0xff;
+        }
+
+        // The whole frame counts against the connection's window, which is
+        // opened back up right away. Each stream's own window is what keeps
+        // its body from piling up faster than its handler reads it.
+        unackedReceived += payload.length;
+        if (unackedReceived >= DEFAULT_WINDOW / 2) {
+            writeWindowUpdate(0, unackedReceived);
+            unackedReceived = 0;
+        }
+
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+        }
+
+        if (stream == null) {
+            // the stream's done, or was reset, and the client hasn't caught up
+            return;
+        }
+
+        int error = stream.receiveData(payload, start, end - start, payload.length,
+                (flags & END_STREAM) != 0);
+        if (error != NO_ERROR) {
+            removeStream(streamId);
+            stream.reset();
+            resetStream(streamId, error);
+        }
+    }
+
+    private void readSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream.");
+        }
+
+        if ((flags & ACK) != 0) {
+            if (payload.length != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK with a payload.");
+            }
+            return;
+        }
+
+        if (payload.length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS must be a multiple of 6 bytes.");
+        }
+
+        applySettings(payload, 0, payload.length);
+        writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+    }
+
+    private void applySettings(byte[] settings, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i += 6) {
+            int id = ((settings[i] & 0xff) << 8) | (settings[i + 1] & 0xff);
+            long value = ((settings[i + 2] & 0xffL) << 24) | ((settings[i + 3] & 0xff) << 16)
+                    | ((settings[i + 4] & 0xff) << 8) | (settings[i + 5] & 0xff);
+
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Bad SETTINGS_ENABLE_PUSH.");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "Initial window too large.");
+                    }
+                    changeInitialWindow((int) value);
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Bad SETTINGS_MAX_FRAME_SIZE.");
+                    }
+                    synchronized (this) {
+                        peerMaxFrameSize = (int) value;
+                    }
+                    break;
+                default:
+                    // the rest only matter to servers, or are unknown
+                    break;
+            }
+        }
+    }
+
+    /**
+     * The client changed how large every stream's window starts, which
+     * changes the windows of streams that are already open too.
+     */
+    private synchronized void changeInitialWindow(int size) throws Http2Exception {
+        int delta = size - initialSendWindow;
+        initialSendWindow = size;
+
+        for (Http2Stream stream : streams.values()) {
+            stream.sendWindow += delta;
+            if (stream.sendWindow > MAX_WINDOW) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window too large.");
+            }
+        }
+        notifyAll();
+    }
+
+    private void readWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE must be 4 bytes.");
+        }
+
+        int increment = ((payload[0] & 0x7f) << 24) | ((payload[1] & 0xff) << 16)
+                | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE of 0.");
+            }
+
+            synchronized (this) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window too large.");
+                }
+                notifyAll();
+            }
+            return;
+        }
+
+        checkNotIdle(streamId);
+
+        int error = NO_ERROR;
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+            if (stream == null) {
+                return;
+            }
+
+            if (increment == 0) {
+                error = PROTOCOL_ERROR;
+            } else {
+                stream.sendWindow += increment;
+                if (stream.sendWindow > MAX_WINDOW) {
+                    error = FLOW_CONTROL_ERROR;
+                }
+            }
+            notifyAll();
+        }
+
+        if (error != NO_ERROR) {
+            removeStream(streamId);
+            stream.reset();
+            resetStream(streamId, error);
+        }
+    }
+
+    /**
+     * Frames other than HEADERS and PRIORITY can't be sent on a stream that
+     * hasn't been started yet.
+     */
+    private synchronized void checkNotIdle(int streamId) throws Http2Exception {
+        if (streamId > lastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Frame on idle stream " + streamId + ".");
+        }
+    }
+
+
+    /*****************
+      FOR STREAMS
+     *****************/
+
+    RequestLimits getRequestLimits() {
+        return limits;
+    }
+
+    Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    HttpServer getServer() {
+        return server;
+    }
+
+    HttpConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Send a stream's headers, split into CONTINUATION frames if they don't
+     * fit in one.
+     *
+     * @param fields    Each field's name and value, names in lower case.
+     * @param endStream Whether there's no body.
+     */
+    void writeHeaders(int streamId, List<String> fields, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            encoded.reset();
+            encoder.encode(fields, encoded);
+
+            byte[] block = encoded.toByteArray();
+            int maxFrameSize = getPeerMaxFrameSize();
+            int offset = 0;
+            do {
+                int length = Math.min(maxFrameSize, block.length - offset);
+                int flags = offset + length == block.length ? END_HEADERS : 0;
+                if (offset == 0 && endStream) {
+                    flags |= END_STREAM;
+                }
+
+                writeFrameHeader(offset == 0 ? HEADERS : CONTINUATION, flags, streamId, length);
+                out.write(block, offset, length);
+                offset += length;
+            } while (offset < block.length);
+
+            out.flush();
+        }
+    }
+
+    /**
+     * Send some of a stream's body, waiting for the client to open up its
+     * windows as needed.
+     */
+    void writeData(Http2Stream stream, byte[] data, int offset, int length, boolean endStream)
+            throws IOException {
+        do {
+            int allowed = reserveWindow(stream, length);
+            boolean last = allowed == length;
+
+            writeFrame(DATA, last && endStream ? END_STREAM : 0, stream.getId(), data, offset, allowed);
+            offset += allowed;
+            length -= allowed;
+        } while (length > 0);
+    }
+
+    /**
+     * Wait until both the connection's and the stream's windows are open,
+     * and take as much of them as can be sent at once.
+     */
+    private synchronized int reserveWindow(Http2Stream stream, int wanted) throws IOException {
+        if (wanted == 0) {
+            return 0;
+        }
+
+        long timeout = timeouts.getWriteTimeout();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (sendWindow <= 0 || stream.sendWindow <= 0) {
+            if (closed || stream.isReset()) {
+                throw new IOException("The stream was reset.");
+            }
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (timeout > 0 && remaining <= 0) {
+                throw new IOException("Timed out waiting for the client's window to open.");
+            }
+
+            try {
+                wait(timeout > 0 ? remaining : 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the client's window to open.");
+            }
+        }
+
+        int allowed = (int) Math.min(Math.min(wanted, peerMaxFrameSize), Math.min(sendWindow, stream.sendWindow));
+        sendWindow -= allowed;
+        stream.sendWindow -= allowed;
+        return allowed;
+    }
+
+    /**
+     * Let the client send more of a stream's body.
+     */
+    void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = {
+            (byte) (increment >>> 24), (byte) (increment >>> 16), (byte) (increment >>> 8), (byte) increment
+        };
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    /**
+     * Tell the client a stream's over.
+     */
+    void resetStream(int streamId, int error) throws IOException {
+        byte[] payload = { (byte) (error >>> 24), (byte) (error >>> 16), (byte) (error >>> 8), (byte) error };
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    /**
+     * Called by a stream once it's sent its response, and is done.
+     */
+    void streamFinished(Http2Stream stream) {
+        removeStream(stream.getId());
+    }
+
+    private Http2Stream removeStream(int streamId) {
+        boolean close = false;
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.remove(streamId);
+            if (stream != null && streams.isEmpty()) {
+                if (goingAway) {
+                    close = true;
+                } else {
+                    scheduleIdle();
+                }
+            }
+        }
+
+        if (close) {
+            close();
+        }
+        return stream;
+    }
+
+
+    /*********************
+      CLOSING
+     *********************/
+
+    /**
+     * Whether any streams are being worked on.
+     */
+    synchronized boolean hasStreams() {
+        return !streams.isEmpty();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop taking new streams, and close once the streams already started
+     * are done.
+     */
+    void shutdown() {
+        boolean close;
+        synchronized (this) {
+            goingAway = true;
+            close = streams.isEmpty();
+        }
+
+        goAway(NO_ERROR);
+        if (close) {
+            close();
+        }
+    }
+
+    /**
+     * Close the connection, resetting any streams that are left.
+     */
+    void close() {
+        List<Http2Stream> left;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            if (idle != null) {
+                idle.cancel();
+                idle = null;
+            }
+
+            left = new ArrayList<>(streams.values());
+            streams.clear();
+            notifyAll();
+        }
+
+        for (Http2Stream stream : left) {
+            stream.reset();
+        }
+
+        connection.closeDetached();
+    }
+
+    private void goAway(int error) {
+        int lastId;
+        synchronized (this) {
+            if (goAwaySent) {
+                return;
+            }
+            goAwaySent = true;
+            lastId = lastStreamId;
+        }
+
+        byte[] payload = {
+            (byte) (lastId >>> 24), (byte) (lastId >>> 16), (byte) (lastId >>> 8), (byte) lastId,
+            (byte) (error >>> 24), (byte) (error >>> 16), (byte) (error >>> 8), (byte) error
+        };
+
+        try {
+            writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Close the connection if it goes without a stream for the idle timeout,
+     * like an HTTP/1.1 connection between requests.
+     */
+    private synchronized void scheduleIdle() {
+        if (closed || timer == null || timeouts.getIdleTimeout() <= 0) {
+            return;
+        }
+
+        if (idle != null) {
+            idle.cancel();
+        }
+
+        idle = timer.schedule(new Runnable() {
+            @Override public void run() {
+                // Runs on the timer's thread, which mustn't block writing.
+                try {
+                    server.getExecutor().execute(new Runnable() {
+                        @Override public void run() {
+                            shutdown();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    close();
+                }
+            }
+        }, timeouts.getIdleTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+
+    /*********************
+      FRAMES
+     *********************/
+
+    private void writeSettings() throws IOException {
+        int[][] settings = {
+            { SETTINGS_ENABLE_PUSH, 0 },
+            { SETTINGS_MAX_CONCURRENT_STREAMS, limits.getMaxConcurrentStreams() },
+            { SETTINGS_MAX_HEADER_LIST_SIZE, limits.getMaxHeaderSize() },
+        };
+
+        byte[] payload = new byte[settings.length * 6];
+        for (int i = 0; i < settings.length; i++) {
+            int value = settings[i][1];
+            payload[i * 6] = 0;
+            payload[i * 6 + 1] = (byte) settings[i][0];
+            payload[i * 6 + 2] = (byte) (value >>> 24);
+            payload[i * 6 + 3] = (byte) (value >>> 16);
+            payload[i * 6 + 4] = (byte) (value >>> 8);
+            payload[i * 6 + 5] = (byte) value;
+        }
+
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        synchronized (writeLock) {
+            writeFrameHeader(type, flags, streamId, length);
+            out.write(payload, offset, length);
+            out.flush();
+        }
+    }
+
+    // only called while holding writeLock
+    private void writeFrameHeader(int type, int flags, int streamId, int length) throws IOException {
+        frameHeader[0] = (byte) (length >>> 16);
+        frameHeader[1] = (byte) (length >>> 8);
+        frameHeader[2] = (byte) length;
+        frameHeader[3] = (byte) type;
+        frameHeader[4] = (byte) flags;
+        frameHeader[5] = (byte) (streamId >>> 24);
+        frameHeader[6] = (byte) (streamId >>> 16);
+        frameHeader[7] = (byte) (streamId >>> 8);
+        frameHeader[8] = (byte) streamId;
+        out.write(frameHeader);
+    }
+
+    private synchronized int getPeerMaxFrameSize() {
+        return peerMaxFrameSize;
+    }
+
+
+    /**
+     * An error that ends the whole connection.
+     */
+    static class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        Http2Exception(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+        int getCode() {
+            return code;
+        }
+    }
+}
@@ -0,0 +1,618 @@
+package httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An Http2Stream is a single request and response on an
+ * {@link Http2Connection}. <p>
+ *
+ * Its request is run on the server's executor like any other, through the
+ * usual {@link HttpRequest} and {@link HttpResponse}. The request body is
+ * handed over from the connection's thread as it arrives, and the client is
+ * only let to send more once the handler's read what it sent. <p>
+ *
+ * A request answered by an {@link AsyncRoute} lets go of its thread until
+ * its response is ready. If the stream's reset in the meantime, the route's
+ * stage is cancelled.
+ */
+class Http2Stream implements Runnable {
+    private final Http2Connection connection;
+    private final int id;
+
+    // how much the client lets the server send, guarded by the connection
+    long sendWindow;
+
+    // the request, when it came in as an HTTP/1.1 upgrade
+    private HttpRequest upgraded;
+
+    // the request's pseudo-headers and headers, checked and split apart
+    private String method;
+    private String path;
+    private String authority;
+    private final List<String> fields = new ArrayList<>();
+    private boolean headersFit = true;
+
+    // guarded by this
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private int chunkOffset = 0;
+    private boolean endReceived;
+    private int receiveWindow = Http2Connection.DEFAULT_WINDOW;
+    private int unackedConsumed = 0;
+    private long received = 0;
+    private long expectedLength = -1;
+    private long maxBodySize = Long.MAX_VALUE;
+    private String bodyError;
+
+    private volatile boolean reset = false;
+    private boolean responded = false;
+
+    // set while an async route's response is pending
+    private volatile PendingResponse pending;
+
+    // set while a published body's being sent
+    private volatile BodySubscriber publishing;
+
+    private Logger logger = Logger.getLogger("java-httpserver");
+
+
+    /**
+     * Create a stream started by a HEADERS frame.
+     *
+     * @param endStream  Whether the HEADERS frame ended the stream, so there
+     *                   isn't a body.
+     */
+    Http2Stream(Http2Connection connection, int id, int sendWindow, boolean endStream) {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+        this.endReceived = endStream;
+    }
+
+    /**
+     * Create stream 1, for the request that asked to upgrade to HTTP/2. Its
+     * body was already read, so the client's done sending.
+     */
+    Http2Stream(Http2Connection connection, int id, int sendWindow, HttpRequest upgraded) {
+        this(connection, id, sendWindow, true);
+        this.upgraded = upgraded;
+        upgraded.upgradedToHttp2(this);
+    }
+
+
+    /**
+     * Check the request's header fields, and split off the pseudo-headers.
+     *
+     * @param decoded  Each field's name and value, one after the other.
+     * @param fit      Whether the fields fit in the header size limit. If
+     *                 they didn't, the request is answered with a 431.
+     * @return false if the request is malformed, and the stream has to be
+     *         reset.
+     */
+    boolean setHeaders(List<String> decoded, boolean fit) {
+        headersFit = fit;
+
+        String scheme = null;
+        String cookie = null;
+        boolean pseudo = true;
+        for (int i = 0; i < decoded.size(); i += 2) {
+            String name = decoded.get(i);
+            String value = decoded.get(i + 1);
+
+            if (!name.equals(name.toLowerCase(Locale.ROOT))) {
+                return false;
+            }
+
+            if (name.startsWith(":")) {
+                // pseudo-headers come first, once each
+                if (!pseudo) {
+                    return false;
+                }
+
+                switch (name) {
+                    case ":method":
+                        if (method != null) {
+                            return false;
+                        }
+                        method = value;
+                        break;
+                    case ":scheme":
+                        if (scheme != null) {
+                            return false;
+                        }
+                        scheme = value;
+                        break;
+                    case ":path":
+                        if (path != null) {
+                            return false;
+                        }
+                        path = value;
+                        break;
+                    case ":authority":
+                        if (authority != null) {
+                            return false;
+                        }
+                        authority = value;
+                        break;
+                    default:
+                        return false;
+                }
+                continue;
+            }
+
+            pseudo = false;
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    return false;
+                case "te":
+                    if (!value.equals("trailers")) {
+                        return false;
+                    }
+                    break;
+                case "cookie":
+                    // cookies can be split across fields to compress better
+                    cookie = cookie == null ? value : cookie + "; " + value;
+                    continue;
+                default:
+                    break;
+            }
+
+            fields.add(name);
+            fields.add(value);
+        }
+
+        if (cookie != null) {
+            fields.add("cookie");
+            fields.add(cookie);
+        }
+
+        return method != null && scheme != null && path != null
+                && method.indexOf(' ') == -1 && !path.isEmpty() && path.indexOf(' ') == -1;
+    }
+
+    @Override
+    public void run() {
+        HttpRequest request = upgraded;
+        boolean suspending = false;
+        try {
+            if (request == null) {
+                request = new HttpRequest(connection.getServer().getRouter(), this);
+                request.parseRequest();
+            }
+
+            HttpResponse response = request.handle();
+
+            // An async route answers later, on whatever thread picks the
+            // stream back up.
+            if (response.getPending() != null) {
+                suspending = true;
+                suspend(response.getPending());
+                return;
+            }
+
+            response.respond();
+        } catch (HttpException e) {
+            logger.log(Level.FINE, "Bad request.", e);
+            connection.getRequestLimits().rejected(e.getCode());
+            respondWithError(request, e.getCode(), e.getMessage());
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Couldn't answer an HTTP/2 stream.", e);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Error answering an HTTP/2 stream.", e);
+            cancel(Http2Connection.INTERNAL_ERROR);
+        } finally {
+            if (!suspending) {
+                finish(request);
+            }
+        }
+    }
+
+    /**
+     * Let go of the stream's thread while an async route's response is
+     * pending. It's sent on the server's executor once it's ready, unless
+     * the stream's reset first.
+     */
+    private void suspend(final PendingResponse pending) {
+        this.pending = pending;
+
+        pending.start(connection.getServer().getTimerWheel(), new Runnable() {
+            @Override public void run() {
+                Runnable resume = new Runnable() {
+                    @Override public void run() {
+                        resume(pending);
+                    }
+                };
+
+                try {
+                    connection.getServer().getExecutor().execute(resume);
+                } catch (RejectedExecutionException e) {
+                    // the server's stopping, but the response is ready to send
+                    resume.run();
+                }
+            }
+        });
+
+        if (reset) {
+            pending.cancel();
+        }
+    }
+
+    private void resume(PendingResponse pending) {
+        try {
+            HttpResponse response = pending.getResult();
+            if (response != null) {
+                response.respond();
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Error answering an HTTP/2 stream.", e);
+            cancel(Http2Connection.INTERNAL_ERROR);
+        } finally {
+            finish(pending.getRequest());
+        }
+    }
+
+    private void finish(HttpRequest request) {
+        if (request != null) {
+            request.finish();
+        }
+
+        // The handler didn't read all of the body, so tell the client to
+        // stop sending it.
+        if (!isEndReceived()) {
+            cancel(Http2Connection.NO_ERROR);
+        }
+        connection.streamFinished(this);
+    }
+
+    private void respondWithError(HttpRequest request, int code, String message) {
+        if (request == null || responded) {
+            cancel(Http2Connection.INTERNAL_ERROR);
+            return;
+        }
+
+        try {
+            HttpResponse response = new HttpResponse(request);
+            response.message(code, message);
+            response.respond();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Couldn't send the client a " + code + ".", e);
+        }
+    }
+
+    private void cancel(int error) {
+        if (reset) {
+            return;
+        }
+
+        reset();
+        try {
+            connection.resetStream(id, error);
+        } catch (IOException e) {
+            // the connection's going anyway
+        }
+    }
+
+
+    /************************
+      RESPONSE
+     ************************/
+
+    /**
+     * Send the response.
+     *
+     * @param fields  The response's header fields, names in lower case.
+     * @param body    The body, or null if there isn't one.
+     */
+    void respond(List<String> fields, byte[] body) throws IOException {
+        if (responded) {
+            return;
+        }
+        responded = true;
+
+        if (reset) {
+            throw new IOException("The stream was reset.");
+        }
+
+        boolean empty = body == null || body.length == 0;
+        connection.writeHeaders(id, fields, empty);
+        if (!empty) {
+            connection.writeData(this, body, 0, body.length, true);
+        }
+    }
+
+    /**
+     * Send the response, with a body that's published a chunk at a time.
+     * Each chunk is only asked for once the last one's been sent, which
+     * waits on the client's flow control windows.
+     *
+     * @param fields  The response's header fields, names in lower case.
+     * @param body    The body.
+     */
+    void respond(List<String> fields, BodySubscriber body) throws IOException {
+        if (responded) {
+            return;
+        }
+        responded = true;
+
+        publishing = body;
+        if (reset) {
+            throw new IOException("The stream was reset.");
+        }
+
+        connection.writeHeaders(id, fields, false);
+
+        ByteBuffer chunk;
+        while ((chunk = body.next()) != null) {
+            if (chunk.hasRemaining()) {
+                connection.writeData(this, chunk.array(), chunk.arrayOffset() + chunk.position(),
+                        chunk.remaining(), false);
+            }
+            body.consumed();
+        }
+
+        connection.writeData(this, new byte[0], 0, 0, true);
+    }
+
+
+    /************************
+      REQUEST BODY
+     ************************/
+
+    /**
+     * Called on the connection's thread when DATA arrives.
+     *
+     * @param frameLength  The whole frame's length, padding and all, which
+     *                     counts against the window.
+     * @return an error code to reset the stream with, or NO_ERROR.
+     */
+    int receiveData(byte[] data, int offset, int length, int frameLength, boolean end) throws IOException {
+        int padding = frameLength - length;
+        synchronized (this) {
+            if (endReceived) {
+                return Http2Connection.STREAM_CLOSED;
+            }
+
+            if (frameLength > receiveWindow) {
+                return Http2Connection.FLOW_CONTROL_ERROR;
+            }
+            receiveWindow -= frameLength;
+
+            received += length;
+            if (expectedLength != -1 && (received > expectedLength || (end && received != expectedLength))) {
+                bodyError = "Request body doesn't match its Content-Length.";
+                notifyAll();
+                return Http2Connection.PROTOCOL_ERROR;
+            }
+            if (received > maxBodySize) {
+                bodyError = "Request body is larger than " + maxBodySize + " bytes.";
+                notifyAll();
+                return Http2Connection.CANCEL;
+            }
+
+            if (length > 0) {
+                byte[] chunk = new byte[length];
+                System.arraycopy(data, offset, chunk, 0, length);
+                chunks.add(chunk);
+            }
+            endReceived = end;
+            notifyAll();
+        }
+
+        // padding never reaches the handler, so it's given straight back
+        if (padding > 0) {
+            consumed(padding);
+        }
+        return Http2Connection.NO_ERROR;
+    }
+
+    /**
+     * Called when trailers end the stream. They're thrown away.
+     */
+    synchronized void receiveEnd() {
+        endReceived = true;
+        notifyAll();
+    }
+
+    synchronized boolean isEndReceived() {
+        return endReceived;
+    }
+
+    /**
+     * Whether any of a body's come in, which it may have all done before
+     * the request's read.
+     */
+    synchronized boolean hasBody() {
+        return received > 0;
+    }
+
+    /**
+     * Set how large the body can be, once the request's headers are read.
+     *
+     * @param length  The Content-Length, or -1 if there isn't one.
+     * @param max     The largest body allowed.
+     */
+    synchronized void setBodyLimit(long length, long max) {
+        expectedLength = length;
+        maxBodySize = max;
+
+        // some of the body may have come in already
+        if (received > max) {
+            bodyError = "Request body is larger than " + max + " bytes.";
+        } else if (length != -1 && (received > length || (endReceived && received != length))) {
+            bodyError = "Request body doesn't match its Content-Length.";
+        }
+    }
+
+    /**
+     * The handler read some of the body, so let the client send more.
+     */
+    private void consumed(int bytes) throws IOException {
+        int increment = 0;
+        synchronized (this) {
+            unackedConsumed += bytes;
+            if (unackedConsumed >= Http2Connection.DEFAULT_WINDOW / 2 && !endReceived) {
+                increment = unackedConsumed;
+                unackedConsumed = 0;
+                receiveWindow += increment;
+            }
+        }
+
+        if (increment > 0 && !reset) {
+            connection.writeWindowUpdate(id, increment);
+        }
+    }
+
+    /**
+     * Get the request body, as the client sends it.
+     */
+    InputStream getBody() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+
+                int read = 0;
+                synchronized (Http2Stream.this) {
+                    awaitData();
+                    if (chunks.isEmpty()) {
+                        return -1;
+                    }
+
+                    while (read < len && !chunks.isEmpty()) {
+                        byte[] chunk = chunks.peek();
+                        int copied = Math.min(len - read, chunk.length - chunkOffset);
+                        System.arraycopy(chunk, chunkOffset, b, off + read, copied);
+                        read += copied;
+                        chunkOffset += copied;
+
+                        if (chunkOffset == chunk.length) {
+                            chunks.poll();
+                            chunkOffset = 0;
+                        }
+                    }
+                }
+
+                consumed(read);
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wait for some of the body, or its end.
+     */
+    private void awaitData() throws IOException {
+        long timeout = connection.getTimeouts().getBodyReadTimeout();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        while (chunks.isEmpty() && !endReceived) {
+            if (bodyError != null) {
+                throw new IOException(bodyError);
+            } else if (reset) {
+                throw new IOException("The stream was reset.");
+            }
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (timeout > 0 && remaining <= 0) {
+                cancel(Http2Connection.CANCEL);
+                throw new IOException("Timed out reading the request body.");
+            }
+
+            try {
+                wait(timeout > 0 ? remaining : 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted reading the request body.");
+            }
+        }
+
+        if (bodyError != null) {
+            throw new IOException(bodyError);
+        }
+    }
+
+
+    /**
+     * The stream's over, either side reset it, or the connection closed.
+     */
+    void reset() {
+        reset = true;
+
+        // nobody's waiting for a pending response, or the rest of a
+        // published body, anymore
+        PendingResponse waiting = pending;
+        if (waiting != null) {
+            waiting.cancel();
+        }
+
+        BodySubscriber body = publishing;
+        if (body != null) {
+            body.abort(new IOException("The stream was reset."));
+        }
+
+        synchronized (this) {
+            notifyAll();
+        }
+        // wake up anything waiting on the connection's windows
+        synchronized (connection) {
+            connection.notifyAll();
+        }
+    }
+
+    boolean isReset() {
+        return reset;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Http2Connection getConnection() {
+        return connection;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    String getAuthority() {
+        return authority;
+    }
+
+    /**
+     * Get the request's regular header fields, each name followed by its
+     * value.
+     */
+    List<String> getFields() {
+        return fields;
+    }
+
+    boolean headersFit() {
+        return headersFit;
+    }
+}
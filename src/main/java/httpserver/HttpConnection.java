@@ -0,0 +1,926 @@
+package httpserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An HttpConnection is a single client connection accepted by an
+ * {@link HttpServer}. <p>
+ *
+ * It reads requests off of the connection one after another, for as long as
+ * the client wants to keep the connection alive and the server is running.
+ * The connection also keeps track of whether it's in the middle of a
+ * request, or just sitting idle waiting for the next one, so the server can
+ * tell the two apart when it's shutting down. <p>
+ *
+ * Every phase of a request (waiting for it, reading its headers, reading its
+ * body, and writing the response) has a deadline, set by the server's
+ * {@link Timeouts} and enforced by the server's shared {@link TimerWheel}.
+ * When a read deadline passes, the client is sent a 408 (Request Timeout),
+ * otherwise the connection is just closed. <p>
+ *
+ * A connection whose response turned into an {@link EventStream} is handed
+ * over to the stream, and no longer has a thread working on it. One that was
+ * upgraded to a {@link WebSocket} is handed over too, but keeps its thread,
+ * which goes on reading the socket's frames. So does one that switches to
+ * HTTP/2, when the server {@link HttpServer#setHttp2 allows it}, which is
+ * handed over to an {@link Http2Connection}. <p>
+ *
+ * A request answered by an {@link AsyncRoute} suspends the connection
+ * without a thread until its response is ready, then it's picked back up by
+ * the server's executor. Meanwhile the client is checked on every so often,
+ * and if it's gone away, the route's stage is cancelled. <p>
+ *
+ * On an HTTPS server, the socket is a {@link TlsSocket}, and the handshake is
+ * done before the first request is read.
+ */
+class HttpConnection implements Runnable {
+    private static final int IDLE = 0;
+    private static final int ACTIVE = 1;
+    private static final int CLOSED = 2;
+    private static final int DETACHED = 3;
+    private static final int SUSPENDED = 4;
+
+    // what comes after a response
+    private static final int NEXT_REQUEST = 0;
+    private static final int FINISHED = 1;
+    private static final int HANDED_OVER = 2;
+
+    // what happens when a deadline passes
+    private static final int HANG_UP = 0;
+    private static final int TIME_OUT = 1;
+
+    // how often the body's data rate is checked, in milliseconds
+    private static final long DATA_RATE_INTERVAL = 1000;
+
+    // the most of an unread streamed body skipped to keep a connection alive
+    private static final long MAX_DISCARD = 64 * 1024;
+
+    // how often a client waiting on an async route's response is checked
+    // for having gone away, in milliseconds
+    private static final long CLIENT_CHECK_INTERVAL = 1000;
+
+    // how long to keep reading from a client still sending a body, after
+    // its response, before closing
+    private static final int LINGER_TIMEOUT = 2000;
+
+    private final HttpServer server;
+    private final Socket socket;
+    private final Timeouts timeouts;
+    private final TimerWheel timer;
+    private final RequestLimits limits;
+    private final BufferPool bufferPool;
+
+    private CountingInputStream input;
+    private RequestReader reader;
+
+    // reused by every request on the connection, along with their headers
+    private HttpRequest recycledRequest;
+    private HttpResponse recycledResponse;
+
+    // guarded by this
+    private int state = IDLE;
+    private int served = 0;
+    private Thread worker;
+    private TimerWheel.Timeout deadline;
+    private TimerWheel.Timeout dataRateCheck;
+    private EventStream eventStream;
+    private WebSocket webSocket;
+    private Http2Connection http2;
+    private PendingResponse suspended;
+
+    // set once a read deadline passes, so the failed read that follows is
+    // answered with a 408
+    private volatile boolean timedOut = false;
+
+    private Logger logger = Logger.getLogger("java-httpserver");
+
+
+    /**
+     * Create a connection to be run by the server's executor.
+     *
+     * @param server  The server that accepted the connection.
+     * @param socket  The connection with the client.
+     */
+    HttpConnection(HttpServer server, Socket socket) {
+        this.server = server;
+        this.socket = socket;
+        this.timeouts = server.getTimeouts();
+        this.timer = server.getTimerWheel();
+        this.limits = server.getRequestLimits();
+        this.bufferPool = server.getBufferPool();
+    }
+
+    @Override
+    public void run() {
+        PendingResponse resumed;
+        synchronized (this) {
+            worker = Thread.currentThread();
+
+            // back from waiting on an async route's response
+            resumed = suspended;
+            suspended = null;
+            if (resumed != null && state == SUSPENDED) {
+                state = ACTIVE;
+            }
+        }
+
+        HttpRequest request = null;
+        boolean detached = false;
+        boolean suspending = false;
+        try {
+            if (resumed != null) {
+                request = resumed.getRequest();
+
+                // Cancelled, because the client went away or the server's
+                // being stopped.
+                HttpResponse response = resumed.getResult();
+                if (response == null) {
+                    return;
+                }
+
+                // A response that timed out was replaced, and the stage may
+                // still be using the old one, so neither is reused.
+                if (response != recycledResponse) {
+                    recycledRequest = null;
+                    recycledResponse = null;
+                }
+
+                int next = serve(request, response);
+                if (next != NEXT_REQUEST) {
+                    detached = next == HANDED_OVER;
+                    return;
+                }
+            } else {
+                input = new CountingInputStream(socket.getInputStream());
+                reader = new RequestReader(input, bufferPool);
+
+                if (socket instanceof TlsSocket && shakeHands((TlsSocket) socket)) {
+                    detached = startHttp2(null);
+                    return;
+                }
+            }
+
+            while (awaitRequest()) {
+                request = nextRequest();
+                request.parseRequest();
+
+                // A client that knows the server speaks HTTP/2 starts with
+                // a preface that reads as a "PRI" request. Others can ask to
+                // switch with any request that doesn't have a body to stream.
+                if (server.isHttp2() && (Http2Connection.isPreface(request)
+                        || Http2Connection.isUpgrade(request))) {
+                    detached = startHttp2(request);
+                    break;
+                }
+
+                HttpResponse response = request.handle();
+
+                // An async route answers later, on whatever thread picks the
+                // connection back up.
+                if (response.getPending() != null) {
+                    suspending = true;
+                    suspend(response.getPending());
+                    return;
+                }
+
+                int next = serve(request, response);
+                if (next != NEXT_REQUEST) {
+                    detached = next == HANDED_OVER;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (timedOut && request != null) {
+                respondWithError(request, 408, "Request timed out");
+            } else if (!socket.isClosed()) {
+                // Most likely the client hung up on us.
+                logger.log(Level.FINE, "Connection closed unexpectedly.", e);
+            }
+        } catch (HttpException e) {
+            if (timedOut) {
+                respondWithError(request, 408, "Request timed out");
+            } else {
+                logger.log(Level.FINE, "Bad request.", e);
+                limits.rejected(e.getCode());
+                respondWithError(request, e.getCode(), e.getMessage());
+            }
+        } finally {
+            // Whatever resumes the connection finishes up.
+            if (suspending) {
+                return;
+            }
+
+            if (request != null) {
+                request.finish();
+            }
+
+            // Nothing reads the connection once its thread's done with it,
+            // even if it's been handed over.
+            if (reader != null) {
+                reader.release();
+            }
+
+            if (detached) {
+                return;
+            }
+
+            synchronized (this) {
+                state = CLOSED;
+                worker = null;
+                clearDeadline();
+            }
+
+            closeSocket();
+            server.connectionClosed(this);
+        }
+    }
+
+    /**
+     * Send a handler's response, and get ready for the next request.
+     *
+     * @return NEXT_REQUEST if the connection's kept alive, HANDED_OVER if
+     *         it's been handed over to an event stream or WebSocket, or
+     *         FINISHED if it should be closed.
+     */
+    private int serve(HttpRequest request, HttpResponse response) throws IOException {
+        // Once the server starts shutting down every response tells the
+        // client to go away, so the connection can drain. Any of a streamed
+        // body the handler didn't read has to be skipped before the next
+        // request, unless there's too much of it. A published response may
+        // be passing the body along, so then it's only skipped afterwards.
+        boolean published = response.getBodyPublisher() != null;
+        request.setKeepAlive(request.isKeepAlive() && server.isRunning()
+                && (published || request.discardBody(MAX_DISCARD)));
+
+        if (published) {
+            request.sendContinue();
+        }
+
+        writing();
+        response.respond();
+        request.finish();
+
+        if (published && request.isKeepAlive()) {
+            request.setKeepAlive(request.discardBody(MAX_DISCARD));
+        }
+
+        if (response.getEventStream() != null) {
+            return detach(response.getEventStream()) ? HANDED_OVER : FINISHED;
+        }
+
+        if (response.getWebSocket() != null) {
+            return upgrade(response.getWebSocket()) ? HANDED_OVER : FINISHED;
+        }
+
+        // The handler's done with both, so they can be reused.
+        request.retire();
+        response.retire();
+
+        if (!request.isKeepAlive() || !markIdle()) {
+            if (request.hasUnreadBody()) {
+                lingeringClose();
+            }
+            return FINISHED;
+        }
+
+        return NEXT_REQUEST;
+    }
+
+    /**
+     * Get the request to read the next request into, reusing the last one.
+     */
+    private HttpRequest nextRequest() {
+        if (recycledRequest == null) {
+            recycledRequest = new HttpRequest(server.getRouter(), this);
+        } else {
+            recycledRequest.reset();
+        }
+
+        return recycledRequest;
+    }
+
+    /**
+     * Get the response to a request read from this connection, reusing the
+     * last one.
+     */
+    HttpResponse nextResponse(HttpRequest request) throws IOException {
+        if (recycledResponse == null) {
+            recycledResponse = new HttpResponse(request);
+        } else {
+            recycledResponse.reset(request);
+        }
+
+        return recycledResponse;
+    }
+
+    /**
+     * Block until the client starts sending the next request.
+     *
+     * @return whether there's a request to read. False when the client
+     *         closed the connection, or the server hung up on an idle
+     *         connection.
+     */
+    private boolean awaitRequest() throws IOException {
+        // A brand new connection has to get its headers in before the
+        // header deadline, starting now. Later ones may idle for a while.
+        if (served == 0) {
+            setDeadline(timeouts.getHeaderReadTimeout(), TIME_OUT);
+        } else {
+            setDeadline(timeouts.getIdleTimeout(), HANG_UP);
+        }
+
+        if (reader.peek() == -1) {
+            return false;
+        }
+
+        if (served != 0) {
+            readingHeaders();
+        }
+
+        return markActive();
+    }
+
+    /**
+     * Finish a TLS handshake, under the same deadline as the first request's
+     * headers.
+     *
+     * @return whether the client picked HTTP/2 while shaking hands.
+     */
+    private boolean shakeHands(TlsSocket tls) throws IOException {
+        setDeadline(timeouts.getHeaderReadTimeout(), HANG_UP);
+        tls.handshake();
+        return server.isHttp2() && "h2".equals(tls.getApplicationProtocol());
+    }
+
+    /**
+     * Hand the connection over to an event stream, now that its headers are
+     * sent. The connection stays open, without a thread, until the stream
+     * closes it.
+     *
+     * @return false if the connection was closed in the meantime.
+     */
+    private boolean detach(EventStream stream) throws IOException {
+        synchronized (this) {
+            if (state == CLOSED) {
+                return false;
+            }
+
+            state = DETACHED;
+            eventStream = stream;
+            worker = null;
+            clearDeadline();
+        }
+
+        stream.start(socket.getOutputStream(), server.getExecutor(), timer, timeouts.getWriteTimeout());
+        return true;
+    }
+
+    /**
+     * Hand the connection over to a WebSocket, now that the 101 is sent, and
+     * read the socket's frames until it closes.
+     *
+     * @return false if the connection was closed in the meantime.
+     */
+    private boolean upgrade(WebSocket upgraded) throws IOException {
+        synchronized (this) {
+            if (state == CLOSED) {
+                return false;
+            }
+
+            state = DETACHED;
+            webSocket = upgraded;
+            worker = null;
+            clearDeadline();
+
+            upgraded.start(reader.remaining(), socket.getOutputStream(), server.getExecutor(),
+                    timer, timeouts.getWriteTimeout());
+        }
+
+        upgraded.run();
+        return true;
+    }
+
+    /**
+     * Hand the connection over to HTTP/2, and read its frames until it
+     * closes.
+     *
+     * @param request  The preface, or the request that asked to upgrade, or
+     *                 null if the client picked HTTP/2 while shaking hands.
+     * @return false if the connection was closed in the meantime.
+     */
+    private boolean startHttp2(HttpRequest request) throws IOException {
+        Http2Connection connection = new Http2Connection(server, this);
+        synchronized (this) {
+            if (state == CLOSED) {
+                return false;
+            }
+
+            state = DETACHED;
+            http2 = connection;
+            worker = null;
+            clearDeadline();
+        }
+
+        connection.run(reader.remaining(), socket.getOutputStream(), request);
+        return true;
+    }
+
+    /**
+     * Let go of the connection's thread while an async route's response is
+     * pending. The connection's picked back up by the server's executor once
+     * it's ready, or it's cancelled.
+     */
+    private void suspend(PendingResponse pending) {
+        boolean closed;
+        synchronized (this) {
+            closed = state == CLOSED;
+            if (!closed) {
+                state = SUSPENDED;
+            }
+
+            suspended = pending;
+            worker = null;
+            clearDeadline();
+        }
+
+        pending.start(timer, new Runnable() {
+            @Override public void run() {
+                resume();
+            }
+        });
+
+        if (closed) {
+            pending.cancel();
+        } else {
+            watchClient(pending);
+        }
+    }
+
+    /**
+     * Pick the connection back up, once its pending response is ready.
+     */
+    private void resume() {
+        try {
+            server.getExecutor().execute(this);
+        } catch (RejectedExecutionException e) {
+            // The server's stopping. This may be the timer's thread, which
+            // can't be held up sending the response, so it's dropped.
+            abandon();
+        }
+    }
+
+    /**
+     * Close a suspended connection without picking it back up.
+     */
+    private void abandon() {
+        PendingResponse pending;
+        synchronized (this) {
+            pending = suspended;
+            suspended = null;
+            state = CLOSED;
+            clearDeadline();
+        }
+
+        closeSocket();
+        if (pending != null) {
+            pending.getRequest().finish();
+        }
+        if (reader != null) {
+            reader.release();
+        }
+        server.connectionClosed(this);
+    }
+
+    /**
+     * Check on a client waiting for a pending response in a bit.
+     */
+    private synchronized void watchClient(final PendingResponse pending) {
+        if (timer == null || suspended != pending) {
+            return;
+        }
+
+        deadline = timer.schedule(new Runnable() {
+            @Override public void run() {
+                // the check blocks, however briefly, so it's not run on the
+                // timer's thread
+                try {
+                    server.getExecutor().execute(new Runnable() {
+                        @Override public void run() {
+                            checkClient(pending);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the server's stopping, and cancels it anyway
+                }
+            }
+        }, CLIENT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel a pending response if its client has gone away. Nothing else
+     * reads the connection while it's suspended, so the reader can be
+     * peeked at, as long as the handler isn't still reading the body.
+     */
+    private void checkClient(PendingResponse pending) {
+        boolean gone = false;
+        synchronized (this) {
+            if (suspended != pending || state != SUSPENDED) {
+                return;
+            }
+
+            if (!pending.getRequest().hasUnreadBody()) {
+                try {
+                    socket.setSoTimeout(1);
+                    try {
+                        gone = reader.peek() == -1;
+                    } finally {
+                        socket.setSoTimeout(0);
+                    }
+                } catch (SocketTimeoutException e) {
+                    // nothing sent, but still there
+                } catch (IOException e) {
+                    gone = true;
+                }
+            }
+        }
+
+        if (gone) {
+            logger.fine("Client went away while its response was pending.");
+            pending.cancel();
+        } else {
+            watchClient(pending);
+        }
+    }
+
+    /**
+     * Called by an event stream, WebSocket, or HTTP/2 connection when it
+     * closes.
+     */
+    void closeDetached() {
+        synchronized (this) {
+            if (state != DETACHED) {
+                return;
+            }
+
+            state = CLOSED;
+            eventStream = null;
+            webSocket = null;
+            http2 = null;
+        }
+
+        closeSocket();
+        server.connectionClosed(this);
+    }
+
+    /**
+     * Answer the current request with an error, and close the connection.
+     * Used when the request couldn't be read, so no handler was involved.
+     */
+    private void respondWithError(HttpRequest request, int code, String message) {
+        if (request == null || socket.isClosed()) {
+            return;
+        }
+
+        request.setKeepAlive(false);
+        try {
+            HttpResponse response = new HttpResponse(request);
+            response.message(code, message);
+
+            writing();
+            response.respond();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Couldn't send the client a " + code + ".", e);
+        }
+    }
+
+
+    /************************
+      PHASES AND DEADLINES
+     ************************/
+
+    void readingHeaders() {
+        setDeadline(timeouts.getHeaderReadTimeout(), TIME_OUT);
+    }
+
+    /**
+     * Called by the request once its headers are read, and it's about to
+     * read the body.
+     *
+     * @param streamed  Whether the body is streamed by the handler. Streamed
+     *                  bodies can be huge, so they're only held to the minimum
+     *                  data rate, not the body read timeout.
+     */
+    void readingBody(boolean streamed) {
+        if (streamed) {
+            clearDeadline();
+        } else {
+            setDeadline(timeouts.getBodyReadTimeout(), TIME_OUT);
+        }
+
+        if (timer != null && timeouts.getMinDataRate() > 0) {
+            checkDataRate(System.nanoTime(), input.getCount());
+        }
+    }
+
+    /**
+     * Called by the request once it's done reading from the connection.
+     */
+    void doneReading() {
+        clearDeadline();
+    }
+
+    void writing() {
+        setDeadline(timeouts.getWriteTimeout(), HANG_UP);
+    }
+
+    private synchronized void setDeadline(long millis, final int action) {
+        clearDeadline();
+
+        if (timer == null || millis <= 0 || state == CLOSED) {
+            return;
+        }
+
+        deadline = timer.schedule(new Runnable() {
+            @Override public void run() {
+                expire(action);
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void clearDeadline() {
+        if (deadline != null) {
+            deadline.cancel();
+            deadline = null;
+        }
+
+        if (dataRateCheck != null) {
+            dataRateCheck.cancel();
+            dataRateCheck = null;
+        }
+    }
+
+    /**
+     * Make sure the client has been sending its body at least as quickly as
+     * the minimum data rate, then check again in a bit.
+     *
+     * @param start       When the body started being read, from nanoTime.
+     * @param startCount  How many bytes had been read when the body started.
+     */
+    private synchronized void checkDataRate(final long start, final long startCount) {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        if (elapsed > timeouts.getMinDataRateGracePeriod()) {
+            long expected = timeouts.getMinDataRate() * elapsed / 1000;
+            if (input.getCount() - startCount < expected) {
+                logger.fine("Client sent its body too slowly.");
+                expire(TIME_OUT);
+                return;
+            }
+        }
+
+        dataRateCheck = timer.schedule(new Runnable() {
+            @Override public void run() {
+                checkDataRate(start, startCount);
+            }
+        }, DATA_RATE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A deadline passed. Runs on the timer's thread.
+     */
+    private void expire(int action) {
+        if (action == TIME_OUT) {
+            // Stop reading, which wakes up the connection's thread. The
+            // output is left open so the client can be sent a 408.
+            timedOut = true;
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                closeSocket();
+            }
+        } else {
+            closeSocket();
+        }
+    }
+
+
+    /**********************
+      CONNECTION STATE
+     **********************/
+
+    private synchronized boolean markActive() {
+        if (state == CLOSED) {
+            return false;
+        }
+
+        state = ACTIVE;
+        return true;
+    }
+
+    private synchronized boolean markIdle() {
+        served++;
+
+        if (state == CLOSED) {
+            return false;
+        }
+
+        state = IDLE;
+        return true;
+    }
+
+    /**
+     * Whether the connection is currently working on a request, or waiting
+     * on an async route's response, or an HTTP/2 connection on any of its
+     * streams.
+     */
+    synchronized boolean isActive() {
+        return state == ACTIVE || state == SUSPENDED || (http2 != null && http2.hasStreams());
+    }
+
+    /**
+     * Hang up on the client if it's waiting between keep-alive requests.
+     *
+     * Connections that haven't finished a request yet are left alone, because
+     * the client has most likely sent its first request already.
+     *
+     * @return whether the connection was closed.
+     */
+    boolean closeIfIdle() {
+        EventStream stream;
+        WebSocket upgraded;
+        Http2Connection multiplexed;
+        synchronized (this) {
+            stream = eventStream;
+            upgraded = webSocket;
+            multiplexed = http2;
+
+            if (state != DETACHED) {
+                if (state != IDLE || served == 0) {
+                    return false;
+                }
+
+                state = CLOSED;
+                clearDeadline();
+                closeSocket();
+                return true;
+            }
+        }
+
+        // Event streams are idle between events. Their clients reconnect.
+        // WebSockets are told why they're closing, and get to answer. HTTP/2
+        // connections finish the streams they've started, and then close.
+        if (stream != null) {
+            stream.close();
+        } else if (upgraded != null) {
+            upgraded.close(WebSocket.GOING_AWAY, "Server is shutting down");
+        } else if (multiplexed != null) {
+            multiplexed.shutdown();
+            return !multiplexed.hasStreams();
+        }
+        return true;
+    }
+
+    /**
+     * Close the connection regardless of what it's doing, interrupting the
+     * thread working on it.
+     */
+    void kill() {
+        EventStream stream;
+        PendingResponse pending;
+        synchronized (this) {
+            stream = eventStream;
+            pending = state == SUSPENDED ? suspended : null;
+
+            if (state != DETACHED) {
+                state = CLOSED;
+                clearDeadline();
+                closeSocket();
+
+                if (worker != null) {
+                    worker.interrupt();
+                }
+
+                if (pending == null) {
+                    return;
+                }
+            }
+        }
+
+        // A suspended connection has no thread to interrupt. Its stage is
+        // cancelled, and it's picked back up to finish closing.
+        if (pending != null) {
+            pending.cancel();
+            return;
+        }
+
+        // A WebSocket's or HTTP/2 connection's thread finishes up once its
+        // socket's closed.
+        if (stream != null) {
+            stream.close();
+        } else {
+            closeDetached();
+        }
+    }
+
+    /**
+     * Stop sending, and throw away what the client's still sending for a
+     * little while before closing. Closing with unread data makes the
+     * connection reset, which can lose the response before the client reads
+     * it.
+     */
+    private void lingeringClose() {
+        try {
+            socket.shutdownOutput();
+            socket.setSoTimeout(LINGER_TIMEOUT);
+
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_TIMEOUT);
+            byte[] discard = bufferPool.acquire(8192);
+            try {
+                while (System.nanoTime() < end && input.read(discard) != -1);
+            } finally {
+                bufferPool.release(discard);
+            }
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing connection.", e);
+        }
+    }
+
+    HttpServer getServer() {
+        return server;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    RequestReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Whether the next request should keep a copy of its raw bytes.
+     */
+    boolean shouldCapture() {
+        return server.isDebug() || (server.getCaptureSampleRate() > 0
+                && ThreadLocalRandom.current().nextDouble() < server.getCaptureSampleRate());
+    }
+
+    RequestLimits getRequestLimits() {
+        return limits;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+
+    /**
+     * Counts the bytes read from the client, for the minimum data rate.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -8,6 +8,9 @@ package httpserver;
 public class HttpException extends Exception {
     private static final long serialVersionUID = -1318922991257945983L;
 
+    // the status code sent to the client because of this exception
+    private int code = 400;
+
     public HttpException() {
         super();
     }
@@ -23,4 +26,25 @@ public class HttpException extends Exception {
     public HttpException(Exception e) {
         super(e);
     }
+
+    /**
+     * Create an exception that should be answered with a specific status
+     * code, instead of a 400.
+     * @param code    The HTTP status code to respond with.
+     * @param message What went wrong.
+     */
+    public HttpException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    /**
+     * Get the status code the client should be sent. Unless it was set, it's
+     * 400 (Bad Request), because most HttpExceptions come from a client not
+     * following the spec.
+     * @return An HTTP status code.
+     */
+    public int getCode() {
+        return code;
+    }
 }
@@ -75,9 +75,33 @@ public abstract class HttpHandler {
             return;
         }
 
+        Route route = findRoute(request);
+        if (route == null) {
+            response.message(501, HttpResponse.NOT_A_METHOD_ERROR);
+            return;
+        }
+
+        route.invoke(request, response);
+    }
+
+    /**
+     * Find the route that best fits a request: one whose path matches
+     * exactly, or else the one that matches the most segments, or else the
+     * {@code *} route.
+     *
+     * @param request The request, with its path already parsed.
+     * @return The route, or null if none fit.
+     */
+    public Route findRoute(HttpRequest request) {
+        String httpRequestType = request.getRequestType().toUpperCase();
+        List<Route> candidates = routes.get(httpRequestType);
+        if (candidates == null) {
+            return null;
+        }
+
         Route route = defaultRoutes.get(httpRequestType);
         int bestFit = 0;
-        for (Route testRoute : routes.get(httpRequestType)) {
+        for (Route testRoute : candidates) {
             if (testRoute.matchesPerfectly(request.getSplitPath())) {
                 route = testRoute;
                 break;
@@ -90,12 +114,7 @@ public abstract class HttpHandler {
             }
         }
 
-        if (route == null) {
-            response.message(501, HttpResponse.NOT_A_METHOD_ERROR);
-            return;
-        }
-
-        route.invoke(request, response);
+        return route;
     }
 
     /**
@@ -0,0 +1,570 @@
+package httpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * HttpHeaders holds the headers of a request or a response. <p>
+ *
+ * Header names are case-insensitive, so {@code get("content-length")} finds
+ * a {@code Content-Length} header. A header may be sent more than once, and
+ * every value is kept, in order. As a {@link Map}, each name maps to its
+ * first value; use {@link #getAll(String)} for the rest. <p>
+ *
+ * Because every request has a couple dozen headers, the container tries
+ * hard not to create garbage:
+ * <ul>
+ *   <li>Names are looked up in an open addressed hash table, hashed without
+ *   changing their case.</li>
+ *   <li>Well known names are interned, so reading a {@code Host} header
+ *   never allocates a new "Host" String.</li>
+ *   <li>Values read off of the connection are kept as bytes, and only
+ *   decoded if someone asks for them.</li>
+ *   <li>{@link #clear()} keeps every array, so a connection can reuse one
+ *   HttpHeaders for all of its requests.</li>
+ * </ul>
+ *
+ * HttpHeaders is not thread safe.
+ */
+public class HttpHeaders extends AbstractMap<String, String> {
+
+    /** Names of headers common enough to be worth interning. */
+    private static final String[] WELL_KNOWN = {
+        "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language",
+        "Accept-Ranges", "Access-Control-Request-Headers",
+        "Access-Control-Request-Method", "Authorization", "Cache-Control",
+        "Connection", "Content-Disposition", "Content-Encoding",
+        "Content-Language", "Content-Length", "Content-Range", "Content-Type",
+        "Cookie", "Date", "DNT", "ETag", "Expect", "Forwarded", "Host",
+        "HTTP2-Settings", "If-Match", "If-Modified-Since", "If-None-Match",
+        "If-Range", "If-Unmodified-Since", "Keep-Alive", "Last-Event-ID",
+        "Last-Modified", "Location", "Origin", "Pragma", "Range", "Referer",
+        "Retry-After", "Sec-Fetch-Dest", "Sec-Fetch-Mode", "Sec-Fetch-Site",
+        "Sec-Fetch-User", "Sec-WebSocket-Extensions", "Sec-WebSocket-Key",
+        "Sec-WebSocket-Protocol", "Sec-WebSocket-Version", "Server",
+        "Set-Cookie", "TE", "Trailer", "Transfer-Encoding", "Upgrade",
+        "Upgrade-Insecure-Requests", "User-Agent", "Vary", "Via",
+        "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Proto",
+        "X-Real-IP", "X-Request-ID", "X-Requested-With",
+    };
+
+    private static final int[] WELL_KNOWN_HASHES = new int[WELL_KNOWN.length];
+    private static final int[] WELL_KNOWN_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < WELL_KNOWN.length; i++) {
+            int hash = hash(WELL_KNOWN[i]);
+            WELL_KNOWN_HASHES[i] = hash;
+
+            int slot = hash & (WELL_KNOWN_TABLE.length - 1);
+            while (WELL_KNOWN_TABLE[slot] != 0) {
+                slot = (slot + 1) & (WELL_KNOWN_TABLE.length - 1);
+            }
+            WELL_KNOWN_TABLE[slot] = i + 1;
+        }
+    }
+
+    // Every header, in the order they were added. Repeated names have an
+    // entry per value, linked together through next.
+    private int size = 0;
+    private String[] names = new String[16];
+    private int[] hashes = new int[16];
+    private int[] next = new int[16];
+
+    // A value is either decoded, or still sitting undecoded in raw.
+    private String[] values = new String[16];
+    private int[] valueStart = new int[16];
+    private int[] valueLength = new int[16];
+    private byte[] raw = new byte[512];
+    private int rawLength = 0;
+
+    // Open addressed (linear probing) table from name to the index of that
+    // name's first entry, plus one. Zero marks an empty slot.
+    private int[] table = new int[32];
+    private int distinct = 0;
+
+
+    /**
+     * Create an empty set of headers.
+     */
+    public HttpHeaders() { }
+
+    /**
+     * Create headers holding a copy of a map's entries.
+     * @param headers The headers to copy.
+     */
+    public HttpHeaders(Map<String, String> headers) {
+        putAll(headers);
+    }
+
+
+    /**
+     * Add a header, keeping any values the header already has.
+     * @param name  The header's name.
+     * @param value The header's value, which can't be null.
+     */
+    public void add(String name, String value) {
+        Objects.requireNonNull(value, "Header values can't be null.");
+        int hash = hash(name);
+        int existing = find(name, hash);
+
+        int entry = append(existing >= 0 ? names[existing] : name, hash, existing);
+        values[entry] = value;
+    }
+
+    /**
+     * Add a header straight from the bytes of a request. The name is
+     * interned if it's well known, and the value is only decoded when it's
+     * first asked for.
+     *
+     * @param bytes       The bytes holding the header.
+     * @param nameStart   Where the name starts.
+     * @param nameLength  How long the name is.
+     * @param valueStart  Where the value starts.
+     * @param valueLength How long the value is.
+     */
+    void add(byte[] bytes, int nameStart, int nameLength, int valueStart, int valueLength) {
+        int hash = hash(bytes, nameStart, nameLength);
+        int existing = find(bytes, nameStart, nameLength, hash);
+
+        String name;
+        if (existing >= 0) {
+            name = names[existing];
+        } else {
+            name = wellKnown(bytes, nameStart, nameLength, hash);
+            if (name == null) {
+                name = new String(bytes, nameStart, nameLength, StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        int entry = append(name, hash, existing);
+
+        if (rawLength + valueLength > raw.length) {
+            raw = Arrays.copyOf(raw, Math.max(raw.length * 2, rawLength + valueLength));
+        }
+        System.arraycopy(bytes, valueStart, raw, rawLength, valueLength);
+
+        this.valueStart[entry] = rawLength;
+        this.valueLength[entry] = valueLength;
+        rawLength += valueLength;
+    }
+
+    /**
+     * Set a header, replacing every value it already had.
+     * @param name  The header's name.
+     * @param value The header's only value, which can't be null. Use
+     *              {@link #remove} to take a header out.
+     */
+    public void set(String name, String value) {
+        Objects.requireNonNull(value, "Header values can't be null.");
+        int hash = hash(name);
+        int existing = find(name, hash);
+
+        if (existing < 0) {
+            values[append(name, hash, -1)] = value;
+            return;
+        }
+
+        values[existing] = value;
+        if (next[existing] != -1) {
+            removeEntries(name, hash, next[existing]);
+        }
+    }
+
+    /**
+     * Get every value of a header.
+     * @param name  The header's name, in any case.
+     * @return The header's values in the order they were added, empty if
+     *         the header isn't there.
+     */
+    public List<String> getAll(String name) {
+        int entry = find(name, hash(name));
+        if (entry < 0) {
+            return Collections.emptyList();
+        }
+
+        List<String> all = new ArrayList<>(2);
+        for (; entry != -1; entry = next[entry]) {
+            all.add(getValue(entry));
+        }
+
+        return all;
+    }
+
+    /**
+     * Get the number of header lines, counting every value of a repeated
+     * header.
+     * @return How many entries there are, for {@link #getName(int)} and
+     *         {@link #getValue(int)}.
+     */
+    public int entryCount() {
+        return size;
+    }
+
+    /**
+     * Get the name of an entry, in the order they were added.
+     * @param entry Between 0 and {@link #entryCount()}.
+     */
+    public String getName(int entry) {
+        checkEntry(entry);
+        return names[entry];
+    }
+
+    /**
+     * Get the value of an entry, in the order they were added.
+     * @param entry Between 0 and {@link #entryCount()}.
+     */
+    public String getValue(int entry) {
+        checkEntry(entry);
+
+        if (values[entry] == null) {
+            values[entry] = new String(raw, valueStart[entry], valueLength[entry], StandardCharsets.UTF_8);
+        }
+
+        return values[entry];
+    }
+
+
+    /*****************
+      MAP INTERFACE
+     *****************/
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+
+        int entry = find((String) key, hash((String) key));
+        return entry < 0 ? null : getValue(entry);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find((String) key, hash((String) key)) >= 0;
+    }
+
+    /**
+     * Set a header, replacing every value it already had.
+     * @return The header's previous first value.
+     * @see HttpHeaders#set
+     */
+    @Override
+    public String put(String name, String value) {
+        String previous = get(name);
+        set(name, value);
+        return previous;
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+
+        String name = (String) key;
+        int hash = hash(name);
+        int entry = find(name, hash);
+        if (entry < 0) {
+            return null;
+        }
+
+        String previous = getValue(entry);
+        removeEntries(name, hash, entry);
+        return previous;
+    }
+
+    /**
+     * Get the number of distinct header names.
+     */
+    @Override
+    public int size() {
+        return distinct;
+    }
+
+    /**
+     * Remove every header, keeping the memory around for the next request.
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        Arrays.fill(table, 0);
+
+        size = 0;
+        distinct = 0;
+        rawLength = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override public int size() {
+                return distinct;
+            }
+
+            @Override public Iterator<Map.Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+
+    /*************
+      INTERNALS
+     *************/
+
+    /**
+     * Add an entry to the end, linking it to the other entries with the same
+     * name, if there are any.
+     */
+    private int append(String name, int hash, int existing) {
+        if (size == names.length) {
+            grow();
+        }
+
+        int entry = size++;
+        names[entry] = name;
+        hashes[entry] = hash;
+        next[entry] = -1;
+        values[entry] = null;
+
+        if (existing >= 0) {
+            int last = existing;
+            while (next[last] != -1) {
+                last = next[last];
+            }
+            next[last] = entry;
+        } else {
+            distinct++;
+            if (distinct * 2 > table.length) {
+                table = new int[table.length * 2];
+                reindex();
+            } else {
+                insert(entry);
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Remove entries with the given name, starting at an entry, and close
+     * the gaps they leave.
+     */
+    private void removeEntries(String name, int hash, int from) {
+        int kept = from;
+        boolean removedFirst = find(name, hash) == from;
+
+        for (int i = from; i < size; i++) {
+            if (hashes[i] == hash && names[i].equalsIgnoreCase(name)) {
+                continue;
+            }
+
+            names[kept] = names[i];
+            hashes[kept] = hashes[i];
+            values[kept] = values[i];
+            valueStart[kept] = valueStart[i];
+            valueLength[kept] = valueLength[i];
+            kept++;
+        }
+
+        Arrays.fill(names, kept, size, null);
+        Arrays.fill(values, kept, size, null);
+        size = kept;
+
+        if (removedFirst) {
+            distinct--;
+        }
+
+        reindex();
+    }
+
+    /**
+     * Rebuild the hash table and the links between repeated names.
+     */
+    private void reindex() {
+        Arrays.fill(table, 0);
+
+        for (int entry = 0; entry < size; entry++) {
+            next[entry] = -1;
+
+            int first = find(names[entry], hashes[entry]);
+            if (first < 0) {
+                insert(entry);
+                continue;
+            }
+
+            while (next[first] != -1) {
+                first = next[first];
+            }
+            next[first] = entry;
+        }
+    }
+
+    private void insert(int entry) {
+        int mask = table.length - 1;
+        int slot = hashes[entry] & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot] = entry + 1;
+    }
+
+    private int find(String name, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (hashes[entry] == hash && names[entry].equalsIgnoreCase(name)) {
+                return entry;
+            }
+        }
+
+        return -1;
+    }
+
+    private int find(byte[] bytes, int start, int length, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (hashes[entry] == hash && equalsIgnoreCase(bytes, start, length, names[entry])) {
+                return entry;
+            }
+        }
+
+        return -1;
+    }
+
+    private static String wellKnown(byte[] bytes, int start, int length, int hash) {
+        int mask = WELL_KNOWN_TABLE.length - 1;
+        for (int slot = hash & mask; WELL_KNOWN_TABLE[slot] != 0; slot = (slot + 1) & mask) {
+            int known = WELL_KNOWN_TABLE[slot] - 1;
+            if (WELL_KNOWN_HASHES[known] == hash
+                    && equalsIgnoreCase(bytes, start, length, WELL_KNOWN[known])) {
+                return WELL_KNOWN[known];
+            }
+        }
+
+        return null;
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        next = Arrays.copyOf(next, capacity);
+        values = Arrays.copyOf(values, capacity);
+        valueStart = Arrays.copyOf(valueStart, capacity);
+        valueLength = Arrays.copyOf(valueLength, capacity);
+    }
+
+    private void checkEntry(int entry) {
+        if (entry < 0 || entry >= size) {
+            throw new IndexOutOfBoundsException("No header entry " + entry);
+        }
+    }
+
+    private static int hash(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + toLower(name.charAt(i));
+        }
+
+        return spread(h);
+    }
+
+    private static int hash(byte[] bytes, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + toLower((char) (bytes[i] & 0xff));
+        }
+
+        return spread(h);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static char toLower(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] bytes, int start, int length, String name) {
+        if (length != name.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (toLower((char) (bytes[start + i] & 0xff)) != toLower(name.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Walks the first entry of each distinct name.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+        private int entry = advance(0);
+        private int current = -1;
+
+        private int advance(int from) {
+            while (from < size && find(names[from], hashes[from]) != from) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return entry < size;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            current = entry;
+            entry = advance(entry + 1);
+
+            final String name = names[current];
+            return new AbstractMap.SimpleEntry<String, String>(name, getValue(current)) {
+                private static final long serialVersionUID = 1L;
+
+                @Override public String setValue(String value) {
+                    set(name, value);
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (current < 0) {
+                throw new IllegalStateException();
+            }
+
+            String name = names[current];
+            HttpHeaders.this.removeEntries(name, hashes[current], current);
+            entry = advance(current);
+            current = -1;
+        }
+    }
+}
@@ -1,24 +1,42 @@
 package httpserver;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An HttpRequest takes an incoming connection and parses out all of the
  * relevant data, supposing the connection follows HTTP protocol.
  *
- * At present, HttpRequest only knows how to handle HTTP 1.1 requests, and
- * doesn't handle persistent connections. Technically, it could handle an
- * HTTP 1.0 request, because 1.0 doesn't have persistent connections.
+ * HttpRequest handles HTTP 1.1 and 1.0 requests, as well as HTTP/2 requests
+ * read off of their stream. An HTTP 1.1 connection is kept alive for more
+ * requests unless the client sends {@code Connection: close}, and an HTTP 1.0
+ * one only is if the client sends {@code Connection: keep-alive}; see
+ * {@link #isKeepAlive()}. <p>
+ *
+ * A request read by an {@link HttpServer} belongs to its connection, and is
+ * reset and reused for the next request on it once its response is sent,
+ * along with its response. Using either after that throws an
+ * IllegalStateException, so copy anything needed later before the handler
+ * returns.
  *
  * @see   <a href="http://www.w3.org/Protocols/rfc2616/rfc2616.html">
  *        HTTP 1.1 Spec</a>
@@ -51,9 +69,11 @@ public class HttpRequest implements Runnable {
     // with this request
     private HttpHandler handler;
 
-    // the full text of the incoming request, including headers
-    // and sent over data
+    // the full text of the incoming request, including headers and sent
+    // over data. Only kept when the request is captured, see setCaptureRaw.
     private String httpRequest;
+    private RequestReader.Capture rawRequest;
+    private boolean captureRaw = false;
 
     // the request line, or first line of entire request
     private String requestLine;
@@ -65,10 +85,11 @@ public class HttpRequest implements Runnable {
     private String requestProtocol;
 
     // All headers, because they're all key/value pairs
-    private Map<String, String> headers = new HashMap<>();
+    private HttpHeaders headers;
 
     // The requested path, split by '/'
-    private List<String> splitPath = new ArrayList<>();
+    private final List<String> pathSegments = new ArrayList<>();
+    private List<String> splitPath = pathSegments;
 
     // The path relative to the handler's path
     private String path;
@@ -76,13 +97,68 @@ public class HttpRequest implements Runnable {
     // the full path
     private String fullPath;
 
-    // the POST data
-    private Map<String, String> params = new HashMap<>();
+    // the query string, without the "?", if there is one
+    private String query;
+
+    // parameters from the query string, form body, and route. Parsed the
+    // first time a parameter is asked for. params holds each name's first
+    // value, multiParams all of them.
+    private Map<String, String> params;
+    private Map<String, List<String>> multiParams;
+    private boolean paramsParsed = false;
+
+    // parameters from the route's path, which win over everything else
+    private Map<String, String> routeParams;
 
     private List<String> varargs = new ArrayList<>();
 
+    private byte[] body;
     private String requestBody;
 
+    // a body left on the connection to be streamed, instead of read in
+    private BodyInputStream bodyStream;
+    private BodyPublisher bodyPublisher;
+    private MultipartParser multipart;
+
+    // reads the request from the connection, shared between requests on
+    // the same connection
+    private RequestReader reader;
+
+    private static final byte[] CONTINUE
+        = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // how large a request may be
+    private RequestLimits limits = DEFAULT_LIMITS;
+    private static final RequestLimits DEFAULT_LIMITS = new RequestLimits();
+
+    // lends out the buffers a body's skipped or read through
+    private BufferPool bufferPool = DEFAULT_POOL;
+    private static final BufferPool DEFAULT_POOL = new BufferPool();
+
+    // the server's connection this request was read from, if there is one
+    private HttpConnection httpConnection;
+
+    // whether the connection should stay open after this request
+    private boolean keepAlive = false;
+
+    // the HTTP/2 stream this request came in on, if it did
+    private Http2Stream http2Stream;
+
+    // set once the response is sent, until the request is reset for the
+    // next one on its connection
+    private volatile boolean retired = false;
+
+    // the concurrency limiter the request's counted against, until it's
+    // finished, or whether it was shed instead
+    private ConcurrencyLimiter admittedBy;
+    private boolean shed = false;
+    private long handleStart = -1;
+
+    // when the headers were read, and when the request has to be answered
+    // by, from nanoTime, or -1
+    private long received = -1;
+    private long deadline = -1;
+
 
     /**
      * Used to parse out an HTTP request provided a Socket and figure out the
@@ -104,6 +180,39 @@ public class HttpRequest implements Runnable {
         setConnection(connection);
     }
 
+    /**
+     * Create a request read from one of the server's connections, which may
+     * have more than one request read from it.
+     *
+     * @param router      The router used to pick a handler.
+     * @param connection  The connection to read from.
+     */
+    HttpRequest(HttpRouter router, HttpConnection connection) {
+        this.router = router;
+        this.httpConnection = connection;
+        this.reader = connection.getReader();
+        this.limits = connection.getRequestLimits();
+        this.bufferPool = connection.getBufferPool();
+        this.captureRaw = connection.shouldCapture();
+        this.headers = new HttpHeaders();
+        setConnection(connection.getSocket());
+    }
+
+    /**
+     * Create a request that came in on an HTTP/2 stream. Its headers were
+     * already read by the stream's connection.
+     *
+     * @param router  The router used to pick a handler.
+     * @param stream  The stream the request came in on.
+     */
+    HttpRequest(HttpRouter router, Http2Stream stream) {
+        this.router = router;
+        this.http2Stream = stream;
+        this.limits = stream.getConnection().getRequestLimits();
+        this.bufferPool = stream.getConnection().getConnection().getBufferPool();
+        setConnection(stream.getConnection().getConnection().getSocket());
+    }
+
     @Override
     public void run() {
         if (getConnection().isClosed()) {
@@ -119,13 +228,94 @@ public class HttpRequest implements Runnable {
 
     public HttpResponse createResponse() throws IOException, HttpException {
         parseRequest();
-        HttpResponse response = new HttpResponse(this);
-        determineHandler().handle(this, response);
+        return handle();
+    }
+
+    /**
+     * Hand the parsed request to its handler.
+     * @return The handler's response, ready to send, unless it's
+     *         {@link HttpResponse#getPending pending} on a connection or
+     *         stream.
+     */
+    HttpResponse handle() throws IOException {
+        HttpResponse response = httpConnection != null
+            ? httpConnection.nextResponse(this)
+            : new HttpResponse(this);
+        // Shed requests are turned away without reading their body, and
+        // their connection skips it, or closes.
+        if (shed) {
+            response.setHeader("Retry-After", "1");
+            response.message(503, ConcurrencyLimiter.OVERLOADED);
+            return response;
+        }
+
+        HttpServer server = getServer();
+        RateLimiter limiter = server != null ? server.getRateLimiter() : null;
+        if (limiter == null || limiter.allow(this, response)) {
+            if (handler == null) {
+                handler = determineHandler();
+            }
+
+            handleStart = System.nanoTime();
+            handler.handle(this, response);
+        }
+
+        // Connections and HTTP/2 streams send an async route's response once
+        // it's ready, without a thread waiting on it. Anything else waits.
+        PendingResponse pending = response.getPending();
+        if (pending != null && httpConnection == null && http2Stream == null) {
+            return pending.await();
+        }
 
         return response;
     }
 
 
+    /**
+     * Get the server that read the request.
+     * @return The server, or null if it wasn't read by one.
+     */
+    HttpServer getServer() {
+        if (httpConnection != null) {
+            return httpConnection.getServer();
+        } else if (http2Stream != null) {
+            return http2Stream.getConnection().getServer();
+        }
+
+        return null;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Count the request against the server's concurrency limit, once its
+     * headers are read, so one that's shed never has its body read.
+     */
+    private void admit() {
+        HttpServer server = getServer();
+        ConcurrencyLimiter limiter = server != null ? server.getConcurrencyLimiter() : null;
+
+        // An HTTP/2 preface isn't a request, it's the start of a connection.
+        if (limiter == null || Http2Connection.isPreface(this)) {
+            return;
+        }
+
+        // Routing is done now, to find the route's priority, and the handler
+        // is kept for later.
+        handler = determineHandler();
+        Route route = handler.findRoute(this);
+        int priority = route != null ? route.getPriority() : ConcurrencyLimiter.NORMAL;
+
+        if (limiter.acquire(priority)) {
+            admittedBy = limiter;
+        } else {
+            shed = true;
+        }
+    }
+
+
     /**
      * Kicks off the request's parsing. Called inside constructor.
      *
@@ -136,124 +326,571 @@ public class HttpRequest implements Runnable {
      *                          upstream because it can't be dealt with until it
      *                          gets to the HttpServer.
      * @throws HttpException    When headers aren't in key/value pairs separated
-     *                          by ": ".
+     *                          by ": ", or the request is larger than the
+     *                          {@link RequestLimits} allow.
      *
      * @see HttpServer
      */
     public void parseRequest() throws IOException, SocketException, HttpException {
+        if (http2Stream != null) {
+            parseStream();
+            return;
+        }
+
         // Used to read in from the socket
-        BufferedReader input = new BufferedReader(
-                new InputStreamReader(getConnection().getInputStream()));
+        if (reader == null) {
+            reader = new RequestReader(getConnection().getInputStream());
+        }
+        RequestReader input = reader;
 
-        StringBuilder requestBuilder = new StringBuilder();
+        if (captureRaw) {
+            input.startCapture();
+        }
 
         /*  The HTTP spec (Section 4.1) says that a blank first line should be
             ignored, and that the next line SHOULD have the request line. To be
             extra sure, all initial blank lines are discarded.
             */
-        String firstLine = input.readLine();
+        int maxRequestLine = limits.getMaxRequestLineLength();
+        String firstLine = input.readLine(maxRequestLine, 414);
         if (firstLine == null) {
             throw new HttpException("Input is returning nulls...");
         }
 
-        while (firstLine.isEmpty()) {
-            firstLine = input.readLine();
+        for (int skipped = 0; firstLine.isEmpty(); skipped++) {
+            if (skipped > maxRequestLine) {
+                throw new HttpException(414, "Too many blank lines before the request line.");
+            }
+
+            firstLine = input.readLine(maxRequestLine, 414);
+            if (firstLine == null) {
+                throw new HttpException("Input is returning nulls...");
+            }
         }
 
         // start with the first non-empty line.
         setRequestLine(firstLine);
-        requestBuilder.append(getRequestLine());
-        requestBuilder.append("\n");
 
         /*  Every line after the first, but before an empty line is a header,
             which is a key/value pair.
 
-            The key is before the ": ", the value, after
+            The key is before the ":", the value, after, less any whitespace
+            around it. Headers are read straight into the header map as bytes,
+            and values are only decoded if a handler asks for them.
 
-            TODO: parse this to spec. Spec says it's cool to have any number of
-            whitespace characters following the colon, and the values
-            can be spread accross multiple lines provided each following line
-            starts with a whitespace character.
+            Values spread across multiple lines ("obsolete line folding") are
+            rejected, as RFC 7230#3.2.4 allows.
 
-            For more information, see issue 12 and RFC 2616#4.2.
+            For more information, see issue 12 and RFC 7230#3.2.
             Issue 12: https://github.com/dkuntz2/java-httpserver/issues/12
-            RFC 2616#4.2: http://www.w3.org/Protocols/rfc2616/rfc2616-sec4.html#sec4.2
+            RFC 7230#3.2: https://tools.ietf.org/html/rfc7230#section-3.2
+            */
+        int headerCount = 0;
+        int headerSize = 0;
+        for (int read = readHeader(input, headerSize); read != 0; read = readHeader(input, headerSize)) {
+            headerSize += read;
+            if (++headerCount > limits.getMaxHeaderCount()) {
+                throw new HttpException(431, "Too many headers.");
+            }
+        }
+
+        /*  Chunked request bodies aren't supported. Without knowing where
+            the body ends, the rest of the connection can't be trusted to
+            be the next request (see "request smuggling"), so the request
+            is turned away, and the connection closed.
+            */
+        if (getHeaders().containsKey("Transfer-Encoding")) {
+            throw new HttpException(501, "Transfer-Encoding isn't supported, send a Content-Length.");
+        }
+
+        /*  HTTP 1.1 connections are persistent unless the client says
+            otherwise, HTTP 1.0 connections only are if the client asks.
             */
-        for (String line = input.readLine(); line != null && !line.isEmpty(); line = input.readLine()) {
-            requestBuilder.append(line);
-            requestBuilder.append("\n");
+        String connectionHeader = getHeaders().get("Connection");
+        if ("HTTP/1.1".equals(getRequestProtocol())) {
+            keepAlive = connectionHeader == null || !connectionHeader.equalsIgnoreCase("close");
+        } else {
+            keepAlive = connectionHeader != null && connectionHeader.equalsIgnoreCase("keep-alive");
+        }
 
-            String[] items = line.split(": ");
+        received = System.nanoTime();
+        admit();
+
+        /*  Any request with a Content-Length has a body, whatever its
+            method, and it has to be read, or skipped, before the next
+            request on the connection. This reads in only the number of
+            bytes specified in the "Content-Length" header.
+
+            Multipart bodies can be far larger than the heap, so they're left
+            on the connection for the handler to stream. So are other large
+            bodies, if the server's limits say so.
+            */
+        boolean expectContinue = parseExpect();
+
+        if (getHeaders().containsKey("Content-Length")) {
+            boolean streamable = isMultipart() || limits.getStreamedBodySize() >= 0;
+            long contentLength = parseContentLength(getHeaders().get("Content-Length"),
+                    streamable ? limits.getMaxUploadSize() : limits.getMaxContentLength());
+            boolean streamed = isMultipart() || isLargeBody(contentLength) || shed;
+
+            /*  A client that sent "Expect: 100-continue" is waiting to hear
+                the body is wanted before sending it. It's left on the
+                connection until the handler first reads it, which sends the
+                "100 Continue", and only then is the client held to the body
+                timeouts. A body too large to accept was already turned away
+                with a 413, without the client sending any of it.
+                */
+            if (streamed || expectContinue) {
+                bodyStream = new BodyInputStream(contentLength, streamed, expectContinue);
+            }
 
-            if (items.length == 1) {
-                throw new HttpException("No key value pair in \n\t" + line);
+            if (httpConnection != null) {
+                if (bodyStream != null && bodyStream.continueNeeded) {
+                    // nothing's coming until the client's told to go ahead
+                    httpConnection.doneReading();
+                } else {
+                    httpConnection.readingBody(streamed);
+                }
             }
 
-            String value = items[1];
-            for (int i = 2; i < items.length; i++) {
-                value += ": " + items[i];
+            if (bodyStream == null) {
+                body = new byte[(int) contentLength];
+                input.readFully(body, 0, (int) contentLength);
             }
+        }
 
-            getHeaders().put(items[0], value);
+        if (captureRaw) {
+            rawRequest = input.endCapture();
         }
 
+        if (httpConnection != null && bodyStream == null) {
+            httpConnection.doneReading();
+        }
+    }
 
-        /*  If the client sent over a POST, PUT, or DELETE request, there's *probably* still data
-            in the stream. This reads in only the number of chars specified in the
-            "Content-Length" header.
-            */
-        if ((getRequestType().equals(POST_REQUEST_TYPE) || getRequestType().equals(DELETE_REQUEST_TYPE) || getRequestType().equals(PUT_REQUEST_TYPE)) && getHeaders().containsKey("Content-Length")) {
-            int contentLength = Integer.parseInt(getHeaders().get("Content-Length"));
-            StringBuilder b = new StringBuilder();
 
-            for (int i = 0; i < contentLength; i++) {
-                b.append((char)input.read());
+    /**
+     * Fill in the request from its HTTP/2 stream's headers, which were
+     * already decoded, and checked to be well formed. The same limits as an
+     * HTTP/1.1 request apply. <p>
+     *
+     * Any request can have a body in HTTP/2, and it doesn't need a
+     * Content-Length, so the body is always streamed, and read in once the
+     * handler asks for it.
+     */
+    private void parseStream() throws HttpException {
+        if (!http2Stream.headersFit()) {
+            throw new HttpException(431, "Headers are too large.");
+        }
+
+        String streamPath = http2Stream.getPath();
+        if (streamPath.length() > limits.getMaxRequestLineLength()) {
+            throw new HttpException(414, "Request path is too long.");
+        }
+
+        setRequestLine(http2Stream.getMethod() + " " + streamPath + " HTTP/2.0");
+
+        List<String> fields = http2Stream.getFields();
+        if (fields.size() / 2 > limits.getMaxHeaderCount()) {
+            throw new HttpException(431, "Too many headers.");
+        }
+
+        for (int i = 0; i < fields.size(); i += 2) {
+            getHeaders().add(fields.get(i), fields.get(i + 1));
+        }
+
+        // handlers look for the Host header
+        if (http2Stream.getAuthority() != null && !getHeaders().containsKey("Host")) {
+            getHeaders().add("Host", http2Stream.getAuthority());
+        }
+
+        keepAlive = true;
+
+        received = System.nanoTime();
+        admit();
+
+        if (!http2Stream.isEndReceived() || http2Stream.hasBody()) {
+            long maxLength = isMultipart() || limits.getStreamedBodySize() >= 0
+                ? limits.getMaxUploadSize() : limits.getMaxContentLength();
+            long contentLength = -1;
+            if (getHeaders().containsKey("Content-Length")) {
+                contentLength = parseContentLength(getHeaders().get("Content-Length"), maxLength);
             }
 
-            requestBuilder.append(b.toString());
+            http2Stream.setBodyLimit(contentLength, maxLength);
+            bodyStream = new BodyInputStream(http2Stream.getBody(), contentLength);
+        }
+    }
 
-            requestBody = b.toString();
+    /**
+     * Read a header into the request's headers, making sure the client didn't
+     * stop sending before the blank line ending the headers, and that the
+     * headers aren't too large.
+     *
+     * @param headerSize  How many bytes of headers have already been read.
+     * @return The number of bytes read, or 0 at the end of the headers.
+     */
+    private int readHeader(RequestReader input, int headerSize) throws IOException, HttpException {
+        int remaining = limits.getMaxHeaderSize() - headerSize;
+        if (remaining < 0) {
+            throw new HttpException(431, "Headers are too large.");
+        }
 
-            String[] data = requestBody.split("&");
-            getParams().putAll(parseInputData(data));
+        int read = input.readHeader(getHeaders(), remaining, 431);
+        if (read == -1) {
+            throw new HttpException("Request ended before the end of its headers.");
         }
 
-        setHttpRequest(requestBuilder.toString());
+        return read;
     }
 
+    /**
+     * Parse the Content-Length header, rejecting the request before any of
+     * the body is read if it's larger than allowed.
+     *
+     * @param header  The Content-Length header's value.
+     * @return The length of the body.
+     * @throws HttpException  With a 400 if the length isn't a number, or a
+     *                        413 if it's over the limit.
+     */
+    private long parseContentLength(String header, long maxLength) throws HttpException {
+        long contentLength;
+        try {
+            contentLength = Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            throw new HttpException(400, "Invalid Content-Length.");
+        }
+
+        if (contentLength < 0) {
+            throw new HttpException(400, "Invalid Content-Length.");
+        }
+
+        if (contentLength > maxLength || contentLength > Integer.MAX_VALUE) {
+            throw new HttpException(413, "Request body is larger than "
+                    + maxLength + " bytes.");
+        }
+
+        return contentLength;
+    }
 
     /**
-     * Turns an array of "key=value" strings into a map. <p>
+     * Check the Expect header. HTTP/1.0 requests don't support it, so it's
+     * ignored for them.
      *
-     * Any item in the array missing an "=" is given a value of null.
+     * @return whether the client is waiting for a "100 Continue".
+     * @throws HttpException  With a 417 for any expectation other than
+     *                        "100-continue".
+     */
+    private boolean parseExpect() throws HttpException {
+        String expect = getHeaders().get("Expect");
+        if (expect == null || !"HTTP/1.1".equals(getRequestProtocol())) {
+            return false;
+        }
+
+        if (!expect.trim().equalsIgnoreCase("100-continue")) {
+            throw new HttpException(417, "Unsupported expectation: " + expect);
+        }
+
+        return true;
+    }
+
+    /**
+     * Read in a body that was left on the connection, for the client to send
+     * after a "100 Continue", or to be streamed. A streamed body's only read
+     * if it's within the maximum Content-Length.
+     */
+    private void readBody() {
+        if (bodyStream == null || multipart != null || isMultipart()) {
+            return;
+        }
+
+        long remaining = bodyStream.remaining;
+        if (limits.getStreamedBodySize() >= 0
+                && (remaining == -1 || remaining > limits.getMaxContentLength())) {
+            return;
+        }
+
+        try {
+            body = bodyStream.readAll();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        bodyStream = null;
+    }
+
+    /**
+     * Whether a body's too large to read into memory, by the server's
+     * limits, and gets streamed.
+     * @param length The body's length, or -1 if it isn't known.
+     */
+    private boolean isLargeBody(long length) {
+        long threshold = limits.getStreamedBodySize();
+        return threshold >= 0
+            && (length == -1 || length > Math.min(threshold, limits.getMaxContentLength()));
+    }
+
+    /**
+     * Whether the body is {@code multipart/form-data}, and gets streamed.
+     */
+    private boolean isMultipart() {
+        String contentType = getHeaders().get("Content-Type");
+        return contentType != null && contentType.regionMatches(true, 0, "multipart/form-data", 0, 19);
+    }
+
+    /**
+     * Skip whatever's left of a streamed body the handler didn't read, so
+     * the next request on the connection can be read.
      *
-     * @param data  List of strings in "key=value" form, you know, like HTTP GET
-     *              or POST lines?
-     * @return  Map of key value pairs
-     */
-    private Map<String, String> parseInputData(String[] data) {
-        Map<String, String> out = new HashMap<String, String>();
-        for (String item : data) {
-            if (item.indexOf("=") == -1) {
-                out.put(item, null);
-                continue;
+     * @param max The most bytes worth skipping.
+     * @return false if the body couldn't be skipped, and the connection
+     *         can't be reused.
+     */
+    boolean discardBody(long max) {
+        if (bodyStream == null || bodyStream.remaining == 0) {
+            return true;
+        }
+
+        // The client never got a "100 Continue", so it may not send the body
+        // at all. There's no telling what's next on the connection.
+        if (bodyStream.remaining > max || bodyStream.continueNeeded) {
+            return false;
+        }
+
+        try {
+            while (bodyStream.skip(bodyStream.remaining) > 0);
+            return bodyStream.remaining == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether the body is being streamed, instead of having been read in
+     * with the headers.
+     */
+    boolean hasStreamedBody() {
+        return bodyStream != null;
+    }
+
+    /**
+     * Tell a client waiting on a "100 Continue" to send its body, before
+     * the response starts, in case the response passes the body along.
+     */
+    void sendContinue() throws IOException {
+        if (bodyStream != null) {
+            bodyStream.sendContinue();
+        }
+    }
+
+    /**
+     * Whether some of a streamed body is still on one of the server's
+     * connections, so it has to be closed carefully.
+     */
+    boolean hasUnreadBody() {
+        return httpConnection != null && bodyStream != null && bodyStream.remaining > 0;
+    }
+
+    /**
+     * Clean up after the request's been responded to, deleting any temp
+     * files its multipart body was spilled to.
+     */
+    void finish() {
+        if (multipart != null) {
+            multipart.close();
+        }
+
+        if (admittedBy != null) {
+            ConcurrencyLimiter limiter = admittedBy;
+            admittedBy = null;
+            limiter.release(handleStart == -1 ? -1 : System.nanoTime() - handleStart);
+        }
+    }
+
+    /**
+     * Mark the request as answered, so the handler can't go on using it
+     * once it's reused.
+     */
+    void retire() {
+        retired = true;
+
+        if (bodyPublisher != null) {
+            bodyPublisher.abandon();
+        }
+    }
+
+    /**
+     * Reset the request to read the next one on its connection, keeping
+     * the collections it's filled into.
+     */
+    void reset() {
+        handler = null;
+        httpRequest = null;
+        rawRequest = null;
+        captureRaw = httpConnection.shouldCapture();
+
+        requestLine = null;
+        requestType = null;
+        requestProtocol = null;
+        headers.clear();
+
+        pathSegments.clear();
+        splitPath = pathSegments;
+        path = null;
+        fullPath = null;
+        query = null;
+
+        if (params != null) {
+            params.clear();
+            multiParams.clear();
+        }
+        paramsParsed = false;
+        if (routeParams != null) {
+            routeParams.clear();
+        }
+        varargs.clear();
+
+        body = null;
+        requestBody = null;
+        bodyStream = null;
+        bodyPublisher = null;
+        multipart = null;
+        keepAlive = false;
+
+        admittedBy = null;
+        shed = false;
+        handleStart = -1;
+        received = -1;
+        deadline = -1;
+
+        retired = false;
+    }
+
+    /**
+     * Make sure the request hasn't been answered, and reused.
+     */
+    private void checkLive() {
+        if (retired) {
+            throw new IllegalStateException("The request was already answered, and belongs "
+                    + "to its connection's next request.");
+        }
+    }
+
+    /**
+     * Parse the query string and form body, if they haven't been already.
+     */
+    private void parseParams() {
+        checkLive();
+        if (paramsParsed) {
+            return;
+        }
+        paramsParsed = true;
+
+        if (params == null) {
+            params = new LinkedHashMap<>();
+            multiParams = new LinkedHashMap<>();
+        }
+
+        if (query != null) {
+            parseQuery(query);
+        }
+
+        if (isFormBody()) {
+            readBody();
+        }
+
+        if (body != null && isFormBody()) {
+            parseForm(body);
+        }
+
+        if (routeParams != null) {
+            for (Map.Entry<String, String> param : routeParams.entrySet()) {
+                putParam(param.getKey(), param.getValue());
             }
+        }
+    }
 
-            String value = item.substring(item.indexOf('=') + 1);
+    /**
+     * Parse "key=value" pairs separated by "&" out of a query string. <p>
+     *
+     * Any item missing an "=" is given a value of null.
+     */
+    private void parseQuery(String data) {
+        int start = 0;
+        while (start < data.length()) {
+            int end = data.indexOf('&', start);
+            if (end == -1) {
+                end = data.length();
+            }
 
-            /*  Attempt to URL decode the value, because it *might* be user input.
-                If it can't be decoded, it doesn't matter, the original, undecoded
-                value is still used.
-                */
-            try {
-                value = URLDecoder.decode(value, "UTF-8");
+            if (end > start) {
+                int equals = data.indexOf('=', start);
+                if (equals == -1 || equals > end) {
+                    addParam(UrlDecoder.decode(data, start, end), null);
+                } else {
+                    addParam(UrlDecoder.decode(data, start, equals),
+                            UrlDecoder.decode(data, equals + 1, end));
+                }
             }
-            catch (UnsupportedEncodingException e) {}
 
-            out.put(item.substring(0, item.indexOf('=')), value);
+            start = end + 1;
         }
+    }
+
+    /**
+     * Parse "key=value" pairs separated by "&" straight out of a form body.
+     */
+    private void parseForm(byte[] data) {
+        int start = 0;
+        while (start < data.length) {
+            int end = start;
+            int equals = -1;
+            while (end < data.length && data[end] != '&') {
+                if (equals == -1 && data[end] == '=') {
+                    equals = end;
+                }
+                end++;
+            }
+
+            if (end > start) {
+                if (equals == -1) {
+                    addParam(UrlDecoder.decode(data, start, end), null);
+                } else {
+                    addParam(UrlDecoder.decode(data, start, equals),
+                            UrlDecoder.decode(data, equals + 1, end));
+                }
+            }
+
+            start = end + 1;
+        }
+    }
+
+    private void addParam(String key, String value) {
+        List<String> values = multiParams.get(key);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            multiParams.put(key, values);
+            params.put(key, value);
+        }
+
+        values.add(value);
+    }
 
-        return out;
+    private void putParam(String key, String value) {
+        List<String> values = new ArrayList<>(1);
+        values.add(value);
+        multiParams.put(key, values);
+        params.put(key, value);
+    }
+
+    /**
+     * Whether the body holds form data. Bodies without a Content-Type are
+     * assumed to.
+     */
+    private boolean isFormBody() {
+        String contentType = getHeaders().get("Content-Type");
+        return contentType == null || contentType.regionMatches(true, 0,
+                "application/x-www-form-urlencoded", 0, 33);
     }
 
     /**
@@ -272,7 +909,7 @@ public class HttpRequest implements Runnable {
      */
     public HttpHandler determineHandler() {
         if (router == null) {
-            return new DeathHandler();
+            return DeathHandler.SERVER_ERROR;
         }
 
         String path = getSplitPath().isEmpty() ? "" : getSplitPath().get(0);
@@ -285,7 +922,7 @@ public class HttpRequest implements Runnable {
      * @return whether the request type equals the passed in String.
      */
     public boolean isType(String requestTypeCheck) {
-        return getRequestType().equalsIgnoreCase(requestTypeCheck);
+        return requestTypeCheck.equalsIgnoreCase(getRequestType());
     }
 
     /**
@@ -357,6 +994,7 @@ public class HttpRequest implements Runnable {
      * @return The full path.
      */
     public String getFullPath() {
+        checkLive();
         return fullPath;
     }
 
@@ -368,6 +1006,7 @@ public class HttpRequest implements Runnable {
      * @return Everything in the path after the handler's path.
      */
     public String getPath() {
+        checkLive();
         return path;
     }
 
@@ -376,12 +1015,20 @@ public class HttpRequest implements Runnable {
      * Given a full path, set the splitPath to the path, split by `/`. <p>
      *
      * If there's a query string attached to the path, it gets removed from the
-     * splitPath, and the request's associated GET data is parsed from the query
-     * string.
+     * splitPath, and kept to be parsed when a parameter is asked for.
      *
-     * @see HttpRequest#getGetData
+     * @see HttpRequest#getParams
      */
     public void setSplitPath(String fullPath) {
+        /*  Anything after a "?" is the query string, which could be sent
+            with any request. It isn't part of the requested path.
+            */
+        int queryStart = fullPath.indexOf('?');
+        if (queryStart != -1) {
+            query = fullPath.substring(queryStart + 1);
+            fullPath = fullPath.substring(0, queryStart);
+        }
+
         /*  Split apart the path for future reference by the handlers
             The split path should be used by handlers to figure out what
             action should be taken. It's also used to parse out GET request
@@ -391,34 +1038,13 @@ public class HttpRequest implements Runnable {
             an error with splitting (as in, the first split could be an empty
             string, which we don't want).
             */
-        for (String segment : fullPath.substring(1).split("/")) {
+        for (String segment : fullPath.substring(Math.min(1, fullPath.length())).split("/")) {
             if (segment.isEmpty()) {
                 continue;
             }
 
             getSplitPath().add(segment);
         }
-
-        if (getSplitPath().isEmpty()) {
-            return;
-        }
-
-        /*  Parse out any GET data in the request URL.
-            This could occur on any request.
-            */
-        if (getSplitPath().get(getSplitPath().size() - 1).indexOf('?') != -1) {
-            String lastItem = getSplitPath().get(getSplitPath().size() - 1);
-            // remove the ? onward from the last item in the path, because that's not
-            // part of the requested URL
-            getSplitPath().set(getSplitPath().size() - 1, lastItem.substring(0,
-                        lastItem.indexOf('?')));
-
-            // split apart the request query into an array of "key=value" strings.
-            String[] data = lastItem.substring(lastItem.indexOf('?') + 1).split("&");
-
-            // Set the GET data to the GET data...
-            getParams().putAll(parseInputData(data));
-        }
     }
     public void setSplitPath(List<String> path) {
         this.splitPath = path;
@@ -428,11 +1054,44 @@ public class HttpRequest implements Runnable {
      * @return A List of Strings
      */
     public List<String> getSplitPath() {
+        checkLive();
         return splitPath;
     }
 
 
 
+    HttpConnection getHttpConnection() {
+        return httpConnection;
+    }
+
+    /**
+     * Whether the request came in over HTTPS.
+     * @return whether the connection is encrypted.
+     */
+    public boolean isSecure() {
+        return getConnection() instanceof TlsSocket;
+    }
+
+    /**
+     * Get the HTTP/2 stream the request came in on.
+     * @return The stream, or null if the request came in over HTTP/1.x.
+     */
+    Http2Stream getHttp2Stream() {
+        return http2Stream;
+    }
+
+    /**
+     * Move a request that asked to upgrade its connection to HTTP/2 onto the
+     * stream it's answered on. Its body was already read, and it's answered
+     * over HTTP/2, so that's the protocol it's treated as.
+     */
+    void upgradedToHttp2(Http2Stream stream) {
+        http2Stream = stream;
+        setRequestProtocol("HTTP/2.0");
+        httpConnection = null;
+        keepAlive = true;
+    }
+
     public void setConnection(Socket connection) {
         this.connection = connection;
     }
@@ -440,39 +1099,239 @@ public class HttpRequest implements Runnable {
         return connection;
     }
 
+    /**
+     * Replace the request's headers.
+     * @param headers The new headers.
+     */
     public void setHeaders(Map<String, String> headers) {
-        this.headers = headers;
+        getHeaders().clear();
+        getHeaders().putAll(headers);
     }
-    public Map<String, String> getHeaders() {
+    /**
+     * Get the request's headers. Names are case-insensitive, and headers
+     * sent more than once keep all of their values.
+     * <p>
+     * The headers belong to the connection, and are reused by the next
+     * request on it, so copy anything needed after the response is sent.
+     *
+     * @return The request's headers.
+     */
+    public HttpHeaders getHeaders() {
+        checkLive();
+        if (headers == null) {
+            headers = new HttpHeaders();
+        }
         return headers;
     }
 
+    /**
+     * Replace all of the request's parameters.
+     * @param data The new parameters.
+     */
     public void setParams(Map<String, String> data) {
-        this.params = data;
+        params = new LinkedHashMap<>();
+        multiParams = new LinkedHashMap<>();
+        paramsParsed = true;
+        routeParams = null;
+
+        for (Map.Entry<String, String> param : data.entrySet()) {
+            putParam(param.getKey(), param.getValue());
+        }
     }
+    /**
+     * Get the request's parameters, from the query string, the form body,
+     * and the route's path. A parameter sent more than once maps to its
+     * first value, see {@link #getParams(String)} for all of them.
+     * @return The request's parameters.
+     */
     public Map<String, String> getParams() {
+        parseParams();
         return params;
     }
+    /**
+     * Get every value of a parameter, in the order they were sent. Values
+     * from the query string come before values from the form body.
+     * @param key The parameter's name.
+     * @return The parameter's values, empty if it wasn't sent.
+     */
+    public List<String> getParams(String key) {
+        parseParams();
+
+        List<String> values = multiParams.get(key);
+        return values == null ? Collections.<String>emptyList() : values;
+    }
+    /**
+     * Add parameters, replacing any with the same names. Used by routes
+     * to add the parameters in their paths.
+     * @param data The parameters to add.
+     */
     public void mergeParams(Map<String, String> data) {
-        this.params.putAll(data);
+        if (data.isEmpty()) {
+            return;
+        }
+
+        if (routeParams == null) {
+            routeParams = new HashMap<>();
+        }
+        routeParams.putAll(data);
+
+        if (paramsParsed) {
+            for (Map.Entry<String, String> param : data.entrySet()) {
+                putParam(param.getKey(), param.getValue());
+            }
+        }
     }
+    /**
+     * Get the first value of a parameter. Parameters from the route's path
+     * are found without parsing the rest.
+     * @param key The parameter's name.
+     * @return The parameter's value, or null.
+     */
     public String getParam(String key) {
-        return this.params.get(key);
+        checkLive();
+        if (!paramsParsed && routeParams != null && routeParams.containsKey(key)) {
+            return routeParams.get(key);
+        }
+
+        parseParams();
+        return params.get(key);
     }
 
     public void mergeVarargs(List<String> data) {
         this.varargs.addAll(data);
     }
     public List<String> getVarargs() {
+        checkLive();
         return this.varargs;
     }
 
+    /**
+     * Set whether the connection should stay open after this request is
+     * responded to.
+     * @param keepAlive False to close the connection after responding.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+    /**
+     * Whether the connection stays open after this request. This is true
+     * when the client asked for a persistent connection, and the server
+     * agreed to it.
+     * @return whether the connection should be kept alive.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Set how long the request has to be answered, counting from when its
+     * headers were read. Set by its route before it's handled.
+     * @param millis The time allowed, in milliseconds, or 0 for no deadline.
+     * @see Route#setDeadline
+     */
+    void setDeadline(long millis) {
+        if (millis <= 0) {
+            deadline = -1;
+            return;
+        }
+
+        long start = received != -1 ? received : System.nanoTime();
+        deadline = start + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+    /**
+     * Get when the request has to be answered by, so a handler can pass it
+     * on to whatever it calls in turn.
+     * @return The deadline, in milliseconds since the epoch, or -1 if there
+     *         isn't one.
+     */
+    public long getDeadline() {
+        if (deadline == -1) {
+            return -1;
+        }
+        return System.currentTimeMillis() + getTimeRemaining();
+    }
+
+    /**
+     * Pick which of the types a handler can answer with the client would
+     * like best, from its Accept header, with quality values and wildcards:
+     *
+     * <pre>
+     * String type = request.negotiate("application/json", "text/html");
+     * if (type == null) {
+     *     response.message(406, "Only JSON and HTML are on offer.");
+     * }
+     * </pre>
+     *
+     * @param types The types on offer, without parameters, best first.
+     * @return The type to answer with, or null if the client won't take any
+     *         of them.
+     */
+    public String negotiate(String... types) {
+        return Accept.negotiate(getHeaders().get("Accept"), types);
+    }
+
+    /**
+     * Whether the client will take a type, according to its Accept header.
+     * @param type The type, without parameters.
+     */
+    public boolean accepts(String type) {
+        return Accept.quality(getHeaders().get("Accept"), type) > 0;
+    }
+
+    /**
+     * Get how long is left until the request's deadline.
+     * @return The time left, in milliseconds, 0 once it's passed, or -1 if
+     *         there's no deadline.
+     */
+    public long getTimeRemaining() {
+        if (deadline == -1) {
+            return -1;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Set whether the raw request is kept when it's parsed, so it can be
+     * read back with {@link #getHttpRequest()}. This is off by default, and
+     * turned on by the server when it's in debug mode or the request is
+     * sampled.
+     *
+     * @param captureRaw Whether to keep the raw request.
+     *
+     * @see HttpServer#setDebug
+     * @see HttpServer#setCaptureSampleRate
+     */
+    public void setCaptureRaw(boolean captureRaw) {
+        this.captureRaw = captureRaw;
+    }
+    public boolean isCaptureRaw() {
+        return captureRaw;
+    }
+
     public void setHttpRequest(String httpRequest) {
         this.httpRequest = httpRequest;
     }
+    /**
+     * Get the full text of the request, including headers and body.
+     * @return The raw request, or null if it wasn't captured.
+     * @see HttpRequest#setCaptureRaw
+     */
     public String getHttpRequest() {
+        if (httpRequest == null && rawRequest != null) {
+            httpRequest = StandardCharsets.UTF_8.decode(rawRequest.getBytes()).toString();
+        }
+
         return httpRequest;
     }
+    /**
+     * Get the bytes of the request, exactly as they were read.
+     * @return A read-only view of the raw request, or null if it wasn't
+     *         captured.
+     * @see HttpRequest#setCaptureRaw
+     */
+    public ByteBuffer getRawRequest() {
+        return rawRequest == null ? null : rawRequest.getBytes();
+    }
 
     public void setRequestType(String requestType) {
         this.requestType = requestType;
@@ -502,7 +1361,85 @@ public class HttpRequest implements Runnable {
         return router;
     }
 
+    /**
+     * Get the request's body as a stream. Multipart bodies, and bodies the
+     * client is waiting to send until it gets a "100 Continue", are read
+     * straight off of the connection, so they can only be read once.
+     * @return The body, empty if there isn't one.
+     */
+    public InputStream getBodyStream() {
+        checkLive();
+        if (bodyStream != null) {
+            return bodyStream;
+        }
+
+        return new ByteArrayInputStream(body == null ? new byte[0] : body);
+    }
+
+    /**
+     * Get the request's body as a {@link Flow.Publisher} of chunks. <p>
+     *
+     * The body's only read as fast as the subscriber asks for it, so it can
+     * be passed along somewhere slower without piling up in memory. For a
+     * large body to be read that way, rather than before the handler's
+     * called, the server has to {@link RequestLimits#setStreamedBodySize
+     * stream} it. The reads are done on the server's executor. <p>
+     *
+     * The body has to be read before the request's answered: before the
+     * handler returns, or before an {@link AsyncRoute}'s stage completes.
+     *
+     * @return The body's publisher, which only takes one subscriber.
+     */
+    public Flow.Publisher<ByteBuffer> getBodyPublisher() {
+        checkLive();
+        if (bodyPublisher == null) {
+            Executor executor = ForkJoinPool.commonPool();
+            if (httpConnection != null) {
+                executor = httpConnection.getServer().getExecutor();
+            } else if (http2Stream != null) {
+                executor = http2Stream.getConnection().getServer().getExecutor();
+            }
+
+            bodyPublisher = new BodyPublisher(getBodyStream(), executor);
+        }
+
+        return bodyPublisher;
+    }
+
+    /**
+     * Get a parser for a {@code multipart/form-data} body, limited by the
+     * server's {@link RequestLimits}.
+     * @return The parser, or null if the body isn't multipart.
+     */
+    public MultipartParser getMultipartParser() {
+        checkLive();
+        if (multipart == null && bodyStream != null) {
+            String boundary = MultipartParser.getBoundary(getHeaders().get("Content-Type"));
+            if (boundary == null) {
+                return null;
+            }
+
+            multipart = new MultipartParser(bodyStream, boundary);
+            multipart.setMaxPartSize(limits.getMaxPartSize());
+            multipart.setMaxTotalSize(limits.getMaxUploadSize());
+        }
+
+        return multipart;
+    }
+
+    /**
+     * Get the request's body as text.
+     * @return The body, or null if there isn't one, or it's a multipart
+     *         or large body being streamed.
+     */
     public String getRequestBody() {
+        checkLive();
+        readBody();
+
+        if (requestBody == null && body != null) {
+            requestBody = new String(body, StandardCharsets.UTF_8);
+        }
+
         return requestBody;
     }
 
@@ -523,4 +1460,126 @@ public class HttpRequest implements Runnable {
 
         return builder.toString();
     }
+
+
+    /**
+     * A streamed body, read straight off of the connection up to its
+     * Content-Length, or from an HTTP/2 stream.
+     */
+    private class BodyInputStream extends InputStream {
+        // how much is left, or -1 if the length isn't known
+        private long remaining;
+
+        // whether the client is waiting for a "100 Continue" before sending
+        private boolean continueNeeded;
+
+        // whether the handler streams it, for the body timeouts
+        private boolean streamed;
+
+        // the stream's body, instead of the connection
+        private InputStream source;
+
+        BodyInputStream(long length, boolean streamed, boolean expectContinue) {
+            remaining = length;
+            this.streamed = streamed;
+            continueNeeded = expectContinue && length > 0;
+        }
+
+        BodyInputStream(InputStream source, long length) {
+            this.source = source;
+            this.remaining = length;
+        }
+
+        /**
+         * Tell the client to go ahead and send the body, if it's waiting to.
+         * The body timeouts start now, since the client couldn't have sent
+         * anything before.
+         */
+        void sendContinue() throws IOException {
+            if (continueNeeded) {
+                continueNeeded = false;
+                OutputStream out = getConnection().getOutputStream();
+                out.write(CONTINUE);
+                out.flush();
+
+                if (httpConnection != null) {
+                    httpConnection.readingBody(streamed);
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+
+            sendContinue();
+
+            if (source != null) {
+                int read = source.read(b, off, remaining == -1 ? len : (int) Math.min(len, remaining));
+                if (read == -1 && remaining == -1) {
+                    remaining = 0;
+                } else if (read == -1) {
+                    throw new EOFException("Request body ended early.");
+                } else if (remaining != -1) {
+                    remaining -= read;
+                }
+                return read;
+            }
+
+            int read = reader.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("Request body ended early.");
+            }
+
+            remaining -= read;
+            if (remaining == 0 && httpConnection != null) {
+                httpConnection.doneReading();
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] skipped = bufferPool.acquire(8192);
+            try {
+                int read = read(skipped, 0, (int) Math.min(n, skipped.length));
+                return Math.max(read, 0);
+            } finally {
+                bufferPool.release(skipped);
+            }
+        }
+
+        /**
+         * Read in the rest of the body.
+         */
+        byte[] readAll() throws IOException {
+            if (remaining != -1) {
+                byte[] bytes = new byte[(int) remaining];
+                for (int off = 0; off < bytes.length; ) {
+                    off += read(bytes, off, bytes.length - off);
+                }
+                return bytes;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = bufferPool.acquire(8192);
+            try {
+                for (int read = read(buffer, 0, buffer.length); read != -1; read = read(buffer, 0, buffer.length)) {
+                    bytes.write(buffer, 0, read);
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+            return bytes.toByteArray();
+        }
+    }
 }
@@ -1,15 +1,29 @@
 package httpserver;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
  * An HttpResponse is used to set output values, and to write those values
- * to the client.
+ * to the client. <p>
+ *
+ * Like its request, a response to a request read by an {@link HttpServer}
+ * is reused for the next request on the connection, and can't be used once
+ * it's sent.
  */
 public class HttpResponse {
     /** Generic error message for when an exception occurs on the server */
@@ -32,14 +46,29 @@ public class HttpResponse {
 
     private int code = 200; // default to "200 - OK"
     private byte[] body;
+    private Flow.Publisher<ByteBuffer> bodyPublisher;
+    private StaticResponse staticResponse;
     private String mimeType = "text/plain";
     private long size = -1;
 
-    private Map<String, String> headers = new HashMap<>();
+    private HttpHeaders headers;
+
+    // set when the response is a stream of Server-Sent Events
+    private EventStream eventStream;
+
+    // set when the response upgrades the connection to a WebSocket
+    private WebSocket webSocket;
+
+    // set when an AsyncRoute answers later
+    private PendingResponse pending;
 
     private Socket socket;
     private DataOutputStream writer;
 
+    // set once the response is sent, until it's reset for the next request
+    // on its connection
+    private volatile boolean retired = false;
+
 
     /**
      * Create a new HttpResponse to fill out. <p>
@@ -53,12 +82,65 @@ public class HttpResponse {
         }
 
         socket = req.getConnection();
-        writer = new DataOutputStream(socket.getOutputStream());
+        HttpConnection connection = req.getHttpConnection();
+
+        // Buffered so the whole response goes out in as few packets as
+        // possible. Writing it line by line on a kept alive connection runs
+        // into Nagle's algorithm and delayed ACKs, stalling every response.
+        // The server's connections borrow the buffer from its pool. HTTP/2
+        // responses are framed by their stream instead.
+        if (connection != null) {
+            writer = new DataOutputStream(new PooledOutputStream(socket.getOutputStream(),
+                        connection.getBufferPool()));
+        } else if (req.getHttp2Stream() == null) {
+            writer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        // A connection's response keeps its headers when it's reset for the
+        // next request, so they aren't reallocated. They're never shared with
+        // another response, since a retired one may still be touched by a
+        // late async stage.
+        headers = new HttpHeaders();
 
         request = req;
     }
 
 
+    /**
+     * Reset the response to answer the next request on its connection,
+     * keeping its writer and headers.
+     */
+    void reset(HttpRequest req) {
+        request = req;
+        code = 200;
+        body = null;
+        bodyPublisher = null;
+        staticResponse = null;
+        mimeType = "text/plain";
+        size = -1;
+        headers.clear();
+        eventStream = null;
+        webSocket = null;
+        pending = null;
+        retired = false;
+    }
+
+    /**
+     * Mark the response as sent, so the handler can't go on using it once
+     * it's reused.
+     */
+    void retire() {
+        retired = true;
+    }
+
+    private void checkLive() {
+        if (retired) {
+            throw new IllegalStateException("The response was already sent, and belongs "
+                    + "to its connection's next request.");
+        }
+    }
+
+
     /**
      * Send a simple string message with an HTTP response code back to
      * the client. <p>
@@ -115,6 +197,12 @@ public class HttpResponse {
      * Send data back to the client.
      */
     public void respond() {
+        checkLive();
+        if (getRequest().getHttp2Stream() != null) {
+            respondToStream(getRequest().getHttp2Stream());
+            return;
+        }
+
         try {
             // If the socket doesn't exist, or is null, we have a small problem.
             // Because no data can be written to the client (there's no way to
@@ -128,64 +216,401 @@ public class HttpResponse {
                 throw new HttpException("Socket is closed...");
             }
 
+            // A static response that's been left alone is already written.
+            if (isStatic()) {
+                getWriter().write(staticResponse.getSerialized(getRequest().isKeepAlive(),
+                            getRequest().isType(HttpRequest.HEAD_REQUEST_TYPE)));
+                return;
+            }
+
+
+            // A published body that doesn't have a size is sent in chunks,
+            // but HTTP/1.0 doesn't have those, so the body ends when the
+            // connection does.
+            boolean published = getBodyPublisher() != null && !isHandedOver();
+            boolean chunked = false;
+            if (published && getSize() == -1) {
+                if ("HTTP/1.0".equals(getRequest().getRequestProtocol())) {
+                    getRequest().setKeepAlive(false);
+                } else {
+                    chunked = true;
+                }
+            }
 
             // If the user never filled out the response's body, there isn't any
             // content. Make sure the response code matches that.
-            if(getBody() == null) {
+            if(getBody() == null && !published && !isHandedOver()) {
                 noContent();
             }
 
             // Send the required headers down the pipe.
             writeLine("HTTP/1.1 " + getResponseCodeMessage(getCode()));
             writeLine("Server: " + getServerInfo());
-            writeLine("Content-Type: " + getMimeType());
-
-            writeLine("Connection: close");
-
-            if (getSize() != -1) {
-                // Someone manually set the size of the body. Go team!
-                writeLine("Content-Size: " + getSize());
+            if (getWebSocket() == null) {
+                writeLine("Content-Type: " + contentType(getMimeType()));
+                writeLine("Connection: " + (getRequest().isKeepAlive() ? "keep-alive" : "close"));
             } else {
-                // We don't know how large the body is. Determine that using the body...
-                writeLine("Content-Size: " + getBody().length);
+                writeLine("Connection: Upgrade");
+            }
+
+            // An event stream goes on until the connection closes, so it
+            // doesn't have a length, and a WebSocket doesn't have a body.
+            if (getCode() != 204 && !isHandedOver()) {
+                if (getSize() != -1) {
+                    // Someone manually set the size of the body. Go team!
+                    writeLine("Content-Length: " + getSize());
+                } else if (chunked) {
+                    writeLine("Transfer-Encoding: chunked");
+                } else if (!published) {
+                    // We don't know how large the body is. Determine that using the body...
+                    writeLine("Content-Length: " + getBody().length);
+                }
             }
 
             // Send all other miscellaneous headers down the shoots.
-            if (!getHeaders().isEmpty()) {
-                StringBuilder b = new StringBuilder();
-                for (String key : getHeaders().keySet()) {
-                    b.append(key);
-                    b.append(": ");
-                    b.append(getHeader(key));
-                    b.append("\n");
+            // Headers set more than once get a line for each value.
+            for (int i = 0; i < getHeaders().entryCount(); i++) {
+                writeLine(getHeaders().getName(i) + ": " + getHeaders().getValue(i));
+            }
+            if (staticResponse != null) {
+                HttpHeaders extra = staticResponse.getHeaders();
+                for (int i = 0; i < extra.entryCount(); i++) {
+                    writeLine(extra.getName(i) + ": " + extra.getValue(i));
                 }
-                writeLine(b.toString());
             }
 
             // Blank line separating headers from the body.
             writeLine("");
 
             // If there isn't a body, or the client made a HEAD request, stop
-            // doing things.
-            if (getRequest().isType(HttpRequest.HEAD_REQUEST_TYPE) || getCode() == 204) {
+            // doing things. An event stream's body is sent by the stream.
+            if (getRequest().isType(HttpRequest.HEAD_REQUEST_TYPE) || getCode() == 204
+                    || isHandedOver()) {
                 return;
             }
 
             // Give the client the body.
-            getWriter().write(getBody());
+            if (published) {
+                writePublishedBody(chunked);
+            } else {
+                getWriter().write(getBody());
+            }
         } catch (HttpException | IOException e) {
             System.err.println("Something bad happened while trying to send data "
                     + "to the client");
             e.printStackTrace();
         } finally {
             try {
-                getWriter().close();
+                // A persistent connection gets reused for the next request,
+                // so only close it if the client is done with it. If the
+                // client is still sending a body, the server closes the
+                // connection once it's thrown away the rest. An event
+                // stream's or WebSocket's connection is handed over to it.
+                if (getRequest().isKeepAlive() || getRequest().hasUnreadBody()
+                        || isHandedOver()) {
+                    getWriter().flush();
+                } else {
+                    getWriter().close();
+                }
             } catch (NullPointerException | IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Send the response on an HTTP/2 stream. The same headers are sent as
+     * over HTTP/1.1, less the ones about the connection, with lower case
+     * names, as HTTP/2 requires.
+     */
+    private void respondToStream(Http2Stream stream) {
+        if (getBody() == null && getBodyPublisher() == null) {
+            noContent();
+        }
+
+        List<String> fields = new ArrayList<>();
+        fields.add(":status");
+        fields.add(Integer.toString(getCode()));
+        fields.add("server");
+        fields.add(getServerInfo());
+        if (!getMimeType().isEmpty()) {
+            fields.add("content-type");
+            fields.add(contentType(getMimeType()));
+        }
+        if (getCode() != 204 && (getSize() != -1 || getBody() != null)) {
+            fields.add("content-length");
+            fields.add(Long.toString(getSize() != -1 ? getSize() : getBody().length));
+        }
+
+        addFields(fields, getHeaders());
+        if (staticResponse != null) {
+            addFields(fields, staticResponse.getHeaders());
+        }
+
+        boolean noBody = getRequest().isType(HttpRequest.HEAD_REQUEST_TYPE) || getCode() == 204;
+        try {
+            if (getBodyPublisher() != null && !noBody) {
+                BodySubscriber subscriber = new BodySubscriber(
+                        stream.getConnection().getServer().getTimeouts().getWriteTimeout());
+                getBodyPublisher().subscribe(subscriber);
+                try {
+                    stream.respond(fields, subscriber);
+                } finally {
+                    subscriber.cancel();
+                }
+            } else {
+                stream.respond(fields, noBody ? null : getBody());
+            }
+        } catch (IOException e) {
+            // the client reset the stream, or went away
+            Logger.getLogger("java-httpserver").log(Level.FINE, "Couldn't send an HTTP/2 response.", e);
+        }
+    }
+
+    private static void addFields(List<String> fields, HttpHeaders headers) {
+        for (int i = 0; i < headers.entryCount(); i++) {
+            String name = headers.getName(i).toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    break;
+                default:
+                    fields.add(name);
+                    fields.add(headers.getValue(i));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Get the Content-Type header for a type. Text bodies are always sent
+     * as UTF-8, so text types say so, unless they already name a charset.
+     */
+    static String contentType(String mimeType) {
+        if (!mimeType.regionMatches(true, 0, "text/", 0, 5)) {
+            return mimeType;
+        }
+
+        for (int i = mimeType.indexOf(';'); i != -1 && i < mimeType.length(); i++) {
+            if (mimeType.regionMatches(true, i, "charset=", 0, 8)) {
+                return mimeType;
+            }
+        }
+        return mimeType + "; charset=utf-8";
+    }
+
+    /**
+     * Whether the response is still just its static response, so it can be
+     * sent as is.
+     */
+    private boolean isStatic() {
+        return staticResponse != null && code == staticResponse.getCode()
+            && body == staticResponse.getBody() && mimeType == staticResponse.getMimeType()
+            && size == -1 && bodyPublisher == null && headers.entryCount() == 0
+            && !isHandedOver();
+    }
+
+    /**
+     * Send a published body, asking for each chunk once the last one's been
+     * written to the client.
+     *
+     * @param chunked Whether to frame the body in chunks.
+     */
+    private void writePublishedBody(boolean chunked) throws IOException {
+        HttpConnection connection = getRequest().getHttpConnection();
+        long timeout = connection != null
+            ? connection.getServer().getTimeouts().getWriteTimeout() : 0;
+
+        BodySubscriber subscriber = new BodySubscriber(timeout);
+        getBodyPublisher().subscribe(subscriber);
+
+        long sent = 0;
+        try {
+            ByteBuffer chunk;
+            while ((chunk = subscriber.next()) != null) {
+                int length = chunk.remaining();
+                if (length > 0) {
+                    // every chunk gets as long as a whole response to go out
+                    if (connection != null) {
+                        connection.writing();
+                    }
+
+                    if (chunked) {
+                        getWriter().writeBytes(Integer.toHexString(length) + "\r\n");
+                    }
+                    getWriter().write(chunk.array(), chunk.arrayOffset() + chunk.position(), length);
+                    if (chunked) {
+                        getWriter().writeBytes("\r\n");
+                    }
+                    getWriter().flush();
+                    sent += length;
+                }
+
+                subscriber.consumed();
+            }
+
+            if (getSize() != -1 && sent != getSize()) {
+                throw new IOException("The published body was " + sent + " bytes, not "
+                        + getSize() + ".");
+            }
+
+            if (chunked) {
+                getWriter().writeBytes("0\r\n\r\n");
+            }
+        } catch (IOException e) {
+            // The body's cut short, which the client can only tell if the
+            // connection closes.
+            getRequest().setKeepAlive(false);
+            throw e;
+        } finally {
+            subscriber.cancel();
+        }
+    }
+
+    /**
+     * Turn the response into a stream of Server-Sent Events. <p>
+     *
+     * Once the handler returns, the response's headers are sent, and the
+     * connection is handed over to the stream. It stays open until the
+     * stream's closed, or the client goes away. Events sent before the
+     * handler returns are sent right after the headers.
+     *
+     * @return The stream to send events on.
+     * @throws IllegalStateException  If the request wasn't read by an
+     *                                {@link HttpServer}, or came in over
+     *                                HTTP/2.
+     *
+     * @see EventChannel
+     */
+    public EventStream startEventStream() {
+        if (eventStream != null) {
+            return eventStream;
+        }
+
+        HttpConnection connection = getRequest().getHttpConnection();
+        if (connection == null) {
+            throw new IllegalStateException("Only HTTP/1.1 requests read by an HttpServer can be streamed.");
+        }
+
+        setCode(200);
+        setMimeType("text/event-stream");
+        setHeader("Cache-Control", "no-cache");
+
+        // the stream ends when the connection does
+        getRequest().setKeepAlive(false);
+
+        eventStream = new EventStream(connection, getRequest().getHeaders().get("Last-Event-ID"));
+        return eventStream;
+    }
+    /**
+     * Get the response's event stream.
+     * @return The stream, or null if the response isn't one.
+     */
+    public EventStream getEventStream() {
+        return eventStream;
+    }
+
+    /**
+     * Accept a WebSocket handshake, compressing messages if the client
+     * offers to. <p>
+     *
+     * Once the handler returns, the 101 (Switching Protocols) response is
+     * sent, and the connection is handed over to the socket. Usually called
+     * by a {@link WebSocketRoute}, which checks the handshake first.
+     *
+     * @param listener What's told about the socket's messages.
+     * @return The socket, which can't send anything until it's open.
+     * @throws IllegalStateException  If the request isn't a WebSocket
+     *                                handshake read by an {@link HttpServer}
+     *                                over HTTP/1.1.
+     *
+     * @see HttpResponse#upgradeToWebSocket(WebSocketListener, boolean)
+     */
+    public WebSocket upgradeToWebSocket(WebSocketListener listener) {
+        return upgradeToWebSocket(listener, true);
+    }
+
+    /**
+     * Accept a WebSocket handshake.
+     *
+     * @param listener     What's told about the socket's messages.
+     * @param allowDeflate Whether to use permessage-deflate, if the client
+     *                     offers it.
+     * @see HttpResponse#upgradeToWebSocket(WebSocketListener)
+     */
+    public WebSocket upgradeToWebSocket(WebSocketListener listener, boolean allowDeflate) {
+        if (webSocket != null) {
+            return webSocket;
+        }
+
+        HttpConnection connection = getRequest().getHttpConnection();
+        if (connection == null) {
+            throw new IllegalStateException("Only HTTP/1.1 requests read by an HttpServer can be upgraded.");
+        }
+
+        String key = getRequest().getHeaders().get("Sec-WebSocket-Key");
+        if (key == null) {
+            throw new IllegalStateException("The request isn't a WebSocket handshake.");
+        }
+
+        String extension = null;
+        if (allowDeflate) {
+            extension = WebSocket.negotiateDeflate(
+                    getRequest().getHeaders().getAll("Sec-WebSocket-Extensions"));
+        }
+
+        setCode(101);
+        setHeader("Upgrade", "websocket");
+        setHeader("Sec-WebSocket-Accept", WebSocket.acceptKey(key));
+        if (extension != null) {
+            setHeader("Sec-WebSocket-Extensions", extension);
+        }
+
+        // the connection stops speaking HTTP
+        getRequest().setKeepAlive(false);
+
+        webSocket = new WebSocket(connection, getRequest(), listener, extension);
+        return webSocket;
+    }
+    /**
+     * Get the WebSocket the response upgrades to.
+     * @return The socket, or null if the response isn't an upgrade.
+     */
+    public WebSocket getWebSocket() {
+        return webSocket;
+    }
+
+    /**
+     * Send the response once a stage completes, instead of once the handler
+     * returns. Called by an {@link AsyncRoute}.
+     *
+     * @param stage   Completes once the response is filled in.
+     * @param timeout How long to wait for it, in milliseconds, or 0 for
+     *                ever.
+     */
+    void respondLater(CompletionStage<?> stage, long timeout) {
+        checkLive();
+        pending = new PendingResponse(getRequest(), this, stage, timeout);
+    }
+    /**
+     * Get what the response is waiting on.
+     * @return The pending response, or null if it's ready to send.
+     */
+    PendingResponse getPending() {
+        return pending;
+    }
+
+    /**
+     * Whether the connection is handed over to something else once the
+     * headers are sent.
+     */
+    private boolean isHandedOver() {
+        return eventStream != null || webSocket != null;
+    }
+
     /**
      * Writes a string and a "\n" to the DataOutputStream.
      * @param line The line to write
@@ -204,6 +629,7 @@ public class HttpResponse {
         return code;
     }
     public void setCode(int code) {
+        checkLive();
         this.code = code;
     }
 
@@ -211,11 +637,76 @@ public class HttpResponse {
     public byte[] getBody() {
         return body;
     }
+    /**
+     * Set the body to some text, sent as UTF-8.
+     */
     public void setBody(String body) {
-        this.body = body.getBytes();
+        checkLive();
+        this.body = body.getBytes(StandardCharsets.UTF_8);
+        bodyPublisher = null;
+    }
+    /**
+     * Set the body to some text, sent as UTF-8. Text that isn't a String,
+     * like a StringBuilder, is encoded without copying it to one first.
+     */
+    public void setBody(CharSequence body) {
+        checkLive();
+        this.body = TextEncoder.encode(body, request.getBufferPool());
+        bodyPublisher = null;
     }
     public void setBody(byte[] bytes) {
+        checkLive();
         body = bytes;
+        bodyPublisher = null;
+    }
+
+    /**
+     * Send the body as it's published, instead of all at once. <p>
+     *
+     * Chunks are only asked for as quickly as they're written to the client,
+     * so a large body, say one being passed along from somewhere else, is
+     * never held in memory. The publisher may take as long as the server's
+     * write timeout to come up with each chunk. <p>
+     *
+     * Unless the body's {@link #setSize size} is set, it's sent with chunked
+     * transfer encoding, or to an HTTP/1.0 client, until the connection
+     * closes. If the publisher fails partway through, the connection's
+     * closed, so the client can tell the body was cut short.
+     *
+     * @param publisher The body.
+     * @see HttpRequest#getBodyPublisher
+     */
+    public void setBodyPublisher(Flow.Publisher<ByteBuffer> publisher) {
+        checkLive();
+        bodyPublisher = publisher;
+        body = null;
+    }
+    public Flow.Publisher<ByteBuffer> getBodyPublisher() {
+        return bodyPublisher;
+    }
+
+    /**
+     * Answer with a response that's serialized ahead of time, so it's sent
+     * with a single write. This sets the code, type, and body to the static
+     * response's. Changing any of them afterwards, or adding headers, means
+     * it's sent the usual way instead.
+     *
+     * @param response The static response, or null for none.
+     * @see StaticResponse
+     */
+    public void setStaticResponse(StaticResponse response) {
+        checkLive();
+        staticResponse = response;
+        if (response != null) {
+            code = response.getCode();
+            body = response.getBody();
+            bodyPublisher = null;
+            mimeType = response.getMimeType();
+            size = -1;
+        }
+    }
+    public StaticResponse getStaticResponse() {
+        return staticResponse;
     }
 
 
@@ -223,6 +714,7 @@ public class HttpResponse {
         return mimeType;
     }
     public void setMimeType(String mimeType) {
+        checkLive();
         this.mimeType = mimeType;
     }
 
@@ -231,6 +723,7 @@ public class HttpResponse {
         return size;
     }
     public void setSize(long size) {
+        checkLive();
         if (size < 0) {
             throw new RuntimeException("Response Content-Length must be non-negative.");
         }
@@ -239,17 +732,32 @@ public class HttpResponse {
     }
 
 
-    public Map<String, String> getHeaders() {
+    public HttpHeaders getHeaders() {
+        checkLive();
         return headers;
     }
     public String getHeader(String key) {
         return headers.get(key);
     }
     public void setHeaders(Map<String, String> headers) {
-        this.headers = headers;
+        checkLive();
+        this.headers.clear();
+        this.headers.putAll(headers);
     }
+    /**
+     * Set a header, replacing any value it already has.
+     */
     public void setHeader(String key, String value) {
-        this.headers.put(key, value);
+        checkLive();
+        this.headers.set(key, value);
+    }
+    /**
+     * Add a header, keeping any values it already has, like for sending
+     * more than one {@code Set-Cookie}.
+     */
+    public void addHeader(String key, String value) {
+        checkLive();
+        this.headers.add(key, value);
     }
 
 
@@ -333,6 +841,9 @@ public class HttpResponse {
         responses.put(417, "Expectation Failed");
         responses.put(418, "I'm a teapot");
         responses.put(420, "Enhance Your Calm");
+        responses.put(426, "Upgrade Required");
+        responses.put(429, "Too Many Requests");
+        responses.put(431, "Request Header Fields Too Large");
 
         responses.put(500, "Internal Server Error");
         responses.put(501, "Not implemented");
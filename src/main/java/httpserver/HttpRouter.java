@@ -13,6 +13,7 @@ public class HttpRouter {
     private Map<String, HttpHandler> handlers;
     private HttpHandler errorHandler;
     private HttpHandler defaultHandler;
+    private int errorFormat = ErrorBodies.TEXT;
 
     public HttpRouter() {
         handlers = new HashMap<>();
@@ -73,6 +74,19 @@ public class HttpRouter {
         return errorHandler;
     }
 
+    /**
+     * Set the format of the default error handler's bodies, say to answer
+     * with JSON problem details. This replaces the error handler.
+     * @param format {@link ErrorBodies#TEXT} or {@link ErrorBodies#PROBLEM_JSON}.
+     */
+    public void setErrorFormat(int format) {
+        errorHandler = new DeathHandler(501, ErrorBodies.getInstance(format));
+        errorFormat = format;
+    }
+    public int getErrorFormat() {
+        return errorFormat;
+    }
+
     public void setDefaultHandler(HttpHandler handler) {
         defaultHandler = handler;
     }
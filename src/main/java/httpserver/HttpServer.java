@@ -5,6 +5,18 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,6 +33,9 @@ public class HttpServer extends HttpHandler implements Runnable {
 
     public static final int defaultPort = 8000;
 
+    /** How long {@link #stop()} waits for in-flight requests, in seconds */
+    public static final long defaultStopTimeout = 30;
+
     /** The server's name */
     private static String serverName = "Simple Java Server";
 
@@ -31,10 +46,49 @@ public class HttpServer extends HttpHandler implements Runnable {
     private static String serverETC = "now in Glorious Extra Color";
 
     public int port;
-    private ServerSocket socket = null;
     private HttpRouter router;
 
-    private boolean running = true;
+    // where the server listens, and the sockets it's listening on
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<ServerSocket>();
+    private SocketOptions socketOptions = new SocketOptions();
+
+    private volatile boolean running = true;
+
+    // runs the connections, created by run() unless one was set, and
+    // dropped by stop() if it was
+    private volatile ExecutorService executor;
+    private boolean ownsExecutor = false;
+
+    // every open connection, so they can be drained when stopping
+    private final Set<HttpConnection> connections = ConcurrentHashMap.newKeySet();
+
+    // how long the server waits on its clients, and the timer enforcing it
+    private Timeouts timeouts = new Timeouts();
+    private TimerWheel timerWheel;
+
+    // how large a request may be
+    private RequestLimits requestLimits = new RequestLimits();
+
+    // turns away clients making too many requests, if there is one
+    private volatile RateLimiter rateLimiter;
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+
+    // whether to keep every raw request, or just some of them
+    private volatile boolean debug = false;
+    private volatile double captureSampleRate = 0;
+
+    // whether clients may switch to HTTP/2
+    private volatile boolean http2 = false;
+
+    // how connections are encrypted, if they are
+    private TlsConfig tls;
+
+    // lends connections the buffers they read and write through
+    private BufferPool bufferPool = new BufferPool();
+
+    private int drainedRequests = 0;
+    private int killedRequests = 0;
 
     private Logger logger = Logger.getLogger("java-httpserver");
 
@@ -81,79 +135,111 @@ public class HttpServer extends HttpHandler implements Runnable {
     /**
      * Tell the server to run.<p>
      *
-     * Unless you specify the port with {@link HttpServer#setSocket()},
-     * the server will run on http://127.0.0.1:{@value #defaultPort}.
+     * The server listens on every {@link Listener} that's been added, or if
+     * none have, on the port set with {@link HttpServer#setPort}, which
+     * defaults to http://127.0.0.1:{@value #defaultPort}. The first
+     * listener's first acceptor runs on the calling thread, and this returns
+     * once the server's stopped.
      */
     public void run() {
-        try {
-            running = true;
-
-            socket = new ServerSocket();
+        running = true;
 
-            logger.info("Starting HttpServer at http://127.0.0.1:" + getPort());
-
-            socket.setReuseAddress(true);
-            socket.bind(new InetSocketAddress(getPort()));
-
-            while (running) {
-                Socket connection = null;
-                try {
-                    connection = socket.accept();
-                    HttpRequest request = new HttpRequest(getRouter(), connection);
-                    Thread t = new Thread(request);
-                    t.start();
-                    
-                    logger.info(String.format(
-                        "Http request from %s:%d", connection.getInetAddress(), connection.getPort()));
+        List<Acceptor> acceptors = new ArrayList<Acceptor>();
+        List<Thread> threads = new ArrayList<Thread>();
+        try {
+            SocketOptions options = socketOptions;
+            List<Listener> listeners = this.listeners.isEmpty()
+                ? Collections.singletonList(new Listener(getPort()))
+                : this.listeners;
 
-                } catch (SocketException e) {
-                    /*  This typically occurs when the client breaks the connection,
-                        and isn't an issue on the server side, which means we shouldn't
-                        break
-                        */
-                    logger.log(Level.WARNING, "Client broke connection early!", e);
+            for (Listener listener : listeners) {
+                bind(listener, options, acceptors);
+            }
 
-                } catch (IOException e) {
-                    /*  This typically means there's a problem in the HttpRequest
-                    */
-                    logger.log(Level.WARNING, "IOException. Probably an HttpRequest issue.", e);
-                    
-                } catch (HttpException e) {
+            if (executor == null) {
+                executor = Executors.newCachedThreadPool(new WorkerThreadFactory());
+                ownsExecutor = true;
+            }
 
-                    logger.log(Level.WARNING, "HttpException.", e);
+            // 100ms ticks are plenty for timeouts measured in seconds
+            timerWheel = new TimerWheel(100, TimeUnit.MILLISECONDS, 512);
 
-                } catch (Exception e) {
-                    /*  Some kind of unexpected exception occurred, something bad might
-                        have happened.
-                        */
-                    logger.log(Level.SEVERE, "Generic Exception!", e);
+            for (int i = 1; i < acceptors.size(); i++) {
+                Thread thread = new Thread(acceptors.get(i), "httpserver-acceptor-" + i);
+                thread.start();
+                threads.add(thread);
+            }
 
-                    /*  If you're currently developing using this, you might want to
-                        leave this break here, because this means something unexpected
-                        occured. If the break is left in, the server stops running, and
-                        you should probably look into the exception.
+            acceptors.get(0).run();
 
-                        If you're in production, you shouldn't have this break here,
-                        because you probably don't want to kill the server...
-                        */
-                    break;
-                }
+            for (Thread thread : threads) {
+                thread.join();
             }
         } catch (Exception e) {
             /*  Not sure when this occurs, but it might...
             */
             logger.log(Level.WARNING, "Something bad happened...", e);
         } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Well that's not good...", e);
+            for (ServerSocket socket : serverSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Well that's not good...", e);
+                }
             }
+            serverSockets.clear();
         }
 
         logger.info("Server shutting down.");
     }
 
+    /**
+     * Bind a listener's sockets, and create an acceptor for each of its
+     * threads. With SO_REUSEPORT every acceptor gets its own socket, and the
+     * kernel balances connections between them; without it they all accept
+     * from one.
+     */
+    private void bind(Listener listener, SocketOptions options, List<Acceptor> acceptors)
+            throws IOException {
+        TlsConfig tls = listener.getTls() != null ? listener.getTls() : this.tls;
+        InetSocketAddress address = listener.getHost() == null
+            ? new InetSocketAddress(listener.getPort())
+            : new InetSocketAddress(listener.getHost(), listener.getPort());
+
+        ServerSocket first = new ServerSocket();
+        serverSockets.add(first);
+
+        boolean reusePort = listener.getAcceptors() > 1 && listener.isReusePort()
+            && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+
+        options.apply(first);
+        if (reusePort) {
+            first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        first.bind(address, options.getBacklog());
+
+        // the rest bind to the same port, even when any free one was asked for
+        int port = first.getLocalPort();
+        listener.setLocalPort(port);
+        address = new InetSocketAddress(address.getAddress(), port);
+
+        logger.info("Starting HttpServer at " + (tls == null ? "http" : "https") + "://"
+                + (listener.getHost() == null ? "127.0.0.1" : listener.getHost()) + ":" + port);
+
+        acceptors.add(new Acceptor(first, options, tls));
+        for (int i = 1; i < listener.getAcceptors(); i++) {
+            ServerSocket socket = first;
+            if (reusePort) {
+                socket = new ServerSocket();
+                serverSockets.add(socket);
+                options.apply(socket);
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                socket.bind(address, options.getBacklog());
+            }
+            acceptors.add(new Acceptor(socket, options, tls));
+        }
+    }
+
     /**
      * Set the {@link HttpRouter} to determine the what
      * {@link HttpHandler} will be used.
@@ -206,7 +292,8 @@ public class HttpServer extends HttpHandler implements Runnable {
     }
 
     /**
-     * Set the port the server will be listening on.
+     * Set the port the server will be listening on, when no
+     * {@link Listener listeners} have been added.
      * @param port The port the server will use.
      */
     public void setPort(int port) {
@@ -220,13 +307,404 @@ public class HttpServer extends HttpHandler implements Runnable {
         return port;
     }
 
+    /**
+     * Set how long the server waits on its clients before giving up on them.
+     * Changes only apply to connections accepted afterwards.
+     *
+     * @param timeouts The server's timeouts.
+     */
+    public void setTimeouts(Timeouts timeouts) {
+        this.timeouts = timeouts;
+    }
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Set how large a request the server accepts. Changes only apply to
+     * connections accepted afterwards.
+     *
+     * @param limits The server's request limits, which also count the
+     *               requests rejected for going over them.
+     */
+    public void setRequestLimits(RequestLimits limits) {
+        this.requestLimits = limits;
+    }
+    public RequestLimits getRequestLimits() {
+        return requestLimits;
+    }
+
+    /**
+     * Limit how often clients may make requests to the server. Requests
+     * over the limit are answered with a 429 (Too Many Requests), before
+     * they're routed. Routes can have their own limits, too.
+     *
+     * @param rateLimiter The limiter, or null for no limit.
+     * @see Route#setRateLimiter
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limit how many requests the server works on at once. Requests over
+     * the limit are answered with a 503 (Service Unavailable) as soon as
+     * their headers are read, without reading their body.
+     *
+     * @param concurrencyLimiter The limiter, or null for no limit.
+     * @see Route#setPriority
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Turn debug mode on or off. In debug mode every request keeps a copy of
+     * exactly what the client sent, available through
+     * {@link HttpRequest#getHttpRequest()}.
+     *
+     * @param debug Whether the server is in debug mode.
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * Set how often requests keep a copy of exactly what the client sent,
+     * when the server isn't in debug mode. Keeping the raw request costs
+     * memory, so by default it's never kept.
+     *
+     * @param rate  The fraction of requests to keep, between 0 and 1.
+     */
+    public void setCaptureSampleRate(double rate) {
+        this.captureSampleRate = rate;
+    }
+    public double getCaptureSampleRate() {
+        return captureSampleRate;
+    }
+
+    /**
+     * Set whether clients may speak HTTP/2, either right away, or by asking
+     * to upgrade a request, or over HTTPS by picking "h2" while shaking
+     * hands. Off by default. <p>
+     *
+     * Over HTTP/2, many requests share one connection, each on its own
+     * stream, but they're handled like any other request. Event streams and
+     * WebSockets still need HTTP/1.1.
+     *
+     * @param http2 Whether to speak HTTP/2.
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * Serve HTTPS instead of HTTP. Takes effect the next time the server
+     * starts.
+     *
+     * @param tls How connections are encrypted, or null for plain HTTP.
+     */
+    public void setTls(TlsConfig tls) {
+        this.tls = tls;
+    }
+    public TlsConfig getTls() {
+        return tls;
+    }
+
+    /**
+     * Listen on another port or address, as well as any added before. Once a
+     * listener's been added, the server's own port isn't listened on unless
+     * a listener's added for it too. Takes effect the next time the server
+     * starts.
+     *
+     * @param listener Where to listen, and with how many threads.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    public List<Listener> getListeners() {
+        return Collections.unmodifiableList(listeners);
+    }
+
+    /**
+     * Set the TCP options for listening sockets and the connections they
+     * accept. Takes effect the next time the server starts.
+     *
+     * @param options The server's socket options.
+     */
+    public void setSocketOptions(SocketOptions options) {
+        this.socketOptions = options;
+    }
+    public SocketOptions getSocketOptions() {
+        return socketOptions;
+    }
+
+    /**
+     * Set the pool connections borrow their buffers from. Changes only apply
+     * to connections accepted afterwards.
+     *
+     * @param pool The server's buffer pool.
+     */
+    public void setBufferPool(BufferPool pool) {
+        this.bufferPool = pool;
+    }
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    /**
+     * Whether the server is accepting connections, or about to. This turns
+     * false as soon as the server starts stopping.
+     * @return whether the server is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Set the executor connections are run on. <p>
+     *
+     * By default the server creates its own cached thread pool when it starts,
+     * and shuts it down when it stops. An executor set here is never shut down
+     * by the server.
+     *
+     * @param executor The executor to run connections on.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        this.ownsExecutor = false;
+    }
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Gracefully stop the server, waiting up to {@value #defaultStopTimeout}
+     * seconds for in-flight requests.
+     *
+     * @see HttpServer#stop(long, TimeUnit)
+     */
     public void stop() {
+        stop(defaultStopTimeout, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Gracefully stop the server. <p>
+     *
+     * The server stops accepting new connections right away, and hangs up on
+     * connections that are idle between keep-alive requests. Requests that
+     * are already being worked on get until the timeout to finish, and their
+     * responses tell the client the connection is closing. Anything still
+     * running after the timeout is killed.
+     *
+     * @param timeout How long to wait for in-flight requests.
+     * @param unit    The unit of the timeout.
+     *
+     * @see HttpServer#getDrainedRequests
+     * @see HttpServer#getKilledRequests
+     */
+    public void stop(long timeout, TimeUnit unit) {
         running = false;
 
-        try {
-            socket.close();
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "Error closing socket.", e);
+        for (ServerSocket socket : serverSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error closing socket.", e);
+            }
+        }
+
+        int inFlight = 0;
+        for (HttpConnection connection : connections) {
+            if (!connection.closeIfIdle() && connection.isActive()) {
+                inFlight++;
+            }
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (connections) {
+            long remaining = deadline - System.nanoTime();
+            while (!connections.isEmpty() && remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(connections, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+        }
+
+        int killed = 0;
+        for (HttpConnection connection : connections) {
+            if (connection.isActive()) {
+                killed++;
+            }
+            connection.kill();
+        }
+
+        killedRequests = killed;
+        drainedRequests = Math.max(inFlight - killed, 0);
+
+        if (timerWheel != null) {
+            timerWheel.stop();
+            timerWheel = null;
+        }
+
+        if (ownsExecutor && executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        logger.info(String.format("Stopped. Drained %d in-flight requests, killed %d.",
+                    drainedRequests, killedRequests));
+    }
+
+    /**
+     * Called by a connection once it's closed, so it stops being tracked.
+     */
+    void connectionClosed(HttpConnection connection) {
+        connections.remove(connection);
+
+        synchronized (connections) {
+            connections.notifyAll();
+        }
+    }
+
+    /**
+     * Get how many in-flight requests finished while the server was last
+     * stopped.
+     */
+    public int getDrainedRequests() {
+        return drainedRequests;
+    }
+    /**
+     * Get how many in-flight requests had to be killed because they didn't
+     * finish before the last stop's timeout.
+     */
+    public int getKilledRequests() {
+        return killedRequests;
+    }
+
+
+    /**
+     * Accepts connections from one server socket, until the server stops.
+     */
+    private class Acceptor implements Runnable {
+        private final ServerSocket socket;
+        private final SocketOptions options;
+        private final TlsConfig tls;
+
+        Acceptor(ServerSocket socket, SocketOptions options, TlsConfig tls) {
+            this.socket = socket;
+            this.options = options;
+            this.tls = tls;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Socket connection = null;
+                HttpConnection httpConnection = null;
+                try {
+                    connection = socket.accept();
+                    options.apply(connection);
+                    if (tls != null) {
+                        connection = new TlsSocket(connection, tls, isHttp2(), bufferPool);
+                    }
+                    httpConnection = new HttpConnection(HttpServer.this, connection);
+
+                    // stop() drops the executor it made, so there's nothing
+                    // left to run the connection on
+                    ExecutorService executor = HttpServer.this.executor;
+                    if (executor == null) {
+                        abandon(connection, httpConnection);
+                        continue;
+                    }
+
+                    logger.info(String.format(
+                        "Http request from %s:%d", connection.getInetAddress(), connection.getPort()));
+
+                    connections.add(httpConnection);
+                    executor.execute(httpConnection);
+
+                } catch (SocketException e) {
+                    /*  Either the client broke the connection before we got to
+                        it, which isn't an issue on the server side, or we're
+                        stopping and the server socket was closed out from under
+                        accept().
+                        */
+                    if (running) {
+                        logger.log(Level.WARNING, "Client broke connection early!", e);
+                    }
+                    abandon(connection, httpConnection);
+
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "IOException while accepting a connection.", e);
+                    abandon(connection, httpConnection);
+
+                } catch (Exception e) {
+                    /*  Some kind of unexpected exception occurred, like the
+                        executor turning the connection away. It's logged
+                        loudly, but the server keeps accepting connections,
+                        because one bad connection shouldn't take the whole
+                        server down with it. Use stop() to stop the server.
+                        */
+                    logger.log(Level.SEVERE, "Generic Exception!", e);
+                    abandon(connection, httpConnection);
+                }
+            }
+        }
+
+        /**
+         * Hang up on a connection that was accepted, but never got to run,
+         * so stop() doesn't wait on it.
+         *
+         * @param connection      The socket, or null if accept() failed.
+         * @param httpConnection  The connection, or null if it wasn't made.
+         */
+        private void abandon(Socket connection, HttpConnection httpConnection) {
+            if (httpConnection != null) {
+                connectionClosed(httpConnection);
+            }
+
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                    // it's gone either way
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Names the server's worker threads, so they're easy to pick out of a
+     * thread dump.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "httpserver-worker-" + count.incrementAndGet());
         }
     }
 }
@@ -0,0 +1,108 @@
+package httpserver;
+
+/**
+ * A Listener is an address an {@link HttpServer} accepts connections on. <p>
+ *
+ * A server can have several, on different ports or addresses, all sharing
+ * the same router. Each listener has one or more acceptor threads. On a busy
+ * many-core host a single thread calling {@code accept()} falls behind in a
+ * connection storm, so a listener can have several. Where the platform
+ * supports {@code SO_REUSEPORT}, each acceptor binds its own socket to the
+ * same address, and the kernel spreads new connections between them.
+ * Elsewhere the acceptors share one socket.
+ *
+ * @see HttpServer#addListener
+ */
+public class Listener {
+    private final String host;
+    private final int port;
+
+    private int acceptors = 1;
+    private boolean reusePort = true;
+    private TlsConfig tls;
+
+    // the port actually bound, once the server's started
+    private volatile int localPort = -1;
+
+
+    /**
+     * Listen on every address.
+     * @param port The port, or 0 for any free one.
+     */
+    public Listener(int port) {
+        this(null, port);
+    }
+
+    /**
+     * Listen on one address.
+     * @param host The address or host name, or null for every address.
+     * @param port The port, or 0 for any free one.
+     */
+    public Listener(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Set how many threads accept connections.
+     * @param acceptors The number of threads, at least 1.
+     */
+    public void setAcceptors(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("A listener needs at least one acceptor.");
+        }
+
+        this.acceptors = acceptors;
+    }
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Set whether each acceptor gets its own socket, bound with
+     * {@code SO_REUSEPORT}, when there's more than one and the platform
+     * supports it. On by default.
+     * @param reusePort Whether to use {@code SO_REUSEPORT}.
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Serve HTTPS on this listener.
+     * @param tls How connections are encrypted, or null to use the server's
+     *            setting.
+     * @see HttpServer#setTls
+     */
+    public void setTls(TlsConfig tls) {
+        this.tls = tls;
+    }
+    public TlsConfig getTls() {
+        return tls;
+    }
+
+    /**
+     * Get the port the listener's bound to, which is only known for port 0
+     * once the server's started.
+     * @return The port, or -1 if the listener isn't bound.
+     */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    void setLocalPort(int localPort) {
+        this.localPort = localPort;
+    }
+}
@@ -7,16 +7,18 @@ package httpserver;
  * A MessageHandler solves the problem of sending a simple message back to the
  * client regardless of the request, without requiring developers to create a
  * new HttpHandler.
+ *
+ * The response never changes, so it's serialized once, as a
+ * {@link StaticResponse}, and every request gets the same bytes.
  */
 public class MessageHandler extends HttpHandler {
 
-  private String body;
-  private int code;
-  
+  private final StaticResponse response;
+
   /**
    * Create a message handler
    *
-   * All it does is call <code>message(code, message)</code>.
+   * All it does is send what <code>message(code, message)</code> would.
    *
    * @param request   The associated HttpRequest. Required by all Handlers.
    * @param code      An HTTP status code to be used with the attached message.
@@ -26,8 +28,7 @@ public class MessageHandler extends HttpHandler {
    * @see HttpRequest
    */
   public MessageHandler(int code, String message) throws HttpException {
-    body = message;
-    this.code = code;
+    response = new StaticResponse(code, "text/plain", message);
   }
 
   /**
@@ -46,7 +47,7 @@ public class MessageHandler extends HttpHandler {
   }
   
   public void handle(HttpRequest req, HttpResponse resp) {
-    resp.message(code, body);
+    resp.setStaticResponse(response);
   }
 
 }
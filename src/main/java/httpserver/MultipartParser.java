@@ -0,0 +1,730 @@
+package httpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A MultipartParser reads a {@code multipart/form-data} body one part at a
+ * time, straight off of the connection. <p>
+ *
+ * The body is read through a fixed-size buffer, so a part's content can be
+ * far larger than the heap. Each part can either be read as a stream while
+ * it's the current part, saved straight to a file, or stored, which keeps
+ * small parts in memory and spills larger ones to temp files:
+ *
+ * <pre>
+ * MultipartParser parser = request.getMultipartParser();
+ * for (MultipartParser.Part part; (part = parser.nextPart()) != null; ) {
+ *     if (part.getFilename() != null) {
+ *         part.saveTo(uploads.resolve(id));
+ *     } else {
+ *         fields.put(part.getName(), part.getString());
+ *     }
+ * }
+ * </pre>
+ *
+ * Moving on to the next part skips whatever's left of the current one.
+ * Temp files are deleted when the parser is closed, which the server does
+ * once the response has been sent. <p>
+ *
+ * A part over the part size limit, or a body over the total size limit,
+ * throws a {@link MultipartException} with a 413 status. A malformed body
+ * throws one with a 400.
+ *
+ * @see HttpRequest#getMultipartParser
+ * @see <a href="https://tools.ietf.org/html/rfc7578">RFC 7578</a>
+ */
+public class MultipartParser implements Closeable {
+    /** Parts larger than this are spilled to a temp file when stored. */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_PART_HEADERS = 32;
+
+    private final InputStream in;
+
+    // "\r\n--" followed by the boundary
+    private final byte[] delimiter;
+
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+
+    // bytes read from in, for the total size limit
+    private long total = 0;
+
+    private long maxPartSize = -1;
+    private long maxTotalSize = -1;
+    private int memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+    private Path tempDirectory;
+
+    // whether the buffer is in the middle of a part's content (or the
+    // preamble before the first part)
+    private boolean inContent = true;
+    private boolean done = false;
+
+    private Part current;
+    private final List<Part> stored = new ArrayList<>();
+
+    private Logger logger = Logger.getLogger("java-httpserver");
+
+
+    /**
+     * Create a parser reading a body.
+     *
+     * @param in        The body, which isn't closed by the parser.
+     * @param boundary  The boundary from the body's Content-Type.
+     *
+     * @see MultipartParser#getBoundary
+     */
+    public MultipartParser(InputStream in, String boundary) {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+            throw new IllegalArgumentException("Invalid multipart boundary.");
+        }
+
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 2)];
+
+        // The first boundary doesn't need a line break in front of it.
+        // Pretending there is one means every boundary looks the same.
+        buffer[limit++] = '\r';
+        buffer[limit++] = '\n';
+    }
+
+    /**
+     * Get the boundary out of a {@code multipart/form-data} Content-Type.
+     * @param contentType The Content-Type header's value.
+     * @return The boundary, or null if it's not a multipart Content-Type, or
+     *         doesn't have a boundary.
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.regionMatches(true, 0, "multipart/", 0, 10)) {
+            return null;
+        }
+
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (!parameter.regionMatches(true, 0, "boundary=", 0, 9)) {
+                continue;
+            }
+
+            String boundary = parameter.substring(9).trim();
+            if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+
+            return boundary.isEmpty() ? null : boundary;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Move on to the next part, skipping whatever's left of the current one.
+     * @return The next part, or null after the last one.
+     * @throws MultipartException  When the body is malformed or too large.
+     */
+    public Part nextPart() throws IOException {
+        if (done) {
+            return null;
+        }
+
+        if (current != null) {
+            current.streaming = false;
+            current = null;
+        }
+
+        while (inContent) {
+            skipContent();
+        }
+
+        // The boundary is either followed by "--", ending the body, or the
+        // end of its line and the next part's headers.
+        ensure(2);
+        if (buffer[position] == '-' && buffer[position + 1] == '-') {
+            done = true;
+            return null;
+        }
+        readLine();
+
+        HttpHeaders headers = new HttpHeaders();
+        for (int count = 0; readHeader(headers); count++) {
+            if (count == MAX_PART_HEADERS) {
+                throw new MultipartException(400, "Too many headers in a multipart part.");
+            }
+        }
+
+        inContent = true;
+        current = new Part(headers);
+        return current;
+    }
+
+    /**
+     * Store every part that's left, in memory or in temp files.
+     * @return The parts, in order.
+     * @throws MultipartException  When the body is malformed or too large.
+     */
+    public List<Part> readAll() throws IOException {
+        List<Part> parts = new ArrayList<>();
+        for (Part part = nextPart(); part != null; part = nextPart()) {
+            part.store();
+            parts.add(part);
+        }
+
+        return parts;
+    }
+
+    /**
+     * Delete any temp files the parts were spilled to. Parts that were moved
+     * with {@link Part#saveTo} are left alone.
+     */
+    @Override
+    public void close() {
+        done = true;
+        current = null;
+
+        for (Part part : stored) {
+            part.delete();
+        }
+        stored.clear();
+    }
+
+
+    /**
+     * Set the largest a single part's content may be.
+     * @param bytes The maximum size, or -1 for no limit.
+     */
+    public void setMaxPartSize(long bytes) {
+        maxPartSize = bytes;
+    }
+    public long getMaxPartSize() {
+        return maxPartSize;
+    }
+
+    /**
+     * Set the largest the whole body may be.
+     * @param bytes The maximum size, or -1 for no limit.
+     */
+    public void setMaxTotalSize(long bytes) {
+        maxTotalSize = bytes;
+    }
+    public long getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    /**
+     * Set how large a stored part can be before it's spilled to a temp file.
+     * @param bytes The most bytes to keep in memory per part.
+     */
+    public void setMemoryThreshold(int bytes) {
+        memoryThreshold = bytes;
+    }
+    public int getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    /**
+     * Set where temp files are put.
+     * @param directory The directory, or null for the system's default.
+     */
+    public void setTempDirectory(Path directory) {
+        tempDirectory = directory;
+    }
+    public Path getTempDirectory() {
+        return tempDirectory;
+    }
+
+
+    /*************
+      INTERNALS
+     *************/
+
+    /**
+     * Read part of the current part's content.
+     * @return The number of bytes read, or -1 once the part's boundary is
+     *         reached.
+     */
+    private int readContent(byte[] b, int off, int len) throws IOException {
+        int available = contentAvailable();
+        if (available == -1) {
+            return -1;
+        }
+
+        int count = Math.min(len, available);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Skip over the content in the buffer, up to the boundary.
+     */
+    private void skipContent() throws IOException {
+        int available = contentAvailable();
+        if (available != -1) {
+            position += available;
+        }
+    }
+
+    /**
+     * Figure out how much of the buffer is definitely content, filling it
+     * if need be. Once the boundary is reached it's consumed, and the part's
+     * content is over.
+     *
+     * @return How many bytes from position on are content, or -1 at the
+     *         boundary.
+     */
+    private int contentAvailable() throws IOException {
+        if (!inContent) {
+            return -1;
+        }
+
+        while (true) {
+            int found = findDelimiter();
+
+            // Without a whole boundary in the buffer, the end of the buffer
+            // could still be the start of one.
+            int end = found >= 0 ? found : limit - delimiter.length + 1;
+            if (end > position) {
+                return end - position;
+            }
+
+            if (found == position) {
+                position += delimiter.length;
+                inContent = false;
+                return -1;
+            }
+
+            if (!fill()) {
+                throw new MultipartException(400, "Multipart body ended before its closing boundary.");
+            }
+        }
+    }
+
+    private int findDelimiter() {
+        byte first = delimiter[0];
+
+        search:
+        for (int i = position; i <= limit - delimiter.length; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue search;
+                }
+            }
+
+            return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Make sure at least count bytes are buffered.
+     */
+    private void ensure(int count) throws IOException {
+        while (limit - position < count) {
+            if (!fill()) {
+                throw new MultipartException(400, "Multipart body ended before its closing boundary.");
+            }
+        }
+    }
+
+    /**
+     * Move what's left in the buffer to the front, and read more after it.
+     * @return false at the end of the body.
+     */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+
+        if (limit == buffer.length) {
+            return false;
+        }
+
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read <= 0) {
+            return false;
+        }
+
+        limit += read;
+        total += read;
+        if (maxTotalSize >= 0 && total > maxTotalSize) {
+            throw new MultipartException(413, "Multipart body is larger than " + maxTotalSize + " bytes.");
+        }
+
+        return true;
+    }
+
+    /**
+     * Find the end of the next line.
+     * @return The index of the line's "\n".
+     */
+    private int findLine() throws IOException {
+        int searched = position;
+        while (true) {
+            for (int i = searched; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+
+            if (position == 0 && limit == buffer.length) {
+                throw new MultipartException(400, "Multipart header line is too long.");
+            }
+
+            searched = limit - position;
+            if (!fill()) {
+                throw new MultipartException(400, "Multipart body ended before its closing boundary.");
+            }
+        }
+    }
+
+    private void readLine() throws IOException {
+        position = findLine() + 1;
+    }
+
+    /**
+     * Read one of a part's headers.
+     * @return false at the blank line ending the headers.
+     */
+    private boolean readHeader(HttpHeaders headers) throws IOException {
+        int newline = findLine();
+        int start = position;
+        int end = newline;
+        position = newline + 1;
+
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+
+        if (end == start) {
+            return false;
+        }
+
+        int colon = start;
+        while (colon < end && buffer[colon] != ':') {
+            colon++;
+        }
+
+        if (colon == end || colon == start) {
+            throw new MultipartException(400, "Malformed multipart header.");
+        }
+
+        int valueStart = colon + 1;
+        while (valueStart < end && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+            valueStart++;
+        }
+
+        headers.add(buffer, start, colon - start, valueStart, end - valueStart);
+        return true;
+    }
+
+    /**
+     * Get a parameter, like name or filename, out of a header value like
+     * {@code form-data; name="field"; filename="a.txt"}.
+     */
+    private static String getHeaderParameter(String header, String name) {
+        if (header == null) {
+            return null;
+        }
+
+        int i = 0;
+        while (i < header.length()) {
+            int semicolon = header.indexOf(';', i);
+            if (semicolon == -1) {
+                return null;
+            }
+
+            i = semicolon + 1;
+            while (i < header.length() && header.charAt(i) == ' ') {
+                i++;
+            }
+
+            if (!header.regionMatches(true, i, name + "=", 0, name.length() + 1)) {
+                continue;
+            }
+
+            i += name.length() + 1;
+            if (i < header.length() && header.charAt(i) == '"') {
+                // quoted, and may contain semicolons
+                StringBuilder value = new StringBuilder();
+                for (i++; i < header.length() && header.charAt(i) != '"'; i++) {
+                    if (header.charAt(i) == '\\' && i + 1 < header.length()) {
+                        i++;
+                    }
+                    value.append(header.charAt(i));
+                }
+                return value.toString();
+            }
+
+            int end = header.indexOf(';', i);
+            return header.substring(i, end == -1 ? header.length() : end).trim();
+        }
+
+        return null;
+    }
+
+
+    /**
+     * One part of a multipart body.
+     */
+    public class Part {
+        private final HttpHeaders headers;
+        private final String name;
+        private final String filename;
+
+        // whether the part's content is still being read off the body
+        private boolean streaming = true;
+        private long read = 0;
+
+        // where the content went, once it's stored
+        private byte[] bytes;
+        private Path file;
+
+        private Part(HttpHeaders headers) {
+            String disposition = headers.get("Content-Disposition");
+
+            this.headers = headers;
+            this.name = getHeaderParameter(disposition, "name");
+            this.filename = getHeaderParameter(disposition, "filename");
+        }
+
+        /**
+         * Get the part's content. While the part is current, this reads
+         * straight off of the body, and can only be done once.
+         * @return A stream of the part's content.
+         * @throws IllegalStateException  If the part was skipped without
+         *                                being stored.
+         */
+        public InputStream getInputStream() throws IOException {
+            if (bytes != null) {
+                return new ByteArrayInputStream(bytes);
+            } else if (file != null) {
+                return Files.newInputStream(file);
+            } else if (streaming) {
+                return new PartInputStream();
+            }
+
+            throw new IllegalStateException("Part " + name + " was skipped, and can't be read.");
+        }
+
+        /**
+         * Read the rest of the part, keeping it in memory if it's under
+         * the parser's memory threshold, or a temp file if it isn't.
+         */
+        public void store() throws IOException {
+            if (!streaming) {
+                return;
+            }
+
+            InputStream content = new PartInputStream();
+            ByteArrayOutputStream memory = new ByteArrayOutputStream();
+            byte[] chunk = new byte[BUFFER_SIZE];
+
+            for (int count = content.read(chunk); count != -1; count = content.read(chunk)) {
+                memory.write(chunk, 0, count);
+
+                if (memory.size() > memoryThreshold) {
+                    file = Files.createTempFile(tempDirectory == null ? defaultTempDirectory() : tempDirectory,
+                            "httpserver-part-", ".tmp");
+                    stored.add(this);
+
+                    try (OutputStream out = Files.newOutputStream(file)) {
+                        memory.writeTo(out);
+                        memory = null;
+                        copy(content, out, chunk);
+                    }
+                    streaming = false;
+                    return;
+                }
+            }
+
+            bytes = memory.toByteArray();
+            streaming = false;
+        }
+
+        /**
+         * Save the part's content to a file. While the part is current,
+         * the content goes straight from the body to the file.
+         * @param target Where to save the content, replacing anything there.
+         */
+        public void saveTo(Path target) throws IOException {
+            if (file != null) {
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                stored.remove(this);
+                file = target;
+                return;
+            }
+
+            boolean fromBody = bytes == null;
+            try (InputStream content = getInputStream(); OutputStream out = Files.newOutputStream(target)) {
+                copy(content, out, new byte[BUFFER_SIZE]);
+            }
+
+            if (fromBody) {
+                streaming = false;
+                file = target;
+            }
+        }
+
+        /**
+         * Get all of the part's content, storing it first if need be.
+         */
+        public byte[] getBytes() throws IOException {
+            store();
+            return bytes != null ? bytes : Files.readAllBytes(file);
+        }
+
+        /**
+         * Get all of the part's content as UTF-8 text, like for a field.
+         */
+        public String getString() throws IOException {
+            return new String(getBytes(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Delete the part's temp file, if it has one.
+         */
+        public void delete() {
+            if (file == null) {
+                return;
+            }
+
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Couldn't delete " + file, e);
+            }
+            file = null;
+        }
+
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+        /**
+         * Get the form field's name, from the Content-Disposition.
+         */
+        public String getName() {
+            return name;
+        }
+        /**
+         * Get the uploaded file's name, from the Content-Disposition.
+         * @return The filename, or null if the part isn't a file.
+         */
+        public String getFilename() {
+            return filename;
+        }
+        public String getContentType() {
+            return headers.get("Content-Type");
+        }
+        /**
+         * Get the temp file the part was stored in, or saved to.
+         * @return The file, or null if the part isn't in one.
+         */
+        public Path getFile() {
+            return file;
+        }
+        /**
+         * Get how large the part is.
+         * @return The size, or -1 if it hasn't all been read yet.
+         */
+        public long getSize() {
+            if (bytes != null) {
+                return bytes.length;
+            }
+
+            return streaming ? -1 : read;
+        }
+
+        private void copy(InputStream content, OutputStream out, byte[] chunk) throws IOException {
+            for (int count = content.read(chunk); count != -1; count = content.read(chunk)) {
+                out.write(chunk, 0, count);
+            }
+        }
+
+        /**
+         * Reads the part's content off of the body, up to its boundary.
+         */
+        private class PartInputStream extends InputStream {
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (current != Part.this) {
+                    return -1;
+                }
+
+                if (len == 0) {
+                    return 0;
+                }
+
+                int count = readContent(b, off, len);
+                if (count == -1) {
+                    return -1;
+                }
+
+                read += count;
+                if (maxPartSize >= 0 && read > maxPartSize) {
+                    throw new MultipartException(413, "Part " + name + " is larger than "
+                            + maxPartSize + " bytes.");
+                }
+
+                return count;
+            }
+        }
+    }
+
+    private static Path defaultTempDirectory() {
+        return Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+
+    /**
+     * Thrown when a multipart body can't be parsed, or is too large.
+     */
+    public static class MultipartException extends IOException {
+        private static final long serialVersionUID = 3475011874632218151L;
+
+        private final int code;
+
+        public MultipartException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+        /**
+         * Get the status code the client should be sent: 413 if the body or
+         * a part was too large, or 400 if it was malformed.
+         */
+        public int getCode() {
+            return code;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package httpserver;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A PendingResponse is a response waiting on an {@link AsyncRoute}'s stage. <p>
+ *
+ * Whatever answers the request (a connection, or an HTTP/2 stream) lets go
+ * of its thread, and gets a continuation run once the response is ready to
+ * send. That happens exactly once, whichever comes first: the stage
+ * completing, the timeout passing, or the request being cancelled because
+ * the client went away.
+ */
+class PendingResponse {
+    private final HttpRequest request;
+    private final HttpResponse response;
+    private final CompletionStage<?> stage;
+    private final long timeout;
+
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile boolean cancelled = false;
+    private volatile HttpResponse result;
+
+    private volatile TimerWheel.Timeout deadline;
+    private volatile Runnable continuation;
+    private final AtomicBoolean resumed = new AtomicBoolean();
+
+    private Logger logger = Logger.getLogger("java-httpserver");
+
+
+    /**
+     * @param timeout How long the stage has, in milliseconds, or 0 for ever.
+     */
+    PendingResponse(HttpRequest request, HttpResponse response, CompletionStage<?> stage, long timeout) {
+        this.request = request;
+        this.response = response;
+        this.stage = stage;
+        this.timeout = timeout;
+    }
+
+
+    /**
+     * Start waiting on the stage.
+     *
+     * @param timer         Enforces the timeout, or null for no timeout.
+     * @param continuation  Run once the response is ready, or the request's
+     *                      cancelled. It may run right away, on this thread,
+     *                      if the stage is already done.
+     */
+    void start(TimerWheel timer, Runnable continuation) {
+        this.continuation = continuation;
+
+        // cancelled before it even started
+        if (done.get()) {
+            resume();
+            return;
+        }
+
+        if (timer != null && timeout > 0) {
+            deadline = timer.schedule(new Runnable() {
+                @Override public void run() {
+                    timedOut();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        stage.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override public void accept(Object value, Throwable error) {
+                completed(error);
+            }
+        });
+    }
+
+    /**
+     * Wait on the stage, on this thread. Used when there's no connection to
+     * hand the request back to.
+     *
+     * @return The response to send.
+     */
+    HttpResponse await() {
+        final CountDownLatch ready = new CountDownLatch(1);
+        start(null, new Runnable() {
+            @Override public void run() {
+                ready.countDown();
+            }
+        });
+
+        try {
+            if (timeout > 0) {
+                if (!ready.await(timeout, TimeUnit.MILLISECONDS)) {
+                    timedOut();
+                }
+            } else {
+                ready.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+        }
+
+        return result != null ? result : response;
+    }
+
+    /**
+     * Give up on the response, because the client went away or the server's
+     * stopping. The stage is cancelled, and the continuation still runs.
+     */
+    void cancel() {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+
+        cancelled = true;
+        clearDeadline();
+        cancelStage();
+        response.retire();
+        resume();
+    }
+
+    private void completed(Throwable error) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+
+        clearDeadline();
+
+        if (error != null) {
+            fail(error);
+        }
+
+        result = response;
+        resume();
+    }
+
+    private void timedOut() {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+
+        cancelStage();
+
+        // the stage may still be filling in its response, so it's retired,
+        // and a new one is sent instead
+        response.retire();
+        try {
+            HttpResponse timedOut = new HttpResponse(request);
+            timedOut.message(504, "The request took too long to answer");
+            result = timedOut;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Couldn't answer a request that timed out.", e);
+            cancelled = true;
+        }
+
+        resume();
+    }
+
+    /**
+     * Run the continuation, once it's been given one, and only once.
+     */
+    private void resume() {
+        Runnable next = continuation;
+        if (next != null && resumed.compareAndSet(false, true)) {
+            next.run();
+        }
+    }
+
+    /**
+     * Answer a failed stage through {@link HttpResponse#error}, or with just
+     * the code and message of an {@link HttpException}.
+     */
+    private void fail(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+
+        if (error instanceof HttpException) {
+            response.message(((HttpException) error).getCode(), error.getMessage());
+        } else if (error instanceof CancellationException) {
+            response.message(503, "The request was cancelled");
+        } else {
+            response.error(500, error.getMessage(), error);
+        }
+    }
+
+    private void cancelStage() {
+        try {
+            stage.toCompletableFuture().cancel(true);
+        } catch (UnsupportedOperationException e) {
+            // a stage that can't be cancelled just finishes on its own
+        }
+    }
+
+    private void clearDeadline() {
+        TimerWheel.Timeout scheduled = deadline;
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+    }
+
+
+    HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Get the response to send, once the continuation's run.
+     * @return The response, or null if the request was cancelled.
+     */
+    HttpResponse getResult() {
+        return cancelled ? null : result;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+}
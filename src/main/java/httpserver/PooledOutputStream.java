@@ -0,0 +1,91 @@
+package httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A PooledOutputStream buffers what's written to a connection, like a
+ * BufferedOutputStream, in a buffer borrowed from a {@link BufferPool}. <p>
+ *
+ * The buffer's only borrowed once something's written, and it's given back
+ * every time the stream's flushed, so a connection waiting for its next
+ * request isn't holding on to one.
+ */
+class PooledOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final BufferPool pool;
+    private final int size;
+
+    private byte[] buffer;
+    private int count = 0;
+
+
+    PooledOutputStream(OutputStream out, BufferPool pool) {
+        this(out, pool, 8192);
+    }
+
+    PooledOutputStream(OutputStream out, BufferPool pool, int size) {
+        this.out = out;
+        this.pool = pool;
+        this.size = size;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffer == null) {
+            buffer = pool.acquire(size);
+        } else if (count == buffer.length) {
+            writeBuffer();
+        }
+
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // too large to be worth copying, send what's buffered and then this
+        if (len >= size) {
+            writeBuffer();
+            out.write(b, off, len);
+            return;
+        }
+
+        if (buffer == null) {
+            buffer = pool.acquire(size);
+        } else if (len > buffer.length - count) {
+            writeBuffer();
+        }
+
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        try {
+            writeBuffer();
+            out.flush();
+        } finally {
+            pool.release(buffer);
+            buffer = null;
+            count = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (count > 0) {
+            int length = count;
+            count = 0;
+            out.write(buffer, 0, length);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package httpserver;
+
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A RateLimiter turns away clients making too many requests, with a 429
+ * (Too Many Requests) and a Retry-After header saying when to try again. <p>
+ *
+ * Each client gets a token bucket, which holds up to a burst of requests,
+ * and refills at a steady rate. Clients are told apart by their address, by
+ * a header, like an API key, or not at all, so everyone shares one bucket:
+ *
+ * <pre>
+ * RateLimiter limiter = new RateLimiter(10, 20);  // 10 a second, bursts of 20
+ * limiter.setKeyHeader("X-Api-Key");
+ * expensiveRoute.setRateLimiter(limiter);
+ * </pre>
+ *
+ * A limiter can be set on a {@link Route#setRateLimiter route}, to protect
+ * just that route, or on the {@link HttpServer#setRateLimiter server}, to
+ * cover every request. <p>
+ *
+ * Buckets don't lock: each one is a single number, when it'll next be full,
+ * updated with compare-and-set. A full bucket is the same as no bucket, so
+ * they're thrown away once they refill, when there are too many to keep.
+ * If there are still too many, clients without a bucket share one, so a
+ * flood of new clients is limited too, rather than growing the table.
+ */
+public class RateLimiter {
+    public static final String TOO_MANY_REQUESTS = "Too many requests, slow down";
+
+    // how often a full table is swept for buckets that have refilled
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final long interval;
+    private final long tolerance;
+
+    private String keyHeader;
+    private boolean shared = false;
+    private int maxClients = 100000;
+
+    private final ConcurrentHashMap<Object, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Bucket sharedBucket = new Bucket();
+    private final Bucket overflow = new Bucket();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong rejected = new AtomicLong();
+
+
+    /**
+     * Create a limiter.
+     *
+     * @param perSecond How many requests each client may make a second, on
+     *                  average.
+     * @param burst     How many requests a client may make at once, after
+     *                  being quiet for a while.
+     */
+    public RateLimiter(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("The rate and burst must be positive.");
+        }
+
+        interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        tolerance = interval * burst;
+    }
+
+
+    /**
+     * Check a request against its client's bucket, answering it with a 429
+     * if the bucket's empty.
+     *
+     * @param request   The request.
+     * @param response  Its response, filled in if the request's turned away.
+     * @return whether the request may go ahead.
+     */
+    public boolean allow(HttpRequest request, HttpResponse response) {
+        long now = System.nanoTime();
+        long wait = bucketFor(request, now).take(now);
+        if (wait == 0) {
+            return true;
+        }
+
+        rejected.incrementAndGet();
+
+        long seconds = Math.max(1, (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        response.setHeader("Retry-After", Long.toString(seconds));
+        response.message(429, TOO_MANY_REQUESTS);
+        return false;
+    }
+
+    private Bucket bucketFor(HttpRequest request, long now) {
+        if (shared) {
+            return sharedBucket;
+        }
+
+        Object key = keyFor(request);
+        if (key == null) {
+            return overflow;
+        }
+
+        Bucket bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        if (buckets.size() >= maxClients && !sweep(now)) {
+            return overflow;
+        }
+
+        bucket = new Bucket();
+        Bucket existing = buckets.putIfAbsent(key, bucket);
+        return existing != null ? existing : bucket;
+    }
+
+    /**
+     * Get what tells the request's client apart: the header, if there is
+     * one, or the client's address.
+     */
+    private Object keyFor(HttpRequest request) {
+        if (keyHeader != null) {
+            String value = request.getHeaders().get(keyHeader);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        Socket socket = request.getConnection();
+        return socket != null ? socket.getInetAddress() : null;
+    }
+
+    /**
+     * Throw away the buckets that have refilled, at most once a second.
+     *
+     * @return whether there's room for another bucket.
+     */
+    private boolean sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL && lastSweep.compareAndSet(last, now)) {
+            Iterator<Bucket> it = buckets.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().isFull(now)) {
+                    it.remove();
+                }
+            }
+        }
+
+        return buckets.size() < maxClients;
+    }
+
+
+    /**
+     * Tell clients apart by a header, instead of their address. Clients that
+     * don't send it are still told apart by their address. A client can
+     * send whatever it likes, so the header should be one that's checked,
+     * like an API key.
+     * @param name The header's name, or null to use the address.
+     */
+    public void setKeyHeader(String name) {
+        this.keyHeader = name;
+    }
+    public String getKeyHeader() {
+        return keyHeader;
+    }
+
+    /**
+     * Put every client in the same bucket, limiting the total rate.
+     * @param shared Whether to share one bucket.
+     */
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Set how many clients' buckets are kept at once. Past that, clients
+     * without a bucket share one.
+     * @param clients The most buckets.
+     */
+    public void setMaxClients(int clients) {
+        this.maxClients = clients;
+    }
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    /**
+     * Get how many clients have a bucket.
+     */
+    public int getClientCount() {
+        return buckets.size();
+    }
+
+    /**
+     * Get how many requests have been turned away.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+
+    /**
+     * A token bucket, kept as the time it's next full, the way the generic
+     * cell rate algorithm does. Every request pushes that back by one
+     * interval, and a request that would push it more than a burst into the
+     * future is turned away.
+     */
+    private class Bucket {
+        // when the bucket's next full, from nanoTime
+        private final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+
+        /**
+         * Take a token.
+         * @return 0 if there was one, otherwise how long until there is, in
+         *         nanoseconds.
+         */
+        long take(long now) {
+            while (true) {
+                long current = full.get();
+                long next = (current == Long.MIN_VALUE || current - now < 0 ? now : current) + interval;
+
+                long over = next - now - tolerance;
+                if (over > 0) {
+                    return over;
+                }
+
+                if (full.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        boolean isFull(long now) {
+            long current = full.get();
+            return current == Long.MIN_VALUE || current - now <= 0;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package httpserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RequestLimits caps how large a request an {@link HttpServer} accepts, and
+ * counts the requests turned away for being too large. <p>
+ *
+ * The limits are checked while the request is being read, so a request
+ * that's over a limit is rejected before the offending bytes are buffered:
+ * <ul>
+ *   <li>A request line that's too long gets a 414 (Request-URI Too Long).</li>
+ *   <li>Too many headers, or headers that are too large, get a 431 (Request
+ *   Header Fields Too Large).</li>
+ *   <li>A Content-Length over the limit gets a 413 (Request Entity Too
+ *   Large), without any of the body being read.</li>
+ * </ul>
+ *
+ * Multipart bodies, and optionally any large enough body, are streamed to
+ * their handler rather than read into memory, so they have their own,
+ * larger, limit.
+ *
+ * @see HttpServer#setRequestLimits
+ */
+public class RequestLimits {
+    private int maxRequestLineLength = 8192;
+    private int maxHeaderCount = 100;
+    private int maxHeaderSize = 16384;
+    private long maxContentLength = 10 * 1024 * 1024;
+    private long maxUploadSize = 1024L * 1024 * 1024;
+    private long maxPartSize = -1;
+    private long streamedBodySize = -1;
+    private int maxConcurrentStreams = 100;
+
+    private final AtomicLong rejectedRequestLines = new AtomicLong();
+    private final AtomicLong rejectedHeaders = new AtomicLong();
+    private final AtomicLong rejectedBodies = new AtomicLong();
+
+
+    /**
+     * Set the longest request line (method, path, and protocol) allowed.
+     * @param bytes The maximum length, in bytes.
+     */
+    public void setMaxRequestLineLength(int bytes) {
+        maxRequestLineLength = bytes;
+    }
+    public int getMaxRequestLineLength() {
+        return maxRequestLineLength;
+    }
+
+    /**
+     * Set the most headers a request may have.
+     * @param count The maximum number of header lines.
+     */
+    public void setMaxHeaderCount(int count) {
+        maxHeaderCount = count;
+    }
+    public int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    /**
+     * Set how large all of a request's headers may be, put together.
+     * @param bytes The maximum size, in bytes.
+     */
+    public void setMaxHeaderSize(int bytes) {
+        maxHeaderSize = bytes;
+    }
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    /**
+     * Set the largest Content-Length allowed.
+     * @param bytes The maximum body size, in bytes.
+     */
+    public void setMaxContentLength(long bytes) {
+        maxContentLength = bytes;
+    }
+    public long getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    /**
+     * Set the largest Content-Length allowed for a {@code multipart/form-data}
+     * body, which is streamed instead of read into memory.
+     * @param bytes The maximum body size, in bytes.
+     */
+    public void setMaxUploadSize(long bytes) {
+        maxUploadSize = bytes;
+    }
+    public long getMaxUploadSize() {
+        return maxUploadSize;
+    }
+
+    /**
+     * Set the largest a single part of a multipart body may be.
+     * @param bytes The maximum part size, in bytes, or -1 for no limit
+     *              beyond the upload size.
+     * @see MultipartParser#setMaxPartSize
+     */
+    public void setMaxPartSize(long bytes) {
+        maxPartSize = bytes;
+    }
+    public long getMaxPartSize() {
+        return maxPartSize;
+    }
+
+    /**
+     * Set how large a body has to be before it's streamed to its handler,
+     * like a multipart body, instead of read into memory before the handler
+     * runs. Streamed bodies are limited by the upload size. <p>
+     *
+     * A streamed body can still be read with
+     * {@link HttpRequest#getRequestBody}, as long as it's within the maximum
+     * Content-Length.
+     *
+     * @param bytes The size, in bytes, or -1 to only stream multipart bodies.
+     * @see HttpRequest#getBodyPublisher
+     */
+    public void setStreamedBodySize(long bytes) {
+        streamedBodySize = bytes;
+    }
+    public long getStreamedBodySize() {
+        return streamedBodySize;
+    }
+
+    /**
+     * Set how many requests an HTTP/2 client may have going at once on a
+     * connection. Streams past the limit are refused, and the client can
+     * retry them.
+     * @param streams The maximum number of open streams.
+     * @see HttpServer#setHttp2
+     */
+    public void setMaxConcurrentStreams(int streams) {
+        maxConcurrentStreams = streams;
+    }
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+
+    /**
+     * Count a rejected request.
+     * @param code The status code the request was rejected with.
+     */
+    void rejected(int code) {
+        switch (code) {
+        case 413:
+            rejectedBodies.incrementAndGet();
+            break;
+        case 414:
+            rejectedRequestLines.incrementAndGet();
+            break;
+        case 431:
+            rejectedHeaders.incrementAndGet();
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Get how many requests were rejected with a 414 for their request line.
+     */
+    public long getRejectedRequestLines() {
+        return rejectedRequestLines.get();
+    }
+    /**
+     * Get how many requests were rejected with a 431 for their headers.
+     */
+    public long getRejectedHeaders() {
+        return rejectedHeaders.get();
+    }
+    /**
+     * Get how many requests were rejected with a 413 for their body.
+     */
+    public long getRejectedBodies() {
+        return rejectedBodies.get();
+    }
+}
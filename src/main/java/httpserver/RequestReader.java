@@ -0,0 +1,430 @@
+package httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A RequestReader reads HTTP requests off of a connection, a line or a
+ * number of bytes at a time. <p>
+ *
+ * Unlike a BufferedReader, every line read has a maximum length, and a line
+ * that's too long is rejected as soon as the limit is passed, rather than
+ * after the whole thing has been buffered. It also reads bytes rather than
+ * characters, so a body is exactly as long as its Content-Length says. <p>
+ *
+ * A single RequestReader is used for every request on a connection, so
+ * nothing the client sent ahead (like a pipelined request) is lost. <p>
+ *
+ * The reader can also capture the raw bytes of a request, for debugging.
+ * A capture points straight into the reader's buffer, and is only copied out
+ * if the buffer is about to be reused while the capture still needs it. <p>
+ *
+ * The buffer can be borrowed from a {@link BufferPool}, in which case it's
+ * given back once the reader's {@link #release released}.
+ */
+class RequestReader {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private BufferPool pool;
+    private int position = 0;
+    private int limit = 0;
+
+    // holds lines that span more than one fill of the buffer
+    private byte[] line = new byte[256];
+
+    // the last line found, either in the buffer or in line
+    private byte[] lineBytes;
+    private int lineStart;
+    private int lineLength;
+
+    // the capture being recorded, and where in the buffer it starts
+    private Capture capture;
+    private int captureStart;
+
+    // a finished capture that still points into the buffer
+    private Capture attached;
+
+
+    RequestReader(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    RequestReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Create a reader whose buffer is borrowed from a pool.
+     */
+    RequestReader(InputStream in, BufferPool pool) {
+        this.in = in;
+        this.pool = pool;
+        this.buffer = pool.acquire(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Give the buffer back to its pool. Only called by the connection's own
+     * thread, once nothing's going to read from it again. A capture that
+     * still points into the buffer is copied out first.
+     */
+    void release() {
+        if (capture != null) {
+            capture.append(buffer, captureStart, limit - captureStart);
+            capture = null;
+        }
+        detach();
+
+        if (pool != null) {
+            pool.release(buffer);
+            pool = null;
+        }
+
+        // anything read after this is the end of the connection
+        buffer = new byte[0];
+        position = 0;
+        limit = 0;
+        lineBytes = null;
+    }
+
+    /**
+     * Wait for the next byte, without consuming it.
+     * @return The next byte, or -1 if the client closed the connection.
+     */
+    int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+
+        return buffer[position] & 0xff;
+    }
+
+    /**
+     * Read a line ending in "\n" or "\r\n", without the line ending.
+     *
+     * @param maxLength     The longest the line may be, in bytes.
+     * @param tooLongStatus The status code to reject the request with when
+     *                      the line is too long.
+     * @return The line, or null if the connection ended before it started.
+     *         A line cut off by the end of the connection is returned as is.
+     * @throws HttpException  When the line is longer than maxLength.
+     */
+    String readLine(int maxLength, int tooLongStatus) throws IOException, HttpException {
+        if (!nextLine(maxLength, tooLongStatus)) {
+            return null;
+        }
+
+        return new String(lineBytes, lineStart, lineLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a header line straight into a set of headers, without decoding
+     * it. Any whitespace around the value is dropped.
+     *
+     * @param headers       The headers to add to.
+     * @param maxLength     The longest the line may be, in bytes.
+     * @param tooLongStatus The status code to reject the request with when
+     *                      the line is too long.
+     * @return The number of bytes read, 0 for the blank line ending the
+     *         headers, or -1 if the connection ended.
+     * @throws HttpException  When the line is too long, or isn't a header.
+     */
+    int readHeader(HttpHeaders headers, int maxLength, int tooLongStatus) throws IOException, HttpException {
+        if (!nextLine(maxLength, tooLongStatus)) {
+            return -1;
+        }
+
+        if (lineLength == 0) {
+            return 0;
+        }
+
+        int end = lineStart + lineLength;
+        int colon = lineStart;
+        while (colon < end && lineBytes[colon] != ':') {
+            colon++;
+        }
+
+        /*  RFC 7230#3.2.4: there's no whitespace allowed in or after the name,
+            and lines continuing the previous header ("obsolete line folding")
+            are rejected.
+            */
+        if (colon == end || colon == lineStart || isWhitespace(lineBytes[colon - 1])
+                || isWhitespace(lineBytes[lineStart])) {
+            throw new HttpException("No key value pair in \n\t"
+                    + new String(lineBytes, lineStart, lineLength, StandardCharsets.UTF_8));
+        }
+
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(lineBytes[valueStart])) {
+            valueStart++;
+        }
+
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(lineBytes[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        headers.add(lineBytes, lineStart, colon - lineStart, valueStart, valueEnd - valueStart);
+        return lineLength + 2;
+    }
+
+    /**
+     * Find the next line, leaving it in lineBytes, lineStart, and lineLength
+     * without its line ending.
+     * @return false if the connection ended before the line started.
+     */
+    private boolean nextLine(int maxLength, int tooLongStatus) throws IOException, HttpException {
+        int length = 0;
+        boolean started = false;
+
+        while (true) {
+            if (position == limit && !fill()) {
+                if (started) {
+                    setLine(line, 0, length);
+                }
+                return started;
+            }
+            started = true;
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+
+            int chunk = position - start;
+
+            // one extra byte is allowed for the "\r" of a "\r\n"
+            if (length + chunk > maxLength + 1) {
+                throw new HttpException(tooLongStatus,
+                        "Line is longer than " + maxLength + " bytes.");
+            }
+
+            if (position < limit) {
+                // found the end of the line, skip over the "\n"
+                position++;
+
+                if (length == 0) {
+                    setLine(buffer, start, chunk);
+                    return true;
+                }
+
+                append(start, chunk, length);
+                setLine(line, 0, length + chunk);
+                return true;
+            }
+
+            append(start, chunk, length);
+            length += chunk;
+        }
+    }
+
+    /**
+     * Read up to len bytes, from what's buffered first and then straight
+     * from the connection.
+     * @return The number of bytes read, or -1 at the end of the connection.
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (position < limit) {
+            int count = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        if (capture != null) {
+            // keep the capture in order, what's left in the buffer came first
+            capture.append(buffer, captureStart, limit - captureStart);
+            captureStart = limit;
+        }
+
+        int read = in.read(b, off, len);
+        if (capture != null && read > 0) {
+            capture.append(b, off, read);
+        }
+
+        return read;
+    }
+
+    /**
+     * Get a stream of the rest of the connection, starting with whatever's
+     * buffered. Used once the connection stops speaking HTTP.
+     */
+    InputStream remaining() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return RequestReader.this.read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return RequestReader.this.read(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Read exactly len bytes.
+     * @throws HttpException  When the connection ends first.
+     */
+    void readFully(byte[] b, int off, int len) throws IOException, HttpException {
+        while (len > 0) {
+            int read = read(b, off, len);
+            if (read == -1) {
+                throw new HttpException("Request body ended early.");
+            }
+
+            off += read;
+            len -= read;
+        }
+    }
+
+    /**
+     * Start capturing everything read, starting with the next byte.
+     */
+    void startCapture() {
+        detach();
+        capture = new Capture();
+        captureStart = position;
+    }
+
+    /**
+     * Stop capturing.
+     * @return Everything read since the capture started.
+     */
+    Capture endCapture() {
+        Capture finished = capture;
+        capture = null;
+
+        if (finished != null) {
+            finished.attach(buffer, captureStart, position);
+            attached = finished;
+        }
+
+        return finished;
+    }
+
+    private boolean fill() throws IOException {
+        if (capture != null) {
+            capture.append(buffer, captureStart, limit - captureStart);
+            captureStart = 0;
+        }
+        detach();
+
+        position = 0;
+        limit = 0;
+
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+
+        limit = read;
+        return true;
+    }
+
+    /**
+     * Copy part of the buffer onto the end of the partial line.
+     */
+    private void append(int start, int count, int length) {
+        if (length + count > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+        }
+
+        System.arraycopy(buffer, start, line, length, count);
+    }
+
+    /**
+     * Copy the last finished capture out of the buffer, before the buffer is
+     * overwritten.
+     */
+    private void detach() {
+        if (attached != null) {
+            attached.detach();
+            attached = null;
+        }
+    }
+
+    private void setLine(byte[] bytes, int start, int length) {
+        if (length > 0 && bytes[start + length - 1] == '\r') {
+            length--;
+        }
+
+        lineBytes = bytes;
+        lineStart = start;
+        lineLength = length;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+
+    /**
+     * The raw bytes of a captured request.
+     */
+    static class Capture {
+        // bytes captured before the reader's buffer was refilled
+        private byte[] copied;
+        private int copiedLength = 0;
+
+        // the rest of the capture, still in the reader's buffer
+        private byte[] buffer;
+        private int start;
+        private int end;
+
+        private void append(byte[] bytes, int offset, int length) {
+            if (copied == null) {
+                copied = new byte[Math.max(length, 1024)];
+            } else if (copiedLength + length > copied.length) {
+                copied = Arrays.copyOf(copied, Math.max(copied.length * 2, copiedLength + length));
+            }
+
+            System.arraycopy(bytes, offset, copied, copiedLength, length);
+            copiedLength += length;
+        }
+
+        private void attach(byte[] buffer, int start, int end) {
+            if (copied == null) {
+                this.buffer = buffer;
+                this.start = start;
+                this.end = end;
+            } else {
+                append(buffer, start, end - start);
+            }
+        }
+
+        private void detach() {
+            if (buffer != null) {
+                append(buffer, start, end - start);
+                buffer = null;
+            }
+        }
+
+        /**
+         * Get the captured bytes, without copying them.
+         * @return A read-only view of the captured bytes.
+         */
+        ByteBuffer getBytes() {
+            if (buffer != null) {
+                return ByteBuffer.wrap(buffer, start, end - start).slice().asReadOnlyBuffer();
+            }
+
+            if (copied == null) {
+                return ByteBuffer.allocate(0);
+            }
+
+            return ByteBuffer.wrap(copied, 0, copiedLength).slice().asReadOnlyBuffer();
+        }
+    }
+}
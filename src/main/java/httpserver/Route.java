@@ -8,6 +8,9 @@ import java.util.HashMap;
 public abstract class Route {
     private List<String> routePath = new ArrayList<>();
     private boolean usesVarargs = false;
+    private RateLimiter rateLimiter;
+    private int priority = ConcurrencyLimiter.NORMAL;
+    private long deadline = -1;
 
 
     public Route(String path) {
@@ -35,6 +38,27 @@ public abstract class Route {
 
 
     public void invoke(HttpRequest request, HttpResponse response) {
+        if (rateLimiter != null && !rateLimiter.allow(request, response)) {
+            return;
+        }
+
+        // A request that's spent its whole deadline waiting on its body
+        // isn't worth starting on.
+        HttpServer server = request.getServer();
+        long millis = deadline >= 0 ? deadline
+            : server != null ? server.getTimeouts().getHandlerTimeout() : 0;
+        request.setDeadline(millis);
+        if (request.getTimeRemaining() == 0) {
+            response.message(503, "The request ran out of time before it could be handled");
+            return;
+        }
+
+        HandlerTimeout timeout = null;
+        if (millis > 0 && server != null && server.getTimerWheel() != null) {
+            timeout = new HandlerTimeout(server.getTimerWheel(), request.getTimeRemaining());
+        }
+
+        Throwable failure = null;
         try {
             Map<String, String> urlParams = new HashMap<>();
             List<String> varargs = new ArrayList<>();
@@ -59,7 +83,17 @@ public abstract class Route {
 
             handle(request, response);
         } catch (Throwable t) {
-            response.error(500, t.getMessage(), t);
+            failure = t;
+        }
+
+        // Whatever the handler got done is thrown away. An async route's
+        // stage has the deadline as its timeout, so it's answered on its own.
+        boolean expired = timeout != null && timeout.finish();
+        if (expired && response.getPending() == null) {
+            response.reset(request);
+            response.message(504, "The request took too long to answer");
+        } else if (failure != null) {
+            response.error(500, failure.getMessage(), failure);
         }
     }
 
@@ -117,4 +151,50 @@ public abstract class Route {
 
 
     public abstract void handle(HttpRequest request, HttpResponse response);
+
+
+    /**
+     * Limit how often clients may call the route. Requests over the limit
+     * are answered with a 429 (Too Many Requests), without being handled.
+     * @param rateLimiter The limiter, or null for no limit.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Set how long the route's requests have to be answered, counting from
+     * when their headers were read. A handler still running once the time's
+     * up is interrupted, and the client gets a 504 (Gateway Timeout). One
+     * that's used it all up before its handler starts gets a 503 (Service
+     * Unavailable). Handlers can see the deadline, to pass it on, with
+     * {@link HttpRequest#getDeadline}.
+     * @param millis The deadline, in milliseconds, 0 for none, or -1 to use
+     *               the server's {@link Timeouts#setHandlerTimeout handler
+     *               timeout}.
+     */
+    public void setDeadline(long millis) {
+        this.deadline = millis;
+    }
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Set how important the route is when the server's overloaded, for its
+     * {@link HttpServer#setConcurrencyLimiter concurrency limiter}. A health
+     * check should be {@link ConcurrencyLimiter#CRITICAL}, so it's always
+     * answered, and something that can wait,
+     * {@link ConcurrencyLimiter#SHEDDABLE}.
+     * @param priority One of ConcurrencyLimiter's priorities.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+    public int getPriority() {
+        return priority;
+    }
 }
@@ -0,0 +1,108 @@
+package httpserver;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * SocketOptions holds the TCP options an {@link HttpServer} sets on its
+ * listening sockets, and on every connection it accepts. <p>
+ *
+ * Sizes of 0 leave the operating system's defaults alone.
+ *
+ * @see HttpServer#setSocketOptions
+ */
+public class SocketOptions {
+    private int backlog = 50;
+    private boolean tcpNoDelay = true;
+    private boolean keepAlive = false;
+    private int receiveBufferSize = 0;
+    private int sendBufferSize = 0;
+
+
+    /**
+     * Set how many connections can wait to be accepted before the operating
+     * system starts turning them away.
+     * @param backlog The length of the queue.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Set whether small writes go out right away (TCP_NODELAY), rather than
+     * waiting to be put together with the next one. Responses are buffered
+     * and written at once anyway, so this is on by default, which keeps
+     * HTTP/2 frames and WebSocket messages from waiting on the client's
+     * delayed ACKs.
+     * @param tcpNoDelay Whether to turn off Nagle's algorithm.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Set whether the operating system checks that idle connections are
+     * still there (SO_KEEPALIVE). Off by default, the server's own idle
+     * timeout usually closes them first.
+     * @param keepAlive Whether to send TCP keep-alives.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Set how much a connection buffers of what the client's sent
+     * (SO_RCVBUF). It's set on the listening socket, so accepted
+     * connections can advertise a large window from the start.
+     * @param bytes The buffer size, or 0 for the default.
+     */
+    public void setReceiveBufferSize(int bytes) {
+        this.receiveBufferSize = bytes;
+    }
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Set how much a connection buffers of what's being sent (SO_SNDBUF).
+     * @param bytes The buffer size, or 0 for the default.
+     */
+    public void setSendBufferSize(int bytes) {
+        this.sendBufferSize = bytes;
+    }
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+
+    /**
+     * Set the options on a listening socket, before it's bound.
+     */
+    void apply(ServerSocket socket) throws SocketException {
+        socket.setReuseAddress(true);
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    /**
+     * Set the options on an accepted connection.
+     */
+    void apply(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A StaticResponse is a response that's the same every time, like a health
+ * check or robots.txt, serialized once, status line, headers and body, and
+ * then sent with a single write:
+ *
+ * <pre>
+ * final StaticResponse robots = new StaticResponse(200, "text/plain",
+ *         "User-agent: *\nDisallow: /admin/\n");
+ *
+ * server.get(new Route("/robots.txt") {
+ *     &#64;Override public void handle(HttpRequest request, HttpResponse response) {
+ *         response.setStaticResponse(robots);
+ *     }
+ * });
+ * </pre>
+ *
+ * Anything the handler changes about the response afterwards, its code,
+ * body, or headers, turns that off, and it's sent the usual way, with the
+ * static response's headers added. Over HTTP/2 it's always sent the usual
+ * way, since headers are compressed per connection. <p>
+ *
+ * StaticResponses never change, so one can be shared by every request.
+ *
+ * @see MessageHandler
+ */
+public class StaticResponse {
+    private final int code;
+    private final String mimeType;
+    private final byte[] body;
+    private final HttpHeaders headers;
+
+    // the whole response, for each of: kept alive, closing, and the same
+    // for HEAD requests; built once the server's info is known
+    private volatile byte[][] serialized;
+
+
+    /**
+     * Create a static response.
+     *
+     * @param code      The status code.
+     * @param mimeType  The body's type.
+     * @param body      The body, which mustn't be changed afterwards.
+     * @param headers   Any other headers, or null. They're copied.
+     */
+    public StaticResponse(int code, String mimeType, byte[] body, HttpHeaders headers) {
+        this.code = code;
+        this.mimeType = mimeType;
+        this.body = body;
+        this.headers = new HttpHeaders();
+        if (headers != null) {
+            for (int i = 0; i < headers.entryCount(); i++) {
+                this.headers.add(headers.getName(i), headers.getValue(i));
+            }
+        }
+    }
+
+    /**
+     * Create a static response with a text body, sent as UTF-8.
+     *
+     * @param code      The status code.
+     * @param mimeType  The body's type.
+     * @param body      The body.
+     */
+    public StaticResponse(int code, String mimeType, String body) {
+        this(code, mimeType, body.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+
+    /**
+     * Get the whole response, ready to write.
+     *
+     * @param keepAlive  Whether the connection's kept alive afterwards.
+     * @param head       Whether it's for a HEAD request, so has no body.
+     */
+    byte[] getSerialized(boolean keepAlive, boolean head) {
+        byte[][] built = serialized;
+        if (built == null) {
+            // Racing threads build the same bytes, so whichever wins is fine.
+            built = new byte[][] {
+                serialize(true, false), serialize(false, false),
+                serialize(true, true), serialize(false, true),
+            };
+            serialized = built;
+        }
+
+        return built[(keepAlive ? 0 : 1) + (head ? 2 : 0)];
+    }
+
+    private byte[] serialize(boolean keepAlive, boolean head) {
+        StringBuilder lines = new StringBuilder();
+        lines.append("HTTP/1.1 ").append(HttpResponse.getResponseCodeMessage(code)).append('\n');
+        lines.append("Server: ").append(HttpResponse.getServerInfo()).append('\n');
+        lines.append("Content-Type: ").append(HttpResponse.contentType(mimeType)).append('\n');
+        lines.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append('\n');
+        if (code != 204) {
+            lines.append("Content-Length: ").append(body.length).append('\n');
+        }
+        for (int i = 0; i < headers.entryCount(); i++) {
+            lines.append(headers.getName(i)).append(": ").append(headers.getValue(i)).append('\n');
+        }
+        lines.append('\n');
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = lines.toString().getBytes(StandardCharsets.ISO_8859_1);
+        out.write(header, 0, header.length);
+        if (!head && code != 204) {
+            out.write(body, 0, body.length);
+        }
+        return out.toByteArray();
+    }
+
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Get the other headers. They mustn't be changed.
+     */
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+}
@@ -0,0 +1,63 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * TextEncoder turns text bodies into UTF-8, whatever the JVM's default
+ * charset is. <p>
+ *
+ * A String is encoded by {@link String#getBytes}, which the JVM already does
+ * as well as anything can. Other text, like a StringBuilder a handler built
+ * its body up in, is encoded straight from its characters, without copying
+ * them into a String first: each thread keeps an encoder to reuse, and
+ * encodes into a buffer borrowed from a {@link BufferPool}, so the only
+ * thing allocated is the body itself. That's as long as the text could fit
+ * in the pool's largest buffer, which is about 21K characters, since a
+ * character can take up to three bytes. Anything longer is encoded into a
+ * temporary array, which is copied. Characters that can't be encoded, like
+ * half a surrogate pair, become '?', the same as getBytes.
+ */
+class TextEncoder {
+    private static final ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>() {
+        @Override protected CharsetEncoder initialValue() {
+            return StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+
+    private TextEncoder() { }
+
+
+    /**
+     * Encode text as UTF-8.
+     *
+     * @param text  The text.
+     * @param pool  Lends the buffer to encode into.
+     * @return The encoded text.
+     */
+    static byte[] encode(CharSequence text, BufferPool pool) {
+        if (text instanceof String) {
+            return ((String) text).getBytes(StandardCharsets.UTF_8);
+        }
+
+        CharsetEncoder encoder = encoders.get();
+        int most = (int) Math.ceil(text.length() * (double) encoder.maxBytesPerChar());
+        byte[] scratch = pool.acquire(Math.max(1, most));
+        try {
+            ByteBuffer out = ByteBuffer.wrap(scratch, 0, most);
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(text), out, true);
+            encoder.flush(out);
+
+            return Arrays.copyOf(scratch, out.position());
+        } finally {
+            pool.release(scratch);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package httpserver;
+
+/**
+ * Timeouts holds how long an {@link HttpServer} waits on its clients. <p>
+ *
+ * Every connection goes through the same phases for every request: waiting
+ * for the request, reading the headers, reading the body, and writing the
+ * response. Each phase has its own deadline, so a client that's slow (or
+ * malicious, see "slowloris") can only hold a connection for so long.
+ * Handlers have a deadline too, so a stuck one can't either. <p>
+ *
+ * A timeout of 0 turns that deadline off. All timeouts are in milliseconds.
+ *
+ * @see HttpServer#setTimeouts
+ */
+public class Timeouts {
+    private long headerReadTimeout = 20000;
+    private long bodyReadTimeout = 60000;
+    private long writeTimeout = 60000;
+    private long idleTimeout = 60000;
+    private long handlerTimeout = 0;
+
+    private long minDataRate = 240;
+    private long minDataRateGracePeriod = 5000;
+
+
+    /**
+     * Set how long a client has to send the request line and all of its
+     * headers, starting from when the connection is accepted or from the
+     * first byte of a keep-alive request. A client that doesn't make it is
+     * sent a 408.
+     * @param millis The timeout, in milliseconds.
+     */
+    public void setHeaderReadTimeout(long millis) {
+        headerReadTimeout = millis;
+    }
+    public long getHeaderReadTimeout() {
+        return headerReadTimeout;
+    }
+
+    /**
+     * Set how long a client has to send the request's body, once the headers
+     * have been read. A client that doesn't make it is sent a 408.
+     * @param millis The timeout, in milliseconds.
+     */
+    public void setBodyReadTimeout(long millis) {
+        bodyReadTimeout = millis;
+    }
+    public long getBodyReadTimeout() {
+        return bodyReadTimeout;
+    }
+
+    /**
+     * Set how long writing a response may take. A client that doesn't read
+     * its response in time is hung up on.
+     * @param millis The timeout, in milliseconds.
+     */
+    public void setWriteTimeout(long millis) {
+        writeTimeout = millis;
+    }
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Set how long a kept alive connection may sit between requests before
+     * it's closed.
+     * @param millis The timeout, in milliseconds.
+     */
+    public void setIdleTimeout(long millis) {
+        idleTimeout = millis;
+    }
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set how long every request has to be answered, counting from when its
+     * headers were read, unless its route sets its own
+     * {@link Route#setDeadline deadline}. A handler that runs over is
+     * interrupted, and the client is sent a 504. This is off by default.
+     * @param millis The timeout, in milliseconds.
+     */
+    public void setHandlerTimeout(long millis) {
+        handlerTimeout = millis;
+    }
+    public long getHandlerTimeout() {
+        return handlerTimeout;
+    }
+
+    /**
+     * Set the slowest a client is allowed to send a request body, in bytes
+     * per second. This stops clients from staying under the body timeout by
+     * trickling in a byte at a time. A client that's too slow is sent a 408.
+     * @param bytesPerSecond The minimum rate, 0 turns the check off.
+     */
+    public void setMinDataRate(long bytesPerSecond) {
+        minDataRate = bytesPerSecond;
+    }
+    public long getMinDataRate() {
+        return minDataRate;
+    }
+
+    /**
+     * Set how long a client may send its body under the minimum data rate
+     * before it's held to it, to give TCP a chance to get going.
+     * @param millis The grace period, in milliseconds.
+     */
+    public void setMinDataRateGracePeriod(long millis) {
+        minDataRateGracePeriod = millis;
+    }
+    public long getMinDataRateGracePeriod() {
+        return minDataRateGracePeriod;
+    }
+}
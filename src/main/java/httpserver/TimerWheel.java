@@ -0,0 +1,247 @@
+package httpserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A TimerWheel runs short tasks after a delay, using a single thread for
+ * every task scheduled on it. <p>
+ *
+ * It's a hashed timing wheel: time is split into ticks, and every tick maps
+ * to one of a fixed number of buckets. Scheduling and cancelling are cheap
+ * and never block, which matters because every connection schedules (and
+ * almost always cancels) a timeout for every phase of every request. The
+ * trade off is precision, tasks run up to one tick late. <p>
+ *
+ * Tasks run on the wheel's thread, so they should only do quick things, like
+ * closing a socket.
+ */
+class TimerWheel {
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+
+    // Timeouts are handed to the wheel's thread through these queues, so the
+    // buckets themselves are only ever touched by that thread.
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+
+    private long tick = 0;
+
+    private Logger logger = Logger.getLogger("java-httpserver");
+
+
+    /**
+     * Create and start a timer wheel.
+     *
+     * @param tickDuration  How long each tick lasts.
+     * @param unit          The unit of the tick duration.
+     * @param ticksPerWheel How many buckets the wheel has, rounded up to a
+     *                      power of two.
+     */
+    TimerWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        tickNanos = unit.toNanos(tickDuration);
+
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 1) - 1) << 1;
+        buckets = new Bucket[Math.max(size, 1)];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        mask = buckets.length - 1;
+
+        startTime = System.nanoTime();
+        worker = new Thread(new Runnable() {
+            @Override public void run() {
+                work();
+            }
+        }, "httpserver-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run a task after a delay.
+     *
+     * @param task  What to run, on the wheel's thread.
+     * @param delay How long to wait before running it.
+     * @param unit  The unit of the delay.
+     * @return A handle that can cancel the task.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the wheel. Tasks that haven't run yet never will.
+     */
+    void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void work() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            removeCancelled();
+            transferAdded();
+            buckets[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        for (Timeout timeout = added.poll(); timeout != null; timeout = added.poll()) {
+            if (timeout.state != Timeout.PENDING) {
+                continue;
+            }
+
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / buckets.length;
+            buckets[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        for (Timeout timeout = cancelled.poll(); timeout != null; timeout = cancelled.poll()) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+
+    /**
+     * A task waiting on the wheel.
+     */
+    class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+
+        private volatile int state = PENDING;
+
+        // only touched by the wheel's thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stop the task from running, if it hasn't already.
+         * @return whether the task was cancelled before it ran.
+         */
+        boolean cancel() {
+            synchronized (this) {
+                if (state != PENDING) {
+                    return false;
+                }
+                state = CANCELLED;
+            }
+
+            cancelled.add(this);
+            return true;
+        }
+
+        private void expire() {
+            synchronized (this) {
+                if (state != PENDING) {
+                    return;
+                }
+                state = EXPIRED;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Timer task failed.", t);
+            }
+        }
+    }
+
+
+    /**
+     * A doubly linked list of the timeouts that hash to the same tick.
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.state == Timeout.CANCELLED) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.bucket = null;
+        }
+    }
+}
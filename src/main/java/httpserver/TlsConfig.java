@@ -0,0 +1,222 @@
+package httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * TlsConfig holds how an {@link HttpServer} speaks HTTPS, and counts its
+ * handshakes. <p>
+ *
+ * Connections are encrypted with an {@link SSLEngine}, which doesn't care
+ * how bytes get to and from the client. Full handshakes are expensive, so
+ * clients that reconnect get to resume their session instead: TLS 1.2
+ * clients from the server's session cache, and TLS 1.3 clients with the
+ * session tickets the JDK sends them. <p>
+ *
+ * The server picks the application protocol (ALPN) from the ones it's given,
+ * in order, skipping "h2" unless the server {@link HttpServer#setHttp2 speaks
+ * HTTP/2}.
+ *
+ * @see HttpServer#setTls
+ */
+public class TlsConfig {
+    private final SSLContext context;
+
+    private String[] cipherSuites;
+    private String[] protocols;
+    private List<String> applicationProtocols = Arrays.asList("h2", "http/1.1");
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong failedHandshakes = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+
+
+    /**
+     * Use an SSLContext that's already set up with the server's keys.
+     * @param context The context connections are encrypted with.
+     */
+    public TlsConfig(SSLContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Load the server's key and certificate from a keystore, in any format
+     * the JDK reads (usually PKCS12).
+     *
+     * @param path     Where the keystore is.
+     * @param password The keystore's password, which has to be the key's too.
+     * @return The config.
+     * @throws IOException              When the keystore can't be read.
+     * @throws GeneralSecurityException When the keystore or its key is bad.
+     */
+    public static TlsConfig fromKeyStore(String path, char[] password)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            keyStore.load(in, password);
+        }
+
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, password);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return new TlsConfig(context);
+    }
+
+
+    public SSLContext getContext() {
+        return context;
+    }
+
+    /**
+     * Set which cipher suites clients may use.
+     * @param suites The suites' names, or null for the JDK's defaults.
+     */
+    public void setCipherSuites(String... suites) {
+        cipherSuites = suites;
+    }
+    public String[] getCipherSuites() {
+        return cipherSuites;
+    }
+
+    /**
+     * Set which versions of TLS clients may use, like "TLSv1.3".
+     * @param protocols The versions, or null for the JDK's defaults.
+     */
+    public void setProtocols(String... protocols) {
+        this.protocols = protocols;
+    }
+    public String[] getProtocols() {
+        return protocols;
+    }
+
+    /**
+     * Set the application protocols offered through ALPN, in the order the
+     * server prefers them. By default that's "h2" then "http/1.1".
+     * @param protocols The protocols, or none to turn ALPN off.
+     */
+    public void setApplicationProtocols(String... protocols) {
+        applicationProtocols = Collections.unmodifiableList(Arrays.asList(protocols));
+    }
+    public List<String> getApplicationProtocols() {
+        return applicationProtocols;
+    }
+
+    /**
+     * Set how many sessions are kept for TLS 1.2 clients to resume.
+     * @param size The most sessions kept, or 0 for no limit.
+     */
+    public void setSessionCacheSize(int size) {
+        context.getServerSessionContext().setSessionCacheSize(size);
+    }
+    public int getSessionCacheSize() {
+        return context.getServerSessionContext().getSessionCacheSize();
+    }
+
+    /**
+     * Set how long a session can be resumed for, from the cache or a ticket.
+     * @param seconds The timeout, in seconds, or 0 for no limit.
+     */
+    public void setSessionTimeout(int seconds) {
+        context.getServerSessionContext().setSessionTimeout(seconds);
+    }
+    public int getSessionTimeout() {
+        return context.getServerSessionContext().getSessionTimeout();
+    }
+
+
+    /**
+     * Create the engine for a client's connection.
+     *
+     * @param http2 Whether the server speaks HTTP/2, so "h2" can be picked.
+     */
+    SSLEngine createEngine(Socket socket, final boolean http2) {
+        SSLEngine engine = context.createSSLEngine(socket.getInetAddress().getHostAddress(), socket.getPort());
+        engine.setUseClientMode(false);
+
+        if (cipherSuites != null) {
+            engine.setEnabledCipherSuites(cipherSuites);
+        }
+        if (protocols != null) {
+            engine.setEnabledProtocols(protocols);
+        }
+
+        final List<String> offered = applicationProtocols;
+        if (!offered.isEmpty()) {
+            engine.setHandshakeApplicationProtocolSelector(new BiFunction<SSLEngine, List<String>, String>() {
+                @Override public String apply(SSLEngine engine, List<String> wanted) {
+                    for (String protocol : offered) {
+                        if (wanted.contains(protocol) && (http2 || !protocol.equals("h2"))) {
+                            return protocol;
+                        }
+                    }
+
+                    // none in common, carry on without ALPN
+                    return "";
+                }
+            });
+        }
+
+        return engine;
+    }
+
+    /**
+     * Count a finished handshake.
+     * @param nanos   How long it took.
+     * @param resumed Whether the client resumed an earlier session.
+     */
+    void handshakeFinished(long nanos, boolean resumed) {
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(nanos);
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+        }
+    }
+
+    void handshakeFailed() {
+        failedHandshakes.incrementAndGet();
+    }
+
+    /**
+     * Get how many handshakes finished, resumed or not.
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+    /**
+     * Get how many handshakes resumed an earlier session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+    /**
+     * Get how many handshakes failed, or were given up on.
+     */
+    public long getFailedHandshakes() {
+        return failedHandshakes.get();
+    }
+    /**
+     * Get how long the finished handshakes took, on average, from the
+     * client's first message to the server's last, in nanoseconds.
+     */
+    public long getAverageHandshakeNanos() {
+        long count = handshakes.get();
+        return count == 0 ? 0 : handshakeNanos.get() / count;
+    }
+}
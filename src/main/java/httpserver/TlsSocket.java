@@ -0,0 +1,545 @@
+package httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+/**
+ * A TlsSocket encrypts a client's connection with an {@link SSLEngine}. <p>
+ *
+ * It stands in for the plain socket it wraps, so the rest of the server
+ * reads and writes it like any other. The handshake happens on the first
+ * read or write, or when {@link #handshake} is called, on the connection's
+ * own thread rather than the one accepting connections. <p>
+ *
+ * Reads and writes can happen at once, from different threads, like the
+ * socket underneath. <p>
+ *
+ * The engine's buffers are borrowed from the server's {@link BufferPool},
+ * and given back once the socket's closed and nothing's using them.
+ */
+class TlsSocket extends Socket {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Socket socket;
+    private final SSLEngine engine;
+    private final TlsConfig config;
+    private final BufferPool pool;
+
+    private final InputStream rawIn;
+    private final OutputStream rawOut;
+
+    // Handshakes take both locks, reads that need to answer the client
+    // take the write lock too, always in that order.
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // guarded by readLock: bytes read and not decrypted yet, left ready to
+    // be read into, and bytes decrypted and not read yet, ready to be read
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private boolean inputDone = false;
+    private long handshakeStart = 0;
+    private long handshakeStartMillis = 0;
+
+    // guarded by writeLock
+    private ByteBuffer netOut;
+    private boolean outputDone = false;
+
+    private volatile boolean handshaken = false;
+
+    // set once the buffers are back in the pool, guarded by both locks
+    private boolean released = false;
+
+    private final InputStream in = new TlsInputStream();
+    private final OutputStream out = new TlsOutputStream();
+
+
+    /**
+     * Wrap a connection a client just opened.
+     *
+     * @param http2  Whether the client may pick HTTP/2 while shaking hands.
+     */
+    TlsSocket(Socket socket, TlsConfig config, boolean http2, BufferPool pool) throws IOException {
+        this.socket = socket;
+        this.config = config;
+        this.pool = pool;
+        this.engine = config.createEngine(socket, http2);
+        this.rawIn = socket.getInputStream();
+        this.rawOut = socket.getOutputStream();
+
+        netIn = ByteBuffer.wrap(pool.acquire(engine.getSession().getPacketBufferSize()));
+        netOut = ByteBuffer.wrap(pool.acquire(engine.getSession().getPacketBufferSize()));
+        appIn = ByteBuffer.wrap(pool.acquire(engine.getSession().getApplicationBufferSize()));
+        appIn.flip();
+    }
+
+
+    /**
+     * Shake hands with the client, if that hasn't been done already.
+     * @throws IOException  When the handshake fails, or the client goes away.
+     */
+    void handshake() throws IOException {
+        if (handshaken) {
+            return;
+        }
+
+        readLock.lock();
+        writeLock.lock();
+        try {
+            if (handshaken) {
+                return;
+            }
+            checkReleased();
+
+            try {
+                engine.beginHandshake();
+                runHandshake();
+            } catch (IOException | RuntimeException e) {
+                config.handshakeFailed();
+                throw e;
+            }
+
+            handshaken = true;
+
+            // A resumed session was made by an earlier handshake.
+            config.handshakeFinished(System.nanoTime() - handshakeStart,
+                    engine.getSession().getCreationTime() < handshakeStartMillis);
+        } finally {
+            writeLock.unlock();
+            readLock.unlock();
+        }
+    }
+
+    // only called while holding both locks
+    private void runHandshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (!unwrap()) {
+                        throw new SSLException("Client went away during the handshake.");
+                    }
+                    break;
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Get the application protocol picked while shaking hands.
+     * @return The protocol, or null if ALPN wasn't used.
+     */
+    String getApplicationProtocol() {
+        String protocol = engine.getApplicationProtocol();
+        return protocol == null || protocol.isEmpty() ? null : protocol;
+    }
+
+
+    /**
+     * Decrypt the next record into appIn, reading from the client as needed.
+     * Only called while holding the read lock.
+     *
+     * @return false once the client's done sending.
+     */
+    private boolean unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+                appIn.flip();
+            }
+
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        runTasks();
+                    }
+
+                    // after the handshake, some messages (like a TLS 1.3
+                    // KeyUpdate) have to be answered
+                    if (handshaken && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                        writeLock.lock();
+                        try {
+                            wrap(EMPTY);
+                        } finally {
+                            writeLock.unlock();
+                        }
+                    }
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    if (!readRecord()) {
+                        return false;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    appIn.compact();
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    appIn.flip();
+                    break;
+                default:
+                    // the client sent close_notify
+                    inputDone = true;
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Read what the client's sent into netIn.
+     * @return false once the connection's closed.
+     */
+    private boolean readRecord() throws IOException {
+        int read = rawIn.read(netIn.array(), netIn.position(), netIn.remaining());
+        if (read == -1) {
+            inputDone = true;
+            try {
+                engine.closeInbound();
+            } catch (SSLException e) {
+                // the client didn't send close_notify, which is usual
+            }
+            return false;
+        }
+
+        if (handshakeStart == 0) {
+            handshakeStart = System.nanoTime();
+            handshakeStartMillis = System.currentTimeMillis();
+        }
+
+        netIn.position(netIn.position() + read);
+        return true;
+    }
+
+    /**
+     * Encrypt and send everything in src. Only called while holding the
+     * write lock.
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(src, netOut);
+
+            if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                byte[] larger = pool.acquire(Math.max(netOut.capacity() * 2,
+                        engine.getSession().getPacketBufferSize()));
+                pool.release(netOut.array());
+                netOut = ByteBuffer.wrap(larger);
+                continue;
+            }
+
+            if (netOut.position() > 0) {
+                rawOut.write(netOut.array(), 0, netOut.position());
+            }
+
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+
+            if (result.getStatus() == Status.CLOSED) {
+                if (src.hasRemaining()) {
+                    throw new SocketException("TLS connection is closed.");
+                }
+                return;
+            }
+
+            if (!src.hasRemaining()) {
+                return;
+            }
+        }
+    }
+
+    private void runTasks() {
+        for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask()) {
+            task.run();
+        }
+    }
+
+    /**
+     * Copy a buffer's contents into a larger one, giving the old one back.
+     * The buffer is ready to be written into.
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int atLeast) {
+        ByteBuffer larger = ByteBuffer.wrap(pool.acquire(Math.max(buffer.capacity() * 2, atLeast)));
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer.array());
+        return larger;
+    }
+
+    /**
+     * Give the buffers back to the pool, once whatever's reading or writing
+     * has noticed the socket's closed. Only called after closing it.
+     */
+    private void releaseBuffers() {
+        readLock.lock();
+        writeLock.lock();
+        try {
+            if (released) {
+                return;
+            }
+
+            released = true;
+            inputDone = true;
+            outputDone = true;
+            pool.release(netIn.array());
+            pool.release(netOut.array());
+            pool.release(appIn.array());
+        } finally {
+            writeLock.unlock();
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Only called while holding a lock.
+     */
+    private void checkReleased() throws SocketException {
+        if (released) {
+            throw new SocketException("Socket is closed");
+        }
+    }
+
+    /**
+     * Tell the client nothing more is coming, if nothing's in the middle of
+     * being written. A write that's stuck gets no warning before the socket
+     * closes.
+     */
+    private void closeOutput() {
+        if (!writeLock.tryLock()) {
+            return;
+        }
+
+        try {
+            if (outputDone) {
+                return;
+            }
+
+            outputDone = true;
+            engine.closeOutbound();
+            if (handshaken) {
+                wrap(EMPTY);
+            }
+        } catch (IOException e) {
+            // closing anyway
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    /*********************
+      SOCKET
+     *********************/
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeOutput();
+        socket.close();
+        releaseBuffers();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        socket.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        closeOutput();
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return socket.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return socket.isOutputShutdown();
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+        return socket.getSoTimeout();
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) throws SocketException {
+        socket.setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive() throws SocketException {
+        return socket.getKeepAlive();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        socket.setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException {
+        return socket.getTcpNoDelay();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return socket.getPort();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return socket.getLocalAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public String toString() {
+        return "TlsSocket[" + socket + "]";
+    }
+
+
+    /**
+     * Reads decrypted bytes.
+     */
+    private class TlsInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            handshake();
+
+            readLock.lock();
+            try {
+                checkReleased();
+                while (!appIn.hasRemaining()) {
+                    if (inputDone || !unwrap()) {
+                        return -1;
+                    }
+                }
+
+                int read = Math.min(len, appIn.remaining());
+                appIn.get(b, off, read);
+                return read;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsSocket.this.close();
+        }
+    }
+
+    /**
+     * Encrypts bytes as they're written. Every write is sent right away, so
+     * it's best buffered.
+     */
+    private class TlsOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            handshake();
+
+            writeLock.lock();
+            try {
+                if (outputDone) {
+                    throw new SocketException("Socket output is shut down.");
+                }
+                wrap(ByteBuffer.wrap(b, off, len));
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsSocket.this.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package httpserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes {@code application/x-www-form-urlencoded} text, like query
+ * strings and form bodies. <p>
+ *
+ * Unlike {@link java.net.URLDecoder}, nothing is copied when there's nothing
+ * to decode, and a malformed escape (like "%zz") is left as is instead of
+ * throwing, because it's just user input.
+ */
+final class UrlDecoder {
+
+    private UrlDecoder() { }
+
+    /**
+     * Decode part of a String.
+     * @return The decoded text, or the same characters if there was nothing
+     *         to decode. Decoding all of a String that doesn't need it
+     *         returns the same String.
+     */
+    static String decode(String s, int start, int end) {
+        int i = start;
+        while (i < end && s.charAt(i) != '%' && s.charAt(i) != '+') {
+            i++;
+        }
+
+        if (i == end) {
+            return (start == 0 && end == s.length()) ? s : s.substring(start, end);
+        }
+
+        byte[] bytes = s.substring(start, end).getBytes(StandardCharsets.UTF_8);
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode part of a byte array, as UTF-8.
+     */
+    static String decode(byte[] bytes, int start, int end) {
+        int i = start;
+        while (i < end && bytes[i] != '%' && bytes[i] != '+') {
+            i++;
+        }
+
+        if (i == end) {
+            return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        // decoding only ever makes things shorter
+        byte[] out = new byte[end - start];
+        int length = i - start;
+        System.arraycopy(bytes, start, out, 0, length);
+
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '+') {
+                out[length++] = ' ';
+            } else if (b == '%' && i + 2 < end && hex(bytes[i + 1]) >= 0 && hex(bytes[i + 2]) >= 0) {
+                out[length++] = (byte) ((hex(bytes[i + 1]) << 4) | hex(bytes[i + 2]));
+                i += 2;
+            } else {
+                out[length++] = b;
+            }
+        }
+
+        return new String(out, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,842 @@
+package httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A WebSocket is a connection that was upgraded from HTTP, and now sends
+ * messages both ways, framed as described by RFC 6455. <p>
+ *
+ * Sockets are accepted by a {@link WebSocketRoute}. Once the 101 (Switching
+ * Protocols) response is sent, the thread that read the request stays with
+ * the socket, reading frames and passing whole messages to its
+ * {@link WebSocketListener}. Messages can be sent from any thread; each is
+ * written out in one go, so messages sent at the same time don't get mixed
+ * up. <p>
+ *
+ * Fragmented messages are put back together before they're passed on, and
+ * large messages are sent as fragments. Pings are answered automatically,
+ * and the socket pings the client every so often, closing the connection
+ * if the client stops answering. When the client offers it, messages are
+ * compressed with the permessage-deflate extension (RFC 7692).
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc6455">RFC 6455</a>
+ */
+public class WebSocket implements Closeable {
+    /** The socket is closing normally. */
+    public static final int NORMAL_CLOSURE = 1000;
+    /** The server is going down, or the client navigated away. */
+    public static final int GOING_AWAY = 1001;
+    /** A frame broke the protocol. */
+    public static final int PROTOCOL_ERROR = 1002;
+    /** The close frame had no status code. Never sent. */
+    public static final int NO_STATUS = 1005;
+    /** The connection was lost without a close frame. Never sent. */
+    public static final int ABNORMAL_CLOSURE = 1006;
+    /** A text message wasn't UTF-8, or compressed data was corrupt. */
+    public static final int INVALID_DATA = 1007;
+    /** A message was bigger than the most allowed. */
+    public static final int MESSAGE_TOO_BIG = 1009;
+    /** The listener failed handling a message. */
+    public static final int INTERNAL_ERROR = 1011;
+
+    /** The largest message accepted, by default. */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    /** The largest frame sent, by default. Longer messages are fragmented. */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+    /** How often the client is pinged, by default, in milliseconds. */
+    public static final long DEFAULT_PING_INTERVAL = 30000;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String DEFLATE = "permessage-deflate";
+
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+
+    // how long to wait for the client to answer a close frame
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    // the end of every flushed deflate block, left off compressed messages
+    private static final byte[] DEFLATE_TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final HttpConnection connection;
+    private final HttpRequest request;
+    private final WebSocketListener listener;
+    private final boolean compressed;
+    private final boolean resetDeflater;
+
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long pingInterval = DEFAULT_PING_INTERVAL;
+
+    // set once the connection's handed over
+    private DataInputStream in;
+    private Executor executor;
+    private TimerWheel timer;
+    private long writeTimeout;
+
+    // guarded by writeLock
+    private final Object writeLock = new Object();
+    private OutputStream out;
+    private Deflater deflater;
+    private boolean closeSent = false;
+
+    // only used by the reading thread
+    private Inflater inflater;
+    private int closeCode = ABNORMAL_CLOSURE;
+    private String closeReason = "";
+
+    // guarded by this
+    private boolean closed = false;
+    private TimerWheel.Timeout pinger;
+
+    private volatile long lastHeard;
+
+    private Logger logger = Logger.getLogger("java-httpserver");
+
+
+    /**
+     * @param extension The permessage-deflate extension agreed on, or null
+     *                  if messages aren't compressed.
+     * @see WebSocket#negotiateDeflate
+     */
+    WebSocket(HttpConnection connection, HttpRequest request, WebSocketListener listener,
+            String extension) {
+        this.connection = connection;
+        this.request = request;
+        this.listener = listener;
+        this.compressed = extension != null;
+        this.resetDeflater = extension != null && extension.contains("server_no_context_takeover");
+    }
+
+
+    /**
+     * Send a text message.
+     * @throws IOException  If the socket is closed, or the client went away.
+     */
+    public void sendText(String message) throws IOException {
+        sendMessage(TEXT, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send a binary message.
+     * @throws IOException  If the socket is closed, or the client went away.
+     */
+    public void sendBinary(byte[] message) throws IOException {
+        sendMessage(BINARY, message);
+    }
+
+    /**
+     * Ping the client. Its answer is passed to
+     * {@link WebSocketListener#onPong}.
+     *
+     * @param payload Up to 125 bytes, sent back in the pong.
+     * @throws IOException  If the socket is closed, or the client went away.
+     */
+    public void ping(byte[] payload) throws IOException {
+        if (payload.length > 125) {
+            throw new IllegalArgumentException("A ping's payload can't be more than 125 bytes.");
+        }
+
+        synchronized (writeLock) {
+            checkWritable();
+            writeControl(PING, payload);
+        }
+    }
+
+    /**
+     * Close the socket normally.
+     * @see WebSocket#close(int, String)
+     */
+    @Override
+    public void close() {
+        close(NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Start closing the socket. The client is sent a close frame, and the
+     * connection is closed once it answers, or after a few seconds if it
+     * doesn't. Nothing more can be sent.
+     *
+     * @param code   Why the socket is closing, like {@link #NORMAL_CLOSURE},
+     *               or a code from 4000 to 4999 for the application's own.
+     * @param reason A short explanation, up to 123 bytes of UTF-8.
+     */
+    public void close(int code, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        if (reasonBytes.length > 123) {
+            throw new IllegalArgumentException("A close reason can't be more than 123 bytes.");
+        }
+
+        if (!sendClose(code, reasonBytes)) {
+            return;
+        }
+
+        if (timer != null) {
+            timer.schedule(new Runnable() {
+                @Override public void run() {
+                    connection.closeDetached();
+                }
+            }, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Whether messages can still be sent.
+     */
+    public boolean isOpen() {
+        synchronized (writeLock) {
+            return out != null && !closeSent;
+        }
+    }
+
+    /**
+     * Get the request that asked for the upgrade, for its path, params, and
+     * headers.
+     */
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Whether messages are compressed with permessage-deflate.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Set the largest message accepted from the client, after it's put
+     * together and decompressed. Larger messages close the socket with
+     * {@link #MESSAGE_TOO_BIG}.
+     * @param bytes The largest size, in bytes.
+     */
+    public void setMaxMessageSize(int bytes) {
+        maxMessageSize = bytes;
+    }
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Set the largest frame sent. Longer messages are sent as fragments.
+     * @param bytes The largest payload of a frame, in bytes.
+     */
+    public void setMaxFrameSize(int bytes) {
+        maxFrameSize = bytes;
+    }
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Set how often the client is pinged, when the socket opens. A client
+     * that hasn't sent anything for two intervals is disconnected.
+     * @param millis The interval, in milliseconds, or 0 for no pings.
+     */
+    public void setPingInterval(long millis) {
+        pingInterval = millis;
+    }
+    public long getPingInterval() {
+        return pingInterval;
+    }
+
+
+    /**
+     * Work out the Sec-WebSocket-Accept header for a handshake.
+     * @param key The client's Sec-WebSocket-Key.
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Pick the first permessage-deflate offer that can be accepted.
+     *
+     * @param offers The Sec-WebSocket-Extensions headers the client sent.
+     * @return The extension to send back, or null to not compress.
+     */
+    static String negotiateDeflate(List<String> offers) {
+        for (String header : offers) {
+            for (String offer : header.split(",")) {
+                String extension = acceptDeflate(offer);
+                if (extension != null) {
+                    return extension;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static String acceptDeflate(String offer) {
+        String[] params = offer.split(";");
+        if (!params[0].trim().equalsIgnoreCase(DEFLATE)) {
+            return null;
+        }
+
+        StringBuilder accepted = new StringBuilder(DEFLATE);
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            int equals = param.indexOf('=');
+            String name = (equals == -1 ? param : param.substring(0, equals)).trim();
+            String value = equals == -1 ? null : param.substring(equals + 1).trim().replace("\"", "");
+
+            if (name.equalsIgnoreCase("server_no_context_takeover")) {
+                accepted.append("; server_no_context_takeover");
+            } else if (name.equalsIgnoreCase("client_no_context_takeover")) {
+                // the client just won't refer back to earlier messages
+            } else if (name.equalsIgnoreCase("client_max_window_bits")) {
+                // a smaller window on the client's side is always fine
+            } else if (name.equalsIgnoreCase("server_max_window_bits")) {
+                // Java's Deflater always uses the largest window
+                if (!"15".equals(value)) {
+                    return null;
+                }
+                accepted.append("; server_max_window_bits=15");
+            } else {
+                return null;
+            }
+        }
+
+        return accepted.toString();
+    }
+
+
+    /**
+     * Called by the connection, while it hands itself over, with the
+     * connection's streams.
+     *
+     * @param socketInput  What's left to read of the connection, starting
+     *                     with anything the client sent after its handshake.
+     */
+    void start(InputStream socketInput, OutputStream socketOutput, Executor executor,
+            TimerWheel timer, long writeTimeout) {
+        this.in = new DataInputStream(new BufferedInputStream(socketInput));
+        this.executor = executor;
+        this.timer = timer;
+        this.writeTimeout = writeTimeout;
+
+        synchronized (writeLock) {
+            this.out = new BufferedOutputStream(socketOutput);
+        }
+    }
+
+    /**
+     * Read messages until the socket closes. Runs on the thread that read
+     * the handshake, on the server's executor.
+     */
+    void run() {
+        lastHeard = System.nanoTime();
+        schedulePing();
+
+        try {
+            listener.onOpen(this);
+            readFrames();
+        } catch (CloseException e) {
+            logger.log(Level.FINE, "Closing a WebSocket.", e);
+            notifyError(e);
+
+            closeCode = e.getCode();
+            closeReason = e.getMessage();
+            sendClose(closeCode, closeReason.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.log(Level.FINE, "WebSocket client went away.", e);
+        } catch (RuntimeException e) {
+            notifyError(e);
+            closeCode = INTERNAL_ERROR;
+            sendClose(closeCode, EMPTY);
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Read frames, passing on each message once it's all there, until the
+     * client sends a close frame.
+     */
+    private void readFrames() throws IOException {
+        ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+        int messageType = -1;
+        boolean messageCompressed = false;
+        byte[] mask = new byte[4];
+
+        while (true) {
+            int first = in.read();
+            if (first == -1) {
+                throw new EOFException("The client closed the connection without a close frame.");
+            }
+            int second = in.readUnsignedByte();
+
+            boolean fin = (first & 0x80) != 0;
+            boolean rsv1 = (first & 0x40) != 0;
+            int opcode = first & 0x0F;
+
+            if ((first & 0x30) != 0) {
+                throw new CloseException(PROTOCOL_ERROR, "Reserved bits are set");
+            }
+            if ((second & 0x80) == 0) {
+                throw new CloseException(PROTOCOL_ERROR, "Client frames must be masked");
+            }
+
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+                if (length < 0) {
+                    throw new CloseException(PROTOCOL_ERROR, "Bad frame length");
+                }
+            }
+            in.readFully(mask);
+
+            if (opcode >= CLOSE) {
+                // control frames can come between a message's fragments
+                if (!fin || rsv1 || length > 125) {
+                    throw new CloseException(PROTOCOL_ERROR, "Bad control frame");
+                }
+
+                byte[] payload = readPayload((int) length, mask);
+                lastHeard = System.nanoTime();
+
+                if (opcode == CLOSE) {
+                    readClose(payload);
+                    return;
+                } else if (opcode == PING) {
+                    synchronized (writeLock) {
+                        if (!closeSent) {
+                            writeControl(PONG, payload);
+                        }
+                    }
+                } else if (opcode == PONG) {
+                    listener.onPong(this, payload);
+                } else {
+                    throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+                }
+                continue;
+            }
+
+            if (opcode == CONTINUATION) {
+                if (messageType == -1 || rsv1) {
+                    throw new CloseException(PROTOCOL_ERROR, "Unexpected continuation frame");
+                }
+            } else if (opcode == TEXT || opcode == BINARY) {
+                if (messageType != -1) {
+                    throw new CloseException(PROTOCOL_ERROR, "Expected a continuation frame");
+                }
+                if (rsv1 && !compressed) {
+                    throw new CloseException(PROTOCOL_ERROR, "Compression wasn't negotiated");
+                }
+
+                messageType = opcode;
+                messageCompressed = rsv1;
+            } else {
+                throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+
+            if (fragments.size() + length > maxMessageSize) {
+                throw new CloseException(MESSAGE_TOO_BIG, "Message too big");
+            }
+
+            byte[] payload = readPayload((int) length, mask);
+            lastHeard = System.nanoTime();
+
+            if (!fin) {
+                fragments.write(payload, 0, payload.length);
+                continue;
+            }
+
+            byte[] message = payload;
+            if (fragments.size() > 0) {
+                fragments.write(payload, 0, payload.length);
+                message = fragments.toByteArray();
+                fragments.reset();
+            }
+
+            if (messageCompressed) {
+                message = inflate(message);
+            }
+
+            int type = messageType;
+            messageType = -1;
+
+            // once the socket's closing, the rest of the messages are dropped
+            if (isOpen()) {
+                if (type == TEXT) {
+                    listener.onText(this, decode(message));
+                } else {
+                    listener.onBinary(this, message);
+                }
+            }
+        }
+    }
+
+    private byte[] readPayload(int length, byte[] mask) throws IOException {
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        for (int i = 0; i < length; i++) {
+            payload[i] ^= mask[i & 3];
+        }
+        return payload;
+    }
+
+    /**
+     * The client sent a close frame. Answer it, if the server didn't start
+     * closing first.
+     */
+    private void readClose(byte[] payload) throws IOException {
+        if (payload.length == 1) {
+            throw new CloseException(PROTOCOL_ERROR, "Bad close frame");
+        }
+
+        int code = NO_STATUS;
+        String reason = "";
+        if (payload.length >= 2) {
+            code = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+            if (!isValidCloseCode(code)) {
+                throw new CloseException(PROTOCOL_ERROR, "Bad close code " + code);
+            }
+            reason = decode(Arrays.copyOfRange(payload, 2, payload.length));
+        }
+
+        closeCode = code;
+        closeReason = reason;
+        sendClose(code == NO_STATUS ? NORMAL_CLOSURE : code, EMPTY);
+    }
+
+    private static boolean isValidCloseCode(int code) {
+        if (code >= 3000 && code <= 4999) {
+            return true;
+        }
+
+        return code >= 1000 && code <= 1011 && code != 1004 && code != NO_STATUS
+                && code != ABNORMAL_CLOSURE;
+    }
+
+    private static String decode(byte[] bytes) throws CloseException {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes)).toString();
+        } catch (CharacterCodingException e) {
+            throw new CloseException(INVALID_DATA, "Text must be UTF-8");
+        }
+    }
+
+    private byte[] inflate(byte[] message) throws CloseException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+
+        byte[] input = Arrays.copyOf(message, message.length + DEFLATE_TAIL.length);
+        System.arraycopy(DEFLATE_TAIL, 0, input, message.length, DEFLATE_TAIL.length);
+        inflater.setInput(input);
+
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream(message.length * 2);
+        byte[] chunk = new byte[8192];
+        try {
+            while (true) {
+                int read = inflater.inflate(chunk);
+                inflated.write(chunk, 0, read);
+
+                if (inflated.size() > maxMessageSize) {
+                    throw new CloseException(MESSAGE_TOO_BIG, "Message too big");
+                }
+
+                if (read == 0) {
+                    if (inflater.finished()) {
+                        // the client ended its deflate stream, the next
+                        // message starts a new one
+                        inflater.reset();
+                        break;
+                    } else if (inflater.needsInput()) {
+                        break;
+                    } else if (inflater.needsDictionary()) {
+                        throw new CloseException(INVALID_DATA, "Bad compressed data");
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new CloseException(INVALID_DATA, "Bad compressed data");
+        }
+
+        return inflated.toByteArray();
+    }
+
+    private void notifyError(Throwable error) {
+        try {
+            listener.onError(this, error);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "WebSocket error listener failed.", e);
+        }
+    }
+
+    /**
+     * The socket's done. Close the connection and let the listener know.
+     */
+    private void finish() {
+        synchronized (this) {
+            closed = true;
+            if (pinger != null) {
+                pinger.cancel();
+                pinger = null;
+            }
+        }
+
+        synchronized (writeLock) {
+            closeSent = true;
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+
+        if (inflater != null) {
+            inflater.end();
+        }
+
+        connection.closeDetached();
+
+        try {
+            listener.onClose(this, closeCode, closeReason);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "WebSocket close listener failed.", e);
+        }
+    }
+
+
+    private void sendMessage(int opcode, byte[] message) throws IOException {
+        synchronized (writeLock) {
+            checkWritable();
+
+            byte[] payload = compressed ? deflate(message) : message;
+
+            TimerWheel.Timeout deadline = writeDeadline();
+            try {
+                int offset = 0;
+                do {
+                    int length = Math.min(maxFrameSize, payload.length - offset);
+                    boolean fin = offset + length == payload.length;
+
+                    writeFrame(offset == 0 ? opcode : CONTINUATION, fin, compressed && offset == 0,
+                            payload, offset, length);
+                    offset += length;
+                } while (offset < payload.length);
+
+                out.flush();
+            } finally {
+                if (deadline != null) {
+                    deadline.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a close frame, unless one's been sent already.
+     * @return whether it was sent.
+     */
+    private boolean sendClose(int code, byte[] reason) {
+        synchronized (writeLock) {
+            if (out == null || closeSent) {
+                return false;
+            }
+            closeSent = true;
+
+            byte[] payload = new byte[2 + reason.length];
+            payload[0] = (byte) (code >>> 8);
+            payload[1] = (byte) code;
+            System.arraycopy(reason, 0, payload, 2, reason.length);
+
+            try {
+                writeControl(CLOSE, payload);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "WebSocket client went away.", e);
+                connection.closeDetached();
+            }
+            return true;
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (out == null) {
+            throw new IllegalStateException("The WebSocket isn't open yet.");
+        } else if (closeSent) {
+            throw new IOException("The WebSocket is closed.");
+        }
+    }
+
+    // only called while holding writeLock
+    private void writeControl(int opcode, byte[] payload) throws IOException {
+        TimerWheel.Timeout deadline = writeDeadline();
+        try {
+            writeFrame(opcode, true, false, payload, 0, payload.length);
+            out.flush();
+        } finally {
+            if (deadline != null) {
+                deadline.cancel();
+            }
+        }
+    }
+
+    // only called while holding writeLock
+    private void writeFrame(int opcode, boolean fin, boolean rsv1, byte[] payload, int offset,
+            int length) throws IOException {
+        byte[] header = new byte[10];
+        header[0] = (byte) ((fin ? 0x80 : 0) | (rsv1 ? 0x40 : 0) | opcode);
+
+        int headerLength;
+        if (length < 126) {
+            header[1] = (byte) length;
+            headerLength = 2;
+        } else if (length <= 0xFFFF) {
+            header[1] = 126;
+            header[2] = (byte) (length >>> 8);
+            header[3] = (byte) length;
+            headerLength = 4;
+        } else {
+            header[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                header[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+            headerLength = 10;
+        }
+
+        // server frames aren't masked
+        out.write(header, 0, headerLength);
+        out.write(payload, offset, length);
+    }
+
+    // only called while holding writeLock
+    private byte[] deflate(byte[] message) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+
+        deflater.setInput(message);
+
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(message.length / 2 + 16);
+        byte[] chunk = new byte[8192];
+        int written;
+        do {
+            written = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+            deflated.write(chunk, 0, written);
+        } while (written == chunk.length || !deflater.needsInput());
+
+        if (resetDeflater) {
+            deflater.reset();
+        }
+
+        // a sync flush always ends with an empty block, which is left off
+        byte[] bytes = deflated.toByteArray();
+        return Arrays.copyOf(bytes, bytes.length - DEFLATE_TAIL.length);
+    }
+
+    private TimerWheel.Timeout writeDeadline() {
+        if (timer == null || writeTimeout <= 0) {
+            return null;
+        }
+
+        return timer.schedule(new Runnable() {
+            @Override public void run() {
+                logger.fine("Closing a WebSocket that timed out writing.");
+                connection.closeDetached();
+            }
+        }, writeTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void schedulePing() {
+        if (closed || timer == null || pingInterval <= 0) {
+            return;
+        }
+
+        pinger = timer.schedule(new Runnable() {
+            @Override public void run() {
+                long silent = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeard);
+                if (silent > 2 * pingInterval) {
+                    logger.fine("Closing a WebSocket that stopped answering pings.");
+                    connection.closeDetached();
+                    return;
+                }
+
+                // Runs on the timer's thread, which mustn't block writing.
+                try {
+                    executor.execute(new Runnable() {
+                        @Override public void run() {
+                            try {
+                                ping(EMPTY);
+                            } catch (IOException e) {
+                                // closing anyway
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // the server's executor is shutting down
+                    connection.closeDetached();
+                    return;
+                }
+
+                schedulePing();
+            }
+        }, pingInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Thrown when the socket has to be closed with a particular code.
+     */
+    private static class CloseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        CloseException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+        int getCode() {
+            return code;
+        }
+    }
+}
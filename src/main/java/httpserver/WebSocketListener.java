@@ -0,0 +1,50 @@
+package httpserver;
+
+/**
+ * A WebSocketListener is told about everything that happens on a
+ * {@link WebSocket}. Override whichever methods are needed, the rest do
+ * nothing. <p>
+ *
+ * Every method is called on the server's executor, from the thread reading
+ * the socket, so messages arrive one at a time, in order. A listener that
+ * takes a long time holds up the socket's next message, including pings.
+ *
+ * @see WebSocketRoute
+ */
+public abstract class WebSocketListener {
+
+    /**
+     * Called once the handshake is done, before any messages.
+     */
+    public void onOpen(WebSocket socket) { }
+
+    /**
+     * Called for each text message, after its fragments are put together.
+     */
+    public void onText(WebSocket socket, String message) { }
+
+    /**
+     * Called for each binary message, after its fragments are put together.
+     */
+    public void onBinary(WebSocket socket, byte[] message) { }
+
+    /**
+     * Called when the client answers a ping.
+     */
+    public void onPong(WebSocket socket, byte[] payload) { }
+
+    /**
+     * Called when something goes wrong, including a listener method
+     * throwing. The socket is closed afterwards.
+     */
+    public void onError(WebSocket socket, Throwable error) { }
+
+    /**
+     * Called once the socket is closed, however it was closed.
+     *
+     * @param code   The close code, {@link WebSocket#ABNORMAL_CLOSURE} if
+     *               the connection was lost without a close frame.
+     * @param reason The reason the other side gave, or an empty String.
+     */
+    public void onClose(WebSocket socket, int code, String reason) { }
+}
@@ -0,0 +1,121 @@
+package httpserver;
+
+import java.util.Base64;
+
+/**
+ * A WebSocketRoute accepts WebSocket connections on a path. It checks the
+ * client's handshake, and {@link #accept accepts} it or turns it away:
+ *
+ * <pre>
+ * server.get(new WebSocketRoute("/dashboard/{name}") {
+ *     &#64;Override public WebSocketListener accept(HttpRequest request) {
+ *         return new WebSocketListener() {
+ *             &#64;Override public void onText(WebSocket socket, String message) {
+ *                 ...
+ *             }
+ *         };
+ *     }
+ * });
+ * </pre>
+ *
+ * Requests to the path that aren't handshakes are answered with a 426
+ * (Upgrade Required).
+ *
+ * @see WebSocket
+ */
+public abstract class WebSocketRoute extends Route {
+    private static final String VERSION = "13";
+
+    private boolean deflate = true;
+
+
+    public WebSocketRoute(String path) {
+        super(path);
+    }
+
+
+    /**
+     * Decide whether to accept a WebSocket, once its handshake is checked.
+     * The request's route params are set, as usual.
+     *
+     * @param request The handshake.
+     * @return What's told about the socket's messages, or null to turn the
+     *         client away with a 403 (Forbidden).
+     */
+    public abstract WebSocketListener accept(HttpRequest request);
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response) {
+        HttpHeaders headers = request.getHeaders();
+
+        if (!"websocket".equalsIgnoreCase(trim(headers.get("Upgrade")))
+                || !hasToken(headers.get("Connection"), "upgrade")) {
+            response.setHeader("Upgrade", "websocket");
+            response.message(426, "This path only accepts WebSockets");
+            return;
+        }
+
+        if (!VERSION.equals(trim(headers.get("Sec-WebSocket-Version")))) {
+            response.setHeader("Sec-WebSocket-Version", VERSION);
+            response.message(426, "Unsupported WebSocket version");
+            return;
+        }
+
+        if (!isValidKey(headers.get("Sec-WebSocket-Key"))) {
+            response.message(400, "Bad Sec-WebSocket-Key");
+            return;
+        }
+
+        WebSocketListener listener = accept(request);
+        if (listener == null) {
+            response.message(403, "WebSocket refused");
+            return;
+        }
+
+        response.upgradeToWebSocket(listener, deflate);
+    }
+
+    /**
+     * Set whether messages are compressed with permessage-deflate, when the
+     * client offers it. On by default.
+     */
+    public void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+    public boolean isDeflate() {
+        return deflate;
+    }
+
+
+    private static String trim(String value) {
+        return value == null ? null : value.trim();
+    }
+
+    private static boolean hasToken(String header, String token) {
+        if (header == null) {
+            return false;
+        }
+
+        for (String part : header.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A key is 16 random bytes, base64 encoded.
+     */
+    private static boolean isValidKey(String key) {
+        if (key == null) {
+            return false;
+        }
+
+        try {
+            return Base64.getDecoder().decode(key.trim()).length == 16;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
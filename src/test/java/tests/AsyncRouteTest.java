@@ -0,0 +1,148 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.AsyncRoute;
+import httpserver.HttpException;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockClient;
+import tests.mocks.MockResponse;
+
+public class AsyncRouteTest {
+    public static final int PORT = 4458;
+
+    private static HttpServer server;
+    private static ScheduledExecutorService backend;
+
+    private static volatile CompletableFuture<Void> forgotten;
+    private static final CountDownLatch forgottenStarted = new CountDownLatch(1);
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        backend = Executors.newScheduledThreadPool(2);
+
+        server = new HttpServer(PORT);
+
+        server.get(new AsyncRoute("/later/{name}") {
+            @Override public CompletionStage<?> handleAsync(HttpRequest request, final HttpResponse response) {
+                final String name = request.getParam("name");
+                final CompletableFuture<Void> done = new CompletableFuture<>();
+                backend.schedule(new Runnable() {
+                    @Override public void run() {
+                        response.setBody("Hello " + name);
+                        done.complete(null);
+                    }
+                }, 50, TimeUnit.MILLISECONDS);
+                return done;
+            }
+        });
+
+        AsyncRoute slow = new AsyncRoute("/slow") {
+            @Override public CompletionStage<?> handleAsync(HttpRequest request, HttpResponse response) {
+                return new CompletableFuture<Void>();
+            }
+        };
+        slow.setTimeout(200);
+        server.get(slow);
+
+        server.get(new AsyncRoute("/missing") {
+            @Override public CompletionStage<?> handleAsync(HttpRequest request, HttpResponse response) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new HttpException(404, "Nothing here"));
+                return failed;
+            }
+        });
+
+        server.get(new AsyncRoute("/broken") {
+            @Override public CompletionStage<?> handleAsync(HttpRequest request, HttpResponse response) {
+                return CompletableFuture.runAsync(new Runnable() {
+                    @Override public void run() {
+                        throw new IllegalStateException("Broken");
+                    }
+                }, backend);
+            }
+        });
+
+        server.get(new AsyncRoute("/forgotten") {
+            @Override public CompletionStage<?> handleAsync(HttpRequest request, HttpResponse response) {
+                forgotten = new CompletableFuture<>();
+                forgottenStarted.countDown();
+                return forgotten;
+            }
+        });
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+        backend.shutdownNow();
+    }
+
+    @Test
+    public void testCompletesOnAnotherThread() throws Exception {
+        MockClient client = new MockClient();
+        client.setKeepAlive(true);
+
+        // the connection picks back up where it left off, and is kept alive
+        for (String name : new String[] { "Don", "Mike" }) {
+            client.setPath("/later/" + name);
+            MockResponse response = client.send("127.0.0.1", PORT);
+            assertEquals(200, response.getCode());
+            assertEquals("Hello " + name, response.getBodyString());
+        }
+        client.close();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        MockClient client = new MockClient();
+        client.setPath("/slow");
+
+        MockResponse response = client.send("127.0.0.1", PORT);
+        assertEquals(504, response.getCode());
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        MockClient client = new MockClient();
+
+        client.setPath("/missing");
+        assertEquals(404, client.send("127.0.0.1", PORT).getCode());
+
+        client.setPath("/broken");
+        assertEquals(500, client.send("127.0.0.1", PORT).getCode());
+    }
+
+    @Test
+    public void testDisconnectCancels() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            socket.getOutputStream().write("GET /forgotten HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertTrue(forgottenStarted.await(2, TimeUnit.SECONDS));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!forgotten.isCancelled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(forgotten.isCancelled());
+    }
+}
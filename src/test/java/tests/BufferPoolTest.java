@@ -0,0 +1,114 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.BufferPool;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.Route;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import tests.mocks.MockClient;
+import tests.mocks.MockResponse;
+
+public class BufferPoolTest {
+    public static final int PORT = 4457;
+
+    @Test
+    public void testBuffersAreReusedAndGivenBack() throws Exception {
+        BufferPool pool = new BufferPool();
+        pool.setLeakDetection(true);
+
+        HttpServer server = new HttpServer(PORT);
+        server.setBufferPool(pool);
+        server.post(new Route("/echo") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody(request.getParam("message"));
+            }
+        });
+        HttpServerTest.startServer(server);
+
+        try {
+            MockClient client = new MockClient();
+            client.setKeepAlive(true);
+            client.setRequestType("POST");
+            client.setPath("/echo");
+            client.getHeaders().put("Content-Type", "application/x-www-form-urlencoded");
+            client.getPostData().put("message", "Hello World!");
+
+            for (int i = 0; i < 20; i++) {
+                MockResponse response = client.send("127.0.0.1", PORT);
+                assertEquals("Hello World!", response.getBodyString());
+            }
+            client.close();
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+
+        // every response after the first reused the same buffer
+        assertTrue(pool.getReused() >= 19);
+        assertTrue(pool.getAllocated() < 5);
+
+        assertEquals(0, pool.reportLeaks().size());
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test
+    public void testLeakDetectionTurnedOnMidRequest() throws Exception {
+        final BufferPool pool = new BufferPool();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch detecting = new CountDownLatch(1);
+
+        HttpServer server = new HttpServer(PORT);
+        server.setBufferPool(pool);
+        server.get(new Route("/wait") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                started.countDown();
+                try {
+                    detecting.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setBody("done");
+            }
+        });
+        HttpServerTest.startServer(server);
+
+        final AtomicReference<MockResponse> result = new AtomicReference<>();
+        Thread clientThread = new Thread() {
+            @Override public void run() {
+                try {
+                    MockClient client = new MockClient();
+                    client.setPath("/wait");
+                    result.set(client.send("127.0.0.1", PORT));
+                } catch (Exception e) {
+                    // checked below
+                }
+            }
+        };
+
+        try {
+            clientThread.start();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            // the connection's read buffer was taken before this, so it
+            // isn't tracked, and giving it back is fine
+            pool.setLeakDetection(true);
+            detecting.countDown();
+            clientThread.join(5000);
+
+            assertEquals("done", result.get().getBodyString());
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+
+        assertEquals(0, pool.reportLeaks().size());
+        assertEquals(0, pool.getOutstanding());
+    }
+}
@@ -0,0 +1,169 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.ConcurrencyLimiter;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.Route;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockClient;
+import tests.mocks.MockResponse;
+
+public class ConcurrencyLimiterTest {
+    public static final int PORT = 4461;
+
+    private static HttpServer server;
+
+    // holds /blocked requests until it's let go
+    private static volatile CountDownLatch release = new CountDownLatch(0);
+    private static volatile CountDownLatch started = new CountDownLatch(0);
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new HttpServer(PORT);
+
+        server.get(new Route("/blocked") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setBody("Finally");
+            }
+        });
+
+        server.get(new Route("/slow") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setBody("Slow");
+            }
+        });
+
+        server.get(new Route("/fast") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Fast");
+            }
+        });
+
+        Route health = new Route("/health") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("OK");
+            }
+        };
+        health.setPriority(ConcurrencyLimiter.CRITICAL);
+        server.get(health);
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testShedsOverLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        limiter.setMinLimit(2);
+        limiter.setMaxLimit(2);
+        limiter.setLimit(2);
+        server.setConcurrencyLimiter(limiter);
+
+        release = new CountDownLatch(1);
+        started = new CountDownLatch(2);
+        Thread[] blocked = new Thread[2];
+        final int[] codes = new int[2];
+        try {
+            for (int i = 0; i < blocked.length; i++) {
+                final int index = i;
+                blocked[i] = new Thread() {
+                    @Override public void run() {
+                        try {
+                            MockClient client = new MockClient();
+                            client.setPath("/blocked");
+                            codes[index] = client.send("127.0.0.1", PORT).getCode();
+                        } catch (Exception e) {
+                            codes[index] = -1;
+                        }
+                    }
+                };
+                blocked[i].start();
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(2, limiter.getInFlight());
+
+            MockClient client = new MockClient();
+            client.setPath("/fast");
+            MockResponse shed = client.send("127.0.0.1", PORT);
+            assertEquals(503, shed.getCode());
+            assertEquals("1", shed.getHeader("Retry-After"));
+            assertEquals(1, limiter.getShed());
+
+            // health checks are always answered
+            client.setPath("/health");
+            assertEquals(200, client.send("127.0.0.1", PORT).getCode());
+        } finally {
+            release.countDown();
+            for (Thread thread : blocked) {
+                thread.join(5000);
+            }
+            server.setConcurrencyLimiter(null);
+        }
+
+        assertEquals(200, codes[0]);
+        assertEquals(200, codes[1]);
+        assertEquals(0, awaitIdle(limiter));
+    }
+
+    @Test
+    public void testLimitShrinksWhenSlow() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        server.setConcurrencyLimiter(limiter);
+        try {
+            MockClient client = new MockClient();
+            client.setKeepAlive(true);
+
+            client.setPath("/fast");
+            for (int i = 0; i < 100; i++) {
+                assertEquals(200, client.send("127.0.0.1", PORT).getCode());
+            }
+
+            client.setPath("/slow");
+            for (int i = 0; i < 60; i++) {
+                assertEquals(200, client.send("127.0.0.1", PORT).getCode());
+            }
+            client.close();
+
+            assertTrue(limiter.getLimit() < 20);
+            assertEquals(0, awaitIdle(limiter));
+        } finally {
+            server.setConcurrencyLimiter(null);
+        }
+    }
+
+    /**
+     * Wait for the server to finish up, which it does just after the client
+     * has its response.
+     */
+    private static int awaitIdle(ConcurrencyLimiter limiter) throws InterruptedException {
+        for (int i = 0; i < 100 && limiter.getInFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        return limiter.getInFlight();
+    }
+}
@@ -0,0 +1,126 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.AsyncRoute;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.Route;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockClient;
+import tests.mocks.MockResponse;
+
+public class DeadlineTest {
+    public static final int PORT = 4462;
+
+    private static HttpServer server;
+
+    private static volatile boolean interrupted = false;
+    private static volatile long seenDeadline = 0;
+    private static volatile CompletableFuture<Void> future;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new HttpServer(PORT);
+        server.getTimeouts().setHandlerTimeout(300);
+
+        Route stuck = new Route("/stuck") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                seenDeadline = request.getDeadline();
+                response.setHeader("X-Half-Done", "yes");
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                response.setBody("Too late");
+            }
+        };
+        stuck.setDeadline(200);
+        server.get(stuck);
+
+        // only has the server's timeout
+        server.get(new Route("/also-stuck") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    response.setBody("Interrupted");
+                }
+            }
+        });
+
+        Route unlimited = new Route("/unlimited") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody(Long.toString(request.getTimeRemaining()));
+            }
+        };
+        unlimited.setDeadline(0);
+        server.get(unlimited);
+
+        AsyncRoute never = new AsyncRoute("/never") {
+            @Override public CompletionStage<?> handleAsync(HttpRequest request, HttpResponse response) {
+                future = new CompletableFuture<>();
+                return future;
+            }
+        };
+        never.setDeadline(200);
+        server.get(never);
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testStuckHandlerInterrupted() throws Exception {
+        MockClient client = new MockClient();
+        client.setPath("/stuck");
+
+        long start = System.currentTimeMillis();
+        MockResponse response = client.send("127.0.0.1", PORT);
+        long took = System.currentTimeMillis() - start;
+
+        assertEquals(504, response.getCode());
+        assertEquals(null, response.getHeader("X-Half-Done"));
+        assertTrue(took < 3000);
+        assertTrue(interrupted);
+
+        // handlers see when they have to be done by
+        assertTrue(seenDeadline > start);
+        assertTrue(seenDeadline < start + 1000);
+    }
+
+    @Test
+    public void testServerTimeout() throws Exception {
+        MockClient client = new MockClient();
+        client.setPath("/also-stuck");
+        assertEquals(504, client.send("127.0.0.1", PORT).getCode());
+
+        // the interrupt doesn't carry over to the next request
+        client.setPath("/unlimited");
+        MockResponse response = client.send("127.0.0.1", PORT);
+        assertEquals(200, response.getCode());
+        assertEquals("-1", response.getBodyString());
+    }
+
+    @Test
+    public void testAsyncStageCancelled() throws Exception {
+        MockClient client = new MockClient();
+        client.setPath("/never");
+        assertEquals(504, client.send("127.0.0.1", PORT).getCode());
+        assertTrue(future.isCancelled());
+    }
+}
@@ -0,0 +1,169 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.EventChannel;
+import httpserver.EventStream;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.Route;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class EventStreamTest {
+    public static final int PORT = 4450;
+
+    private static HttpServer server;
+    private static volatile EventChannel channel;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new HttpServer(PORT);
+
+        server.get(new Route("/events") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                EventStream stream = response.startEventStream();
+                stream.setHeartbeatInterval(200);
+                stream.setMaxQueuedBytes(128 * 1024);
+                channel.subscribe(stream);
+            }
+        });
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Before
+    public void newChannel() {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = new EventChannel(10);
+    }
+
+    @Test
+    public void testEventsArePushed() throws Exception {
+        try (Socket socket = subscribe(null)) {
+            InputStream in = socket.getInputStream();
+
+            String headers = readBlock(in);
+            assertTrue(headers, headers.startsWith("HTTP/1.1 200"));
+            assertTrue(headers, headers.contains("Content-Type: text/event-stream"));
+            awaitSubscribers(1);
+
+            long id = channel.publish("greeting", "hello\nworld");
+            assertEquals("id: " + id + "\nevent: greeting\ndata: hello\ndata: world\n\n", readEvent(in));
+        }
+    }
+
+    @Test
+    public void testResumeFromLastEventId() throws Exception {
+        long first = channel.publish("one");
+        channel.publish("two");
+        channel.publish("three");
+
+        try (Socket socket = subscribe(Long.toString(first))) {
+            InputStream in = socket.getInputStream();
+            readBlock(in);
+
+            assertEquals("id: " + (first + 1) + "\ndata: two\n\n", readEvent(in));
+            assertEquals("id: " + (first + 2) + "\ndata: three\n\n", readEvent(in));
+        }
+    }
+
+    @Test
+    public void testHeartbeatsFindClosedClients() throws Exception {
+        Socket socket = subscribe(null);
+        InputStream in = socket.getInputStream();
+        readBlock(in);
+        awaitSubscribers(1);
+
+        assertEquals(":\n\n", readBlock(in));
+
+        socket.close();
+        awaitSubscribers(0);
+    }
+
+    @Test
+    public void testSlowClientIsDisconnected() throws Exception {
+        try (Socket socket = subscribe(null)) {
+            readBlock(socket.getInputStream());
+            awaitSubscribers(1);
+
+            // never read anything else, until the server gives up
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 64 * 1024; i++) {
+                large.append('x');
+            }
+
+            for (int i = 0; i < 1000 && channel.getSubscriberCount() > 0; i++) {
+                channel.publish(large.toString());
+            }
+            awaitSubscribers(0);
+        }
+    }
+
+
+    private static Socket subscribe(String lastEventId) throws IOException {
+        Socket socket = new Socket("127.0.0.1", PORT);
+        String request = "GET /events HTTP/1.1\r\nHost: localhost\r\nAccept: text/event-stream\r\n"
+            + (lastEventId == null ? "" : "Last-Event-ID: " + lastEventId + "\r\n")
+            + "\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        return socket;
+    }
+
+    private static void awaitSubscribers(int count) throws InterruptedException {
+        for (int i = 0; i < 200 && channel.getSubscriberCount() != count; i++) {
+            Thread.sleep(25);
+        }
+        assertEquals(count, channel.getSubscriberCount());
+    }
+
+    /**
+     * Read the next event, skipping heartbeats.
+     */
+    private static String readEvent(InputStream in) throws IOException {
+        String event = readBlock(in);
+        while (event.equals(":\n\n")) {
+            event = readBlock(in);
+        }
+        return event;
+    }
+
+    /**
+     * Read up to and including the next blank line.
+     */
+    private static String readBlock(InputStream in) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        int last = -1;
+        for (int c = in.read(); c != -1; c = in.read()) {
+            if (c == '\r') {
+                continue;
+            }
+
+            block.write(c);
+            if (c == '\n' && last == '\n') {
+                break;
+            }
+            last = c;
+        }
+
+        return block.toString("UTF-8");
+    }
+}
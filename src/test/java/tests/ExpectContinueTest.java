@@ -0,0 +1,144 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.RequestLimits;
+import httpserver.Route;
+import httpserver.Timeouts;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockResponse;
+
+public class ExpectContinueTest {
+    public static final int PORT = 4449;
+
+    private static HttpServer server;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        RequestLimits limits = new RequestLimits();
+        limits.setMaxContentLength(1024);
+
+        Timeouts timeouts = new Timeouts();
+        timeouts.setBodyReadTimeout(1000);
+        timeouts.setMinDataRate(1000);
+        timeouts.setMinDataRateGracePeriod(200);
+
+        server = new HttpServer(PORT);
+        server.setRequestLimits(limits);
+        server.setTimeouts(timeouts);
+
+        server.post(new Route("/echo") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody(request.getRequestBody());
+            }
+        });
+
+        server.post(new Route("/ignore") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.message(403, "Not allowed");
+            }
+        });
+
+        server.post(new Route("/slow") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                try {
+                    Thread.sleep(1500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setBody(request.getRequestBody());
+            }
+        });
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testContinueBeforeBody() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write(headers("/echo", "100-continue", 11));
+
+            // nothing's been sent but the headers, so the server has to ask
+            assertEquals(100, MockResponse.read(in).getCode());
+
+            out.write("hello world".getBytes(StandardCharsets.US_ASCII));
+            MockResponse response = MockResponse.read(in);
+            assertEquals(200, response.getCode());
+            assertEquals("hello world", response.getBodyString());
+        }
+    }
+
+    @Test
+    public void testBodyTimeoutsWaitForContinue() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // the handler takes longer than the body's allowed before it
+            // asks for it, which isn't the client's fault
+            out.write(headers("/slow", "100-continue", 11));
+            assertEquals(100, MockResponse.read(in).getCode());
+
+            out.write("hello world".getBytes(StandardCharsets.US_ASCII));
+            MockResponse response = MockResponse.read(in);
+            assertEquals(200, response.getCode());
+            assertEquals("hello world", response.getBodyString());
+        }
+    }
+
+    @Test
+    public void testUnknownExpectation() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            socket.getOutputStream().write(headers("/echo", "something-else", 11));
+            assertEquals(417, MockResponse.read(socket.getInputStream()).getCode());
+        }
+    }
+
+    @Test
+    public void testTooLargeIsRejectedFirst() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            socket.getOutputStream().write(headers("/echo", "100-continue", 4096));
+            assertEquals(413, MockResponse.read(socket.getInputStream()).getCode());
+        }
+    }
+
+    @Test
+    public void testNoContinueWhenBodyIsUnwanted() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            socket.getOutputStream().write(headers("/ignore", "100-continue", 11));
+
+            MockResponse response = MockResponse.read(socket.getInputStream());
+            assertEquals(403, response.getCode());
+            assertFalse(response.isKeepAlive());
+        }
+    }
+
+    private static byte[] headers(String path, String expect, int length) {
+        return ("POST " + path + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Expect: " + expect + "\r\n"
+                + "Content-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
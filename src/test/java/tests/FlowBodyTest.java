@@ -0,0 +1,144 @@
+package tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.Route;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class FlowBodyTest {
+    public static final int PORT = 4459;
+
+    private static final int CHUNKS = 100;
+
+    private static HttpServer server;
+
+    // the most chunks asked for, but not yet published, at once
+    private static final AtomicLong mostOutstanding = new AtomicLong();
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new HttpServer(PORT);
+        server.setHttp2(true);
+        server.getRequestLimits().setStreamedBodySize(0);
+
+        // sends the upload straight back, as it's read
+        server.post(new Route("/pipe") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setMimeType("application/octet-stream");
+                response.setBodyPublisher(request.getBodyPublisher());
+            }
+        });
+
+        server.get(new Route("/counted") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setSize(CHUNKS * 1000);
+                response.setBodyPublisher(new CountingPublisher());
+            }
+        });
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testPipe() throws Exception {
+        byte[] upload = new byte[300 * 1024];
+        new Random(44).nextBytes(upload);
+
+        for (HttpClient.Version version : new HttpClient.Version[] {
+                HttpClient.Version.HTTP_1_1, HttpClient.Version.HTTP_2 }) {
+            HttpClient client = HttpClient.newBuilder().version(version).build();
+
+            // twice, so the connection's reused
+            for (int i = 0; i < 2; i++) {
+                java.net.http.HttpResponse<byte[]> response = client.send(
+                        java.net.http.HttpRequest.newBuilder(URI.create("http://localhost:" + PORT + "/pipe"))
+                            .POST(BodyPublishers.ofByteArray(upload)).build(),
+                        BodyHandlers.ofByteArray());
+
+                assertEquals(200, response.statusCode());
+                assertArrayEquals(upload, response.body());
+            }
+        }
+    }
+
+    @Test
+    public void testDemandFollowsWrites() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        java.net.http.HttpResponse<byte[]> response = client.send(
+                java.net.http.HttpRequest.newBuilder(URI.create("http://localhost:" + PORT + "/counted")).build(),
+                BodyHandlers.ofByteArray());
+
+        assertEquals(200, response.statusCode());
+        assertEquals(Integer.toString(CHUNKS * 1000),
+                response.headers().firstValue("Content-Length").orElse(null));
+        assertEquals(CHUNKS * 1000, response.body().length);
+
+        // the server never asked for more than a few chunks ahead
+        assertTrue(mostOutstanding.get() > 0);
+        assertTrue(mostOutstanding.get() <= 4);
+    }
+
+
+    /**
+     * Publishes CHUNKS chunks of 1000 bytes, keeping track of how far ahead
+     * it's been asked for.
+     */
+    private static class CountingPublisher implements Flow.Publisher<ByteBuffer> {
+        @Override
+        public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private long outstanding = 0;
+                private int published = 0;
+                private boolean publishing = false;
+
+                @Override public synchronized void request(long n) {
+                    outstanding += n;
+                    if (outstanding > mostOutstanding.get()) {
+                        mostOutstanding.set(outstanding);
+                    }
+
+                    if (publishing) {
+                        return;
+                    }
+
+                    publishing = true;
+                    while (outstanding > 0 && published < CHUNKS) {
+                        outstanding--;
+                        published++;
+                        subscriber.onNext(ByteBuffer.wrap(new byte[1000]));
+                    }
+                    publishing = false;
+
+                    if (published == CHUNKS) {
+                        published++;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override public void cancel() {}
+            });
+        }
+    }
+}
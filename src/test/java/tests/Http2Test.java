@@ -0,0 +1,204 @@
+package tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.Route;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class Http2Test {
+    public static final int PORT = 4452;
+
+    private static final int CONCURRENT = 10;
+
+    private static HttpServer server;
+    private static final CountDownLatch together = new CountDownLatch(CONCURRENT);
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new HttpServer(PORT);
+        server.setHttp2(true);
+
+        server.get(new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Hello " + request.getRequestProtocol());
+            }
+        });
+
+        // only answers once every request is being worked on at once
+        server.get(new Route("/together") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                together.countDown();
+                try {
+                    together.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setBody(Long.toString(together.getCount()));
+            }
+        });
+
+        server.post(new Route("/echo") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                try {
+                    response.setBody(request.getBodyStream().readAllBytes());
+                } catch (IOException e) {
+                    response.error(500, "Couldn't read the body", e);
+                }
+            }
+        });
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testUpgradeAndMultiplex() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+
+        java.net.http.HttpResponse<String> upgraded = client.send(request("/hello").build(),
+                BodyHandlers.ofString());
+        assertEquals(HttpClient.Version.HTTP_2, upgraded.version());
+        assertEquals(200, upgraded.statusCode());
+        assertEquals("Hello HTTP/2.0", upgraded.body());
+
+        // every request shares the upgraded connection, and is handled at once
+        List<CompletableFuture<java.net.http.HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT; i++) {
+            responses.add(client.sendAsync(request("/together").build(), BodyHandlers.ofString()));
+        }
+
+        for (CompletableFuture<java.net.http.HttpResponse<String>> response : responses) {
+            assertEquals(HttpClient.Version.HTTP_2, response.get(10, TimeUnit.SECONDS).version());
+            assertEquals("0", response.get().body());
+        }
+    }
+
+    @Test
+    public void testLargeBodiesRespectFlowControl() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        client.send(request("/hello").build(), BodyHandlers.discarding());
+
+        // several times the default 64KB windows, both ways
+        byte[] body = new byte[300 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i * 31);
+        }
+
+        java.net.http.HttpResponse<byte[]> response = client.send(request("/echo")
+                .POST(java.net.http.HttpRequest.BodyPublishers.ofByteArray(body)).build(),
+                BodyHandlers.ofByteArray());
+        assertEquals(HttpClient.Version.HTTP_2, response.version());
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(body, response.body());
+    }
+
+    @Test
+    public void testPriorKnowledge() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            OutputStream out = socket.getOutputStream();
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, 0x4, 0, 0, new byte[0]);
+
+            // GET /hello, with :authority as a literal
+            byte[] authority = "localhost".getBytes(StandardCharsets.US_ASCII);
+            byte[] block = new byte[5 + authority.length + 7];
+            block[0] = (byte) 0x82;
+            block[1] = (byte) 0x86;
+            block[2] = 0x41;
+            block[3] = (byte) authority.length;
+            System.arraycopy(authority, 0, block, 4, authority.length);
+            int at = 4 + authority.length;
+            block[at++] = 0x04;
+            block[at++] = 6;
+            System.arraycopy("/hello".getBytes(StandardCharsets.US_ASCII), 0, block, at, 6);
+            writeFrame(out, 0x1, 0x5, 1, block);
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            boolean headersSeen = false;
+            while (true) {
+                int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                if (type == 0x1) {
+                    assertEquals(1, streamId);
+                    // :status 200 is the static table's 8th entry
+                    assertEquals(0x88, payload[0] & 0xff);
+                    headersSeen = true;
+                } else if (type == 0x0) {
+                    assertTrue(headersSeen);
+                    assertEquals("Hello HTTP/2.0", new String(payload, StandardCharsets.UTF_8));
+                    assertEquals(0x1, flags & 0x1);
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOffByDefault() throws Exception {
+        HttpServer plain = HttpServerTest.startServer(new HttpServer(PORT + 1));
+        plain.get(new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Hello " + request.getRequestProtocol());
+            }
+        });
+
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            java.net.http.HttpResponse<String> response = client.send(java.net.http.HttpRequest
+                    .newBuilder(URI.create("http://127.0.0.1:" + (PORT + 1) + "/hello")).build(),
+                    BodyHandlers.ofString());
+            assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+            assertEquals("Hello HTTP/1.1", response.body());
+        } finally {
+            plain.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+
+    private static java.net.http.HttpRequest.Builder request(String path) {
+        return java.net.http.HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + PORT + path))
+                .timeout(java.time.Duration.ofSeconds(10));
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        byte[] header = {
+            (byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+            (byte) type, (byte) flags,
+            (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId
+        };
+        out.write(header);
+        out.write(payload);
+        out.flush();
+    }
+}
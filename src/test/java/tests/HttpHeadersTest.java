@@ -0,0 +1,107 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import httpserver.HttpHeaders;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HttpHeadersTest {
+
+    @Test
+    public void testCaseInsensitive() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("content-length", "12");
+        headers.put("X-Custom-Thing", "yes");
+
+        assertEquals("12", headers.get("Content-Length"));
+        assertEquals("12", headers.get("CONTENT-LENGTH"));
+        assertTrue(headers.containsKey("x-custom-thing"));
+        assertFalse(headers.containsKey("x-custom"));
+        assertNull(headers.get("Host"));
+    }
+
+    @Test
+    public void testRepeatedHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Accept", "text/html");
+        headers.add("Host", "localhost");
+        headers.add("accept", "application/json");
+
+        assertEquals(2, headers.size());
+        assertEquals(3, headers.entryCount());
+        assertEquals("text/html", headers.get("Accept"));
+        assertEquals(Arrays.asList("text/html", "application/json"), headers.getAll("ACCEPT"));
+
+        headers.set("Accept", "*/*");
+        assertEquals(Arrays.asList("*/*"), headers.getAll("Accept"));
+        assertEquals(2, headers.entryCount());
+
+        headers.remove("accept");
+        assertEquals(1, headers.size());
+        assertEquals("localhost", headers.get("host"));
+    }
+
+    @Test
+    public void testEntriesKeepTheirOrder() {
+        HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < 40; i++) {
+            headers.add("Header-" + i, Integer.toString(i));
+        }
+        headers.add("header-3", "again");
+
+        int i = 0;
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            assertEquals("Header-" + i, entry.getKey());
+            assertEquals(Integer.toString(i), entry.getValue());
+            i++;
+        }
+        assertEquals(40, i);
+        assertEquals("again", headers.getValue(40));
+    }
+
+    @Test
+    public void testClearForReuse() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Host", "localhost");
+        headers.put("Cookie", "a=b");
+        headers.clear();
+
+        assertTrue(headers.isEmpty());
+        assertNull(headers.get("Host"));
+
+        headers.put("host", "example.com");
+        assertEquals("example.com", headers.get("Host"));
+        assertEquals(1, headers.size());
+    }
+
+    @Test
+    public void testNullValuesAreRejected() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Host", "localhost");
+
+        try {
+            headers.put("Host", null);
+            fail("put should reject a null value");
+        } catch (NullPointerException e) {
+            // expected
+        }
+        try {
+            headers.add("Accept", null);
+            fail("add should reject a null value");
+        } catch (NullPointerException e) {
+            // expected
+        }
+
+        // nothing was changed by either
+        assertEquals("localhost", headers.get("Host"));
+        assertFalse(headers.containsKey("Accept"));
+        assertEquals(1, headers.entryCount());
+    }
+}
@@ -0,0 +1,457 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import httpserver.ErrorBodies;
+import httpserver.HttpHeaders;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.MessageHandler;
+import httpserver.Route;
+import httpserver.StaticResponse;
+import httpserver.Timeouts;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import tests.mocks.MockClient;
+import tests.mocks.MockResponse;
+
+public class HttpServerTest {
+    public static final int PORT = 4446;
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        HttpServer server = startServer(new HttpServer(PORT));
+        server.get(new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Hello World!");
+            }
+        });
+
+        try {
+            MockClient client = new MockClient();
+            client.setKeepAlive(true);
+            client.setPath("/hello");
+
+            for (int i = 0; i < 3; i++) {
+                MockResponse response = client.send("127.0.0.1", PORT);
+                assertEquals(200, response.getCode());
+                assertEquals("Hello World!", response.getBodyString());
+                assertEquals("keep-alive", response.getHeader("Connection"));
+            }
+
+            client.close();
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testRequestsAreRecycled() throws Exception {
+        final List<HttpRequest> requests = new ArrayList<>();
+        final List<HttpResponse> responses = new ArrayList<>();
+
+        HttpServer server = startServer(new HttpServer(PORT));
+        server.get(new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                requests.add(request);
+                responses.add(response);
+                response.setBody("Hello " + request.getParam("name"));
+            }
+        });
+
+        try {
+            MockClient client = new MockClient();
+            client.setKeepAlive(true);
+            client.setPath("/hello?name=one");
+            assertEquals("Hello one", client.send("127.0.0.1", PORT).getBodyString());
+
+            // a request that's been answered can't be used any more
+            long deadline = System.currentTimeMillis() + 2000;
+            while (true) {
+                try {
+                    requests.get(0).getParam("name");
+                } catch (IllegalStateException e) {
+                    break;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    fail("The answered request could still be used.");
+                }
+                Thread.sleep(10);
+            }
+
+            client.setPath("/hello?name=two");
+            assertEquals("Hello two", client.send("127.0.0.1", PORT).getBodyString());
+            client.close();
+
+            assertSame(requests.get(0), requests.get(1));
+            assertSame(responses.get(0), responses.get(1));
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testStopDrainsInFlightRequests() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        final HttpServer server = startServer(new HttpServer(PORT));
+        server.get(new Route("/slow") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                started.countDown();
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setBody("done");
+            }
+        });
+
+        final AtomicReference<MockResponse> result = new AtomicReference<>();
+        Thread clientThread = new Thread(new Runnable() {
+            @Override public void run() {
+                MockClient client = new MockClient();
+                client.setKeepAlive(true);
+                client.setPath("/slow");
+                try {
+                    result.set(client.send("127.0.0.1", PORT));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        clientThread.start();
+
+        assertEquals(true, started.await(5, TimeUnit.SECONDS));
+        server.stop(5, TimeUnit.SECONDS);
+        clientThread.join(5000);
+
+        assertEquals("done", result.get().getBodyString());
+        assertEquals("close", result.get().getHeader("Connection"));
+        assertEquals(1, server.getDrainedRequests());
+        assertEquals(0, server.getKilledRequests());
+        assertFalse(server.isRunning());
+    }
+
+    @Test
+    public void testRejectedConnectionsAreClosed() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        HttpServer server = new HttpServer(PORT);
+        server.setExecutor(executor);
+        startServer(server);
+
+        Socket socket = new Socket("127.0.0.1", PORT);
+        try {
+            // the executor won't run it, so the server hangs up
+            socket.setSoTimeout(5000);
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+
+            // and doesn't wait on it to stop
+            long start = System.nanoTime();
+            server.stop(5, TimeUnit.SECONDS);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        }
+    }
+
+    @Test
+    public void testProblemJsonErrors() throws Exception {
+        HttpServer server = new HttpServer(PORT);
+        server.getRouter().setDefaultHandler(null);
+        server.getRouter().setErrorFormat(ErrorBodies.PROBLEM_JSON);
+        startServer(server);
+
+        try {
+            MockClient client = new MockClient();
+            client.setPath("/nowhere");
+
+            MockResponse response = client.send("127.0.0.1", PORT);
+            assertEquals(501, response.getCode());
+            assertEquals("application/problem+json", response.getHeader("Content-Type"));
+            assertTrue(response.getBodyString().startsWith(
+                    "{\"type\":\"about:blank\",\"title\":\"Not implemented\",\"status\":501,"));
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testStaticResponses() throws Exception {
+        HttpServer server = new HttpServer(PORT);
+        server.getRouter().addHandler("health", new MessageHandler("OK"));
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Cache-Control", "max-age=3600");
+        final StaticResponse robots = new StaticResponse(200, "text/plain",
+                "User-agent: *\nDisallow: /\n".getBytes(), headers);
+        server.get(new Route("/robots.txt") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setStaticResponse(robots);
+                if (request.getParam("tagged") != null) {
+                    response.setHeader("X-Tagged", "yes");
+                }
+            }
+        });
+        startServer(server);
+
+        try {
+            MockClient client = new MockClient();
+            client.setKeepAlive(true);
+
+            client.setPath("/health");
+            for (int i = 0; i < 2; i++) {
+                MockResponse response = client.send("127.0.0.1", PORT);
+                assertEquals(200, response.getCode());
+                assertEquals("OK", response.getBodyString());
+                assertEquals("keep-alive", response.getHeader("Connection"));
+            }
+
+            client.setPath("/robots.txt");
+            MockResponse response = client.send("127.0.0.1", PORT);
+            assertEquals("User-agent: *\nDisallow: /\n", response.getBodyString());
+            assertEquals("max-age=3600", response.getHeader("Cache-Control"));
+
+            // changed by the handler, so it's sent the usual way
+            client.setPath("/robots.txt?tagged=1");
+            response = client.send("127.0.0.1", PORT);
+            assertEquals("User-agent: *\nDisallow: /\n", response.getBodyString());
+            assertEquals("max-age=3600", response.getHeader("Cache-Control"));
+            assertEquals("yes", response.getHeader("X-Tagged"));
+
+            client.close();
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testNegotiatedUtf8() throws Exception {
+        HttpServer server = new HttpServer(PORT);
+        server.get(new Route("/greeting") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                String type = request.negotiate("application/json", "text/html", "text/plain");
+                if (type == null) {
+                    response.message(406, "Nothing acceptable");
+                    return;
+                }
+
+                StringBuilder body = new StringBuilder("Gr\u00fc\u00dfe, ");
+                body.appendCodePoint(0x1F30D);
+                response.setMimeType(type);
+                response.setBody(body);
+            }
+        });
+        startServer(server);
+
+        try {
+            MockClient client = new MockClient();
+            client.setPath("/greeting");
+
+            client.getHeaders().put("Accept", "text/*;q=0.5, text/html, application/json;q=0");
+            MockResponse response = client.send("127.0.0.1", PORT);
+            assertEquals(200, response.getCode());
+            assertEquals("text/html; charset=utf-8", response.getHeader("Content-Type"));
+            assertEquals("Gr\u00fc\u00dfe, \ud83c\udf0d", response.getBodyString());
+
+            client.getHeaders().put("Accept", "application/*");
+            assertEquals("application/json", client.send("127.0.0.1", PORT).getHeader("Content-Type"));
+
+            client.getHeaders().put("Accept", "image/png");
+            assertEquals(406, client.send("127.0.0.1", PORT).getCode());
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testStopKillsRequestsPastTheDeadline() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        HttpServer server = startServer(new HttpServer(PORT));
+        server.get(new Route("/stuck") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        Socket socket = new Socket("127.0.0.1", PORT);
+        MockClient client = new MockClient();
+        client.setPath("/stuck");
+        client.writeRequest(socket.getOutputStream());
+
+        assertEquals(true, started.await(5, TimeUnit.SECONDS));
+        server.stop(100, TimeUnit.MILLISECONDS);
+
+        assertEquals(0, server.getDrainedRequests());
+        assertEquals(1, server.getKilledRequests());
+        socket.close();
+    }
+
+    @Test
+    public void testBodiesAreNeverPipelinedRequests() throws Exception {
+        final AtomicInteger adminHits = new AtomicInteger();
+
+        HttpServer server = new HttpServer(PORT);
+        server.get(new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Hello");
+            }
+        });
+        server.get(new Route("/admin") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                adminHits.incrementAndGet();
+                response.setBody("Secrets");
+            }
+        });
+        startServer(server);
+
+        String smuggled = "GET /admin HTTP/1.1\nHost: localhost\n\n";
+        try {
+            // a GET's body is still its body, not the next request
+            Socket socket = new Socket("127.0.0.1", PORT);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /hello HTTP/1.1\nHost: localhost\nContent-Length: " + smuggled.length()
+                    + "\n\n" + smuggled
+                    + "GET /hello HTTP/1.1\nHost: localhost\nConnection: close\n\n").getBytes("UTF-8"));
+            out.flush();
+
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+            assertEquals("Hello", MockResponse.read(in).getBodyString());
+            assertEquals("Hello", MockResponse.read(in).getBodyString());
+            assertEquals(-1, in.read());
+            socket.close();
+
+            // nor is anything after a chunked body, which isn't supported
+            socket = new Socket("127.0.0.1", PORT);
+            out = socket.getOutputStream();
+            out.write(("POST /hello HTTP/1.1\nHost: localhost\nTransfer-Encoding: chunked\n\n0\n\n"
+                    + smuggled).getBytes("UTF-8"));
+            out.flush();
+
+            in = new BufferedInputStream(socket.getInputStream());
+            MockResponse response = MockResponse.read(in);
+            assertEquals(501, response.getCode());
+            assertEquals("close", response.getHeader("Connection"));
+            assertEquals(-1, in.read());
+            socket.close();
+
+            assertEquals(0, adminHits.get());
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSlowHeadersTimeOut() throws Exception {
+        HttpServer server = new HttpServer(PORT);
+        Timeouts timeouts = new Timeouts();
+        timeouts.setHeaderReadTimeout(300);
+        server.setTimeouts(timeouts);
+        startServer(server);
+
+        try {
+            Socket socket = new Socket("127.0.0.1", PORT);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /hello HTTP/1.1\nHost: localhost\n".getBytes("UTF-8"));
+            out.flush();
+
+            // never finish the headers
+            MockResponse response = MockResponse.read(new BufferedInputStream(socket.getInputStream()));
+            assertEquals(408, response.getCode());
+            assertEquals("close", response.getHeader("Connection"));
+            socket.close();
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testTooSlowBodyTimesOut() throws Exception {
+        HttpServer server = new HttpServer(PORT);
+        Timeouts timeouts = new Timeouts();
+        timeouts.setMinDataRate(1000);
+        timeouts.setMinDataRateGracePeriod(500);
+        server.setTimeouts(timeouts);
+        startServer(server);
+
+        try {
+            Socket socket = new Socket("127.0.0.1", PORT);
+            OutputStream out = socket.getOutputStream();
+            out.write("POST /hello HTTP/1.1\nContent-Length: 100000\n\nabc".getBytes("UTF-8"));
+            out.flush();
+
+            MockResponse response = MockResponse.read(new BufferedInputStream(socket.getInputStream()));
+            assertEquals(408, response.getCode());
+            socket.close();
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsAreClosed() throws Exception {
+        HttpServer server = new HttpServer(PORT);
+        Timeouts timeouts = new Timeouts();
+        timeouts.setIdleTimeout(300);
+        server.setTimeouts(timeouts);
+        startServer(server);
+
+        try {
+            Socket socket = new Socket("127.0.0.1", PORT);
+            MockClient client = new MockClient();
+            client.setKeepAlive(true);
+            client.writeRequest(socket.getOutputStream());
+
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+            MockResponse.read(in);
+
+            // the server hangs up once the connection has been idle too long
+            assertEquals(-1, in.read());
+            socket.close();
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    public static HttpServer startServer(HttpServer server) throws InterruptedException {
+        new Thread(server).start();
+
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", server.getPort()).close();
+                return server;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+
+        fail("Server never started listening on port " + server.getPort());
+        return server;
+    }
+}
@@ -0,0 +1,83 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.Listener;
+import httpserver.Route;
+import httpserver.SocketOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import tests.mocks.MockClient;
+import tests.mocks.MockResponse;
+
+public class ListenerTest {
+    public static final int PORT = 4455;
+    public static final int OTHER_PORT = 4456;
+
+    @Test
+    public void testSeveralListenersShareTheRouter() throws Exception {
+        HttpServer server = new HttpServer();
+        server.get(new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Hello World!");
+            }
+        });
+
+        SocketOptions options = new SocketOptions();
+        options.setBacklog(200);
+        options.setReceiveBufferSize(64 * 1024);
+        server.setSocketOptions(options);
+
+        Listener shared = new Listener(PORT);
+        shared.setAcceptors(4);
+        Listener local = new Listener("127.0.0.1", OTHER_PORT);
+        Listener any = new Listener("127.0.0.1", 0);
+        server.addListener(shared);
+        server.addListener(local);
+        server.addListener(any);
+
+        new Thread(server).start();
+        for (int i = 0; i < 100 && any.getLocalPort() == -1; i++) {
+            Thread.sleep(50);
+        }
+
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            assertEquals(PORT, shared.getLocalPort());
+            assertEquals(OTHER_PORT, local.getLocalPort());
+            assertTrue(any.getLocalPort() > 0);
+
+            final int[] ports = { PORT, OTHER_PORT, any.getLocalPort() };
+            List<Future<MockResponse>> responses = new ArrayList<Future<MockResponse>>();
+            for (int i = 0; i < 48; i++) {
+                final int port = ports[i % ports.length];
+                responses.add(clients.submit(new Callable<MockResponse>() {
+                    @Override public MockResponse call() throws Exception {
+                        MockClient client = new MockClient();
+                        client.setPath("/hello");
+                        return client.send("127.0.0.1", port);
+                    }
+                }));
+            }
+
+            for (Future<MockResponse> response : responses) {
+                assertEquals("Hello World!", response.get(10, TimeUnit.SECONDS).getBodyString());
+            }
+        } finally {
+            clients.shutdownNow();
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+}
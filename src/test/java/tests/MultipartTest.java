@@ -0,0 +1,238 @@
+package tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.MultipartParser;
+import httpserver.RequestLimits;
+import httpserver.Route;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockResponse;
+
+public class MultipartTest {
+    public static final int PORT = 4448;
+    public static final String BOUNDARY = "----boundary7MA4YWxk";
+
+    private static HttpServer server;
+    private static volatile Path spilled;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        RequestLimits limits = new RequestLimits();
+        limits.setMaxPartSize(500 * 1024);
+
+        server = new HttpServer(PORT);
+        server.setRequestLimits(limits);
+
+        server.post(new Route("/upload") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                StringBuilder b = new StringBuilder();
+                try {
+                    MultipartParser parser = request.getMultipartParser();
+                    for (MultipartParser.Part part = parser.nextPart(); part != null; part = parser.nextPart()) {
+                        if (part.getFilename() == null) {
+                            b.append(part.getName()).append('=').append(part.getString()).append(';');
+                            continue;
+                        }
+
+                        part.store();
+                        spilled = part.getFile();
+                        b.append(part.getName()).append(':').append(part.getFilename())
+                            .append(':').append(part.getSize()).append(':').append(spilled != null).append(';');
+                    }
+                    response.setBody(b.toString());
+                } catch (MultipartParser.MultipartException e) {
+                    response.message(e.getCode(), e.getMessage());
+                } catch (IOException e) {
+                    response.error(500, e.getMessage(), e);
+                }
+            }
+        });
+
+        server.post(new Route("/ignore") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("ignored");
+            }
+        });
+
+        server.get(new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Hello World!");
+            }
+        });
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testPartsSplitAcrossReads() throws Exception {
+        byte[] file = content(20000);
+        byte[] body = body(file);
+
+        // hand the parser a few bytes at a time, so boundaries get split
+        InputStream trickle = new ByteArrayInputStream(body) {
+            @Override public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+
+        MultipartParser parser = new MultipartParser(trickle, BOUNDARY);
+        parser.setMemoryThreshold(1024);
+        List<MultipartParser.Part> parts = parser.readAll();
+
+        assertEquals(2, parts.size());
+        assertEquals("title", parts.get(0).getName());
+        assertNull(parts.get(0).getFilename());
+        assertEquals("A \"quoted\"; title", parts.get(0).getString());
+
+        MultipartParser.Part upload = parts.get(1);
+        assertEquals("upload", upload.getName());
+        assertEquals("data.bin", upload.getFilename());
+        assertEquals("application/octet-stream", upload.getContentType());
+        assertEquals(file.length, upload.getSize());
+        assertArrayEquals(file, upload.getBytes());
+
+        Path temp = upload.getFile();
+        assertNotNull(temp);
+        parser.close();
+        assertFalse(Files.exists(temp));
+    }
+
+    @Test
+    public void testBoundaryFromContentType() {
+        assertEquals("abc", MultipartParser.getBoundary("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartParser.getBoundary("Multipart/Form-Data; charset=utf-8; boundary=\"a b\""));
+        assertNull(MultipartParser.getBoundary("application/x-www-form-urlencoded"));
+        assertNull(MultipartParser.getBoundary("multipart/form-data"));
+    }
+
+    @Test
+    public void testUploadSpillsToTempFile() throws Exception {
+        byte[] file = content(300 * 1024);
+
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            MockResponse response = post(socket, "/upload", body(file));
+
+            assertEquals(200, response.getCode());
+            assertEquals("title=A \"quoted\"; title;upload:data.bin:" + file.length + ":true;",
+                    response.getBodyString());
+        }
+
+        // the temp file is deleted once the response is sent
+        for (int i = 0; i < 50 && Files.exists(spilled); i++) {
+            Thread.sleep(20);
+        }
+        assertFalse(Files.exists(spilled));
+    }
+
+    @Test
+    public void testPartTooLarge() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            MockResponse response = post(socket, "/upload", body(content(600 * 1024)));
+
+            assertEquals(413, response.getCode());
+            assertFalse(response.isKeepAlive());
+        }
+    }
+
+    @Test
+    public void testUnreadBodyIsSkipped() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            MockResponse ignored = post(socket, "/ignore", body(content(1024)));
+            assertEquals("ignored", ignored.getBodyString());
+            assertTrue(ignored.isKeepAlive());
+
+            socket.getOutputStream().write(("GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertEquals("Hello World!", MockResponse.read(socket.getInputStream()).getBodyString());
+        }
+    }
+
+
+    /**
+     * Send a multipart body from another thread, so a server that stops
+     * reading doesn't block the test from reading the response.
+     */
+    private static MockResponse post(Socket socket, String path, final byte[] body) throws Exception {
+        final OutputStream out = socket.getOutputStream();
+        out.write(("POST " + path + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+                + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        Thread sender = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    out.write(body);
+                    out.flush();
+                } catch (IOException e) {
+                    // the server hung up early
+                }
+            }
+        });
+        sender.start();
+
+        MockResponse response = MockResponse.read(socket.getInputStream());
+        sender.join(5000);
+        return response;
+    }
+
+    private static byte[] body(byte[] file) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        write(body, "preamble to ignore\r\n");
+        write(body, "--" + BOUNDARY + "\r\n");
+        write(body, "Content-Disposition: form-data; name=\"title\"\r\n\r\n");
+        write(body, "A \"quoted\"; title");
+        write(body, "\r\n--" + BOUNDARY + "\r\n");
+        write(body, "Content-Disposition: form-data; name=\"upload\"; filename=\"data.bin\"\r\n");
+        write(body, "content-type: application/octet-stream\r\n\r\n");
+        body.write(file);
+        write(body, "\r\n--" + BOUNDARY + "--\r\n");
+        return body.toByteArray();
+    }
+
+    /**
+     * Content full of things that almost look like the boundary.
+     */
+    private static byte[] content(int length) {
+        byte[] near = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "x").getBytes(StandardCharsets.US_ASCII);
+
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (i % 1000 < near.length) ? near[i % 1000] : (byte) i;
+        }
+
+        return content;
+    }
+
+    private static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
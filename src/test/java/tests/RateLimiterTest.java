@@ -0,0 +1,106 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.RateLimiter;
+import httpserver.Route;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockClient;
+import tests.mocks.MockResponse;
+
+public class RateLimiterTest {
+    public static final int PORT = 4460;
+
+    private static HttpServer server;
+    private static RateLimiter routeLimiter;
+    private static RateLimiter serverLimiter;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new HttpServer(PORT);
+
+        // a few requests at once, then one every ten seconds
+        routeLimiter = new RateLimiter(0.1, 3);
+        Route expensive = new Route("/expensive") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Worth the wait");
+            }
+        };
+        expensive.setRateLimiter(routeLimiter);
+        server.get(expensive);
+
+        server.get(new Route("/cheap") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Cheap");
+            }
+        });
+
+        serverLimiter = new RateLimiter(0.1, 2);
+        serverLimiter.setKeyHeader("X-Api-Key");
+        serverLimiter.setMaxClients(2);
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testRouteLimit() throws Exception {
+        MockClient client = new MockClient();
+        client.setPath("/expensive");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, client.send("127.0.0.1", PORT).getCode());
+        }
+
+        MockResponse limited = client.send("127.0.0.1", PORT);
+        assertEquals(429, limited.getCode());
+        assertEquals("10", limited.getHeader("Retry-After"));
+        assertEquals(1, routeLimiter.getRejected());
+
+        // other routes aren't limited
+        client.setPath("/cheap");
+        assertEquals(200, client.send("127.0.0.1", PORT).getCode());
+    }
+
+    @Test
+    public void testServerLimitByHeader() throws Exception {
+        server.setRateLimiter(serverLimiter);
+        try {
+            MockClient client = new MockClient();
+            client.setPath("/cheap");
+
+            // every key has its own bucket
+            for (String key : new String[] { "alice", "bob" }) {
+                client.getHeaders().put("X-Api-Key", key);
+                assertEquals(200, client.send("127.0.0.1", PORT).getCode());
+                assertEquals(200, client.send("127.0.0.1", PORT).getCode());
+                assertEquals(429, client.send("127.0.0.1", PORT).getCode());
+            }
+
+            // past the most clients kept track of, new ones share a bucket
+            client.getHeaders().put("X-Api-Key", "carol");
+            assertEquals(200, client.send("127.0.0.1", PORT).getCode());
+            client.getHeaders().put("X-Api-Key", "dave");
+            assertEquals(200, client.send("127.0.0.1", PORT).getCode());
+            assertEquals(429, client.send("127.0.0.1", PORT).getCode());
+
+            assertEquals(2, serverLimiter.getClientCount());
+            assertTrue(serverLimiter.getRejected() >= 3);
+        } finally {
+            server.setRateLimiter(null);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.RequestLimits;
+import httpserver.Route;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockClient;
+import tests.mocks.MockResponse;
+
+public class RequestLimitsTest {
+    public static final int PORT = 4447;
+
+    private static HttpServer server;
+    private static RequestLimits limits;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        limits = new RequestLimits();
+        limits.setMaxRequestLineLength(100);
+        limits.setMaxHeaderCount(5);
+        limits.setMaxHeaderSize(200);
+        limits.setMaxContentLength(64);
+
+        server = new HttpServer(PORT);
+        server.setRequestLimits(limits);
+        server.post(new Route("/echo") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody(request.getRequestBody());
+            }
+        });
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testLongRequestLine() throws Exception {
+        MockClient client = new MockClient();
+        client.setPath("/" + repeat('a', 200));
+
+        long before = limits.getRejectedRequestLines();
+        assertEquals(414, client.send("127.0.0.1", PORT).getCode());
+        assertEquals(before + 1, limits.getRejectedRequestLines());
+    }
+
+    @Test
+    public void testTooManyHeaders() throws Exception {
+        MockClient client = new MockClient();
+        for (int i = 0; i < 6; i++) {
+            client.getHeaders().put("X-Header-" + i, "value");
+        }
+
+        long before = limits.getRejectedHeaders();
+        assertEquals(431, client.send("127.0.0.1", PORT).getCode());
+        assertEquals(before + 1, limits.getRejectedHeaders());
+    }
+
+    @Test
+    public void testHeadersTooLarge() throws Exception {
+        MockClient client = new MockClient();
+        client.getHeaders().put("X-Large", repeat('b', 300));
+
+        assertEquals(431, client.send("127.0.0.1", PORT).getCode());
+    }
+
+    @Test
+    public void testBodyTooLarge() throws Exception {
+        MockClient client = new MockClient();
+        client.setRequestType("POST");
+        client.setPath("/echo");
+        client.getPostData().put("data", repeat('c', 100));
+
+        long before = limits.getRejectedBodies();
+        MockResponse response = client.send("127.0.0.1", PORT);
+        assertEquals(413, response.getCode());
+        assertEquals("close", response.getHeader("Connection"));
+        assertEquals(before + 1, limits.getRejectedBodies());
+    }
+
+    @Test
+    public void testBogusContentLength() throws Exception {
+        MockClient client = new MockClient();
+        client.setRequestType("POST");
+        client.setPath("/echo");
+        client.getHeaders().put("Content-Length", "lots");
+
+        assertEquals(400, client.send("127.0.0.1", PORT).getCode());
+    }
+
+    @Test
+    public void testWithinLimits() throws Exception {
+        MockClient client = new MockClient();
+        client.setRequestType("POST");
+        client.setPath("/echo");
+        client.getPostData().put("data", "small");
+
+        MockResponse response = client.send("127.0.0.1", PORT);
+        assertEquals(200, response.getCode());
+        assertEquals("data=small", response.getBodyString());
+    }
+
+    @Test
+    public void testStreamedBodyStillRead() throws Exception {
+        // streamed, but still small enough to read whole
+        limits.setStreamedBodySize(16);
+        try {
+            MockClient client = new MockClient();
+            client.setRequestType("POST");
+            client.setPath("/echo");
+            client.getPostData().put("data", repeat('d', 40));
+
+            MockResponse response = client.send("127.0.0.1", PORT);
+            assertEquals(200, response.getCode());
+            assertEquals("data=" + repeat('d', 40), response.getBodyString());
+        } finally {
+            limits.setStreamedBodySize(-1);
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            b.append(c);
+        }
+        return b.toString();
+    }
+}
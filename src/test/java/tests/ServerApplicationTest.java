@@ -2,6 +2,7 @@ package tests;
 
 import static org.junit.Assert.fail;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import httpserver.HttpException;
 import httpserver.HttpHandler;
 import httpserver.HttpRequest;
@@ -11,6 +12,7 @@ import httpserver.HttpServer;
 import httpserver.Route;
 
 import java.util.Map;
+import java.io.ByteArrayOutputStream;
 import java.net.ServerSocket;
 
 import org.junit.Test;
@@ -39,6 +41,13 @@ public class ServerApplicationTest {
         });
 
 
+        server.post(new Route("/params/{id}") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody(request.getParam("id") + " " + request.getParams("tag")
+                        + " " + request.getParam("name") + " " + request.getParams().containsKey("flag"));
+            }
+        });
+
         server.get(new Route("/hello/{firstName}") {
             @Override public void handle(HttpRequest request, HttpResponse response) {
                 response.setBody("Hello " + request.getParam("firstName") + "!");
@@ -140,4 +149,60 @@ public class ServerApplicationTest {
             fail("Exception occurred in testHelloName()");
         }
     }
+
+    @Test
+    public void testRawRequestIsOnlyKeptWhenAsked() throws Exception {
+        MockClient client = new MockClient();
+        client.setPath("/hello");
+
+        ServerSocket socket = new ServerSocket(MockClient.DESIRED_PORT);
+        client.fillInSocket();
+
+        HttpRequest request = new HttpRequest(server.getRouter(), socket.accept());
+        request.parseRequest();
+        socket.close();
+
+        assertNull(request.getHttpRequest());
+        assertNull(request.getRawRequest());
+    }
+
+    @Test
+    public void testRawRequestCapture() throws Exception {
+        MockClient client = new MockClient();
+        client.setRequestType("POST");
+        client.setPath("/hello");
+
+        // large enough to need more than one read from the socket
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            b.append("0123456789");
+        }
+        client.getPostData().put("data", b.toString());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        client.writeRequest(expected);
+
+        ServerSocket socket = new ServerSocket(MockClient.DESIRED_PORT);
+        client.fillInSocket();
+
+        HttpRequest request = new HttpRequest(server.getRouter(), socket.accept());
+        request.setCaptureRaw(true);
+        request.parseRequest();
+        socket.close();
+
+        assertEquals(expected.toString("UTF-8"), request.getHttpRequest());
+        assertEquals(expected.size(), request.getRawRequest().remaining());
+    }
+
+    @Test
+    public void testRepeatedParams() throws Exception {
+        MockClient client = new MockClient();
+        client.setRequestType("POST");
+        client.setPath("/params/7?tag=a&tag=b%2Fc&name=Jane+Doe%21&flag&id=ignored");
+        client.getPostData().put("tag", "d");
+
+        HttpResponse response = getResponse(client);
+
+        assertEquals("7 [a, b/c, d] Jane Doe! true", new String(response.getBody(), "UTF-8"));
+    }
 }
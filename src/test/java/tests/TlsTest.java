@@ -0,0 +1,186 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.Route;
+import httpserver.TlsConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockResponse;
+
+public class TlsTest {
+    public static final int PORT = 4454;
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private static File keyStore;
+    private static HttpServer server;
+    private static TlsConfig tls;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        keyStore = generateKeyStore();
+
+        tls = TlsConfig.fromKeyStore(keyStore.getPath(), PASSWORD);
+        tls.setSessionCacheSize(100);
+        tls.setSessionTimeout(60);
+
+        server = new HttpServer(PORT);
+        server.setTls(tls);
+        server.setHttp2(true);
+
+        server.get(new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Hello " + request.getRequestProtocol()
+                        + (request.isSecure() ? " over TLS" : ""));
+            }
+        });
+
+        HttpServerTest.startServer(server);
+
+        // the connection checking the server's up never shakes hands, and
+        // counts as a failed handshake, eventually
+        long deadline = System.currentTimeMillis() + 2000;
+        while (tls.getFailedHandshakes() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+        keyStore.delete();
+    }
+
+    @Test
+    public void testHttps() throws Exception {
+        HttpClient client = HttpClient.newBuilder().sslContext(clientContext())
+                .version(HttpClient.Version.HTTP_1_1).build();
+
+        java.net.http.HttpResponse<String> response = client.send(request("/hello"), BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertEquals("Hello HTTP/1.1 over TLS", response.body());
+    }
+
+    @Test
+    public void testAlpnPicksHttp2() throws Exception {
+        HttpClient client = HttpClient.newBuilder().sslContext(clientContext())
+                .version(HttpClient.Version.HTTP_2).build();
+
+        java.net.http.HttpResponse<String> response = client.send(request("/hello"), BodyHandlers.ofString());
+        assertEquals(HttpClient.Version.HTTP_2, response.version());
+        assertEquals("Hello HTTP/2.0 over TLS", response.body());
+    }
+
+    @Test
+    public void testSessionResumption() throws Exception {
+        SSLContext context = clientContext();
+        long resumed = tls.getResumedHandshakes();
+
+        // the second connection resumes the first one's session, whichever
+        // version of TLS is used
+        for (String protocol : new String[] { "TLSv1.2", "TLSv1.3" }) {
+            for (int i = 0; i < 2; i++) {
+                try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", PORT)) {
+                    socket.setEnabledProtocols(new String[] { protocol });
+                    socket.getOutputStream().write(("GET /hello HTTP/1.1\r\nHost: localhost\r\n"
+                            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+                    MockResponse response = MockResponse.read(socket.getInputStream());
+                    assertEquals(200, response.getCode());
+                    assertEquals(protocol, socket.getSession().getProtocol());
+                }
+            }
+        }
+
+        assertEquals(resumed + 2, tls.getResumedHandshakes());
+        assertTrue(tls.getAverageHandshakeNanos() > 0);
+    }
+
+    @Test
+    public void testBadHandshakeIsCounted() throws Exception {
+        long failed = tls.getFailedHandshakes();
+
+        // plain HTTP to an HTTPS port
+        try (java.net.Socket socket = new java.net.Socket("localhost", PORT)) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            while (in.read() != -1);
+        } catch (IOException e) {
+            // reset, which is fine too
+        }
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (tls.getFailedHandshakes() == failed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(failed + 1, tls.getFailedHandshakes());
+    }
+
+
+    private static java.net.http.HttpRequest request(String path) {
+        return java.net.http.HttpRequest.newBuilder(URI.create("https://localhost:" + PORT + path))
+                .timeout(java.time.Duration.ofSeconds(10)).build();
+    }
+
+    /**
+     * Make a keystore with a self-signed certificate for localhost.
+     */
+    private static File generateKeyStore() throws Exception {
+        File file = Files.createTempFile("httpserver-tls", ".p12").toFile();
+        file.delete();
+
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+            .redirectErrorStream(true).start();
+
+        byte[] output = process.getInputStream().readAllBytes();
+        assertEquals(new String(output, StandardCharsets.UTF_8), 0, process.waitFor());
+        return file;
+    }
+
+    /**
+     * A client context that trusts the self-signed certificate, and keeps
+     * sessions to resume.
+     */
+    private static SSLContext clientContext() throws Exception {
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            trusted.load(in, PASSWORD);
+        }
+
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+}
@@ -0,0 +1,234 @@
+package tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import httpserver.HttpRequest;
+import httpserver.HttpServer;
+import httpserver.WebSocket;
+import httpserver.WebSocketListener;
+import httpserver.WebSocketRoute;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockResponse;
+
+public class WebSocketTest {
+    public static final int PORT = 4451;
+
+    // the example handshake from RFC 6455
+    private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    private static final String ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+
+    private static HttpServer server;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new HttpServer(PORT);
+
+        server.get(new WebSocketRoute("/echo") {
+            @Override public WebSocketListener accept(HttpRequest request) {
+                return new WebSocketListener() {
+                    @Override public void onText(WebSocket socket, String message) {
+                        try {
+                            socket.sendText(message);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+
+                    @Override public void onBinary(WebSocket socket, byte[] message) {
+                        try {
+                            socket.sendBinary(message);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+            }
+        });
+
+        server.get(new WebSocketRoute("/refuse") {
+            @Override public WebSocketListener accept(HttpRequest request) {
+                return null;
+            }
+        });
+
+        HttpServerTest.startServer(server);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testEchoAndClose() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            MockResponse handshake = handshake(socket, "/echo", null);
+            assertEquals(101, handshake.getCode());
+            assertEquals(ACCEPT, handshake.getHeader("Sec-WebSocket-Accept"));
+            assertEquals("Upgrade", handshake.getHeader("Connection"));
+
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            writeFrame(out, 0x81, "hello".getBytes(StandardCharsets.UTF_8));
+            assertEquals("hello", new String(readFrame(in, 0x81), StandardCharsets.UTF_8));
+
+            writeFrame(out, 0x88, new byte[] { 0x03, (byte) 0xe8 });
+            assertArrayEquals(new byte[] { 0x03, (byte) 0xe8 }, readFrame(in, 0x88));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testFragmentsAndPings() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            assertEquals(101, handshake(socket, "/echo", null).getCode());
+
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // a ping between a message's fragments is answered right away
+            writeFrame(out, 0x02, new byte[] { 1, 2 });
+            writeFrame(out, 0x89, "are you there".getBytes(StandardCharsets.UTF_8));
+            writeFrame(out, 0x80, new byte[] { 3 });
+
+            assertEquals("are you there", new String(readFrame(in, 0x8A), StandardCharsets.UTF_8));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, readFrame(in, 0x82));
+        }
+    }
+
+    @Test
+    public void testUnmaskedFrameIsRejected() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            assertEquals(101, handshake(socket, "/echo", null).getCode());
+
+            socket.getOutputStream().write(new byte[] { (byte) 0x81, 0x01, 'x' });
+
+            byte[] close = readFrame(new DataInputStream(socket.getInputStream()), 0x88);
+            assertEquals(WebSocket.PROTOCOL_ERROR, ((close[0] & 0xff) << 8) | (close[1] & 0xff));
+        }
+    }
+
+    @Test
+    public void testPerMessageDeflate() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            MockResponse handshake = handshake(socket, "/echo",
+                    "permessage-deflate; client_max_window_bits");
+            assertEquals(101, handshake.getCode());
+            assertEquals("permessage-deflate", handshake.getHeader("Sec-WebSocket-Extensions"));
+
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            Inflater inflater = new Inflater(true);
+
+            // the second message refers back to the first
+            for (String message : new String[] { "compress me, compress me", "compress me again" }) {
+                writeFrame(out, 0xC1, deflate(deflater, message));
+                assertEquals(message, inflate(inflater, readFrame(in, 0xC1)));
+            }
+        }
+    }
+
+    @Test
+    public void testNotAnUpgrade() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            socket.getOutputStream().write(("GET /echo HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+            MockResponse response = MockResponse.read(socket.getInputStream());
+            assertEquals(426, response.getCode());
+            assertEquals("websocket", response.getHeader("Upgrade"));
+        }
+    }
+
+    @Test
+    public void testRefused() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            assertEquals(403, handshake(socket, "/refuse", null).getCode());
+        }
+    }
+
+
+    private static MockResponse handshake(Socket socket, String path, String extensions)
+            throws IOException {
+        String request = "GET " + path + " HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: keep-alive, Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + KEY + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + (extensions == null ? "" : "Sec-WebSocket-Extensions: " + extensions + "\r\n")
+            + "\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        return MockResponse.read(socket.getInputStream());
+    }
+
+    /**
+     * Write a short, masked frame, like a client does.
+     * @param first The frame's first byte: FIN, RSV1, and the opcode.
+     */
+    private static void writeFrame(OutputStream out, int first, byte[] payload) throws IOException {
+        byte[] mask = { 0x12, 0x34, 0x56, 0x78 };
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(first);
+        frame.write(0x80 | payload.length);
+        frame.write(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(payload[i] ^ mask[i & 3]);
+        }
+
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * Read a short, unmasked frame, like the server sends.
+     */
+    private static byte[] readFrame(DataInputStream in, int expectedFirst) throws IOException {
+        assertEquals(expectedFirst, in.readUnsignedByte());
+
+        int length = in.readUnsignedByte();
+        assertTrue("server frames aren't masked", length < 126);
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private static byte[] deflate(Deflater deflater, String message) {
+        deflater.setInput(message.getBytes(StandardCharsets.UTF_8));
+        byte[] buffer = new byte[1024];
+        int length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        return Arrays.copyOf(buffer, length - 4);
+    }
+
+    private static String inflate(Inflater inflater, byte[] payload) throws Exception {
+        byte[] input = Arrays.copyOf(payload, payload.length + 4);
+        input[input.length - 2] = (byte) 0xff;
+        input[input.length - 1] = (byte) 0xff;
+        inflater.setInput(input);
+
+        byte[] buffer = new byte[1024];
+        int length = inflater.inflate(buffer);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+}
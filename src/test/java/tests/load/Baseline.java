@@ -0,0 +1,95 @@
+package tests.load;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * A Baseline holds the throughput and latency numbers a release is
+ * expected to match, stored as a properties file next to the tests. <p>
+ *
+ * For every scenario it keeps {@code <name>.rps} and {@code <name>.p99},
+ * with latency in milliseconds. A result regresses when its throughput
+ * drops, or its p99 latency grows, by more than the allowed tolerance.
+ */
+public class Baseline {
+    private final File file;
+    private final Properties values = new Properties();
+
+    public Baseline(File file) throws IOException {
+        this.file = file;
+
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                values.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Compare a result against the baseline.
+     *
+     * @param result    The result to check.
+     * @param tolerance How much worse than the baseline is acceptable,
+     *                  e.g. 0.25 for 25%.
+     * @return A description of every regression, empty when there aren't any.
+     *         Scenarios missing from the baseline never regress.
+     */
+    public List<String> regressions(LoadResult result, double tolerance) {
+        List<String> problems = new ArrayList<String>();
+
+        String rps = values.getProperty(result.getName() + ".rps");
+        if (rps != null) {
+            double expected = Double.parseDouble(rps);
+            if (result.getRequestsPerSecond() < expected * (1 - tolerance)) {
+                problems.add(String.format(Locale.ROOT, "%s: %.1f req/s is below the baseline of %.1f req/s",
+                        result.getName(), result.getRequestsPerSecond(), expected));
+            }
+        }
+
+        String p99 = values.getProperty(result.getName() + ".p99");
+        if (p99 != null) {
+            double expected = Double.parseDouble(p99);
+            if (result.getP99Millis() > expected * (1 + tolerance)) {
+                problems.add(String.format(Locale.ROOT, "%s: p99 of %.3fms is above the baseline of %.3fms",
+                        result.getName(), result.getP99Millis(), expected));
+            }
+        }
+
+        return problems;
+    }
+
+    /**
+     * Replace a scenario's baseline with a new result.
+     */
+    public void update(LoadResult result) {
+        values.setProperty(result.getName() + ".rps",
+                String.format(Locale.ROOT, "%.1f", result.getRequestsPerSecond()));
+        values.setProperty(result.getName() + ".p99",
+                String.format(Locale.ROOT, "%.3f", result.getP99Millis()));
+    }
+
+    /**
+     * Write the baseline back to its file.
+     */
+    public void save() throws IOException {
+        file.getParentFile().mkdirs();
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            values.store(out, "Load test baseline, regenerate with `gradle loadTest -Pload.updateBaseline`");
+        } finally {
+            out.close();
+        }
+    }
+}
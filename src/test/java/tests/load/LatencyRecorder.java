@@ -0,0 +1,69 @@
+package tests.load;
+
+import java.util.Arrays;
+
+/**
+ * A LatencyRecorder keeps every latency sample a single load generating
+ * thread measured.
+ *
+ * Each worker gets its own recorder so nothing is shared while the test is
+ * running. The recorders are merged once the run is over to compute the
+ * percentiles, which keeps the measurement itself out of the numbers.
+ */
+public class LatencyRecorder {
+    private long[] samples = new long[16384];
+    private int count = 0;
+
+    /**
+     * Record one latency sample.
+     * @param nanos How long the request took, in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+
+        samples[count++] = nanos;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Merge several recorders into one sorted array of samples.
+     * @param recorders The recorders to merge.
+     * @return Every sample, sorted from fastest to slowest.
+     */
+    public static long[] merge(LatencyRecorder... recorders) {
+        int total = 0;
+        for (LatencyRecorder recorder : recorders) {
+            total += recorder.count;
+        }
+
+        long[] merged = new long[total];
+        int offset = 0;
+        for (LatencyRecorder recorder : recorders) {
+            System.arraycopy(recorder.samples, 0, merged, offset, recorder.count);
+            offset += recorder.count;
+        }
+
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * Get a percentile out of sorted samples, using the nearest rank method.
+     * @param sorted      Samples sorted from fastest to slowest.
+     * @param percentile  The percentile wanted, between 0 and 100.
+     * @return The sample at that percentile, or 0 if there aren't any samples.
+     */
+    public static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+    }
+}
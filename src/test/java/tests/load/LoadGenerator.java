@@ -0,0 +1,163 @@
+package tests.load;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import tests.mocks.MockClient;
+import tests.mocks.MockResponse;
+
+/**
+ * A LoadGenerator hammers a running server with a {@link Scenario}, from
+ * several threads at once. <p>
+ *
+ * It runs in one of two modes:
+ * <ul>
+ *   <li><b>Closed loop</b>: every thread sends its next request as soon as
+ *   the previous one finishes. This finds the maximum throughput.</li>
+ *   <li><b>Open loop</b>: requests are sent at a fixed rate, whether or not
+ *   the server is keeping up. Latency is measured from when a request
+ *   <i>should</i> have been sent, so a stalled server can't hide its
+ *   stalls by slowing the client down (coordinated omission).</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    private final String host;
+    private final int port;
+
+    private int threads = 8;
+    private long warmupMillis = 1000;
+    private long durationMillis = 3000;
+
+    // requests per second across all threads, 0 means closed loop
+    private double rate = 0;
+
+
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Warm up with the scenario, then run it and measure.
+     * @param scenario The traffic to send.
+     * @return What happened while measuring.
+     */
+    public LoadResult run(Scenario scenario) throws InterruptedException {
+        drive(scenario, warmupMillis, false);
+        return drive(scenario, durationMillis, true);
+    }
+
+    private LoadResult drive(final Scenario scenario, long millis, final boolean record)
+            throws InterruptedException {
+        final LatencyRecorder[] recorders = new LatencyRecorder[threads];
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        // in open loop mode each thread gets every `threads`th slot
+        final long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate) : 0;
+
+        for (int i = 0; i < threads; i++) {
+            final LatencyRecorder recorder = new LatencyRecorder();
+            recorders[i] = recorder;
+            final long firstSlot = rate > 0 ? start + (long) (TimeUnit.SECONDS.toNanos(1) * i / rate) : start;
+
+            Thread worker = new Thread(new Runnable() {
+                @Override public void run() {
+                    MockClient client = new MockClient();
+                    long intended = firstSlot;
+
+                    try {
+                        for (long n = 0; ; n++) {
+                            if (interval > 0) {
+                                intended = firstSlot + n * interval;
+                                long wait = intended - System.nanoTime();
+                                if (wait > 0) {
+                                    LockSupport.parkNanos(wait);
+                                }
+                            } else {
+                                intended = System.nanoTime();
+                            }
+
+                            if (intended >= end) {
+                                break;
+                            }
+
+                            client.setDefault();
+                            client.setKeepAlive(scenario.isKeepAlive());
+                            scenario.prepare(client, n);
+
+                            requests.incrementAndGet();
+                            try {
+                                MockResponse response = client.send(host, port);
+                                if (response.getCode() >= 400) {
+                                    errors.incrementAndGet();
+                                }
+                            } catch (IOException e) {
+                                errors.incrementAndGet();
+                            }
+
+                            if (record) {
+                                recorder.record(System.nanoTime() - intended);
+                            }
+                        }
+                    } finally {
+                        client.close();
+                        done.countDown();
+                    }
+                }
+            }, "load-" + scenario.getName() + "-" + i);
+
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        done.await();
+        long elapsed = Math.max(System.nanoTime(), end) - start;
+
+        return new LoadResult(scenario.getName(), requests.get(), errors.get(),
+                elapsed, LatencyRecorder.merge(recorders));
+    }
+
+    // -------------------
+    // Getters and Setters
+    // -------------------
+
+    public int getThreads() {
+        return threads;
+    }
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public long getWarmupMillis() {
+        return warmupMillis;
+    }
+    public void setWarmupMillis(long warmupMillis) {
+        this.warmupMillis = warmupMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+    /**
+     * Set the open loop rate. A rate of 0 switches back to closed loop.
+     * @param rate Requests per second, across all threads.
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+}
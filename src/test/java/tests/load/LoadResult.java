@@ -0,0 +1,69 @@
+package tests.load;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a single {@link LoadGenerator} run.
+ */
+public class LoadResult {
+    private final String name;
+    private final long requests;
+    private final long errors;
+    private final long elapsedNanos;
+    private final long[] sortedLatencies;
+
+    public LoadResult(String name, long requests, long errors,
+            long elapsedNanos, long[] sortedLatencies) {
+        this.name = name;
+        this.requests = requests;
+        this.errors = errors;
+        this.elapsedNanos = elapsedNanos;
+        this.sortedLatencies = sortedLatencies;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Get the successful requests per second over the whole run.
+     */
+    public double getRequestsPerSecond() {
+        return (requests - errors) / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Get a latency percentile in milliseconds.
+     * @param percentile The percentile wanted, between 0 and 100.
+     */
+    public double getLatencyMillis(double percentile) {
+        return LatencyRecorder.percentile(sortedLatencies, percentile) / 1e6;
+    }
+
+    public double getP50Millis() {
+        return getLatencyMillis(50);
+    }
+
+    public double getP99Millis() {
+        return getLatencyMillis(99);
+    }
+
+    public double getP999Millis() {
+        return getLatencyMillis(99.9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-16s %9.1f req/s  p50 %7.3fms  p99 %7.3fms  p999 %7.3fms  (%d requests, %d errors)",
+                getName(), getRequestsPerSecond(), getP50Millis(), getP99Millis(),
+                getP999Millis(), getRequests(), getErrors());
+    }
+}
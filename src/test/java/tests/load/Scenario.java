@@ -0,0 +1,40 @@
+package tests.load;
+
+import tests.mocks.MockClient;
+
+/**
+ * A Scenario describes the traffic a {@link LoadGenerator} sends. <p>
+ *
+ * Each load generating thread has its own {@link MockClient}, which the
+ * scenario fills out before every request.
+ */
+public abstract class Scenario {
+    private final String name;
+    private final boolean keepAlive;
+
+    /**
+     * Create a scenario.
+     * @param name      The name used in reports and in the baseline file.
+     * @param keepAlive Whether clients should try to reuse their connection.
+     */
+    public Scenario(String name, boolean keepAlive) {
+        this.name = name;
+        this.keepAlive = keepAlive;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Set up the client for the next request.
+     *
+     * @param client  The thread's client, reset to its defaults.
+     * @param n       How many requests this thread has sent so far.
+     */
+    public abstract void prepare(MockClient client, long n);
+}
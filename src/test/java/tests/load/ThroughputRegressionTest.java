@@ -0,0 +1,171 @@
+package tests.load;
+
+import static org.junit.Assert.fail;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+import httpserver.Route;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tests.mocks.MockClient;
+
+/**
+ * Runs an HttpServer on a loopback port, throws load at it, and fails if
+ * throughput or latency regressed from the stored baseline. <p>
+ *
+ * This is run by {@code gradle loadTest}, not by the regular test task.
+ * The following system properties tune it:
+ * <ul>
+ *   <li>{@code load.baseline}: the baseline file</li>
+ *   <li>{@code load.tolerance}: how much worse than the baseline is still
+ *   a pass (default 0.25)</li>
+ *   <li>{@code load.threads}, {@code load.duration}, {@code load.warmup}:
+ *   client threads, and milliseconds per scenario</li>
+ *   <li>{@code load.rate}: requests per second for the open loop scenario</li>
+ *   <li>{@code load.updateBaseline}: store this run's results as the new
+ *   baseline instead of comparing against it</li>
+ * </ul>
+ */
+public class ThroughputRegressionTest {
+    public static final int PORT = 4445;
+    public static final int ROUTES = 100;
+
+    private static HttpServer server;
+    private static Thread serverThread;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        // logging every request would turn this into a logging benchmark
+        Logger.getLogger("java-httpserver").setLevel(Level.WARNING);
+
+        server = new HttpServer(PORT);
+
+        server.get(new Route("/hello") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody("Hello World!");
+            }
+        });
+
+        server.post(new Route("/echo") {
+            @Override public void handle(HttpRequest request, HttpResponse response) {
+                response.setBody(request.getRequestBody());
+            }
+        });
+
+        for (int i = 0; i < ROUTES; i++) {
+            final String name = "route" + i;
+            server.get(new Route("/" + name + "/{id}") {
+                @Override public void handle(HttpRequest request, HttpResponse response) {
+                    response.setBody(name + " " + request.getParam("id"));
+                }
+            });
+        }
+
+        serverThread = new Thread(server, "load-test-server");
+        serverThread.start();
+
+        waitForServer();
+    }
+
+    @AfterClass
+    public static void stopServer() throws InterruptedException {
+        server.stop();
+        serverThread.join(5000);
+    }
+
+    @Test
+    public void throughputHasNotRegressed() throws Exception {
+        LoadGenerator generator = new LoadGenerator("127.0.0.1", PORT);
+        generator.setThreads(Integer.getInteger("load.threads", 8));
+        generator.setWarmupMillis(Long.getLong("load.warmup", 1000));
+        generator.setDurationMillis(Long.getLong("load.duration", 3000));
+
+        List<LoadResult> results = new ArrayList<LoadResult>();
+
+        results.add(generator.run(new Scenario("get-hello", true) {
+            @Override public void prepare(MockClient client, long n) {
+                client.setPath("/hello");
+            }
+        }));
+
+        results.add(generator.run(new Scenario("post-form", true) {
+            @Override public void prepare(MockClient client, long n) {
+                client.setRequestType("POST");
+                client.setPath("/echo");
+                for (int i = 0; i < 20; i++) {
+                    client.getPostData().put("field" + i, "value number " + i + " for request " + n);
+                }
+            }
+        }));
+
+        results.add(generator.run(new Scenario("many-routes", true) {
+            @Override public void prepare(MockClient client, long n) {
+                client.setPath("/route" + (n % ROUTES) + "/" + n);
+            }
+        }));
+
+        generator.setRate(Double.parseDouble(System.getProperty("load.rate", "1000")));
+        results.add(generator.run(new Scenario("open-loop", true) {
+            @Override public void prepare(MockClient client, long n) {
+                client.setPath("/hello");
+            }
+        }));
+
+        Baseline baseline = new Baseline(new File(
+                System.getProperty("load.baseline", "src/test/resources/load-baseline.properties")));
+        double tolerance = Double.parseDouble(System.getProperty("load.tolerance", "0.25"));
+
+        List<String> regressions = new ArrayList<String>();
+        for (LoadResult result : results) {
+            System.out.println(result);
+
+            if (Boolean.getBoolean("load.updateBaseline")) {
+                baseline.update(result);
+            } else {
+                regressions.addAll(baseline.regressions(result, tolerance));
+            }
+
+            if (result.getErrors() > 0) {
+                regressions.add(result.getName() + ": " + result.getErrors() + " requests failed");
+            }
+        }
+
+        if (Boolean.getBoolean("load.updateBaseline")) {
+            baseline.save();
+        }
+
+        if (!regressions.isEmpty()) {
+            StringBuilder b = new StringBuilder("Load test regressed:");
+            for (String regression : regressions) {
+                b.append("\n\t");
+                b.append(regression);
+            }
+
+            fail(b.toString());
+        }
+    }
+
+    private static void waitForServer() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+
+        fail("Server never started listening on port " + PORT);
+    }
+}
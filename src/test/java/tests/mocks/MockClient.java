@@ -1,7 +1,9 @@
 package tests.mocks;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
@@ -30,6 +32,11 @@ public class MockClient {
   public Map<String, String> postData;
   public Map<String, String> headers;
 
+  // used when the client keeps its connection around between requests
+  private boolean keepAlive = false;
+  private Socket connection;
+  private BufferedInputStream connectionInput;
+
 
   public MockClient() {
     setDefault();
@@ -49,8 +56,19 @@ public class MockClient {
   public void fillInSocket() throws IOException {
     //ServerSocket s = new ServerSocket(4444);
     Socket socket = new Socket("127.0.0.1", DESIRED_PORT);
-    BufferedWriter writer = new BufferedWriter(
-            new OutputStreamWriter(socket.getOutputStream()));
+    writeRequest(socket.getOutputStream());
+
+    socket.getOutputStream().close();
+    socket.close();
+  }
+
+
+  /**
+   * Write the request to an OutputStream, without closing it.
+   * @param out Where the request gets written to.
+   */
+  public void writeRequest(OutputStream out) throws IOException {
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
 
     writer.write(getRequestLine());
     writer.write("\n");
@@ -60,14 +78,67 @@ public class MockClient {
               Integer.toString(getDataInHTTP(getPostData()).length()));
     }
 
+    if (isKeepAlive()) {
+      getHeaders().put("Connection", "keep-alive");
+    }
+
     writer.write(getHeadersInHTTP());
     writer.write("\n");
 
     writer.write(getDataInHTTP(getPostData()));
     writer.flush();
-    writer.close();
+  }
 
-    socket.close();
+
+  /**
+   * Send the request to a running server, and read back its response.
+   *
+   * If the client is set to keep its connection alive, the connection is
+   * reused for the next request, unless the server asked to close it.
+   *
+   * @param host  The server's host.
+   * @param port  The server's port.
+   * @return The server's response.
+   */
+  public MockResponse send(String host, int port) throws IOException {
+    if (connection == null || connection.isClosed()) {
+      connection = new Socket(host, port);
+      connection.setTcpNoDelay(true);
+      connectionInput = new BufferedInputStream(connection.getInputStream());
+    }
+
+    try {
+      writeRequest(connection.getOutputStream());
+      MockResponse response = MockResponse.read(connectionInput);
+
+      if (!isKeepAlive() || !response.isKeepAlive()) {
+        close();
+      }
+
+      return response;
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+
+  /**
+   * Close the client's kept alive connection, if there is one.
+   */
+  public void close() {
+    if (connection == null) {
+      return;
+    }
+
+    try {
+      connection.close();
+    } catch (IOException e) {
+      // nothing left to do with it anyway
+    }
+
+    connection = null;
+    connectionInput = null;
   }
 
 
@@ -197,6 +268,13 @@ public class MockClient {
     this.headers = headers;
   }
 
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+  public void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
   public Map<String, String> getParams() {
     HashMap params = new HashMap<String, String>(getPostData());
     params.putAll(getGetData());
@@ -0,0 +1,142 @@
+package tests.mocks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A MockResponse is what a {@link MockClient} reads back from a server.
+ *
+ * It only understands enough of HTTP to pull out the status code, headers,
+ * and body, which is all the tests need.
+ */
+public class MockResponse {
+
+  private int code;
+  private Map<String, String> headers = new HashMap<String, String>();
+  private byte[] body;
+
+
+  /**
+   * Read a single response from the stream.
+   *
+   * If the response has a Content-Length header, exactly that many bytes
+   * are read as the body, leaving the stream ready for the next response.
+   * Otherwise the body is everything until the server closes the stream.
+   * Interim (1xx) responses never have a body.
+   *
+   * @param in  The server's side of the connection.
+   * @return The parsed response.
+   * @throws IOException When the stream ends before a status line is read.
+   */
+  public static MockResponse read(InputStream in) throws IOException {
+    MockResponse response = new MockResponse();
+
+    String statusLine = readLine(in);
+    if (statusLine == null) {
+      throw new IOException("Server closed the connection without responding");
+    }
+
+    String[] status = statusLine.split(" ");
+    response.code = Integer.parseInt(status[1]);
+
+    for (String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)) {
+      int colon = line.indexOf(':');
+      if (colon == -1) {
+        continue;
+      }
+
+      response.headers.put(line.substring(0, colon).trim().toLowerCase(),
+              line.substring(colon + 1).trim());
+    }
+
+    String length = response.getHeader("Content-Length");
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    if (length != null) {
+      int remaining = Integer.parseInt(length);
+      byte[] buffer = new byte[Math.min(Math.max(remaining, 1), 8192)];
+
+      while (remaining > 0) {
+        int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+        if (read == -1) {
+          throw new IOException("Server closed the connection mid-body");
+        }
+
+        body.write(buffer, 0, read);
+        remaining -= read;
+      }
+    } else if (response.code >= 200 && response.code != 204 && response.code != 304) {
+      byte[] buffer = new byte[8192];
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+        body.write(buffer, 0, read);
+      }
+    }
+
+    response.body = body.toByteArray();
+    return response;
+  }
+
+  /**
+   * Read a line ending in "\n" (with or without a "\r") from the stream.
+   * @return The line, or null if the stream was already finished.
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder b = new StringBuilder();
+
+    int c = in.read();
+    if (c == -1) {
+      return null;
+    }
+
+    while (c != -1 && c != '\n') {
+      if (c != '\r') {
+        b.append((char) c);
+      }
+      c = in.read();
+    }
+
+    return b.toString();
+  }
+
+  // -------------------
+  // Getters
+  // -------------------
+
+  public int getCode() {
+    return code;
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  public String getHeader(String key) {
+    return headers.get(key.toLowerCase());
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  public String getBodyString() {
+    try {
+      return new String(body, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      return new String(body);
+    }
+  }
+
+  /**
+   * Whether the server is willing to take another request on the same
+   * connection.
+   */
+  public boolean isKeepAlive() {
+    String connection = getHeader("Connection");
+    boolean framed = getHeader("Content-Length") != null || code == 204 || code == 304;
+    return framed && (connection == null || !connection.equalsIgnoreCase("close"));
+  }
+}